@@ -1,5 +1,6 @@
 package Action;
 
+import Channel.ResponseRouter;
 import Messages.Message;
 
 /**
@@ -14,4 +15,12 @@ public abstract class ActionHasReply extends Action {
      */
     public abstract void parseResponse(Message msg);
 
+    /**
+     * Getter for the type, file and chunk of the messages this action waits for, used to route them to it.
+     * Must not change while the action is subscribed.
+     *
+     * @return The key of the messages waited for
+     */
+    public abstract ResponseRouter.Key getResponseKey();
+
 }
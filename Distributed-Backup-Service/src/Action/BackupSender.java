@@ -0,0 +1,520 @@
+package Action;
+
+import ThreadPool.ThreadPool;
+import ThreadPool.WheelTimer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Class sending the PUTCHUNK messages of a backup through a sliding window, paced by a token bucket, so a large file
+ * does not flood the backup channel and overrun the socket buffers of the peers.
+ *
+ * A chunk is in flight from the time it is sent until a STORED message of it arrives. At most the window size of
+ * chunks are in flight, and the window grows as in TCP congestion control: by one chunk per acknowledgement while below
+ * the slow start threshold, and by one chunk per window above it. The sends are paced at twice the window per round
+ * trip, so the window is spread over the round trip instead of being sent in a burst.
+ *
+ * Each send of a chunk starts its own retransmission timer, estimated as in TCP from the round trip times of the
+ * STORED messages. When it expires, the chunk is sent again if it did not reach its replication degree, with the
+ * timeout doubled, until it was sent the maximum number of times. A chunk sent for the first time expiring with no
+ * STORED message at all is taken as lost, and the window is halved, at most once per round trip.
+ */
+public class BackupSender {
+
+    /**
+     * The maximum number of times a chunk is sent
+     */
+    public static final int MAX_SENDS = 5;
+
+    /**
+     * The initial window size, in chunks
+     */
+    private static final double INITIAL_WINDOW = 128;
+
+    /**
+     * The minimum window size, in chunks
+     */
+    private static final double MIN_WINDOW = 2;
+
+    /**
+     * The default maximum window size, in chunks
+     */
+    private static final int DEFAULT_MAX_WINDOW = 1024;
+
+    /**
+     * The sending rate while the round trip time is not known, in chunks per second
+     */
+    private static final double INITIAL_RATE = 200;
+
+    /**
+     * The minimum sending rate, in chunks per second
+     */
+    private static final double MIN_RATE = 10;
+
+    /**
+     * The multiple of the window sent per round trip time
+     */
+    private static final double PACING_GAIN = 2;
+
+    /**
+     * The minimum number of chunks that may be sent in a burst
+     */
+    private static final double MIN_BURST = 4;
+
+    /**
+     * The minimum retransmission timeout, on top of the maximum delay of the STORED messages, in milliseconds
+     */
+    private static final long MIN_TIMEOUT = 1000;
+
+    /**
+     * The maximum multiple of the retransmission timeout a chunk waits for, after being sent many times
+     */
+    private static final int MAX_BACKOFF = 16;
+
+    /**
+     * Time between sending rounds, in milliseconds
+     */
+    private static final long TICK = 10;
+
+    /**
+     * The timer running the sending rounds and the retransmission timers
+     */
+    private WheelTimer timer;
+
+    /**
+     * Sends the PUTCHUNK message of a chunk
+     */
+    private IntConsumer sendChunk;
+
+    /**
+     * Tells whether a chunk reached its replication degree
+     */
+    private IntPredicate replicated;
+
+    /**
+     * Called once every chunk reached its replication degree or was given up
+     */
+    private Runnable onFinished;
+
+    /**
+     * The number of chunks of the file
+     */
+    private int numChunks;
+
+    /**
+     * The maximum time the peers wait before storing a chunk and sending its STORED message, in milliseconds
+     */
+    private long maxAckDelay;
+
+    /**
+     * The next chunk sent for the first time
+     */
+    private int nextChunk = 0;
+
+    /**
+     * The chunks queued to be sent again, in order
+     */
+    private LinkedHashSet<Integer> resendQueue = new LinkedHashSet<>();
+
+    /**
+     * The chunks in flight
+     */
+    private HashSet<Integer> inFlight = new HashSet<>();
+
+    /**
+     * The number of times each chunk was sent
+     */
+    private int[] numSends;
+
+    /**
+     * The number of times each chunk timed out with no STORED message at all, doubling its timeout
+     */
+    private int[] backoffs;
+
+    /**
+     * The time each chunk was first sent, as given by System.nanoTime
+     */
+    private long[] firstSendTimes;
+
+    /**
+     * The retransmission timer of each chunk, or null if it has none running
+     */
+    private WheelTimer.Timeout[] timers;
+
+    /**
+     * The chunks that reached their replication degree or were given up
+     */
+    private BitSet doneChunks;
+
+    /**
+     * The number of chunks that reached their replication degree or were given up
+     */
+    private int numDone = 0;
+
+    /**
+     * The number of chunks given up
+     */
+    private int numFailed = 0;
+
+    /**
+     * The window size, in chunks
+     */
+    private double window = INITIAL_WINDOW;
+
+    /**
+     * The maximum window size, in chunks
+     */
+    private double maxWindow;
+
+    /**
+     * The slow start threshold, in chunks
+     */
+    private double slowStartThreshold;
+
+    /**
+     * The tokens available to send chunks
+     */
+    private double tokens = MIN_BURST;
+
+    /**
+     * The time the tokens were last refilled, as given by System.nanoTime
+     */
+    private long lastRefill;
+
+    /**
+     * The smoothed round trip time, in nanoseconds, or 0 while not known
+     */
+    private double smoothedRTT = 0;
+
+    /**
+     * The round trip time variation, in nanoseconds
+     */
+    private double rttVariation = 0;
+
+    /**
+     * The time the window was last halved, as given by System.nanoTime
+     */
+    private long lastReduction;
+
+    /**
+     * The number of chunks taken as lost
+     */
+    private int numLosses = 0;
+
+    /**
+     * The number of times chunks were sent again
+     */
+    private int numResends = 0;
+
+    /**
+     * Whether the sending rounds are scheduled
+     */
+    private boolean running = false;
+
+    /**
+     * Whether every chunk reached its replication degree or was given up
+     */
+    private boolean finished = false;
+
+    /**
+     * Backup Sender constructor. The maximum window size is set with the system property backup.window.max
+     *
+     * @param timer The timer running the sending rounds and the retransmission timers
+     * @param numChunks The number of chunks of the file
+     * @param maxAckDelay The maximum time the peers wait before sending a STORED message, in milliseconds
+     * @param sendChunk Sends the PUTCHUNK message of a chunk
+     * @param replicated Tells whether a chunk reached its replication degree
+     * @param onFinished Called once every chunk reached its replication degree or was given up
+     */
+    public BackupSender(WheelTimer timer, int numChunks, long maxAckDelay, IntConsumer sendChunk, IntPredicate replicated,
+                        Runnable onFinished) {
+        this.timer = timer;
+        this.numChunks = numChunks;
+        this.maxAckDelay = maxAckDelay;
+        this.sendChunk = sendChunk;
+        this.replicated = replicated;
+        this.onFinished = onFinished;
+
+        numSends = new int[numChunks];
+        backoffs = new int[numChunks];
+        firstSendTimes = new long[numChunks];
+        timers = new WheelTimer.Timeout[numChunks];
+        doneChunks = new BitSet(numChunks);
+
+        maxWindow = Math.max(MIN_WINDOW, Integer.getInteger("backup.window.max", DEFAULT_MAX_WINDOW));
+        slowStartThreshold = maxWindow;
+        lastRefill = System.nanoTime();
+        lastReduction = lastRefill;
+    }
+
+    /**
+     * Start sending every chunk of the file
+     */
+    public void start() {
+        boolean nowFinished;
+        synchronized (this) {
+            running = true;
+            nowFinished = checkFinished();
+        }
+
+        if (nowFinished)
+            onFinished.run();
+        else
+            round();
+    }
+
+    /**
+     * Take note of a STORED message of a chunk: the first one after a send takes the chunk out of flight, sampling the
+     * round trip time and growing the window, and the chunk retransmission timer is stopped once it reached its
+     * replication degree.
+     * The chunks the window lets through are sent in the next round, so the thread receiving the messages is not held
+     *
+     * @param chunkNum The chunk number
+     */
+    public void acknowledged(int chunkNum) {
+        boolean nowFinished;
+
+        synchronized (this) {
+            if (finished || chunkNum < 0 || chunkNum >= numChunks || numSends[chunkNum] == 0)
+                return;
+
+            if (inFlight.remove(chunkNum)) {
+                // Karn's algorithm: the STORED message of a chunk sent more than once may answer any of the sends
+                if (numSends[chunkNum] == 1)
+                    sampleRTT(System.nanoTime() - firstSendTimes[chunkNum]);
+
+                if (window < slowStartThreshold)
+                    window += 1;
+                else
+                    window += 1 / window;
+                window = Math.min(window, maxWindow);
+            }
+
+            if (! doneChunks.get(chunkNum) && replicated.test(chunkNum))
+                chunkDone(chunkNum, false);
+            nowFinished = checkFinished();
+        }
+
+        if (nowFinished)
+            onFinished.run();
+    }
+
+    /**
+     * Handle the expiry of the retransmission timer of a chunk: the chunk is sent again if it did not reach its
+     * replication degree, or given up if it was sent the maximum number of times
+     *
+     * @param chunkNum The chunk number
+     * @param sendNum The send of the chunk the timer was started for
+     */
+    private void expired(int chunkNum, int sendNum) {
+        boolean nowFinished;
+        boolean restart = false;
+
+        synchronized (this) {
+            if (finished || doneChunks.get(chunkNum) || numSends[chunkNum] != sendNum)
+                return;
+            timers[chunkNum] = null;
+
+            // A chunk with no STORED message at all was lost, and waits longer the next time, as the network may be
+            // congested. Only chunks sent for the first time reduce the window, as the peers already storing a chunk
+            // may not answer again
+            boolean lost = inFlight.remove(chunkNum);
+            if (lost)
+                ++backoffs[chunkNum];
+            if (lost && sendNum == 1) {
+                ++numLosses;
+                if (firstSendTimes[chunkNum] > lastReduction) {
+                    slowStartThreshold = Math.max(MIN_WINDOW, window / 2);
+                    window = slowStartThreshold;
+                    lastReduction = System.nanoTime();
+                }
+            }
+
+            if (replicated.test(chunkNum))
+                chunkDone(chunkNum, false);
+            else if (sendNum >= MAX_SENDS)
+                chunkDone(chunkNum, true);
+            else {
+                resendQueue.add(chunkNum);
+                if (! running) {
+                    running = true;
+                    restart = true;
+                }
+            }
+            nowFinished = checkFinished();
+        }
+
+        if (nowFinished)
+            onFinished.run();
+        else if (restart)
+            round();
+    }
+
+    /**
+     * Take a chunk as done, stopping its retransmission timer
+     *
+     * @param chunkNum The chunk number
+     * @param failed Whether the chunk was given up
+     */
+    private void chunkDone(int chunkNum, boolean failed) {
+        doneChunks.set(chunkNum);
+        ++numDone;
+        if (failed)
+            ++numFailed;
+
+        inFlight.remove(chunkNum);
+        resendQueue.remove(chunkNum);
+        if (timers[chunkNum] != null) {
+            timers[chunkNum].cancel();
+            timers[chunkNum] = null;
+        }
+    }
+
+    /**
+     * Check whether every chunk is done, stopping the sending rounds if so
+     *
+     * @return True only the first time every chunk is found done
+     */
+    private boolean checkFinished() {
+        if (finished || numDone < numChunks)
+            return false;
+
+        finished = true;
+        running = false;
+        return true;
+    }
+
+    /**
+     * Update the round trip time estimate with a new sample, as in TCP
+     *
+     * @param rtt The round trip time, in nanoseconds
+     */
+    private void sampleRTT(long rtt) {
+        if (smoothedRTT == 0) {
+            smoothedRTT = rtt;
+            rttVariation = rtt / 2.0;
+        } else {
+            rttVariation = 0.75 * rttVariation + 0.25 * Math.abs(smoothedRTT - rtt);
+            smoothedRTT = 0.875 * smoothedRTT + 0.125 * rtt;
+        }
+    }
+
+    /**
+     * Compute the time waited for a chunk to reach its replication degree after being sent.
+     * The peers wait a random time before storing a chunk, so the timeout never falls below the maximum wait: the
+     * first round trip times measured are the shortest waits, and would otherwise time out most chunks before every
+     * peer could answer. The estimate from the round trip times is doubled each time the chunk was lost, as in TCP,
+     * and takes over once the network is slower than the wait
+     *
+     * @param backoff The number of times the chunk was lost
+     * @return The retransmission timeout, in milliseconds
+     */
+    private long retransmissionTimeout(int backoff) {
+        long estimate = TimeUnit.NANOSECONDS.toMillis((long) (smoothedRTT + 4 * rttVariation));
+        return Math.max(maxAckDelay + MIN_TIMEOUT, estimate * Math.min(MAX_BACKOFF, 1 << backoff));
+    }
+
+    /**
+     * Compute the pacing rate: twice the window per round trip time
+     *
+     * @return The rate, in chunks per second
+     */
+    private double pacingRate() {
+        if (smoothedRTT == 0)
+            return INITIAL_RATE;
+        return Math.max(MIN_RATE, PACING_GAIN * window * 1e9 / smoothedRTT);
+    }
+
+    /**
+     * Run a sending round, sending the chunks the window and the tokens allow and starting their retransmission timers.
+     * Rounds are scheduled every tick while there are chunks queued or in flight, as data work since they send the chunks
+     */
+    private void round() {
+        ArrayList<Integer> toSend = new ArrayList<>();
+        boolean idle;
+
+        synchronized (this) {
+            if (! running)
+                return;
+
+            // The bucket holds the chunks of two rounds, so the pacing rate is not capped by the tick
+            long now = System.nanoTime();
+            double rate = pacingRate();
+            double burst = Math.max(MIN_BURST, 2 * rate * TICK / 1000);
+            tokens = Math.min(burst, tokens + rate * (now - lastRefill) / 1e9);
+            lastRefill = now;
+
+            while (tokens >= 1 && inFlight.size() < (int) window) {
+                int chunkNum = nextToSend();
+                if (chunkNum < 0)
+                    break;
+
+                int sendNum = ++numSends[chunkNum];
+                if (sendNum == 1)
+                    firstSendTimes[chunkNum] = now;
+                else
+                    ++numResends;
+
+                inFlight.add(chunkNum);
+                timers[chunkNum] = timer.schedule(() -> expired(chunkNum, sendNum),
+                        retransmissionTimeout(backoffs[chunkNum]), TimeUnit.MILLISECONDS, ThreadPool.TrafficClass.DATA);
+                toSend.add(chunkNum);
+                tokens -= 1;
+            }
+
+            idle = inFlight.isEmpty() && resendQueue.isEmpty() && nextChunk >= numChunks;
+            if (idle)
+                running = false;
+        }
+
+        for (int chunkNum : toSend)
+            sendChunk.accept(chunkNum);
+
+        if (! idle)
+            timer.schedule(this::round, TICK, TimeUnit.MILLISECONDS, ThreadPool.TrafficClass.DATA);
+    }
+
+    /**
+     * Take the next chunk to be sent: the ones queued to be sent again come first
+     *
+     * @return The chunk number, or -1 if there is none
+     */
+    private int nextToSend() {
+        Iterator<Integer> it = resendQueue.iterator();
+        if (it.hasNext()) {
+            int chunkNum = it.next();
+            it.remove();
+            return chunkNum;
+        }
+        return (nextChunk < numChunks) ? nextChunk++ : -1;
+    }
+
+    /**
+     * Getter for the number of chunks given up, as they did not reach their replication degree
+     *
+     * @return The number of chunks
+     */
+    public synchronized int getNumFailedChunks() {
+        return numFailed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BackupSender{" +
+                " window=" + (int) window +
+                ", inFlight=" + inFlight.size() +
+                ", done=" + numDone + "/" + numChunks +
+                ", rtt=" + TimeUnit.NANOSECONDS.toMillis((long) smoothedRTT) + "ms" +
+                ", rto=" + retransmissionTimeout(0) + "ms" +
+                ", losses=" + numLosses +
+                ", resends=" + numResends +
+                '}';
+    }
+}
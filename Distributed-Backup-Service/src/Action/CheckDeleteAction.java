@@ -1,12 +1,9 @@
 package Action;
 
+import Database.ChunkStore;
 import Messages.CheckDeleteMsg;
-import Messages.Message;
-import Utils.FileManager;
 import Utils.Utils;
 
-import java.io.File;
-
 import Channel.ControlChannel;
 
 /**
@@ -19,6 +16,11 @@ public class CheckDeleteAction extends Action {
      */
     private ControlChannel controlChannel;
 
+    /**
+     * The store holding the chunks of the files to be checked
+     */
+    private ChunkStore chunkStore;
+
     /**
      * Protocol Version in the communication
      */
@@ -33,11 +35,13 @@ public class CheckDeleteAction extends Action {
      * Check Delete Action constructor
      *
      * @param controlChannel The control channel used to communicate
+     * @param chunkStore The store of the peer chunk bodies
      * @param protocolVersion The protocol version used
      * @param peerID The peer identifier
      */
-    public CheckDeleteAction(ControlChannel controlChannel, float protocolVersion, int peerID) {
+    public CheckDeleteAction(ControlChannel controlChannel, ChunkStore chunkStore, float protocolVersion, int peerID) {
         this.controlChannel = controlChannel;
+        this.chunkStore = chunkStore;
         this.protocolVersion = protocolVersion;
         this.peerID = peerID;
     }
@@ -59,14 +63,9 @@ public class CheckDeleteAction extends Action {
 
     @Override
     public void run() {
-
-        File[] backupFiles = FileManager.getPeerBackups(peerID);
-        if (backupFiles == null)
-            Utils.showError("Failed to get Peer backup files", this.getClass());
-
-        for (File backupFile : backupFiles) {
-            Utils.log("NEW CHILD: " + backupFile.getName());
-            checkDelete(backupFile.getName());
+        for (String fileID : chunkStore.getFileIDs()) {
+            Utils.log("CHECKING DELETE OF " + fileID);
+            checkDelete(fileID);
         }
     }
 }
@@ -1,12 +1,12 @@
 package Action;
 
+import Database.ChunkStore;
 import Database.ChunksRecorder;
 import Messages.DeleteMsg;
-import Utils.FileManager;
 import Utils.Utils;
 import Utils.ProtocolVersions;
 
-import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
 public class DeleteAction extends Action {
@@ -32,10 +32,16 @@ public class DeleteAction extends Action {
      */
     private ChunksRecorder peerStoredChunks;
 
-    public DeleteAction(DeleteMsg message, ChunksRecorder peerStoredChunks, int peerID) {
+    /**
+     * The store the chunk bodies are deleted from
+     */
+    private ChunkStore chunkStore;
+
+    public DeleteAction(DeleteMsg message, ChunksRecorder peerStoredChunks, ChunkStore chunkStore, int peerID) {
         fileID = message.getFileID();
         this.peerID = peerID;
         this.peerStoredChunks = peerStoredChunks;
+        this.chunkStore = chunkStore;
         this.protocolVersion = message.getProtocolVersion();
     }
 
@@ -46,22 +52,14 @@ public class DeleteAction extends Action {
         if (chunks == null && protocolVersion == ProtocolVersions.VANILLA_VERSION)
             return;
 
-        File[] backupFiles = FileManager.getPeerBackups(peerID);
-        if (backupFiles == null)
-            Utils.showError("Failed to get Peer backup files", this.getClass());
-
-        for (File backupFile : backupFiles) {
-
-            if (backupFile.isDirectory() && backupFile.getName().equals(fileID)) {
-
-                if (Utils.deleteFolder(backupFile)) {
-                    Utils.log("SUCCESSFULLY DELETED " + backupFile.getName() + "!");
-                    Utils.showSuccess("Successfully deleted File!");
-                    peerStoredChunks.removeFile(fileID);
-                }
-                else
-                    Utils.log("FAILED TO DELETE "+ backupFile.getName() + "!");
+        try {
+            if (chunkStore.deleteFile(fileID)) {
+                Utils.log("SUCCESSFULLY DELETED " + fileID + "!");
+                Utils.showSuccess("Successfully deleted File!");
+                peerStoredChunks.removeFile(fileID);
             }
+        } catch (IOException e) {
+            Utils.log("FAILED TO DELETE "+ fileID + "!");
         }
     }
 }
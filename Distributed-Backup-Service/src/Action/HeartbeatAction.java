@@ -0,0 +1,120 @@
+package Action;
+
+import Channel.ControlChannel;
+import Database.ChunksRecorder;
+import Messages.HeartbeatMsg;
+import ThreadPool.ThreadPool;
+import ThreadPool.WheelTimer;
+import Utils.FileManager;
+import Utils.Utils;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class implementing the Heartbeat Action, which tells the other peers, periodically, that this peer is alive,
+ * along with the disk space it has free for chunks and its load
+ */
+public class HeartbeatAction extends Action {
+
+    /**
+     * The default interval between heartbeats, in milliseconds
+     */
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    /**
+     * The channel used to communicate with other peers, regarding control information
+     */
+    private ControlChannel controlChannel;
+
+    /**
+     * The timer used to send the next heartbeat
+     */
+    private WheelTimer timer;
+
+    /**
+     * The database regarding chunks that were stored in this peer, giving its free space
+     */
+    private ChunksRecorder peerStoredChunks;
+
+    /**
+     * The thread pool of the peer, giving its load
+     */
+    private ThreadPool threadPool;
+
+    /**
+     * Protocol Version in the communication
+     */
+    private float protocolVersion;
+
+    /**
+     * The identifier of the Peer associated to this action
+     */
+    private int peerID;
+
+    /**
+     * The interval between heartbeats, in milliseconds
+     */
+    private long interval;
+
+    /**
+     * Generator of the random time added to each interval, so the peers started together do not heartbeat together
+     */
+    private Random random = new Random();
+
+    /**
+     * Heartbeat Action constructor
+     *
+     * @param controlChannel The control channel used to communicate
+     * @param timer The timer used to send the next heartbeat
+     * @param peerStoredChunks The database regarding chunks that were stored in this peer
+     * @param threadPool The thread pool of the peer
+     * @param protocolVersion The protocol version used
+     * @param peerID The peer identifier
+     * @param interval The interval between heartbeats, in milliseconds
+     */
+    public HeartbeatAction(ControlChannel controlChannel, WheelTimer timer, ChunksRecorder peerStoredChunks, ThreadPool threadPool,
+                           float protocolVersion, int peerID, long interval) {
+        this.controlChannel = controlChannel;
+        this.timer = timer;
+        this.peerStoredChunks = peerStoredChunks;
+        this.threadPool = threadPool;
+        this.protocolVersion = protocolVersion;
+        this.peerID = peerID;
+        this.interval = interval;
+    }
+
+    /**
+     * Getter for the disk space this peer has free for chunks, limited by both the maximum disk space and the disk itself
+     *
+     * @return The free space, in bytes
+     */
+    private long getFreeSpace() {
+        long diskSpace = new File(FileManager.getPeerDirectory(peerID)).getUsableSpace();
+        return Math.min(peerStoredChunks.getFreeDiskSpace(), diskSpace);
+    }
+
+    /**
+     * Getter for the load of this peer, as the number of messages waiting to be handled
+     *
+     * @return The load
+     */
+    private int getLoad() {
+        return threadPool.getQueueDepth(ThreadPool.TrafficClass.CONTROL) + threadPool.getQueueDepth(ThreadPool.TrafficClass.DATA);
+    }
+
+    @Override
+    public void run() {
+        try {
+            controlChannel.sendMessage(
+                    new HeartbeatMsg(protocolVersion, peerID, getFreeSpace(), getLoad()).genMsg()
+            );
+        } catch (ExceptionInInitializerError e) {
+            Utils.showWarning("Failed to build heartbeat message", this.getClass());
+        }
+
+        // Up to a tenth of the interval is added, which the other peers' failure detectors absorb
+        timer.schedule(this, interval + random.nextInt((int) (interval / 10) + 1), TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,203 @@
+package Action;
+
+import Channel.ControlChannel;
+import Channel.Membership;
+import Channel.ResponseRouter;
+import Database.BackedUpFiles;
+import Database.ChunkStore;
+import Database.ChunksRecorder;
+import Messages.Message;
+import Messages.PutchunkMsg;
+import Messages.StoredMsg;
+import ThreadPool.ThreadPool;
+import ThreadPool.WheelTimer;
+import Utils.RendezvousHash;
+import Utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Action storing a chunk placed by rendezvous hashing, instead of after a random delay.
+ * The peers whose rank for the chunk among the known members is below the desired replication degree store it at once.
+ * The others are fallbacks: they wait longer the lower their rank, and only store the chunk if its replication degree
+ * was not met meanwhile, covering for the peers that are down, out of space, or unknown to the others.
+ * Fallbacks count the STORED messages of the chunk in memory, so the chunk is only recorded in the database, and
+ * journaled, by the peers that store it.
+ */
+public class PlacedStoreAction extends ActionHasReply {
+
+    /**
+     * Time waited by a fallback peer per rank past the desired replication degree, in milliseconds.
+     * A random time up to it is added, so fallbacks of the same rank do not store together
+     */
+    public final static int FALLBACK_DELAY = 500;
+
+    /**
+     * The putchunk message that triggered this action
+     */
+    private PutchunkMsg putchunkMsg;
+
+    /**
+     * The channel used to communicate with other peers, regarding control information
+     */
+    private ControlChannel controlChannel;
+
+    /**
+     * The timer used to run the delayed tasks of this action
+     */
+    private WheelTimer timer;
+
+    /**
+     * Data Structure to be updated by this action, referent to the Peer stored files' chunks
+     */
+    private ChunksRecorder peerStoredChunks;
+
+    /**
+     * The store where the chunk body is written
+     */
+    private ChunkStore chunkStore;
+
+    /**
+     * The database regarding chunks that were backed up from this peer
+     */
+    private BackedUpFiles ownBackedFiles;
+
+    /**
+     * The peers known to be in the service, among which the chunk is placed
+     */
+    private Membership membership;
+
+    /**
+     * The identifier of the Peer associated to this action
+     */
+    private int peerID;
+
+    /**
+     * The peers that stored the chunk, as told by their STORED messages received while this peer is a fallback
+     */
+    private Set<Integer> storedPeers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Placed Store Action constructor
+     *
+     * @param controlChannel The control channel used in communication
+     * @param timer The timer used to run delayed tasks
+     * @param peerStoredChunks The database regarding chunk that were stored in this peer
+     * @param chunkStore The store where the chunk body is written
+     * @param ownBackedFiles The database regarding chunks that were backed up from this peer
+     * @param membership The peers known to be in the service
+     * @param peerID The peer identifier
+     * @param requestMsg The message containing the request
+     */
+    public PlacedStoreAction(ControlChannel controlChannel, WheelTimer timer, ChunksRecorder peerStoredChunks, ChunkStore chunkStore,
+                             BackedUpFiles ownBackedFiles, Membership membership, int peerID, PutchunkMsg requestMsg) {
+        this.controlChannel = controlChannel;
+        this.timer = timer;
+        this.peerStoredChunks = peerStoredChunks;
+        this.chunkStore = chunkStore;
+        this.ownBackedFiles = ownBackedFiles;
+        this.membership = membership;
+        this.peerID = peerID;
+        putchunkMsg = requestMsg;
+    }
+
+    @Override
+    public void run() {
+        String fileID = putchunkMsg.getFileID();
+        int chunkNum = putchunkMsg.getChunkNum();
+
+        if (ownBackedFiles.hasFileBackedUp(fileID))
+            return;
+
+        // Already stored, so only the STORED message is sent again, as the initiator peer did not get it
+        if (peerStoredChunks.hasChunk(fileID, chunkNum) && chunkStore.getChunkLength(fileID, chunkNum) >= 0) {
+            sendStored();
+            return;
+        }
+
+        // Only the live peers advertising enough free space compete for the chunk, and the sender of the PUTCHUNK
+        // message never stores it: it is the initiator, or a peer giving it up
+        ArrayList<Integer> peers = membership.getPeers(putchunkMsg.getChunkSize());
+        peers.remove(Integer.valueOf(putchunkMsg.getSenderID()));
+
+        int rank = RendezvousHash.rank(fileID, chunkNum, peerID, peers);
+        int fallbackRank = rank - putchunkMsg.getRepDegree();
+        if (fallbackRank < 0) {
+            if (storeChunk())
+                sendStored();
+            return;
+        }
+
+        // The chunk body is only stored after the delay, so it must be kept until then
+        controlChannel.subscribeAction(this);
+        putchunkMsg.retain();
+        timer.schedule(() -> {
+            try {
+                controlChannel.unsubscribeAction(this);
+
+                // Stored meanwhile through another PUTCHUNK of the chunk, or by enough other peers
+                if (peerStoredChunks.hasChunk(putchunkMsg.getFileID(), putchunkMsg.getChunkNum()) ||
+                        storedPeers.size() >= putchunkMsg.getRepDegree())
+                    return;
+
+                if (storeChunk())
+                    sendStored();
+            } finally {
+                putchunkMsg.release();
+            }
+        }, FALLBACK_DELAY * (fallbackRank + 1) + new Random().nextInt(FALLBACK_DELAY), TimeUnit.MILLISECONDS,
+                ThreadPool.TrafficClass.DATA);
+    }
+
+    /**
+     * Store the chunk in the disk and record it in the database, along with the peers known to store it
+     *
+     * @return True if the chunk is stored
+     */
+    private boolean storeChunk() {
+        String fileID = putchunkMsg.getFileID();
+        int chunkNum = putchunkMsg.getChunkNum();
+
+        try {
+            if (! peerStoredChunks.storeChunk(chunkStore, fileID, chunkNum, putchunkMsg.getChunkSize(),
+                    putchunkMsg.getRepDegree(), putchunkMsg.getChunkBody()))
+                return false;
+
+        } catch (java.io.IOException e) {
+            Utils.showError("Failed to save chunk in disk", this.getClass());
+            return false;
+        }
+
+        for (int storedPeer : storedPeers)
+            peerStoredChunks.incChunkRecord(fileID, chunkNum, storedPeer);
+        return true;
+    }
+
+    /**
+     * Send the STORED message of the chunk
+     */
+    private void sendStored() {
+        try {
+            controlChannel.sendMessage(
+                    new StoredMsg(putchunkMsg.getProtocolVersion(), peerID,
+                            putchunkMsg.getFileID(), putchunkMsg.getChunkNum()).genMsg()
+            );
+        } catch (ExceptionInInitializerError e) {
+            Utils.showError("Failed to build message, stopping Store action", this.getClass());
+        }
+    }
+
+    @Override
+    public void parseResponse(Message msg) {
+        storedPeers.add(msg.getSenderID());
+    }
+
+    @Override
+    public ResponseRouter.Key getResponseKey() {
+        return new ResponseRouter.Key(StoredMsg.class, putchunkMsg.getFileID(), putchunkMsg.getChunkNum());
+    }
+}
@@ -1,20 +1,18 @@
 package Action;
 
 import Channel.BackupChannel;
-import Database.BackedUpFiles;
+import Channel.ResponseRouter;
+import Database.ChunkStore;
 import Database.ChunksRecorder;
 import Messages.Message;
 import Messages.PutchunkMsg;
 import Messages.RemovedMsg;
+import ThreadPool.ThreadPool;
+import ThreadPool.WheelTimer;
 import Utils.*;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.Random;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -63,25 +61,36 @@ public class RemovedAction extends ActionHasReply {
     private int chunkNum;
 
     /**
-     * The chunk number
+     * The store the removed chunk body is read from
      */
-    private File removedChunk;
+    private ChunkStore chunkStore;
 
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    /**
+     * The timer used to run the delayed tasks of this action
+     */
+    private WheelTimer timer;
 
-    private ScheduledFuture putchunkSender;
+    /**
+     * Timeout used to send the putchunk message after a given time.
+     * Null while it is not scheduled yet, as the action subscribes first so no reply is missed
+     */
+    private volatile WheelTimer.Timeout putchunkSender;
 
     /**
      * Remove Action Constructor
      *
      * @param record The peer locally stored files
+     * @param chunkStore The store of the peer chunk bodies
      * @param backupChannel The channel associated to this action
+     * @param timer The timer used to run delayed tasks
      * @param peerID The identifier of the sender peer
      * @param removedMsg The chunk number that was deleted
      */
-    public RemovedAction(ChunksRecorder record, BackupChannel backupChannel, int peerID, RemovedMsg removedMsg) {
+    public RemovedAction(ChunksRecorder record, ChunkStore chunkStore, BackupChannel backupChannel, WheelTimer timer, int peerID, RemovedMsg removedMsg) {
         this.record = record;
+        this.chunkStore = chunkStore;
         this.backupChannel = backupChannel;
+        this.timer = timer;
         this.peerID = peerID;
         this.receivedPeerID = removedMsg.getSenderID();
         this.protocolVersion = removedMsg.getProtocolVersion();
@@ -100,34 +109,37 @@ public class RemovedAction extends ActionHasReply {
                                 "It was file:" + fileID + ", chunk: " + chunkNum);
 
             if (! record.isRDBalanced(fileID, chunkNum)) {
-                removedChunk = FileManager.getChunkFile(peerID, fileID, chunkNum).toFile();
-
                 backupChannel.subscribeAction(this);
-                putchunkSender = scheduler.schedule( () -> {
+                putchunkSender = timer.schedule(() -> {
                     try {
+                        byte[] chunk = chunkStore.read(fileID, chunkNum);
+                        if (chunk == null)
+                            throw new IOException("Chunk " + chunkNum + " of file " + fileID + " is not stored");
+
                         backupChannel.sendMessage(
-                                new PutchunkMsg(protocolVersion, receivedPeerID, fileID, chunkNum, record.getFileDesiredRD(fileID), Files.readAllBytes(removedChunk.toPath())).genMsg()
+                                new PutchunkMsg(protocolVersion, receivedPeerID, fileID, chunkNum, record.getFileDesiredRD(fileID), chunk).genMsg()
                         );
                         backupChannel.unsubscribeAction(this);
 
                     } catch (ExceptionInInitializerError | IOException e) {
                         Utils.showWarning("Failed to build message. Proceeding for other messages.", this.getClass());
                     }
-                }, new Random().nextInt(MAX_TIME_TO_SEND), TimeUnit.MILLISECONDS);
+                }, new Random().nextInt(MAX_TIME_TO_SEND), TimeUnit.MILLISECONDS, ThreadPool.TrafficClass.DATA);
             }
         }
     }
 
     @Override
     public void parseResponse(Message msg) {
-        if (! (msg instanceof PutchunkMsg))
-            return;
-
-        PutchunkMsg realMsg = (PutchunkMsg) msg;
-        if ((realMsg.getFileID().equals(fileID)) &&
-            (realMsg.getChunkNum() == chunkNum)) {
-            putchunkSender.cancel(true);
-            backupChannel.unsubscribeAction(this);
-        }
+        // Only putchunk messages of the removed chunk are routed to this action
+        WheelTimer.Timeout sender = putchunkSender;
+        if (sender != null)
+            sender.cancel();
+        backupChannel.unsubscribeAction(this);
+    }
+
+    @Override
+    public ResponseRouter.Key getResponseKey() {
+        return new ResponseRouter.Key(PutchunkMsg.class, fileID, chunkNum);
     }
 }
\ No newline at end of file
@@ -0,0 +1,556 @@
+package Action;
+
+import Database.BackedUpFiles;
+import ThreadPool.ThreadPool;
+import Utils.FileAssembler;
+import Utils.FileManager;
+import Utils.LatencyEstimator;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class planning the restore of a file from the data planes of the peers holding its chunks, in protocol 2.0.
+ * The peers that replicated each chunk are known from the STORED messages recorded in BackedUpFiles, so each peer
+ * offering its data plane is asked for a batch of the lowest numbered missing chunks it holds, and several peers are
+ * fetched from in parallel, each one with a disjoint batch.
+ *
+ * A peer is given its next batch as soon as it sends the previous one, and the batch size follows its measured
+ * throughput, so faster peers end up sending most of the file, and idle peers are picked from the one with the lowest
+ * latency. Chunks a peer does not have, or failed to send, are planned again for the other peers.
+ *
+ * A fetch that received no chunk for longer than a high percentile of the latency of its peer is hedged: its chunks
+ * still missing are planned again for the other peers, while it goes on. Whichever fetch loses the race is cancelled
+ * once all of its chunks were received from the other one.
+ */
+public class RestorePlanner {
+
+    /**
+     * The number of chunks asked in the first batch of a peer, before its throughput is known
+     */
+    private static final int INITIAL_BATCH_CHUNKS = 16;
+
+    /**
+     * The minimum number of chunks asked in a batch
+     */
+    private static final int MIN_BATCH_CHUNKS = 4;
+
+    /**
+     * The maximum number of chunks asked in a batch
+     */
+    private static final int MAX_BATCH_CHUNKS = 512;
+
+    /**
+     * The time a batch should take to be sent by a peer at its measured throughput, in seconds
+     */
+    private static final double BATCH_SECONDS = 0.25;
+
+    /**
+     * Weight of the last batch in the measured throughput of a peer
+     */
+    private static final double THROUGHPUT_WEIGHT = 0.5;
+
+    /**
+     * The default maximum number of fetches running at once
+     */
+    private static final int DEFAULT_MAX_FETCHES = 4;
+
+    /**
+     * The percentile of the latency of a peer after which a fetch from it with no progress is hedged
+     */
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    /**
+     * The multiple of the latency percentile waited before hedging a fetch
+     */
+    private static final double HEDGE_FACTOR = 2;
+
+    /**
+     * The minimum number of latency samples of a peer for its percentile to be trusted
+     */
+    private static final int MIN_LATENCY_SAMPLES = 8;
+
+    /**
+     * The time waited before hedging a fetch from a peer whose latency is not known yet, in milliseconds
+     */
+    private static final long INITIAL_HEDGE_DELAY = 500;
+
+    /**
+     * The minimum time waited before hedging a fetch, in milliseconds
+     */
+    private static final long MIN_HEDGE_DELAY = 20;
+
+    /**
+     * Class representing a peer offering its data plane
+     */
+    private static class Source {
+
+        /**
+         * The peer identifier
+         */
+        private final int peerID;
+
+        /**
+         * The address of the data plane of the peer
+         */
+        private final InetSocketAddress address;
+
+        /**
+         * The measured throughput of the peer, in bytes per second, or 0 while unknown
+         */
+        private double throughput = 0;
+
+        /**
+         * Whether a batch is being fetched from the peer
+         */
+        private boolean busy = false;
+
+        /**
+         * Whether a fetch from the peer failed, so it is not used again
+         */
+        private boolean failed = false;
+
+        /**
+         * Whether the last fetch from the peer was hedged, so it is not relied on to send the chunks it holds
+         */
+        private boolean slow = false;
+
+        /**
+         * The latency estimate of the peer: the time taken by each chunk it sends
+         */
+        private final LatencyEstimator latency = new LatencyEstimator();
+
+        /**
+         * Source constructor
+         *
+         * @param peerID The peer identifier
+         * @param address The address of the data plane of the peer
+         */
+        Source(int peerID, InetSocketAddress address) {
+            this.peerID = peerID;
+            this.address = address;
+        }
+    }
+
+    /**
+     * Assembler of the file being restored
+     */
+    private FileAssembler restoredFile;
+
+    /**
+     * The file identifier for the file being restored
+     */
+    private String fileID;
+
+    /**
+     * The thread pool running the fetches
+     */
+    private ThreadPool threadPool;
+
+    /**
+     * Called once the file is complete
+     */
+    private Runnable onComplete;
+
+    /**
+     * The peers that replicated each chunk. Chunks missing have no known holder, so they are asked to any peer
+     */
+    private HashMap<Integer, ArrayList<Integer>> chunkHolders = new HashMap<>();
+
+    /**
+     * The peers known not to have each chunk, or that failed to send it
+     */
+    private HashMap<Integer, HashSet<Integer>> excludedHolders = new HashMap<>();
+
+    /**
+     * The chunks not yet received nor being fetched
+     */
+    private BitSet pendingChunks;
+
+    /**
+     * The peers offering their data plane, by peer identifier
+     */
+    private LinkedHashMap<Integer, Source> sources = new LinkedHashMap<>();
+
+    /**
+     * The maximum number of fetches running at once
+     */
+    private int maxFetches;
+
+    /**
+     * The fetches running, with the peer each one is from
+     */
+    private LinkedHashMap<SetTCPClient, Source> fetches = new LinkedHashMap<>();
+
+    /**
+     * The fetches running that were hedged
+     */
+    private HashSet<SetTCPClient> hedgedFetches = new HashSet<>();
+
+    /**
+     * The number of fetches hedged so far
+     */
+    private int numHedges = 0;
+
+    /**
+     * Whether the restore finished, with the file complete or stopped
+     */
+    private boolean finished = false;
+
+    /**
+     * Restore Planner constructor. The maximum number of fetches running at once is set with the system property
+     * backup.restore.fetches
+     *
+     * @param restoredFile Assembler of the file being restored
+     * @param backedUpFiles The records of the files backed up, with the peers holding each chunk
+     * @param fileID The file identifier for the file being restored
+     * @param numChunks The number of chunks of the file
+     * @param threadPool The thread pool running the fetches
+     * @param onComplete Called once the file is complete
+     */
+    public RestorePlanner(FileAssembler restoredFile, BackedUpFiles backedUpFiles, String fileID, int numChunks, ThreadPool threadPool, Runnable onComplete) {
+        this.restoredFile = restoredFile;
+        this.fileID = fileID;
+        this.threadPool = threadPool;
+        this.onComplete = onComplete;
+        this.maxFetches = Math.max(1, Integer.getInteger("backup.restore.fetches", DEFAULT_MAX_FETCHES));
+
+        pendingChunks = new BitSet(numChunks);
+        for (int i = 0; i < numChunks; ++i) {
+            if (restoredFile.hasChunk(i))
+                continue;
+
+            pendingChunks.set(i);
+            ArrayList<Integer> holders = backedUpFiles.getChunkPeers(fileID, i);
+            if (holders != null && ! holders.isEmpty())
+                chunkHolders.put(i, holders);
+        }
+    }
+
+    /**
+     * Add a peer offering its data plane, starting to fetch from it if there are chunks it may send
+     *
+     * @param peerID The peer identifier
+     * @param address The address of the data plane of the peer
+     */
+    public void addSource(int peerID, InetSocketAddress address) {
+        ArrayList<SetTCPClient> planned;
+        synchronized (this) {
+            if (finished || sources.containsKey(peerID))
+                return;
+
+            sources.put(peerID, new Source(peerID, address));
+            planned = schedule();
+        }
+        startFetches(planned);
+    }
+
+    /**
+     * Plan fetches from the idle peers, while fetches may be added and there are chunks they may send.
+     * The fetches are only started by startFetches, once the planner is unlocked
+     *
+     * @return List containing the fetches planned
+     */
+    private ArrayList<SetTCPClient> schedule() {
+        ArrayList<SetTCPClient> planned = new ArrayList<>();
+        ArrayList<Source> idleSources = new ArrayList<>();
+        for (Source source : sources.values()) {
+            if (! source.busy && ! source.failed)
+                idleSources.add(source);
+        }
+        // Peers whose latency is not known yet come first, so it gets known
+        idleSources.sort(Comparator.comparingLong(source -> source.latency.percentile(0.5)));
+
+        for (Source source : idleSources) {
+            // Hedged fetches do not count, as they are not relied on anymore
+            if (fetches.size() - hedgedFetches.size() >= maxFetches)
+                break;
+
+            ArrayList<Integer> batch = nextBatch(source);
+            if (batch.isEmpty())
+                continue;
+
+            source.busy = true;
+            SetTCPClient client = new SetTCPClient(restoredFile, fileID, source.address, batch, source.latency,
+                    finished -> fetchFinished(source, finished));
+            fetches.put(client, source);
+            planned.add(client);
+        }
+        return planned;
+    }
+
+    /**
+     * Start the fetches planned. A fetch refused by the full executor is not run by this thread, which may be the one
+     * of a fetch that ended, but planned again on the next check
+     *
+     * @param planned The fetches planned
+     */
+    private void startFetches(ArrayList<SetTCPClient> planned) {
+        for (SetTCPClient client : planned) {
+            if (! threadPool.tryExecute(client, ThreadPool.TrafficClass.USER))
+                fetchRefused(client);
+        }
+    }
+
+    /**
+     * Take note of a fetch refused by the executor, so its chunks are pending again
+     *
+     * @param client The fetch refused
+     */
+    private synchronized void fetchRefused(SetTCPClient client) {
+        Source source = fetches.remove(client);
+        if (source == null)
+            return;
+
+        source.busy = false;
+        for (int chunkNum : client.getChunkNums()) {
+            if (! restoredFile.hasChunk(chunkNum))
+                pendingChunks.set(chunkNum);
+        }
+    }
+
+    /**
+     * Check the fetches running: the ones whose chunks were all received from other peers are cancelled, and the ones
+     * with no progress for longer than the hedge delay of their peer are hedged. The chunks pending are then planned
+     * again for the idle peers. Meant to be called periodically
+     *
+     * @return True if no fetch is running nor could be planned, as no peer offering its data plane may send the chunks
+     * missing, so the restore is stalled until other peers offer theirs
+     */
+    public boolean checkFetches() {
+        ArrayList<SetTCPClient> planned;
+        boolean stalled;
+        synchronized (this) {
+            if (finished)
+                return false;
+
+            hedgeFetches();
+            planned = schedule();
+            stalled = fetches.isEmpty();
+        }
+        startFetches(planned);
+        return stalled;
+    }
+
+    /**
+     * Stop the restore, cancelling the fetches running. No fetch is started afterwards
+     */
+    public synchronized void stop() {
+        finished = true;
+        for (SetTCPClient running : fetches.keySet())
+            running.cancel();
+    }
+
+    /**
+     * Cancel the fetches whose chunks were all received, and hedge the ones with no progress for too long
+     */
+    private void hedgeFetches() {
+        long now = System.nanoTime();
+
+        for (Map.Entry<SetTCPClient, Source> entry : fetches.entrySet()) {
+            SetTCPClient client = entry.getKey();
+            Source source = entry.getValue();
+
+            if (isReceived(client)) {
+                client.cancel();
+                continue;
+            }
+            if (hedgedFetches.contains(client) || now - client.getLastProgressNanos() < hedgeDelay(source))
+                continue;
+
+            hedgedFetches.add(client);
+            source.slow = true;
+            ++numHedges;
+            for (int chunkNum : client.getChunkNums()) {
+                if (! restoredFile.hasChunk(chunkNum))
+                    pendingChunks.set(chunkNum);
+            }
+        }
+    }
+
+    /**
+     * Compute the time a fetch from a peer may go without progress before being hedged
+     *
+     * @param source The peer
+     * @return The time, in nanoseconds
+     */
+    private static long hedgeDelay(Source source) {
+        if (source.latency.getNumSamples() < MIN_LATENCY_SAMPLES)
+            return TimeUnit.MILLISECONDS.toNanos(INITIAL_HEDGE_DELAY);
+
+        long delay = (long) (source.latency.percentile(HEDGE_PERCENTILE) * HEDGE_FACTOR);
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_HEDGE_DELAY), delay);
+    }
+
+    /**
+     * Check whether all the chunks of a fetch were already received
+     *
+     * @param client The fetch
+     * @return True if no chunk of the fetch is missing
+     */
+    private boolean isReceived(SetTCPClient client) {
+        for (int chunkNum : client.getChunkNums()) {
+            if (! restoredFile.hasChunk(chunkNum))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Getter for the number of peers that offered their data plane
+     *
+     * @return The number of peers
+     */
+    public synchronized int getNumSources() {
+        return sources.size();
+    }
+
+    /**
+     * Getter for the number of fetches hedged so far
+     *
+     * @return The number of hedges
+     */
+    public synchronized int getNumHedges() {
+        return numHedges;
+    }
+
+    /**
+     * Take the next batch of pending chunks to be fetched from a peer: first the chunks it is known to hold, and then,
+     * if the batch is not full, the chunks no other peer offering its data plane is known to hold
+     *
+     * @param source The peer
+     * @return List containing the chunk numbers, in order
+     */
+    private ArrayList<Integer> nextBatch(Source source) {
+        int batchSize = batchSize(source);
+        ArrayList<Integer> batch = new ArrayList<>();
+
+        for (int chunkNum = pendingChunks.nextSetBit(0); chunkNum >= 0 && batch.size() < batchSize; chunkNum = pendingChunks.nextSetBit(chunkNum + 1)) {
+            // Received by the winner of a hedged fetch
+            if (restoredFile.hasChunk(chunkNum)) {
+                pendingChunks.clear(chunkNum);
+                continue;
+            }
+
+            ArrayList<Integer> holders = chunkHolders.get(chunkNum);
+            if (holders != null && holders.contains(source.peerID) && ! isExcluded(chunkNum, source.peerID))
+                batch.add(chunkNum);
+        }
+
+        for (int chunkNum = pendingChunks.nextSetBit(0); chunkNum >= 0 && batch.size() < batchSize; chunkNum = pendingChunks.nextSetBit(chunkNum + 1)) {
+            if (! isExcluded(chunkNum, source.peerID) && ! hasAvailableHolder(chunkNum))
+                batch.add(chunkNum);
+        }
+
+        batch.sort(null);
+        for (int chunkNum : batch)
+            pendingChunks.clear(chunkNum);
+        return batch;
+    }
+
+    /**
+     * Compute the number of chunks a peer is asked in a batch, so it takes about BATCH_SECONDS at its throughput
+     *
+     * @param source The peer
+     * @return The number of chunks
+     */
+    private static int batchSize(Source source) {
+        if (source.throughput <= 0)
+            return INITIAL_BATCH_CHUNKS;
+
+        long chunks = (long) (source.throughput * BATCH_SECONDS / FileManager.CHUNKS_SIZE);
+        return (int) Math.max(MIN_BATCH_CHUNKS, Math.min(MAX_BATCH_CHUNKS, chunks));
+    }
+
+    /**
+     * Check whether a peer is known not to have a chunk
+     *
+     * @param chunkNum The chunk number
+     * @param peerID The peer identifier
+     * @return True if the chunk must not be asked to the peer
+     */
+    private boolean isExcluded(int chunkNum, int peerID) {
+        HashSet<Integer> excluded = excludedHolders.get(chunkNum);
+        return excluded != null && excluded.contains(peerID);
+    }
+
+    /**
+     * Check whether a peer known to hold a chunk offered its data plane and may still send it, without being slow
+     *
+     * @param chunkNum The chunk number
+     * @return True if the chunk may be fetched from one of its holders
+     */
+    private boolean hasAvailableHolder(int chunkNum) {
+        ArrayList<Integer> holders = chunkHolders.get(chunkNum);
+        if (holders == null)
+            return false;
+
+        for (int peerID : holders) {
+            Source source = sources.get(peerID);
+            if (source != null && ! source.failed && ! source.slow && ! isExcluded(chunkNum, peerID))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take note of the end of a fetch: its throughput is measured, and the chunks not received are planned again.
+     * Called by the thread of the fetch, which then starts the fetches planned, or tells the file is complete
+     *
+     * @param source The peer fetched from
+     * @param client The fetch that ended
+     */
+    private void fetchFinished(Source source, SetTCPClient client) {
+        ArrayList<SetTCPClient> planned;
+        synchronized (this) {
+            source.busy = false;
+            fetches.remove(client);
+            boolean wasHedged = hedgedFetches.remove(client);
+
+            if (client.hasFailed())
+                source.failed = true;
+            else if (! wasHedged)
+                source.slow = false;
+
+            if (! client.hasFailed() && ! client.isCancelled() && client.getBytesReceived() > 0 && client.getElapsedNanos() > 0) {
+                double throughput = client.getBytesReceived() * 1e9 / client.getElapsedNanos();
+                source.throughput = (source.throughput <= 0) ? throughput
+                        : THROUGHPUT_WEIGHT * throughput + (1 - THROUGHPUT_WEIGHT) * source.throughput;
+            }
+
+            for (int chunkNum : client.getChunkNums()) {
+                // The chunks of a cancelled fetch were received from another peer
+                if (restoredFile.hasChunk(chunkNum) || client.isCancelled())
+                    continue;
+
+                excludedHolders.computeIfAbsent(chunkNum, k -> new HashSet<>()).add(source.peerID);
+                pendingChunks.set(chunkNum);
+            }
+
+            if (finished)
+                return;
+
+            if (restoredFile.isComplete()) {
+                finished = true;
+                // The hedged fetches still running lost the race
+                for (SetTCPClient running : fetches.keySet())
+                    running.cancel();
+                planned = null;
+            } else {
+                planned = schedule();
+            }
+        }
+
+        if (planned == null)
+            onComplete.run();
+        else
+            startFetches(planned);
+    }
+}
@@ -1,15 +1,18 @@
 package Action;
 
+import Channel.ResponseRouter;
 import Channel.RestoreChannel;
+import Database.ChunkStore;
 import Database.ChunksRecorder;
 import Messages.ChunkMsg;
 import Messages.GetchunkMsg;
 import Messages.Message;
+import ThreadPool.ThreadPool;
+import ThreadPool.WheelTimer;
 import Utils.*;
 
-import java.nio.file.Files;
 import java.util.Random;
-import java.util.concurrent.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class representing the Retrieve ChunkAction
@@ -42,86 +45,89 @@ public class RetrieveChunkAction extends ActionHasReply {
     private ChunksRecorder peerStoredChunks;
 
     /**
-     * The identifier of the Peer associated to this action
+     * The store the chunk body is read from
      */
-    private int peerID;
+    private ChunkStore chunkStore;
 
     /**
-     * Chunks to be resent to the
+     * The identifier of the Peer associated to this action
      */
-    private byte[] chunk;
+    private int peerID;
 
     /**
-     * Thread Executor to begin the Scheduled Future
+     * The timer used to run the delayed tasks of this action
      */
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private WheelTimer timer;
 
     /**
-     * Schedule Future used to begin the retrieve associated action after a given time
+     * Timeout used to begin the retrieve associated action after a given time.
+     * Null while it is not scheduled yet, as the action subscribes first so no reply is missed
      */
-    private ScheduledFuture chunkSender;
+    private volatile WheelTimer.Timeout chunkSender;
 
 
-    public RetrieveChunkAction (RestoreChannel restoreChannel, ChunksRecorder peerStoredChunks, int peerID, GetchunkMsg requestMsg) {
+    public RetrieveChunkAction (RestoreChannel restoreChannel, WheelTimer timer, ChunksRecorder peerStoredChunks, ChunkStore chunkStore, int peerID, GetchunkMsg requestMsg) {
         this.restoreChannel = restoreChannel;
+        this.timer = timer;
         this.peerID = peerID;
         getchunkMsg = requestMsg;
         this.peerStoredChunks = peerStoredChunks;
+        this.chunkStore = chunkStore;
 
-        isStored = getChunk();
+        isStored = peerStoredChunks.hasChunk(getchunkMsg.getFileID(), getchunkMsg.getChunkNum());
     }
 
     /**
-     * Get the chunk bytes to retrieved
+     * Get the chunk bytes to retrieved.
+     * Only called once the delay expired without other peer sending the chunk, so no read is wasted
      *
-     * @return If the chunk wa successfully extracted
+     * @return The chunk bytes, or null if they could not be read
      */
-    private boolean getChunk() {
-        String fileID = getchunkMsg.getFileID();
-        int chunkNum = getchunkMsg.getChunkNum();
-
-        if (! peerStoredChunks.hasChunk(fileID, chunkNum))
-            return false;
-
+    private byte[] getChunk() {
         try {
-            this.chunk = Files.readAllBytes(FileManager.getChunkFile(peerID, fileID, chunkNum));
-            return true;
+            return chunkStore.read(getchunkMsg.getFileID(), getchunkMsg.getChunkNum());
 
         } catch (java.io.IOException e) {
             Utils.showWarning("Failed to get chunk bytes", this.getClass());
         }
 
-        return false;
+        return null;
     }
 
     @Override
     public void run() {
         if (isStored) {
             restoreChannel.subscribeAction(this);
-            chunkSender = scheduler.schedule(() -> {
+            chunkSender = timer.schedule(() -> {
                 try {
+                    restoreChannel.unsubscribeAction(this);
+
+                    byte[] chunk = getChunk();
+                    if (chunk == null)
+                        return;
+
                     restoreChannel.sendMessage(
                             new ChunkMsg(getchunkMsg.getProtocolVersion(), peerID,
                                     getchunkMsg.getFileID(), getchunkMsg.getChunkNum(), chunk).genMsg()
                     );
-                    restoreChannel.unsubscribeAction(this);
                 } catch (ExceptionInInitializerError e) {
                     Utils.showError("Failed to build message, stopping Store action", this.getClass());
                 }
-            }, new Random().nextInt(MAX_TIME_TO_SEND), TimeUnit.MILLISECONDS);
+            }, new Random().nextInt(MAX_TIME_TO_SEND), TimeUnit.MILLISECONDS, ThreadPool.TrafficClass.DATA);
         }
     }
 
     @Override
     public void parseResponse(Message msg) {
-        if (! (msg instanceof ChunkMsg))
-            return;
-
-        ChunkMsg realMsg = (ChunkMsg) msg;
-        if ((realMsg.getFileID().equals(getchunkMsg.getFileID())) &&
-            (realMsg.getChunkNum() == getchunkMsg.getChunkNum())) {
-            chunkSender.cancel(true);
-            restoreChannel.unsubscribeAction(this);
-        }
+        // Only chunk messages of the requested chunk are routed to this action
+        WheelTimer.Timeout sender = chunkSender;
+        if (sender != null)
+            sender.cancel();
+        restoreChannel.unsubscribeAction(this);
+    }
+
+    @Override
+    public ResponseRouter.Key getResponseKey() {
+        return new ResponseRouter.Key(ChunkMsg.class, getchunkMsg.getFileID(), getchunkMsg.getChunkNum());
     }
 }
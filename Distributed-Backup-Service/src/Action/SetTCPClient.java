@@ -1,111 +1,370 @@
 package Action;
 
-import Database.ChunksRecorder;
-import Messages.SetTCPIP;
+import Channel.DataPlaneServer;
+import Utils.FileAssembler;
 import Utils.FileManager;
+import Utils.LatencyEstimator;
 import Utils.Utils;
 
-import java.io.BufferedReader;
-import java.io.Console;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.InetAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
-
-import Database.BackedUpFiles;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
 
+/**
+ * Action fetching chunks of a file being restored from the data plane of a peer, through TCP.
+ * The replies are read in large blocks into a direct buffer, and each chunk body is written from it straight to its
+ * position in the restored file.
+ * The time taken by each chunk is recorded as the latency of the peer, and the fetch may be cancelled from another
+ * thread, once its chunks were received from another peer.
+ * The socket is read without blocking, waiting on a selector, so a peer that stops sending makes the fetch fail after
+ * the read timeout instead of holding its thread forever.
+ */
 public class SetTCPClient extends Action {
 
     /**
-     * Maximum time waited to trigger the Store Action, exclusively.
+     * The size of the buffer the replies are read into: many chunks, so each read takes all the bytes the socket holds
      */
-    private final static int MAX_TIME_TO_SEND = 4000;
+    private static final int RECEIVE_BUFFER_SIZE = 16 * FileManager.CHUNKS_SIZE;
 
     /**
-     * The putchunk message that triggered this action
+     * Maximum time waited to connect to the peer, in milliseconds
      */
-    private SetTCPIP message;
-    
+    private static final int CONNECT_TIMEOUT = 4000;
+
     /**
-     * Data Structure where backed up files are located
+     * Maximum time waited for the peer to take the request or send any byte of the reply, in milliseconds
      */
-    private BackedUpFiles backedUpFiles;
+    private static final int READ_TIMEOUT = 10000;
 
     /**
-     * The identifier of the Peer associated to this action
+     * Assembler writing each received chunk to its position in the restored file
      */
-    private int peerID;
+    private FileAssembler restoredFile;
 
     /**
-     * The destination IP
+     * The file identifier for the file being restored
      */
-    private InetAddress ipAddress;
+    private String fileID;
 
     /**
-     * The destination IP
+     * The address of the data plane of the peer
      */
-    private int port;
+    private InetSocketAddress address;
 
+    /**
+     * The chunks requested
+     */
+    private List<Integer> chunkNums;
 
-    public SetTCPClient (BackedUpFiles backedUpFiles, int peerID, SetTCPIP message) {
-        this.peerID = peerID;
-        this.message = message;
-        this.backedUpFiles = backedUpFiles;
-        try {
-            this.ipAddress = InetAddress.getByName(message.getIP());
-        } catch (UnknownHostException e) {
-            Utils.showError("Error parsing IP Address", SetTCPClient.class);
-        }
-        this.port = message.getPort();
+    /**
+     * Called once the fetch ends, successfully or not
+     */
+    private Consumer<SetTCPClient> onFinished;
+
+    /**
+     * The latency estimate of the peer, where the time taken by each chunk is recorded
+     */
+    private LatencyEstimator latency;
+
+    /**
+     * The socket connected to the peer, or null while not open
+     */
+    private volatile SocketChannel socket;
+
+    /**
+     * The selector waiting for the socket to be ready, or null while not open
+     */
+    private volatile Selector selector;
+
+    /**
+     * The time the last chunk was received, or the fetch started, as given by System.nanoTime
+     */
+    private volatile long lastProgressNanos;
+
+    /**
+     * Whether the fetch was cancelled
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * The chunks requested that the peer does not have
+     */
+    private ArrayList<Integer> missingChunks = new ArrayList<>();
+
+    /**
+     * The number of chunk body bytes received
+     */
+    private long bytesReceived = 0;
+
+    /**
+     * The time the fetch took, in nanoseconds
+     */
+    private long elapsedNanos = 0;
+
+    /**
+     * Whether the fetch failed before all the replies were received
+     */
+    private boolean failed = false;
+
+    /**
+     * Set TCP Client constructor
+     *
+     * @param restoredFile Assembler of the file being restored
+     * @param fileID The file identifier for the file being restored
+     * @param address The address of the data plane of the peer
+     * @param chunkNums The chunks to be requested
+     * @param latency The latency estimate of the peer, where the time taken by each chunk is recorded
+     * @param onFinished Called once the fetch ends, successfully or not
+     */
+    public SetTCPClient(FileAssembler restoredFile, String fileID, InetSocketAddress address, List<Integer> chunkNums,
+                        LatencyEstimator latency, Consumer<SetTCPClient> onFinished) {
+        this.restoredFile = restoredFile;
+        this.fileID = fileID;
+        this.address = address;
+        this.chunkNums = chunkNums;
+        this.latency = latency;
+        this.onFinished = onFinished;
+        this.lastProgressNanos = System.nanoTime();
     }
 
     @Override
     public void run() {
-        try {
-            System.out.println("Gonna receive from" + ipAddress + ":" + port);
-            Socket socket = null;
-            try {
-                socket = new Socket(ipAddress, port);
-            } catch (IOException ex) {
-     
-                System.out.println("I/O error: " + ex.getMessage());
-            }
-    
-            InputStream input = null;
-            OutputStream output = null;
-    
-            try {
-                input = socket.getInputStream();
-            } catch (IOException ex) {
-                Utils.showError("Can't get socket input stream.", this.getClass());
+        long startTime = System.nanoTime();
+        lastProgressNanos = startTime;
+
+        try (SocketChannel socket = SocketChannel.open(); Selector selector = Selector.open()) {
+            this.socket = socket;
+            this.selector = selector;
+            if (! cancelled) {
+                socket.socket().setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+                socket.socket().connect(address, CONNECT_TIMEOUT);
+
+                socket.configureBlocking(false);
+                SelectionKey key = socket.register(selector, 0);
+                sendRequest(socket, key);
+                receiveReply(socket, key);
             }
-            
-            try {
-                output = new FileOutputStream("teste.png");
-            } catch (FileNotFoundException ex) {
-                Utils.showError("File not found. ", this.getClass());
+        } catch (IOException e) {
+            if (! cancelled) {
+                Utils.showWarning("Failed to fetch chunks from " + address + ": " + e.getMessage(), this.getClass());
+                failed = true;
             }
-            
-            byte[] bytes = new byte[64*1024];
-    
-            int count;
-            while ((count = input.read(bytes)) > 0) {
-                output.write(bytes, 0, count);
+        }
+
+        elapsedNanos = System.nanoTime() - startTime;
+        onFinished.accept(this);
+    }
+
+    /**
+     * Send the request for the chunks wanted
+     *
+     * @param socket The socket connected to the peer
+     * @param key The key of the socket in the selector
+     * @throws IOException If the request could not be sent
+     */
+    private void sendRequest(SocketChannel socket, SelectionKey key) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(DataPlaneServer.FILE_ID_LENGTH + 4 + 4 * chunkNums.size());
+        request.put(fileID.getBytes(StandardCharsets.US_ASCII));
+        request.putInt(chunkNums.size());
+        for (int chunkNum : chunkNums)
+            request.putInt(chunkNum);
+
+        request.flip();
+        while (request.hasRemaining()) {
+            if (socket.write(request) == 0)
+                await(key, SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Receive the reply to the request, writing each chunk to the restored file
+     *
+     * @param socket The socket connected to the peer
+     * @param key The key of the socket in the selector
+     * @throws IOException If the reply could not be received or the chunks could not be written
+     */
+    private void receiveReply(SocketChannel socket, SelectionKey key) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+        buffer.flip();
+
+        int numReplies = 0;
+        while (true) {
+            fill(socket, key, buffer, DataPlaneServer.CHUNK_HEADER_SIZE);
+            int chunkNum = buffer.getInt();
+            int length = buffer.getInt();
+
+            if (chunkNum == DataPlaneServer.END_OF_REPLY)
+                break;
+            if (length > FileManager.CHUNKS_SIZE || length < DataPlaneServer.NOT_STORED)
+                throw new IOException("Invalid chunk length received: " + length);
+
+            ++numReplies;
+            if (length == DataPlaneServer.NOT_STORED) {
+                missingChunks.add(chunkNum);
+                progress();
+                continue;
             }
-    
+
+            fill(socket, key, buffer, length);
+            progress();
+            ByteBuffer body = buffer.slice();
+            body.limit(length);
+            restoredFile.writeChunk(chunkNum, body);
+            buffer.position(buffer.position() + length);
+            bytesReceived += length;
+        }
+
+        if (numReplies != chunkNums.size())
+            throw new IOException("Received " + numReplies + " replies for " + chunkNums.size() + " chunks");
+    }
+
+    /**
+     * Record the time taken by the reply just received
+     */
+    private void progress() {
+        long now = System.nanoTime();
+        latency.record(now - lastProgressNanos);
+        lastProgressNanos = now;
+    }
+
+    /**
+     * Cancel the fetch, closing its connection. The chunks not yet received are not written
+     */
+    public void cancel() {
+        cancelled = true;
+
+        SocketChannel socket = this.socket;
+        if (socket == null)
+            return;
+        try {
             socket.close();
         } catch (IOException e) {
-            Utils.showError("Failed to connect!", this.getClass());
+            Utils.showWarning("Failed to close the connection to " + address, this.getClass());
         }
+
+        Selector selector = this.selector;
+        if (selector != null)
+            selector.wakeup();
+    }
+
+    /**
+     * Read from the socket until the buffer holds at least the given number of bytes
+     *
+     * @param socket The socket
+     * @param key The key of the socket in the selector
+     * @param buffer The buffer, ready to be read from
+     * @param numBytes The number of bytes needed
+     * @throws IOException If the socket ended first, or the peer sent nothing for longer than the read timeout
+     */
+    private void fill(SocketChannel socket, SelectionKey key, ByteBuffer buffer, int numBytes) throws IOException {
+        while (buffer.remaining() < numBytes) {
+            buffer.compact();
+            int read = socket.read(buffer);
+            buffer.flip();
+            if (read < 0)
+                throw new EOFException("Connection closed by the peer");
+            if (read == 0)
+                await(key, SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Wait for the socket to be ready for an operation
+     *
+     * @param key The key of the socket in the selector
+     * @param operation The operation, as a SelectionKey operation bit
+     * @throws IOException If the socket was not ready within the read timeout, or the fetch was cancelled
+     */
+    private void await(SelectionKey key, int operation) throws IOException {
+        key.interestOps(operation);
+        int numReady = key.selector().select(READ_TIMEOUT);
+        key.selector().selectedKeys().clear();
+
+        if (cancelled)
+            throw new IOException("Fetch cancelled");
+        if (numReady == 0)
+            throw new SocketTimeoutException("Nothing received from " + address + " for " + READ_TIMEOUT + " ms");
+    }
+
+    /**
+     * Getter for the address of the data plane of the peer
+     *
+     * @return The address
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Getter for the chunks requested
+     *
+     * @return List containing the chunk numbers
+     */
+    public List<Integer> getChunkNums() {
+        return chunkNums;
+    }
+
+    /**
+     * Getter for the chunks requested that the peer does not have.
+     * If the fetch failed, the chunks not received are not included
+     *
+     * @return List containing the chunk numbers
+     */
+    public ArrayList<Integer> getMissingChunks() {
+        return missingChunks;
+    }
+
+    /**
+     * Getter for the number of chunk body bytes received
+     *
+     * @return The number of bytes
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Getter for the time the fetch took
+     *
+     * @return The elapsed time, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Getter for the time the last chunk was received, or the fetch started
+     *
+     * @return The time, as given by System.nanoTime
+     */
+    public long getLastProgressNanos() {
+        return lastProgressNanos;
+    }
+
+    /**
+     * Check whether the fetch was cancelled
+     *
+     * @return True if it was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Check whether the fetch failed before all the replies were received
+     *
+     * @return True if it failed
+     */
+    public boolean hasFailed() {
+        return failed;
     }
-}
\ No newline at end of file
+}
@@ -2,36 +2,28 @@ package Action;
 
 import Channel.ControlChannel;
 import Database.BackedUpFiles;
+import Database.ChunkStore;
 import Database.ChunksRecorder;
 import Messages.PutchunkMsg;
 import Messages.StoredMsg;
+import ThreadPool.WheelTimer;
 import Utils.Utils;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.util.Random;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
-import static Utils.FileManager.getFileDirectory;
-
 public class StoreAction extends Action {
 
     /**
      * Maximum time waited to trigger the Store Action, exclusively.
      */
-    private final static int MAX_TIME_TO_SEND = 4000;
+    final static int MAX_TIME_TO_SEND = 4000;
 
     /**
      * The putchunk message that triggered this action
      */
     private PutchunkMsg putchunkMsg;
 
-    /**
-     * The directory of this file, where the chunks are
-     */
-    private String fileDir;
-
     /**
      * Boolean indicating if the chunk was successfully stored
      */
@@ -42,11 +34,21 @@ public class StoreAction extends Action {
      */
     private ControlChannel controlChannel;
 
+    /**
+     * The timer used to run the delayed tasks of this action
+     */
+    private WheelTimer timer;
+
     /**
      * Data Structure to be updated by this action, referent to the Peer stored files' chunks
      */
     private ChunksRecorder peerStoredChunks;
 
+    /**
+     * The store where the chunk body is written
+     */
+    private ChunkStore chunkStore;
+
     /**
      * The identifier of the Peer associated to this action
      */
@@ -57,18 +59,20 @@ public class StoreAction extends Action {
      * Store Action default constructor
      *
      * @param controlChannel The control channel used in communication
+     * @param timer The timer used to run delayed tasks
      * @param peerStoredChunks The database regarding chunk that were stored in this peer
+     * @param chunkStore The store where the chunk body is written
      * @param ownBackedFiles The database regarding chunks that were backed up from this peer
      * @param peerID The peer identifier
      * @param requestMsg The message containing the request
      */
-    public StoreAction (ControlChannel controlChannel, ChunksRecorder peerStoredChunks, BackedUpFiles ownBackedFiles, int peerID, PutchunkMsg requestMsg) {
+    public StoreAction (ControlChannel controlChannel, WheelTimer timer, ChunksRecorder peerStoredChunks, ChunkStore chunkStore, BackedUpFiles ownBackedFiles, int peerID, PutchunkMsg requestMsg) {
         this.controlChannel = controlChannel;
+        this.timer = timer;
         this.peerID = peerID;
         putchunkMsg = requestMsg;
         this.peerStoredChunks = peerStoredChunks;
-
-        this.fileDir = getFileDirectory(peerID, putchunkMsg.getFileID());
+        this.chunkStore = chunkStore;
 
         this.wasStored = storeChunk(ownBackedFiles);
     }
@@ -87,13 +91,12 @@ public class StoreAction extends Action {
             if (ownBackedFiles.hasFileBackedUp(fileID))
                 return false;
 
-            if (peerStoredChunks.addChunkRecord(fileID, chunkNum, putchunkMsg.getChunk().length, putchunkMsg.getRepDegree())) {
-                new File(fileDir).mkdirs();
-                FileOutputStream out = new FileOutputStream (fileDir + "/" + chunkNum);
-                out.write(putchunkMsg.getChunk());
-                out.close();
-            }
-            return true;
+            // Already stored, so only the STORED message is sent again
+            if (peerStoredChunks.hasChunk(fileID, chunkNum))
+                return true;
+
+            return peerStoredChunks.storeChunk(chunkStore, fileID, chunkNum, putchunkMsg.getChunkSize(),
+                    putchunkMsg.getRepDegree(), putchunkMsg.getChunkBody());
 
         } catch (java.io.IOException e) {
             Utils.showError("Failed to save chunk in disk", this.getClass());
@@ -104,8 +107,7 @@ public class StoreAction extends Action {
     @Override
     public void run() {
         if (wasStored) {
-            ScheduledThreadPoolExecutor scheduledThread = new ScheduledThreadPoolExecutor(1);
-            scheduledThread.schedule(() ->{
+            timer.schedule(() -> {
                 try {
                     controlChannel.sendMessage(
                             new StoredMsg(putchunkMsg.getProtocolVersion(), peerID,
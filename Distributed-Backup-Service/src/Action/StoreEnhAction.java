@@ -2,26 +2,24 @@ package Action;
 
 import Channel.ControlChannel;
 import Database.BackedUpFiles;
+import Database.ChunkStore;
 import Database.ChunksRecorder;
 import Messages.PutchunkMsg;
 import Messages.StoredMsg;
+import ThreadPool.ThreadPool;
+import ThreadPool.WheelTimer;
 import Utils.Utils;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.util.Random;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
-import static Utils.FileManager.getFileDirectory;
-
 public class StoreEnhAction extends Action {
 
     /**
      * Maximum time waited to trigger the Store Action, exclusively.
      * It has time to received the normal protocol first.
      */
-    private final static int MAX_TIME_TO_SEND = 8000;
+    final static int MAX_TIME_TO_SEND = 8000;
 
     /**
      * The putchunk message that triggered this action
@@ -29,20 +27,25 @@ public class StoreEnhAction extends Action {
     private PutchunkMsg putchunkMsg;
 
     /**
-     * The directory of this file, where the chunks are
+     * The channel used to communicate with other peers, regarding control information
      */
-    private String fileDir;
+    private ControlChannel controlChannel;
 
     /**
-     * The channel used to communicate with other peers, regarding control information
+     * The timer used to run the delayed tasks of this action
      */
-    private ControlChannel controlChannel;
+    private WheelTimer timer;
 
     /**
      * Data Structure to be updated by this action, referent to the Peer stored files' chunks
      */
     private ChunksRecorder peerStoredChunks;
 
+    /**
+     * The store where the chunk body is written
+     */
+    private ChunkStore chunkStore;
+
     /**
      * Data structure that has information regarding the Peer running this action, own backed up files
      */
@@ -53,17 +56,23 @@ public class StoreEnhAction extends Action {
      */
     private int peerID;
 
+    /**
+     * The outcome of reserving the chunk record. Only a record reserved by this action, along with its disk space, is
+     * removed by it if the chunk ends up not stored
+     */
+    private ChunksRecorder.Reservation reservation;
+
 
-    public StoreEnhAction (ControlChannel controlChannel, ChunksRecorder peerStoredChunks, BackedUpFiles ownBackedFiles, int peerID, PutchunkMsg requestMsg) {
+    public StoreEnhAction (ControlChannel controlChannel, WheelTimer timer, ChunksRecorder peerStoredChunks, ChunkStore chunkStore, BackedUpFiles ownBackedFiles, int peerID, PutchunkMsg requestMsg) {
         this.controlChannel = controlChannel;
+        this.timer = timer;
         this.peerID = peerID;
         putchunkMsg = requestMsg;
         this.peerStoredChunks = peerStoredChunks;
+        this.chunkStore = chunkStore;
         this.ownBackedFiles = ownBackedFiles;
 
-        this.fileDir = getFileDirectory(peerID, putchunkMsg.getFileID());
-
-        peerStoredChunks.initChunkRecord(putchunkMsg.getFileID(), putchunkMsg.getChunkNum(), putchunkMsg.getChunk().length, putchunkMsg.getRepDegree());
+        reservation = peerStoredChunks.reserveChunkRecord(putchunkMsg.getFileID(), putchunkMsg.getChunkNum(), putchunkMsg.getChunkSize(), putchunkMsg.getRepDegree());
     }
 
     private void storeChunk() {
@@ -71,39 +80,76 @@ public class StoreEnhAction extends Action {
             String fileID = putchunkMsg.getFileID();
             int chunkNum = putchunkMsg.getChunkNum();
 
-            if (peerStoredChunks.incChunkRecord(fileID, chunkNum, putchunkMsg.getSenderID())) {
-                new File(fileDir).mkdirs();
-                FileOutputStream out = new FileOutputStream (fileDir + "/" + chunkNum);
-                out.write(putchunkMsg.getChunk());
-                out.close();
-            }
+            if (peerStoredChunks.incChunkRecord(fileID, chunkNum, putchunkMsg.getSenderID()))
+                chunkStore.write(fileID, chunkNum, putchunkMsg.getChunkBody());
 
         } catch (java.io.IOException e) {
             Utils.showError("Failed to save chunk in disk", this.getClass());
+            dropReservation();
         }
     }
 
+    /**
+     * Remove the chunk record, and give back its disk space, if it was reserved by this action.
+     * A record that already existed belongs to a stored chunk, or to another action, and is kept
+     */
+    private void dropReservation() {
+        if (reservation == ChunksRecorder.Reservation.RESERVED)
+            peerStoredChunks.removeChunk(putchunkMsg.getFileID(), putchunkMsg.getChunkNum());
+    }
+
     @Override
     public void run() {
-        if (ownBackedFiles.hasFileBackedUp(putchunkMsg.getFileID()))
+        if (reservation == ChunksRecorder.Reservation.NO_SPACE) {
+            Utils.log("Not enough disk space to store chunk " + putchunkMsg.getChunkNum() + " of file " + putchunkMsg.getFileID());
             return;
+        }
+        if (reservation == ChunksRecorder.Reservation.REFUSED)
+            return;
+
+        if (ownBackedFiles.hasFileBackedUp(putchunkMsg.getFileID())) {
+            dropReservation();
+            return;
+        }
 
-        ScheduledThreadPoolExecutor scheduledThread = new ScheduledThreadPoolExecutor(1);
-        scheduledThread.schedule(() -> {
-            if (peerStoredChunks.getChunkRD(putchunkMsg.getFileID(), putchunkMsg.getChunkNum()) < putchunkMsg.getRepDegree()) {
-                try {
-                    controlChannel.sendMessage(
-                            new StoredMsg(putchunkMsg.getProtocolVersion(), peerID,
-                                    putchunkMsg.getFileID(), putchunkMsg.getChunkNum()).genMsg()
-                    );
-                    storeChunk();
-
-                } catch (ExceptionInInitializerError e) {
-                    Utils.showError("Failed to build message, stopping Store action", this.getClass());
-                }
-            } else {
-                peerStoredChunks.removeChunk(putchunkMsg.getFileID(), putchunkMsg.getChunkNum());
+        // The chunk body is only stored after the delay, so it must be kept until then
+        putchunkMsg.retain();
+        timer.schedule(() -> {
+            try {
+                storeIfNeeded();
+            } finally {
+                putchunkMsg.release();
             }
-        }, new Random().nextInt(MAX_TIME_TO_SEND), TimeUnit.MILLISECONDS);
+        }, new Random().nextInt(MAX_TIME_TO_SEND), TimeUnit.MILLISECONDS, ThreadPool.TrafficClass.DATA);
+    }
+
+    /**
+     * Store the chunk, and tell the other peers, if the replication degree was not yet met
+     */
+    private void storeIfNeeded() {
+        // The record was dropped meanwhile, by the action that reserved it or by a DELETE of the file
+        if (! peerStoredChunks.hasChunk(putchunkMsg.getFileID(), putchunkMsg.getChunkNum()))
+            return;
+
+        // The space was reclaimed while waiting, and the reclaim only frees stored chunks, so the reservation is given up
+        if (reservation == ChunksRecorder.Reservation.RESERVED && peerStoredChunks.isOverMaxSpace()) {
+            dropReservation();
+            return;
+        }
+
+        if (peerStoredChunks.getChunkRD(putchunkMsg.getFileID(), putchunkMsg.getChunkNum()) < putchunkMsg.getRepDegree()) {
+            try {
+                controlChannel.sendMessage(
+                        new StoredMsg(putchunkMsg.getProtocolVersion(), peerID,
+                                putchunkMsg.getFileID(), putchunkMsg.getChunkNum()).genMsg()
+                );
+                storeChunk();
+
+            } catch (ExceptionInInitializerError e) {
+                Utils.showError("Failed to build message, stopping Store action", this.getClass());
+            }
+        } else {
+            dropReservation();
+        }
     }
 }
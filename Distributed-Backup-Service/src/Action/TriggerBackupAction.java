@@ -1,45 +1,44 @@
 package Action;
 
 import Channel.BackupChannel;
+import Channel.ControlChannel;
+import Channel.ResponseRouter;
 import Database.BackedUpFiles;
 import Main.Peer;
+import Messages.Message;
 import Messages.PutchunkMsg;
+import Messages.StoredMsg;
+import ThreadPool.WheelTimer;
 import Utils.*;
 
-import java.util.ArrayList;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.io.IOException;
 
 /**
  * Action used to begin a back up. It also handles the other Peer's answers.
+ * The chunks are sent through a BackupSender, which limits the chunks waiting for a STORED message, and sends
+ * each chunk again as its own retransmission timer expires, until it reaches the desired replication degree.
  */
-public class TriggerBackupAction extends Action {
+public class TriggerBackupAction extends ActionHasReply {
 
     /**
-     * Maximum number of cycles the Action will execute in order to make all the chunks
-     * replication degree equivalent to the desired replication degree
-     */
-    private final static int MAXIMUM_NUM_CYCLES = 5;
-
-    /**
-     * The starting  waiting time for checking chunks RD, in mili seconds
+     * The channel used to communicate with other peers, regarding backup files
      */
-    private final static int STARTING_WAIT_TIME = 1000;
+    private BackupChannel backupChannel;
 
     /**
-     * The channel used to communicate with other peers, regarding backup files
+     * The channel the STORED messages are received from
      */
-    private BackupChannel backupChannel;
+    private ControlChannel controlChannel;
 
     /**
-     * Thread Pool useful for running scheduled check loops
+     * The sender pacing the PUTCHUNK messages of the file
      */
-    private ScheduledThreadPoolExecutor sleepThreadPool;
+    private BackupSender sender;
 
     /**
-     * The thread waiting time for checking chunks RD, in mili seconds
+     * Timer running the sending rounds and the retransmission timers
      */
-    private int waitCheckTime = STARTING_WAIT_TIME;
+    private WheelTimer timer;
 
     /**
      * The backed up files container associated to the peer triggering this action
@@ -47,11 +46,6 @@ public class TriggerBackupAction extends Action {
      */
     private BackedUpFiles backedUpFiles;
 
-    /**
-     * The number of round trips already completed.
-     */
-    private int numTimeCycles = 0;
-
     /**
      * Protocol Version in the communication
      */
@@ -68,9 +62,9 @@ public class TriggerBackupAction extends Action {
     private String fileID;
 
     /**
-     * ArrayList containing the file correspondent chunks
+     * Chunker providing the file correspondent chunks, read only when they are sent
      */
-    private ArrayList<byte[]> chunks = new ArrayList<>();
+    private FileChunker chunks;
 
     /**
      * The desired replication degree of the file
@@ -84,6 +78,11 @@ public class TriggerBackupAction extends Action {
 
     private boolean alreadyBackedUp;
 
+    /**
+     * The longest time a peer may wait before acknowledging a chunk, in milliseconds
+     */
+    private int maxAckDelay;
+
     /**
      * Trigger Backup Action Constructor
      *
@@ -96,17 +95,25 @@ public class TriggerBackupAction extends Action {
     public TriggerBackupAction(Peer peer, float protocolVersion, int senderID, String file, String repDegree) {
         this.backedUpFiles = peer.getBackedUpFiles();
         this.backupChannel = peer.getBackupChannel();
+        this.controlChannel = peer.getControlChannel();
+        this.timer = peer.getTimer();
         this.protocolVersion = protocolVersion;
         this.senderID = senderID;
 
+        // With rendezvous placement the chosen peers store at once, and the first fallbacks wait up to twice their delay
+        if (peer.isRendezvousPlacement())
+            maxAckDelay = 2 * PlacedStoreAction.FALLBACK_DELAY;
+        else if (protocolVersion == ProtocolVersions.ENHANCEMENTS_VERSION)
+            maxAckDelay = StoreEnhAction.MAX_TIME_TO_SEND;
+        else
+            maxAckDelay = StoreAction.MAX_TIME_TO_SEND;
+
         fileName = FileManager.getFileName(file);
         this.fileID = FileManager.genFileID(file);
         this.repDegree = Integer.parseInt(repDegree);
-        chunks = FileManager.splitFile(file);
-
-        alreadyBackedUp = !backedUpFiles.backedFile(fileID, fileName, this.repDegree, chunks.size());
+        chunks = FileChunker.open(file);
 
-        sleepThreadPool = new ScheduledThreadPoolExecutor(MAXIMUM_NUM_CYCLES);
+        alreadyBackedUp = (chunks == null) || !backedUpFiles.backedFile(fileID, fileName, this.repDegree, chunks.getNumChunks());
     }
 
     /**
@@ -117,49 +124,62 @@ public class TriggerBackupAction extends Action {
     private void requestBackUp(int chunkNum) {
         try {
             backupChannel.sendMessage(
-                    new PutchunkMsg(protocolVersion, senderID, fileID, chunkNum, repDegree, chunks.get(chunkNum)).genMsg()
+                    new PutchunkMsg(protocolVersion, senderID, fileID, chunkNum, repDegree, chunks.getChunk(chunkNum)).genMsg()
             );
         } catch (ExceptionInInitializerError e) {
             Utils.showWarning("Failed to build message. Proceeding for other messages.", this.getClass());
+        } catch (IOException e) {
+            Utils.showWarning("Failed to read chunk from file. Proceeding for other messages.", this.getClass());
         }
     }
 
     @Override
     public void run() {
-        if (alreadyBackedUp)
+        if (alreadyBackedUp) {
+            if (chunks != null)
+                chunks.close();
             return;
+        }
 
-        for (int i = 0; i < chunks.size(); ++i)
-            requestBackUp(i);
-
-        numTimeCycles += 1;
-        sleepThreadPool.schedule(new Repeater(), waitCheckTime, TimeUnit.MILLISECONDS);
+        sender = new BackupSender(timer, chunks.getNumChunks(), maxAckDelay, this::requestBackUp, this::isReplicated,
+                this::backupFinished);
+        controlChannel.subscribeAction(this);
+        sender.start();
     }
 
     /**
-     * Class used to implement the Check loop for the action.
-     * A class was used instead of a method, in order to implement it with ScheduledThreadPoolExecutor
+     * Check whether a chunk reached the desired replication degree.
+     * Chunks of a file deleted meanwhile need not be sent anymore
+     *
+     * @param chunkNum The chunk number
+     * @return True if the chunk needs not be sent again
      */
-    private class Repeater implements Runnable {
+    private boolean isReplicated(int chunkNum) {
+        return ! backedUpFiles.hasFileBackedUp(fileID) || backedUpFiles.hasDesiredRD(fileID, chunkNum);
+    }
 
-        @Override
-        public void run() {
-            Utils.showWarning("TRIES BACKUP: " + numTimeCycles, this.getClass());
-            if (numTimeCycles >= MAXIMUM_NUM_CYCLES)
-                return;
+    /**
+     * Finish the backup, once every chunk reached the desired replication degree or was given up, closing the file
+     */
+    private void backupFinished() {
+        controlChannel.unsubscribeAction(this);
+        chunks.close();
 
-            ArrayList<Integer> missingChunks = backedUpFiles.checkAllRD(fileID);
-            if (missingChunks.size() == 0) {
-                Utils.showSuccess("Successfully backed up file");
-                return;
-            }
+        int numFailed = sender.getNumFailedChunks();
+        if (numFailed > 0)
+            Utils.showWarning(numFailed + " chunks did not reach the desired replication degree after "
+                    + BackupSender.MAX_SENDS + " tries", this.getClass());
+        else if (backedUpFiles.hasFileBackedUp(fileID))
+            Utils.showSuccess("Successfully backed up file");
+    }
 
-            for (int chunkIdx : missingChunks)
-                requestBackUp(chunkIdx);
+    @Override
+    public void parseResponse(Message msg) {
+        sender.acknowledged(((StoredMsg) msg).getChunkNum());
+    }
 
-            numTimeCycles += 1;
-            waitCheckTime *= 2;
-            sleepThreadPool.schedule(new Repeater(), waitCheckTime, TimeUnit.MILLISECONDS);
-        }
+    @Override
+    public ResponseRouter.Key getResponseKey() {
+        return new ResponseRouter.Key(StoredMsg.class, fileID, ResponseRouter.ANY_CHUNK);
     }
 }
@@ -1,11 +1,14 @@
 package Action;
 
 import Channel.ControlChannel;
+import Database.ChunkStore;
 import Database.ChunksRecorder;
 import Messages.RemovedMsg;
 import Utils.*;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Action used to begin a back up. It also handles the other Peer's answers.
@@ -22,6 +25,11 @@ public class TriggerReclaimAction extends Action {
      */
     private ChunksRecorder record;
 
+    /**
+     * The store the chunk bodies are deleted from
+     */
+    private ChunkStore chunkStore;
+
     /**
      * Protocol Version in the communication
      */
@@ -47,13 +55,15 @@ public class TriggerReclaimAction extends Action {
      * 
      * @param controlChannel The channel used to communicate the desired course of action
      * @param record The peer's record fo stored files / chunks
+     * @param chunkStore The store of the peer chunk bodies
      * @param protocolVersion The protocol version used
      * @param senderID The identifier of the sender peer
      * @param maxKBytes Max KBytes to be used
      */
-    public TriggerReclaimAction(ControlChannel controlChannel, ChunksRecorder record, float protocolVersion, int senderID, String maxKBytes) {
+    public TriggerReclaimAction(ControlChannel controlChannel, ChunksRecorder record, ChunkStore chunkStore, float protocolVersion, int senderID, String maxKBytes) {
         this.controlChannel = controlChannel;
         this.record = record;
+        this.chunkStore = chunkStore;
         this.protocolVersion = protocolVersion;
         this.senderID = senderID;
         if ( Long.parseLong(maxKBytes) < getFreeSpace())
@@ -87,30 +97,27 @@ public class TriggerReclaimAction extends Action {
             shrinkSize = record.getUsedDiskSpace() - this.maxKBytes;
             Utils.log("Storage space will be shrunk down by at least " + shrinkSize);
 
-            File[] files = FileManager.getPeerBackups(senderID);
+            for (String fileID : chunkStore.getFileIDs()) {
+                ArrayList<Integer> chunkList = chunkStore.getChunkNums(fileID);
 
-            for (File file : files) {
-                if (file.isDirectory() && shrinkSize > 0) {
-                    Utils.log("DELETING CHUNKS FROM " + file.getName() + "...");
-                    Utils.log("DELETING CHUNKS FROM " + file.getName() + "...");
+                if (chunkList != null && shrinkSize > 0) {
+                    Utils.log("DELETING CHUNKS FROM " + fileID + "...");
 
-                    File fileChunks = new File(file.getParentFile(), file.getName());
-                    File[] chunkList = fileChunks.listFiles();
+                    for (int chunkNum : chunkList) {
+                        if (shrinkSize <= 0)
+                            return;
 
-                    if (chunkList != null) {
-                        for (File chunk : chunkList) {
-                            if (shrinkSize <= 0)
-                                return;
+                        Utils.log("DELETED CHUNK " + chunkNum + " FROM " + fileID);
 
-                            Utils.log("DELETED CHUNK " + chunk.getName() + " FROM " + file.getName());
-                            Utils.log("DELETED CHUNK " + chunk.getName() + " FROM " + file.getName());
-
-                            shrinkSize -= record.getChunkSize(file.getName(), Integer.parseInt(chunk.getName()) );
-                            record.removeChunk(file.getName(), Integer.parseInt(chunk.getName()));
-                            chunk.delete();
-
-                            requestRemoved(Integer.parseInt(chunk.getName()), file.getName());
+                        shrinkSize -= record.getChunkSize(fileID, chunkNum);
+                        record.removeChunk(fileID, chunkNum);
+                        try {
+                            chunkStore.delete(fileID, chunkNum);
+                        } catch (IOException e) {
+                            Utils.showWarning("Failed to delete chunk " + chunkNum + " of file " + fileID, this.getClass());
                         }
+
+                        requestRemoved(chunkNum, fileID);
                     }
                 }
             }
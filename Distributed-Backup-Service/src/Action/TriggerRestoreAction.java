@@ -1,6 +1,8 @@
 package Action;
 
 import Channel.ControlChannel;
+import Channel.MulticastChannel;
+import Channel.ResponseRouter;
 import Channel.RestoreChannel;
 import Database.BackedUpFiles;
 import Main.Peer;
@@ -8,17 +10,68 @@ import Messages.ChunkMsg;
 import Messages.GetTCPIP;
 import Messages.GetchunkMsg;
 import Messages.Message;
+import Messages.SetTCPIP;
+import ThreadPool.ThreadPool;
+import ThreadPool.WheelTimer;
 import Utils.*;
 
 import java.io.File;
-import java.util.HashMap;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+/**
+ * Action restoring a file backed up by this Peer.
+ * In protocol 1.0 every chunk is asked with a GETCHUNK message, and a chunk with no reply after a high percentile of
+ * the CHUNK latency measured so far is asked again, backing off on each retry.
+ * In protocol 2.0 the peers holding chunks of the file are asked for their data plane, and the chunks are fetched from
+ * them by a RestorePlanner, which hedges the fetches that stall. The data planes are asked for again, backing off on
+ * each retry, while none of the peers that offered theirs may send the chunks missing.
+ * Either way, the restore fails once the requests were sent the maximum number of times and got no useful reply.
+ */
 public class TriggerRestoreAction extends ActionHasReply {
 
     /**
      * directory were all the restore files will be
      */
-    private static final String RESTORE_DIRECTORY = "Restored Files";
+    public static final String RESTORE_DIRECTORY = "Restored Files";
+
+    /**
+     * Time between checks of the requests waiting for a reply, in milliseconds
+     */
+    private static final long CHECK_INTERVAL = 50;
+
+    /**
+     * The percentile of the CHUNK latency after which a chunk with no reply is asked again
+     */
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    /**
+     * The multiple of the latency percentile waited before asking a chunk again
+     */
+    private static final double HEDGE_FACTOR = 1.5;
+
+    /**
+     * The minimum number of latency samples for the percentile to be trusted
+     */
+    private static final int MIN_LATENCY_SAMPLES = 8;
+
+    /**
+     * The time waited before asking again while the latency is not known, in milliseconds. Longer than the maximum
+     * delay of a CHUNK reply
+     */
+    private static final long INITIAL_HEDGE_DELAY = 5000;
+
+    /**
+     * The minimum time waited before asking a chunk again, in milliseconds
+     */
+    private static final long MIN_HEDGE_DELAY = 100;
+
+    /**
+     * The maximum number of times a chunk, or the data planes, are asked for
+     */
+    private static final int MAX_REQUESTS = 6;
 
     /**
      * The channel used to communicate with other peers, regarding control messages
@@ -30,6 +83,22 @@ public class TriggerRestoreAction extends ActionHasReply {
      */
     private RestoreChannel restoreChannel;
 
+    /**
+     * The channel the replies are received from: the restore channel for CHUNK messages, in protocol 1.0, or the control
+     * channel for the SETTCPIP messages with the data plane of the peers having chunks of the file, in protocol 2.0
+     */
+    private MulticastChannel replyChannel;
+
+    /**
+     * The thread pool running the fetches from the data plane of the peers
+     */
+    private ThreadPool threadPool;
+
+    /**
+     * The timer running the checks of the requests waiting for a reply
+     */
+    private WheelTimer timer;
+
     /**
      * The backed up files container associated to the peer triggering this action
      * It is important to store this, for later indicating if the file was successfully backed up
@@ -52,10 +121,44 @@ public class TriggerRestoreAction extends ActionHasReply {
     private String fileID;
 
     /**
-     * ArrayList containing the file correspondent chunks
+     * Assembler writing each received chunk straight to its position in the restored file
      */
-    private HashMap<Integer, byte[]> chunks = new HashMap<>();
+    private FileAssembler restoredFile;
 
+    /**
+     * Planner of the fetches from the data planes of the peers, in protocol 2.0
+     */
+    private RestorePlanner planner;
+
+    /**
+     * The CHUNK latency: the time from the last GETCHUNK of a chunk to its first CHUNK reply
+     */
+    private LatencyEstimator chunkLatency = new LatencyEstimator();
+
+    /**
+     * The time each chunk was last asked for, as given by System.nanoTime, in protocol 1.0
+     */
+    private AtomicLongArray requestTimes;
+
+    /**
+     * The number of times each chunk was asked for, in protocol 1.0. Only used by the thread sending the requests
+     */
+    private int[] numRequests;
+
+    /**
+     * The time the data planes were last asked for, as given by System.nanoTime, in protocol 2.0
+     */
+    private long dataPlanesRequestTime;
+
+    /**
+     * The number of times the data planes were asked for, in protocol 2.0
+     */
+    private int numDataPlanesRequests = 0;
+
+    /**
+     * Whether the restore finished, successfully or not
+     */
+    private volatile boolean finished = false;
 
     /**
      * Trigger Restore Action constructor
@@ -68,9 +171,13 @@ public class TriggerRestoreAction extends ActionHasReply {
     public TriggerRestoreAction(Peer peer, float protocolVersion, int senderID, String file) {
         this.controlChannel = peer.getControlChannel();
         this.restoreChannel = peer.getRestoreChannel();
+        this.threadPool = peer.getThreadPool();
+        this.timer = peer.getTimer();
         this.protocolVersion = protocolVersion;
         this.senderID = senderID;
 
+        this.replyChannel = (protocolVersion == ProtocolVersions.ENHANCEMENTS_VERSION) ? controlChannel : restoreChannel;
+
         this.fileID = FileManager.genFileID(file);
         backedUpFiles = peer.getBackedUpFiles();
         if (! backedUpFiles.hasFileBackedUp(fileID))
@@ -79,46 +186,208 @@ public class TriggerRestoreAction extends ActionHasReply {
 
     @Override
     public void run() {
+        String restoreDir = FileManager.getFileDirectory(senderID, RESTORE_DIRECTORY);
+        new File(restoreDir).mkdirs();
+
+        restoredFile = FileAssembler.create(restoreDir, backedUpFiles.getFileName(fileID), backedUpFiles.getNumChunks(fileID));
+        if (restoredFile == null)
+            return;
+        if (restoredFile.isComplete()) {
+            restoreFinished();
+            return;
+        }
+
+        int numChunks = backedUpFiles.getNumChunks(fileID);
+        if (replyChannel == controlChannel)
+            planner = new RestorePlanner(restoredFile, backedUpFiles, fileID, numChunks, threadPool, this::restoreFinished);
+        else {
+            requestTimes = new AtomicLongArray(numChunks);
+            numRequests = new int[numChunks];
+        }
+
+        // Subscribing before sending the requests, so no reply is missed
+        replyChannel.subscribeAction(this);
+
         if (protocolVersion == 1.0) {
-            for (int i = 0; i < backedUpFiles.getNumChunks(fileID); ++i) {
-                try {
-                    controlChannel.sendMessage(
-                        new GetchunkMsg(protocolVersion, senderID, fileID, i).genMsg()
-                    );
-                } catch (ExceptionInInitializerError e) {
-                    Utils.showError("Failed to build message, stopping delete action", this.getClass());
+            for (int i = 0; i < numChunks; ++i) {
+                if (! requestChunk(i)) {
+                    restoreFailed();
                     return;
                 }
             }
         } else if (protocolVersion == 2.0) {
-            try {
-                controlChannel.sendMessage(
-                    new GetTCPIP(protocolVersion, senderID, fileID).genMsg()
-                );
-            } catch (ExceptionInInitializerError e) {
-                Utils.showError("Failed to build message, stopping restore action", this.getClass());
+            if (! requestDataPlanes()) {
+                restoreFailed();
                 return;
             }
         }
+
+        timer.schedule(this::checkRequests, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ask the peers for a chunk, with a GETCHUNK message
+     *
+     * @param chunkNum The chunk number
+     * @return False if the message could not be built
+     */
+    private boolean requestChunk(int chunkNum) {
+        requestTimes.set(chunkNum, System.nanoTime());
+        ++numRequests[chunkNum];
+
+        try {
+            controlChannel.sendMessage(
+                new GetchunkMsg(protocolVersion, senderID, fileID, chunkNum).genMsg()
+            );
+            return true;
+        } catch (ExceptionInInitializerError e) {
+            Utils.showError("Failed to build message, stopping restore action", this.getClass());
+            return false;
+        }
+    }
+
+    /**
+     * Ask the peers having chunks of the file for their data plane, with a GETTCPIP message
+     *
+     * @return False if the message could not be built
+     */
+    private boolean requestDataPlanes() {
+        dataPlanesRequestTime = System.nanoTime();
+        ++numDataPlanesRequests;
+
+        try {
+            controlChannel.sendMessage(
+                new GetTCPIP(protocolVersion, senderID, fileID).genMsg()
+            );
+            return true;
+        } catch (ExceptionInInitializerError e) {
+            Utils.showError("Failed to build message, stopping restore action", this.getClass());
+            return false;
+        }
+    }
+
+    /**
+     * Check the requests waiting for a reply, asking again for the ones late, until the restore finishes
+     */
+    private void checkRequests() {
+        if (finished)
+            return;
+
+        long now = System.nanoTime();
+        if (planner != null) {
+            // No peer offered its data plane, or none of the ones that did may send the chunks missing, so the request
+            // or the replies of the other peers were lost
+            if (planner.checkFetches()
+                    && now - dataPlanesRequestTime > TimeUnit.MILLISECONDS.toNanos(INITIAL_HEDGE_DELAY) << (numDataPlanesRequests - 1)) {
+                if (numDataPlanesRequests >= MAX_REQUESTS) {
+                    Utils.showError("Failed to restore file " + backedUpFiles.getFileName(fileID) + ", as no peer offered the missing chunks", this.getClass());
+                    restoreFailed();
+                    return;
+                }
+                if (! requestDataPlanes()) {
+                    restoreFailed();
+                    return;
+                }
+            }
+
+        } else if (! requestLateChunks(now)) {
+            Utils.showError("Failed to restore file " + backedUpFiles.getFileName(fileID) + ", as some chunks got no reply", this.getClass());
+            restoreFailed();
+            return;
+        }
+
+        timer.schedule(this::checkRequests, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Ask again for the chunks with no reply for longer than the hedge delay, doubled on each retry of the chunk
+     *
+     * @param now The current time, as given by System.nanoTime
+     * @return False if some chunk was asked for the maximum number of times and got no reply
+     */
+    private boolean requestLateChunks(long now) {
+        long delay = hedgeDelay();
+
+        for (int chunkNum = restoredFile.nextMissingChunk(0); chunkNum >= 0; chunkNum = restoredFile.nextMissingChunk(chunkNum + 1)) {
+            if (now - requestTimes.get(chunkNum) < delay << (numRequests[chunkNum] - 1))
+                continue;
+            if (numRequests[chunkNum] >= MAX_REQUESTS)
+                return false;
+            if (! requestChunk(chunkNum))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compute the time a chunk may go without a reply before being asked again
+     *
+     * @return The time, in nanoseconds
+     */
+    private long hedgeDelay() {
+        if (chunkLatency.getNumSamples() < MIN_LATENCY_SAMPLES)
+            return TimeUnit.MILLISECONDS.toNanos(INITIAL_HEDGE_DELAY);
+
+        long delay = (long) (chunkLatency.percentile(HEDGE_PERCENTILE) * HEDGE_FACTOR);
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_HEDGE_DELAY), delay);
     }
 
     @Override
     public void parseResponse(Message msg) {
-        if (! msg.getFileID().equals(fileID))
+        if (restoredFile == null)
             return;
 
+        if (msg instanceof SetTCPIP) {
+            SetTCPIP realMsg = (SetTCPIP) msg;
+            planner.addSource(realMsg.getSenderID(), new InetSocketAddress(realMsg.getIP(), realMsg.getPort()));
+            return;
+        }
+
         ChunkMsg realMsg = (ChunkMsg) msg;
-        chunks.put(realMsg.getChunkNum(), realMsg.getChunk());
+        int chunkNum = realMsg.getChunkNum();
+        if (requestTimes != null && chunkNum >= 0 && chunkNum < requestTimes.length() && ! restoredFile.hasChunk(chunkNum))
+            chunkLatency.record(System.nanoTime() - requestTimes.get(chunkNum));
 
-        if (chunks.size() == backedUpFiles.getNumChunks(fileID)) {
-            String restoreDir = FileManager.getFileDirectory(senderID, RESTORE_DIRECTORY);
-            new File(restoreDir).mkdirs();
+        try {
+            if (restoredFile.writeChunk(chunkNum, realMsg.getChunkBody()))
+                restoreFinished();
 
-            if (FileManager.createFile(chunks, restoreDir, backedUpFiles.getFileName(fileID)) ) {
-                Utils.showSuccess("Succesfully restored file: " + backedUpFiles.getFileName(fileID));
-                restoreChannel.unsubscribeAction(this);
-            } else
-                Utils.showError("Failed to restore file, due to errors on file outputing.", this.getClass());
+        } catch (IOException e) {
+            Utils.showError("Failed to restore file, due to errors on file outputing.", this.getClass());
+            restoreFailed();
         }
     }
+
+    @Override
+    public ResponseRouter.Key getResponseKey() {
+        if (replyChannel == controlChannel)
+            return new ResponseRouter.Key(SetTCPIP.class, fileID, ResponseRouter.ANY_CHUNK);
+        return new ResponseRouter.Key(ChunkMsg.class, fileID, ResponseRouter.ANY_CHUNK);
+    }
+
+    /**
+     * Finish the restore, once all the chunks were written to the restored file
+     */
+    private synchronized void restoreFinished() {
+        if (finished)
+            return;
+
+        finished = true;
+        Utils.showSuccess("Succesfully restored file: " + backedUpFiles.getFileName(fileID));
+        replyChannel.unsubscribeAction(this);
+    }
+
+    /**
+     * Stop the restore, cancelling the fetches running and closing the restored file
+     */
+    private synchronized void restoreFailed() {
+        if (finished)
+            return;
+
+        finished = true;
+        if (planner != null)
+            planner.stop();
+        restoredFile.close();
+        replyChannel.unsubscribeAction(this);
+    }
 }
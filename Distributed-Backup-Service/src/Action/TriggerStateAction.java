@@ -1,10 +1,13 @@
 package Action;
 
 import Database.BackedUpFiles;
+import Database.ChunkStore;
 import Database.ChunksRecorder;
 import Messages.ChunkMsg;
 import Channel.ControlChannel;
+import Channel.Membership;
 import Messages.Message;
+import ThreadPool.ThreadPool;
 import Utils.*;
 
 import java.util.ArrayList;
@@ -17,9 +20,19 @@ public class TriggerStateAction extends Action {
 
     private BackedUpFiles ownBackedUpFile;
 
-    public TriggerStateAction(ChunksRecorder record, BackedUpFiles ownBackedUpFile) {
+    private ThreadPool threadPool;
+
+    private ChunkStore chunkStore;
+
+    private Membership membership;
+
+    public TriggerStateAction(ChunksRecorder record, BackedUpFiles ownBackedUpFile, ThreadPool threadPool, ChunkStore chunkStore,
+                              Membership membership) {
         this.record = record;
         this.ownBackedUpFile = ownBackedUpFile;
+        this.threadPool = threadPool;
+        this.chunkStore = chunkStore;
+        this.membership = membership;
     }
 
     @Override
@@ -28,6 +41,6 @@ public class TriggerStateAction extends Action {
     }
 
     public String getResult() {
-        return (record.toString() + ownBackedUpFile.toString());
+        return (record.toString() + ownBackedUpFile.toString() + threadPool.toString() + chunkStore.toString() + membership.toString());
     }
 }
\ No newline at end of file
@@ -0,0 +1,355 @@
+package Benchmark;
+
+import Database.BackedUpFiles;
+import Database.ChunksRecorder;
+import Messages.*;
+import Utils.FileManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks of the hot paths of the service. All the data is generated from fixed seeds, so every run measures
+ * the same work, and the results can be saved and compared with a baseline to catch performance regressions.
+ *
+ * Usage: java Benchmark/BackupBenchmarks [--filter regex] [--quick] [--save file] [--baseline file] [--threshold fraction]
+ *
+ * With a baseline, the exit status is 1 if any benchmark got slower than the baseline by more than the threshold
+ * (0.2 by default) plus the error of both measures.
+ */
+public class BackupBenchmarks {
+
+    /**
+     * Seed used to generate all the benchmark data
+     */
+    private static final long SEED = 42;
+
+    /**
+     * Default fraction a benchmark may get slower than the baseline before being considered a regression
+     */
+    private static final double DEFAULT_THRESHOLD = 0.2;
+
+    /**
+     * The size of the file used by the file benchmarks, in bytes
+     */
+    private static final int FILE_SIZE = 10 * 1024 * 1024;
+
+    /**
+     * The number of threads of the contention benchmarks
+     */
+    private static final int CONTENTION_THREADS = 8;
+
+    /**
+     * The number of files stored in the databases benchmarked
+     */
+    private static final int NUM_FILES = 16;
+
+    /**
+     * The number of chunks of each file stored in the databases benchmarked
+     */
+    private static final int CHUNKS_PER_FILE = 1000;
+
+    /**
+     * The number of peers storing the chunks in the databases benchmarked
+     */
+    private static final int NUM_PEERS = 8;
+
+    /**
+     * The harness running the benchmarks
+     */
+    private Harness harness;
+
+    /**
+     * Pattern the names of the benchmarks run must contain
+     */
+    private Pattern filter;
+
+    /**
+     * The results, by benchmark name
+     */
+    private LinkedHashMap<String, Harness.Result> results = new LinkedHashMap<>();
+
+    /**
+     * Backup Benchmarks constructor
+     *
+     * @param harness The harness running the benchmarks
+     * @param filter Pattern the names of the benchmarks run must contain
+     */
+    private BackupBenchmarks(Harness harness, Pattern filter) {
+        this.harness = harness;
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String filter = ".*";
+        String saveFile = null;
+        String baselineFile = null;
+        double threshold = DEFAULT_THRESHOLD;
+        boolean quick = false;
+
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--filter":
+                    filter = args[++i];
+                    break;
+                case "--save":
+                    saveFile = args[++i];
+                    break;
+                case "--baseline":
+                    baselineFile = args[++i];
+                    break;
+                case "--threshold":
+                    threshold = Double.parseDouble(args[++i]);
+                    break;
+                case "--quick":
+                    quick = true;
+                    break;
+                default:
+                    System.err.println("Unknown argument " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        Harness harness = quick ? new Harness(2, 3, 200) : new Harness(5, 10, 1000);
+        BackupBenchmarks benchmarks = new BackupBenchmarks(harness, Pattern.compile(filter));
+        benchmarks.runAll();
+
+        if (saveFile != null)
+            benchmarks.save(new File(saveFile));
+        if (baselineFile != null && ! benchmarks.compare(new File(baselineFile), threshold))
+            System.exit(1);
+    }
+
+    /**
+     * Run all the benchmarks whose name matches the filter
+     *
+     * @throws Exception If a benchmark failed
+     */
+    private void runAll() throws Exception {
+        messageBenchmarks();
+        databaseBenchmarks();
+
+        Path tmpDir = Files.createTempDirectory("backup-benchmarks");
+        try {
+            fileBenchmarks(tmpDir);
+        } finally {
+            deleteRecursively(tmpDir.toFile());
+        }
+    }
+
+    /**
+     * Run a benchmark, if its name matches the filter
+     *
+     * @param name The benchmark name
+     * @param numThreads The number of threads running the operation
+     * @param operation The operation
+     * @throws Exception If the benchmark failed
+     */
+    private void run(String name, int numThreads, Harness.Operation operation) throws Exception {
+        if (filter.matcher(name).find())
+            results.put(name, harness.measure(name, numThreads, operation));
+    }
+
+    /**
+     * Benchmarks of the message parsing and generation
+     *
+     * @throws Exception If a benchmark failed
+     */
+    private void messageBenchmarks() throws Exception {
+        Random random = new Random(SEED);
+        String fileID = genFileID(random);
+        byte[] body = new byte[FileManager.CHUNKS_SIZE];
+        random.nextBytes(body);
+
+        Map<String, byte[]> messages = new LinkedHashMap<>();
+        messages.put("PUTCHUNK", new PutchunkMsg(1.0f, 1, fileID, 42, 3, body).genMsg());
+        messages.put("STORED", new StoredMsg(1.0f, 1, fileID, 42).genMsg());
+        messages.put("GETCHUNK", new GetchunkMsg(1.0f, 1, fileID, 42).genMsg());
+        messages.put("CHUNK", new ChunkMsg(1.0f, 1, fileID, 42, body).genMsg());
+        messages.put("DELETE", new DeleteMsg(1.0f, 1, fileID).genMsg());
+        messages.put("REMOVED", new RemovedMsg(1.0f, 1, fileID, 42).genMsg());
+        messages.put("GETTCPIP", new GetTCPIP(2.0f, 1, fileID).genMsg());
+        messages.put("SETTCPIP", new SetTCPIP(2.0f, 1, fileID, "192.168.1.100", 8080).genMsg());
+        messages.put("CHECKDELETE", new CheckDeleteMsg(2.0f, 1, fileID).genMsg());
+
+        for (Map.Entry<String, byte[]> message : messages.entrySet()) {
+            byte[] packet = message.getValue();
+            if (MessageDispatcher.messageInterpreter(packet, packet.length) == null)
+                throw new IllegalStateException("Benchmark message " + message.getKey() + " is not valid");
+
+            run("messageInterpreter." + message.getKey(), 1,
+                    thread -> MessageDispatcher.messageInterpreter(packet, packet.length));
+        }
+
+        run("PutchunkMsg.genMsg", 1, thread -> new PutchunkMsg(1.0f, 1, fileID, 42, 3, body).genMsg());
+    }
+
+    /**
+     * Benchmarks of the databases
+     *
+     * @throws Exception If a benchmark failed
+     */
+    private void databaseBenchmarks() throws Exception {
+        Random random = new Random(SEED);
+        String[] fileIDs = new String[NUM_FILES];
+        for (int i = 0; i < NUM_FILES; ++i)
+            fileIDs[i] = genFileID(random);
+
+        ChunksRecorder chunksRecorder = new ChunksRecorder();
+        for (String fileID : fileIDs) {
+            for (int chunkNum = 0; chunkNum < CHUNKS_PER_FILE; ++chunkNum)
+                chunksRecorder.addChunkRecord(fileID, chunkNum, FileManager.CHUNKS_SIZE, 3);
+        }
+
+        // Each thread draws its chunks from its own seeded generator, so the access pattern is the same every run
+        Random[] threadRandoms = new Random[CONTENTION_THREADS];
+        for (int t = 0; t < CONTENTION_THREADS; ++t)
+            threadRandoms[t] = new Random(SEED + t);
+
+        for (int numThreads : new int[] { 1, CONTENTION_THREADS }) {
+            run("ChunksRecorder.addChunkRecord/removeChunk[" + numThreads + " threads]", numThreads, thread -> {
+                Random threadRandom = threadRandoms[thread];
+                String fileID = fileIDs[threadRandom.nextInt(NUM_FILES)];
+                int chunkNum = CHUNKS_PER_FILE + threadRandom.nextInt(CHUNKS_PER_FILE);
+
+                boolean added = chunksRecorder.addChunkRecord(fileID, chunkNum, FileManager.CHUNKS_SIZE, 3);
+                chunksRecorder.removeChunk(fileID, chunkNum);
+                return added;
+            });
+
+            run("ChunksRecorder.incChunkRecord/decChunkRecord[" + numThreads + " threads]", numThreads, thread -> {
+                Random threadRandom = threadRandoms[thread];
+                String fileID = fileIDs[threadRandom.nextInt(NUM_FILES)];
+                int chunkNum = threadRandom.nextInt(CHUNKS_PER_FILE);
+                int peerID = 1 + threadRandom.nextInt(NUM_PEERS);
+
+                boolean updated = chunksRecorder.incChunkRecord(fileID, chunkNum, peerID);
+                chunksRecorder.decChunkRecord(fileID, chunkNum, peerID);
+                return updated;
+            });
+        }
+
+        // Half the chunks reach the desired replication degree, so checkAllRD returns the other half
+        BackedUpFiles backedUpFiles = new BackedUpFiles();
+        String backedFileID = fileIDs[0];
+        backedUpFiles.backedFile(backedFileID, "benchmark.bin", 3, CHUNKS_PER_FILE);
+        for (int chunkNum = 0; chunkNum < CHUNKS_PER_FILE; ++chunkNum) {
+            int numPeers = (chunkNum % 2 == 0) ? 3 : 1;
+            for (int peerID = 1; peerID <= numPeers; ++peerID)
+                backedUpFiles.backedChunk(backedFileID, chunkNum, peerID);
+        }
+
+        run("BackedUpFiles.checkAllRD[" + CHUNKS_PER_FILE + " chunks]", 1, thread -> backedUpFiles.checkAllRD(backedFileID).size());
+    }
+
+    /**
+     * Benchmarks of the file splitting, rebuilding and identification
+     *
+     * @param tmpDir The directory where the benchmark files are created
+     * @throws Exception If a benchmark failed
+     */
+    private void fileBenchmarks(Path tmpDir) throws Exception {
+        byte[] content = new byte[FILE_SIZE];
+        new Random(SEED).nextBytes(content);
+
+        Path file = tmpDir.resolve("benchmark.bin");
+        Files.write(file, content);
+        String filePath = file.toString();
+
+        ArrayList<byte[]> splitChunks = FileManager.splitFile(filePath);
+        HashMap<Integer, byte[]> chunks = new HashMap<>();
+        for (int i = 0; i < splitChunks.size(); ++i)
+            chunks.put(i, splitChunks.get(i));
+
+        String outputDir = tmpDir.resolve("restored").toString();
+        new File(outputDir).mkdirs();
+
+        run("FileManager.genFileID", 1, thread -> FileManager.genFileID(filePath));
+        run("FileManager.splitFile[10 MB]", 1, thread -> FileManager.splitFile(filePath).size());
+        run("FileManager.createFile[10 MB]", 1, thread -> FileManager.createFile(chunks, outputDir, "benchmark.bin"));
+    }
+
+    /**
+     * Save the results, one benchmark per line
+     *
+     * @param file The file the results are saved to
+     * @throws IOException If the file could not be written
+     */
+    private void save(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Harness.Result result : results.values())
+            lines.add(result.name + "\t" + result.nsPerOp + "\t" + result.error);
+
+        Files.write(file.toPath(), lines);
+        System.out.println("Results saved to " + file);
+    }
+
+    /**
+     * Compare the results with a baseline, saved by a previous run
+     *
+     * @param file The file containing the baseline
+     * @param threshold The fraction a benchmark may get slower than the baseline
+     * @return True if no benchmark regressed
+     * @throws IOException If the baseline could not be read
+     */
+    private boolean compare(File file, double threshold) throws IOException {
+        boolean passed = true;
+
+        System.out.println();
+        System.out.println("Comparison with " + file + " (threshold " + (int) (threshold * 100) + "%)");
+        for (String line : Files.readAllLines(file.toPath())) {
+            String[] fields = line.split("\t");
+            if (fields.length != 3)
+                continue;
+
+            Harness.Result result = results.get(fields[0]);
+            if (result == null)
+                continue;
+
+            double baseline = Double.parseDouble(fields[1]);
+            double baselineError = Double.parseDouble(fields[2]);
+            boolean regressed = result.nsPerOp - result.error > baseline * (1 + threshold) + baselineError;
+            passed &= ! regressed;
+
+            System.out.printf("%-48s %+7.1f%%  %s%n", result.name, 100 * (result.nsPerOp / baseline - 1),
+                    regressed ? "REGRESSION" : "ok");
+        }
+        return passed;
+    }
+
+    /**
+     * Generate a random file identifier, with the same format as the ones generated by FileManager.genFileID
+     *
+     * @param random The random generator
+     * @return The file identifier
+     */
+    private static String genFileID(Random random) {
+        StringBuilder fileID = new StringBuilder();
+        for (int i = 0; i < 64; ++i)
+            fileID.append(Character.forDigit(random.nextInt(16), 16));
+        return fileID.toString();
+    }
+
+    /**
+     * Delete a file, or a directory and all its content
+     *
+     * @param file The file or directory
+     */
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,129 @@
+package Benchmark;
+
+import Database.ChunkIndex;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Benchmark comparing the heap used to index the stored chunks with the previous layout
+ * (nested hash maps with a boxed key and an object per chunk) and with the ChunkIndex.
+ *
+ * Usage: java Benchmark/ChunkIndexFootprint [numFiles] [chunksPerFile] [peersPerChunk]
+ */
+public class ChunkIndexFootprint {
+
+    /**
+     * Seed used to generate the file identifiers, so every run indexes the same data
+     */
+    private static final long SEED = 42;
+
+    /**
+     * The info kept per chunk by the previous layout
+     */
+    private static class LegacyChunkInfo {
+        int repDegree = 0;
+        int chunkSize;
+        ArrayList<Integer> peersStored = new ArrayList<>();
+
+        LegacyChunkInfo(Integer chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    public static void main(String[] args) {
+        int numFiles = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        int chunksPerFile = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        int peersPerChunk = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+
+        String[] fileIDs = genFileIDs(numFiles);
+        System.out.println("Indexing " + ((long) numFiles * chunksPerFile) + " chunks, " + peersPerChunk + " peers each");
+
+        long before = usedHeap();
+        ConcurrentHashMap<String, ConcurrentHashMap<Integer, LegacyChunkInfo>> legacy = new ConcurrentHashMap<>();
+        for (String fileID : fileIDs) {
+            ConcurrentHashMap<Integer, LegacyChunkInfo> chunks = new ConcurrentHashMap<>();
+            for (int chunkNum = 0; chunkNum < chunksPerFile; ++chunkNum) {
+                LegacyChunkInfo info = new LegacyChunkInfo(64000);
+                for (int peer = 1; peer <= peersPerChunk; ++peer) {
+                    info.peersStored.add(peer);
+                    ++info.repDegree;
+                }
+                chunks.put(chunkNum, info);
+            }
+            legacy.put(fileID, chunks);
+        }
+        long legacyBytes = usedHeap() - before;
+        report("Nested hash maps", legacyBytes, numFiles, chunksPerFile, legacy.size());
+        legacy = null;
+
+        before = usedHeap();
+        ChunkIndex index = new ChunkIndex();
+        for (String fileID : fileIDs) {
+            ChunkIndex.FileChunks chunks = index.getOrAddFile(fileID, peersPerChunk);
+            for (int chunkNum = 0; chunkNum < chunksPerFile; ++chunkNum) {
+                chunks.addChunk(chunkNum, 64000);
+                for (int peer = 1; peer <= peersPerChunk; ++peer)
+                    chunks.setPeer(chunkNum, peer, true);
+                chunks.setRepDegree(chunkNum, peersPerChunk);
+            }
+        }
+        long indexBytes = usedHeap() - before;
+        report("ChunkIndex", indexBytes, numFiles, chunksPerFile, index.getNumFiles());
+
+        System.out.printf("Reduction: %.1fx%n", (double) legacyBytes / Math.max(indexBytes, 1));
+    }
+
+    /**
+     * Generate random file identifiers, with the same format as the ones generated by FileManager.genFileID
+     *
+     * @param numFiles The number of identifiers
+     * @return The identifiers
+     */
+    private static String[] genFileIDs(int numFiles) {
+        Random random = new Random(SEED);
+        String[] fileIDs = new String[numFiles];
+
+        for (int i = 0; i < numFiles; ++i) {
+            StringBuilder fileID = new StringBuilder();
+            for (int j = 0; j < 64; ++j)
+                fileID.append(Character.forDigit(random.nextInt(16), 16));
+            fileIDs[i] = fileID.toString();
+        }
+        return fileIDs;
+    }
+
+    /**
+     * Get the heap in use, after collecting the garbage
+     *
+     * @return The used heap, in bytes
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; ++i) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Print the heap used by an index
+     *
+     * @param name The index name
+     * @param bytes The heap used, in bytes
+     * @param numFiles The number of files indexed
+     * @param chunksPerFile The number of chunks of each file
+     * @param reachable Value read from the index, so it is not collected before being measured
+     */
+    private static void report(String name, long bytes, int numFiles, int chunksPerFile, int reachable) {
+        long numChunks = (long) numFiles * chunksPerFile;
+        System.out.printf("%-18s %10.1f MB  %6.1f bytes/chunk  (%d files)%n",
+                name, bytes / (1024.0 * 1024.0), (double) bytes / numChunks, reachable);
+    }
+}
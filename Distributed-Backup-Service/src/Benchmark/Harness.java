@@ -0,0 +1,239 @@
+package Benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class implementing a small micro benchmark harness.
+ * Each benchmark runs some warm up iterations, so the code is compiled before being measured, followed by the
+ * measured iterations. Every iteration runs the operation for a fixed time, and its average time per operation
+ * is taken as a sample. Results of the operations are consumed, so the compiler can not drop them as dead code.
+ */
+public class Harness {
+
+    /**
+     * Interface implemented by the operations being measured
+     */
+    public interface Operation {
+
+        /**
+         * Run the operation once
+         *
+         * @param thread The index of the thread running the operation, from 0 to the number of threads minus 1
+         * @return A value derived from the operation work, consumed by the harness
+         * @throws Exception If the operation failed, which stops the benchmark
+         */
+        Object run(int thread) throws Exception;
+    }
+
+    /**
+     * Class representing the result of a benchmark
+     */
+    public static class Result {
+
+        /**
+         * The benchmark name
+         */
+        public final String name;
+
+        /**
+         * The average time per operation, in nanoseconds
+         */
+        public final double nsPerOp;
+
+        /**
+         * The half width of the 99% confidence interval of the average, in nanoseconds
+         */
+        public final double error;
+
+        /**
+         * Result constructor
+         *
+         * @param name The benchmark name
+         * @param nsPerOp The average time per operation, in nanoseconds
+         * @param error The half width of the 99% confidence interval of the average, in nanoseconds
+         */
+        Result(String name, double nsPerOp, double error) {
+            this.name = name;
+            this.nsPerOp = nsPerOp;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-48s %14.1f ns/op  +- %10.1f", name, nsPerOp, error);
+        }
+    }
+
+    /**
+     * Z value of the 99% confidence interval
+     */
+    private static final double Z_99 = 2.576;
+
+    /**
+     * The number of warm up iterations
+     */
+    private final int warmupIterations;
+
+    /**
+     * The number of measured iterations
+     */
+    private final int measureIterations;
+
+    /**
+     * The duration of each iteration, in milliseconds
+     */
+    private final long iterationMillis;
+
+    /**
+     * Accumulates the values returned by the operations, so they are not dropped as dead code
+     */
+    private volatile long sink;
+
+    /**
+     * Harness constructor
+     *
+     * @param warmupIterations The number of warm up iterations
+     * @param measureIterations The number of measured iterations
+     * @param iterationMillis The duration of each iteration, in milliseconds
+     */
+    public Harness(int warmupIterations, int measureIterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measureIterations = measureIterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    /**
+     * Measure an operation, run by a single thread
+     *
+     * @param name The benchmark name
+     * @param operation The operation
+     * @return The benchmark result
+     * @throws Exception If the operation failed
+     */
+    public Result measure(String name, Operation operation) throws Exception {
+        return measure(name, 1, operation);
+    }
+
+    /**
+     * Measure an operation, run concurrently by the given number of threads.
+     * The time per operation is the iteration duration divided by the operations made by all the threads, so it
+     * drops as the threads scale and rises as they contend.
+     *
+     * @param name The benchmark name
+     * @param numThreads The number of threads
+     * @param operation The operation
+     * @return The benchmark result
+     * @throws Exception If the operation failed
+     */
+    public Result measure(String name, int numThreads, Operation operation) throws Exception {
+        for (int i = 0; i < warmupIterations; ++i)
+            runIteration(numThreads, operation);
+
+        double[] samples = new double[measureIterations];
+        for (int i = 0; i < measureIterations; ++i)
+            samples[i] = runIteration(numThreads, operation);
+
+        double mean = 0;
+        for (double sample : samples)
+            mean += sample / samples.length;
+
+        double variance = 0;
+        for (double sample : samples)
+            variance += (sample - mean) * (sample - mean) / Math.max(samples.length - 1, 1);
+
+        Result result = new Result(name, mean, Z_99 * Math.sqrt(variance / samples.length));
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Run one iteration of an operation
+     *
+     * @param numThreads The number of threads running the operation
+     * @param operation The operation
+     * @return The average time per operation, in nanoseconds
+     * @throws Exception If the operation failed
+     */
+    private double runIteration(int numThreads, Operation operation) throws Exception {
+        if (numThreads == 1) {
+            long ops = 0;
+            long consumed = 0;
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(iterationMillis);
+            long now;
+
+            do {
+                consumed += consume(operation.run(0));
+                ++ops;
+            } while ((now = System.nanoTime()) < deadline);
+
+            sink += consumed;
+            return (double) (now - start) / ops;
+        }
+
+        AtomicLong totalOps = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(numThreads);
+        CountDownLatch start = new CountDownLatch(1);
+        Exception[] failure = new Exception[1];
+        Thread[] threads = new Thread[numThreads];
+        long[] startTime = new long[1];
+
+        for (int t = 0; t < numThreads; ++t) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                long ops = 0;
+                long consumed = 0;
+                ready.countDown();
+                try {
+                    start.await();
+                    long deadline = startTime[0] + TimeUnit.MILLISECONDS.toNanos(iterationMillis);
+                    do {
+                        consumed += consume(operation.run(thread));
+                        ++ops;
+                    } while (System.nanoTime() < deadline);
+
+                } catch (Exception e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+                totalOps.addAndGet(ops);
+                sink += consumed;
+            });
+            threads[t].start();
+        }
+
+        ready.await();
+        startTime[0] = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+        long elapsed = System.nanoTime() - startTime[0];
+
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw failure[0];
+        }
+        return (double) elapsed / totalOps.get();
+    }
+
+    /**
+     * Derive a number from a value returned by an operation
+     *
+     * @param value The value
+     * @return The number
+     */
+    private static long consume(Object value) {
+        if (value == null)
+            return 0;
+        if (value instanceof byte[])
+            return ((byte[]) value).length;
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        if (value instanceof Boolean)
+            return ((Boolean) value) ? 1 : 0;
+        return System.identityHashCode(value);
+    }
+}
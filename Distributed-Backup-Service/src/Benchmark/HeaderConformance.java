@@ -0,0 +1,581 @@
+package Benchmark;
+
+import Messages.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Conformance check of the HeaderParser against the regexes of the message classes, which it replaced.
+ * Both parse the same messages: the ones generated by every message class, random headers with any whitespace between
+ * their fields, and malformed headers derived from those. The regex reference cuts the message at its first CRLF CRLF,
+ * as the dispatcher did, and matches the header with the regex of the class named by its first word. Numbers the
+ * regex matches but can not convert are taken as rejected.
+ *
+ * The parsers knowingly differ on the port of SETTCPIP messages: the regex takes the first alternative of the port that
+ * lets the rest of the header match, which may be a prefix of the port digits or none of them, its lazy separator only
+ * takes the first whitespace before the port, leaving none of the digits to it when more follow, and it does not let any
+ * line terminator follow the port. The parser takes all the port digits, rejects ports above 65535, and ignores what
+ * follows them. For SETTCPIP messages, the reference matches the header with a single space and the port 0 after the
+ * IP address, and takes the port from the digits in the header, so the headers where the plain regex disagrees are
+ * counted apart.
+ * Numbers with more digits than the parser accepts (10 for the sender and the load, 19 for the free space) are not
+ * generated, as only the regexes accept the ones that still fit in an int or a long.
+ *
+ * Usage: java Benchmark/HeaderConformance [numCases] [seed]
+ *
+ * The exit status is 1 if the parsers disagree on any message.
+ */
+public class HeaderConformance {
+
+    /**
+     * Result of a parser that rejected the header
+     */
+    private static final String REJECTED = "rejected";
+
+    /**
+     * The number of disagreements printed in full
+     */
+    private static final int MAX_PRINTED = 20;
+
+    /**
+     * The message types, as written in the headers
+     */
+    private static final String[] TYPES = {
+            HeaderParser.PUTCHUNK, HeaderParser.STORED, HeaderParser.GETCHUNK, HeaderParser.CHUNK, HeaderParser.DELETE,
+            HeaderParser.REMOVED, HeaderParser.GETTCPIP, HeaderParser.SETTCPIP, HeaderParser.CHECKDELETE, HeaderParser.HEARTBEAT
+    };
+
+    /**
+     * Whitespaces used as separators, spaces being the most common
+     */
+    private static final String SEPARATORS = "       \t\u000B\f\r\n";
+
+    /**
+     * Chars inserted into the headers to make them malformed, including latin chars no parser takes as whitespace
+     */
+    private static final String NOISE = "0123456789abcdefABCDEF.:- \t\r\n\u000B\fxyzPUTCHUNK\u00a0\u0085\u00e9";
+
+    /**
+     * SETTCPIP ports on which the regex is known to go wrong, or to be right only by chance
+     */
+    private static final String[] SPECIAL_PORTS = {"8001", "70000", "65536", "123456", "99999", "4000", "65535", "0", "00000", "8001abc"};
+
+    /**
+     * Stream discarding the errors printed by the message classes when their regex does not match
+     */
+    private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+    /**
+     * Generator of the random messages
+     */
+    private Random random;
+
+    /**
+     * The number of messages checked
+     */
+    private int numChecked = 0;
+
+    /**
+     * The number of messages both parsers accepted
+     */
+    private int numAccepted = 0;
+
+    /**
+     * The number of SETTCPIP messages where the plain regex disagreed with the reference, as expected
+     */
+    private int numKnownDifferences = 0;
+
+    /**
+     * The number of messages the parsers disagreed on
+     */
+    private int numMismatches = 0;
+
+    public static void main(String[] args) {
+        int numCases = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+        long seed = (args.length > 1) ? Long.parseLong(args[1]) : 42;
+
+        HeaderConformance conformance = new HeaderConformance(seed);
+        conformance.checkGeneratedMessages();
+        conformance.checkSpecialPorts();
+        for (int i = 0; i < numCases; ++i) {
+            byte[] message = conformance.randomMessage();
+            conformance.check("random", message);
+            conformance.check("malformed", conformance.malform(message));
+        }
+
+        System.out.printf("Checked %d messages: %d accepted by both parsers, %d known SETTCPIP port differences, %d mismatches%n",
+                conformance.numChecked, conformance.numAccepted, conformance.numKnownDifferences, conformance.numMismatches);
+        System.exit(conformance.numMismatches > 0 ? 1 : 0);
+    }
+
+    /**
+     * Header Conformance constructor
+     *
+     * @param seed Seed of the random messages, so every run checks the same ones
+     */
+    private HeaderConformance(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Check the messages generated by every message class, with the extreme values of their fields
+     */
+    private void checkGeneratedMessages() {
+        byte[] body = new byte[100];
+        random.nextBytes(body);
+        byte[] bodyWithHeaderEnd = "\r\n\r\nPUTCHUNK 1.0 1 \r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+        for (float version : new float[]{1.0f, 2.0f}) {
+            for (int sender : new int[]{0, 1, 123456789}) {
+                String fileID = randomFileID();
+
+                for (int chunkNum : new int[]{0, 999999}) {
+                    for (int repDegree : new int[]{1, 9}) {
+                        check("genMsg", new PutchunkMsg(version, sender, fileID, chunkNum, repDegree, body).genMsg());
+                        check("genMsg", new PutchunkMsg(version, sender, fileID, chunkNum, repDegree, bodyWithHeaderEnd).genMsg());
+                    }
+                    check("genMsg", new StoredMsg(version, sender, fileID, chunkNum).genMsg());
+                    check("genMsg", new GetchunkMsg(version, sender, fileID, chunkNum).genMsg());
+                    check("genMsg", new ChunkMsg(version, sender, fileID, chunkNum, body).genMsg());
+                    check("genMsg", new ChunkMsg(version, sender, fileID, chunkNum, new byte[0]).genMsg());
+                    check("genMsg", new RemovedMsg(version, sender, fileID, chunkNum).genMsg());
+                }
+
+                check("genMsg", new DeleteMsg(version, sender, fileID).genMsg());
+                check("genMsg", new GetTCPIP(version, sender, fileID).genMsg());
+                check("genMsg", new CheckDeleteMsg(version, sender, fileID).genMsg());
+                for (String ip : new String[]{"0.0.0.0", "127.0.0.1", "255.255.255.255"}) {
+                    for (int port : new int[]{0, 4000, 8001, 65535})
+                        check("genMsg", new SetTCPIP(version, sender, fileID, ip, port).genMsg());
+                }
+                for (long freeSpace : new long[]{0, 1L << 40, 999999999999999999L}) {
+                    for (int load : new int[]{0, 999999999})
+                        check("genMsg", new HeartbeatMsg(version, sender, freeSpace, load).genMsg());
+                }
+            }
+        }
+    }
+
+    /**
+     * Check the SETTCPIP messages whose port the regex is known to read differently, followed by any whitespace
+     */
+    private void checkSpecialPorts() {
+        String fileID = randomFileID();
+        for (String port : SPECIAL_PORTS) {
+            for (String end : new String[]{" ", "", "\t", "\n", " \r"})
+                check("port", ("SETTCPIP 2.0 3 " + fileID + " 10.0.0.1 " + port + end + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /**
+     * Generate a random valid message of a random type, with random whitespaces between its fields
+     *
+     * @return The message bytes
+     */
+    private byte[] randomMessage() {
+        String type = TYPES[random.nextInt(TYPES.length)];
+        StringBuilder header = new StringBuilder();
+        if (random.nextInt(8) == 0)
+            header.append(separator());
+
+        header.append(type).append(separator())
+                .append(random.nextInt(10)).append('.').append(random.nextInt(10)).append(separator())
+                .append(digits(1, 6));
+
+        if (type.equals(HeaderParser.HEARTBEAT)) {
+            header.append(separator()).append(digits(1, 15)).append(separator()).append(digits(1, 6));
+        } else {
+            header.append(separator()).append(randomFileID());
+
+            switch (type) {
+                case HeaderParser.PUTCHUNK:
+                    header.append(separator()).append(digits(1, 6)).append(separator()).append(random.nextInt(10));
+                    break;
+                case HeaderParser.STORED:
+                case HeaderParser.GETCHUNK:
+                case HeaderParser.CHUNK:
+                case HeaderParser.REMOVED:
+                    header.append(separator()).append(digits(1, 6));
+                    break;
+                case HeaderParser.SETTCPIP:
+                    header.append(separator());
+                    for (int i = 0; i < 4; ++i) {
+                        int octet = random.nextInt(256);
+                        header.append(i > 0 ? "." : "").append(random.nextBoolean() ? String.format("%03d", octet) : Integer.toString(octet));
+                    }
+                    header.append(separator()).append(random.nextInt(4) == 0
+                            ? SPECIAL_PORTS[random.nextInt(SPECIAL_PORTS.length)] : Integer.toString(random.nextInt(65536)));
+                    break;
+                default:
+                    break;
+            }
+        }
+        header.append(separator()).append("\r\n\r\n");
+
+        byte[] headerBytes = header.toString().getBytes(StandardCharsets.ISO_8859_1);
+        if (! type.equals(HeaderParser.PUTCHUNK) && ! type.equals(HeaderParser.CHUNK))
+            return headerBytes;
+
+        byte[] message = Arrays.copyOf(headerBytes, headerBytes.length + random.nextInt(64));
+        for (int i = headerBytes.length; i < message.length; ++i)
+            message[i] = (byte) random.nextInt(256);
+        return message;
+    }
+
+    /**
+     * Make a valid message malformed, by changing its header
+     *
+     * @param message The message bytes
+     * @return The malformed message bytes
+     */
+    private byte[] malform(byte[] message) {
+        String text = new String(message, StandardCharsets.ISO_8859_1);
+        int headerEnd = text.indexOf("\r\n\r\n");
+        if (headerEnd < 0)
+            headerEnd = text.length();
+        int at = random.nextInt(headerEnd + 1);
+        char noise = NOISE.charAt(random.nextInt(NOISE.length()));
+
+        switch (random.nextInt(8)) {
+            case 0:
+                text = text.substring(0, Math.min(at, headerEnd - 1)) + text.substring(Math.min(at + 1, headerEnd));
+                break;
+            case 1:
+                text = text.substring(0, at) + noise + text.substring(at);
+                break;
+            case 2:
+                text = text.substring(0, Math.min(at, headerEnd - 1)) + noise + text.substring(Math.min(at + 1, headerEnd));
+                break;
+            case 3:
+                text = text.substring(0, at) + (random.nextBoolean() ? "\r\n\r\n" : "");
+                break;
+            case 4:
+                // No whitespace before the final CRLF CRLF
+                text = text.substring(0, headerEnd).replaceAll("\\s+$", "") + text.substring(headerEnd);
+                break;
+            case 5:
+                text = text.toUpperCase();
+                break;
+            case 6:
+                text = text.toLowerCase();
+                break;
+            default:
+                // A field too long, as an extra digit or hexadecimal char follows one of them
+                int space = text.indexOf(' ', at);
+                if (space >= 0 && space < headerEnd)
+                    text = text.substring(0, space) + (random.nextBoolean() ? "9" : "a") + text.substring(space);
+                break;
+        }
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Check a message with both parsers, placed after a few other bytes in the buffer, and count the disagreements
+     *
+     * @param label The kind of message, shown along with the disagreements
+     * @param message The message bytes
+     */
+    private void check(String label, byte[] message) {
+        ++numChecked;
+
+        int offset = random.nextInt(8);
+        byte[] packet = new byte[offset + message.length];
+        Arrays.fill(packet, 0, offset, (byte) ' ');
+        System.arraycopy(message, 0, packet, offset, message.length);
+        ByteBuffer buffer = ByteBuffer.wrap(packet, offset, message.length);
+
+        String parsed = parse(buffer);
+        if (buffer.position() != offset || buffer.limit() != packet.length)
+            parsed = "moved the buffer to " + buffer.position() + "-" + buffer.limit();
+
+        String expected = reference(message);
+        if (parsed.equals(expected)) {
+            if (! parsed.equals(REJECTED))
+                ++numAccepted;
+            return;
+        }
+
+        if (++numMismatches <= MAX_PRINTED) {
+            System.out.println("Mismatch on " + label + " message: " + escape(message));
+            System.out.println("    parser: " + parsed);
+            System.out.println("    regex:  " + expected);
+        }
+    }
+
+    /**
+     * Parse a message with the HeaderParser
+     *
+     * @param buffer The buffer containing the message, between its position and limit
+     * @return The fields parsed, or REJECTED
+     */
+    private static String parse(ByteBuffer buffer) {
+        HeaderParser header = new HeaderParser();
+        if (! header.parse(buffer))
+            return REJECTED;
+
+        return describe(header.getType(), header.getProtocolVersion(), header.getSenderID(), header.getFileID(),
+                header.getChunkNum(), header.getRepDegree(), header.getIpAddress(), header.getPort(),
+                header.getFreeSpace(), header.getLoad(), header.getHeaderLength());
+    }
+
+    /**
+     * Parse a message with the regex of its class, taking the port of SETTCPIP messages from the digits in the header
+     *
+     * @param message The message bytes
+     * @return The fields parsed, or REJECTED
+     */
+    private String reference(byte[] message) {
+        String text = new String(message, StandardCharsets.ISO_8859_1);
+        int headerEnd = text.indexOf("\r\n\r\n");
+        if (headerEnd < 0)
+            return REJECTED;
+
+        String header = text.substring(0, headerEnd + 4);
+        byte[] body = Arrays.copyOfRange(message, headerEnd + 4, message.length);
+        int typeStart = skipWhitespace(header, 0);
+        String type = header.substring(typeStart, skipWord(header, typeStart));
+
+        String plain = describe(type, construct(type, header, body), header.length(), -1);
+        if (! type.equals(HeaderParser.SETTCPIP))
+            return plain;
+
+        String expected = referenceSetTCPIP(header);
+        if (! expected.equals(plain))
+            ++numKnownDifferences;
+        return expected;
+    }
+
+    /**
+     * Parse a SETTCPIP header with its regex, with a single space and the port 0 after the IP address and nothing after
+     * them, and take the port from the digits in the header, rejecting it if it has more than 5 digits or is above 65535
+     *
+     * @param header The header, ending with the CRLF CRLF
+     * @return The fields parsed, or REJECTED
+     */
+    private static String referenceSetTCPIP(String header) {
+        String fields = header.substring(0, header.length() - 4);
+
+        // The type, version, sender, file identifier and IP address, each followed by whitespaces
+        int pos = skipWhitespace(fields, 0);
+        int end = pos;
+        for (int i = 0; i < 5; ++i) {
+            end = skipWord(fields, pos);
+            int next = skipWhitespace(fields, end);
+            if (end == pos || next == end)
+                return REJECTED;
+            pos = next;
+        }
+
+        int portEnd = pos;
+        while (portEnd < fields.length() && fields.charAt(portEnd) >= '0' && fields.charAt(portEnd) <= '9')
+            ++portEnd;
+        if (portEnd == pos || portEnd - pos > 5 || Integer.parseInt(fields.substring(pos, portEnd)) > 65535)
+            return REJECTED;
+
+        Message message = construct(HeaderParser.SETTCPIP, fields.substring(0, end) + " 0 \r\n\r\n", null);
+        return describe(HeaderParser.SETTCPIP, message, header.length(), Integer.parseInt(fields.substring(pos, portEnd)));
+    }
+
+    /**
+     * Build a message with the regex constructor of its class, discarding the errors it prints
+     *
+     * @param type The message type
+     * @param header The header, ending with the CRLF CRLF
+     * @param body The message body
+     * @return The message, or null if the regex did not match, or matched a number that could not be converted
+     */
+    private static Message construct(String type, String header, byte[] body) {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        System.setOut(DISCARD);
+        System.setErr(DISCARD);
+        try {
+            switch (type) {
+                case HeaderParser.PUTCHUNK:
+                    return new PutchunkMsg(header, body);
+                case HeaderParser.STORED:
+                    return new StoredMsg(header);
+                case HeaderParser.GETCHUNK:
+                    return new GetchunkMsg(header);
+                case HeaderParser.CHUNK:
+                    return new ChunkMsg(header, body);
+                case HeaderParser.DELETE:
+                    return new DeleteMsg(header);
+                case HeaderParser.REMOVED:
+                    return new RemovedMsg(header);
+                case HeaderParser.GETTCPIP:
+                    return new GetTCPIP(header);
+                case HeaderParser.SETTCPIP:
+                    return new SetTCPIP(header);
+                case HeaderParser.CHECKDELETE:
+                    return new CheckDeleteMsg(header);
+                case HeaderParser.HEARTBEAT:
+                    return new HeartbeatMsg(header);
+                default:
+                    return null;
+            }
+        } catch (ExceptionInInitializerError | NumberFormatException e) {
+            return null;
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+
+    /**
+     * Describe the fields of a message built by its regex constructor
+     *
+     * @param type The message type
+     * @param message The message, or null if it was rejected
+     * @param headerLength The length of the header, including the final CRLF CRLF
+     * @param port The port to be described for SETTCPIP messages, or -1 to take the one of the message
+     * @return The fields, or REJECTED
+     */
+    private static String describe(String type, Message message, int headerLength, int port) {
+        if (message == null)
+            return REJECTED;
+
+        int chunkNum = -1;
+        int repDegree = -1;
+        String ipAddress = null;
+        long freeSpace = -1;
+        int load = -1;
+
+        if (message instanceof PutchunkMsg) {
+            chunkNum = ((PutchunkMsg) message).getChunkNum();
+            repDegree = ((PutchunkMsg) message).getRepDegree();
+        } else if (message instanceof ChunkMsg) {
+            chunkNum = ((ChunkMsg) message).getChunkNum();
+        } else if (message instanceof CommonMsg) {
+            chunkNum = ((CommonMsg) message).getChunkNum();
+        } else if (message instanceof SetTCPIP) {
+            ipAddress = ((SetTCPIP) message).getIP();
+            if (port < 0)
+                port = ((SetTCPIP) message).getPort();
+        } else if (message instanceof HeartbeatMsg) {
+            freeSpace = ((HeartbeatMsg) message).getFreeSpace();
+            load = ((HeartbeatMsg) message).getLoad();
+        }
+
+        return describe(type, message.getProtocolVersion(), message.getSenderID(), message.getFileID(),
+                chunkNum, repDegree, ipAddress, port, freeSpace, load, headerLength);
+    }
+
+    /**
+     * Describe the fields of a message, the ones it does not have being -1 or null
+     *
+     * @return The fields, as a String
+     */
+    private static String describe(String type, float protocolVersion, int senderID, String fileID, int chunkNum,
+                                   int repDegree, String ipAddress, int port, long freeSpace, int load, int headerLength) {
+        return type + " version=" + protocolVersion + " sender=" + senderID + " file=" + fileID +
+                " chunk=" + chunkNum + " repDegree=" + repDegree + " ip=" + ipAddress + " port=" + port +
+                " freeSpace=" + freeSpace + " load=" + load + " headerLength=" + headerLength;
+    }
+
+    /**
+     * Check if the given char is a whitespace, as the regex '\s' class
+     *
+     * @param c The char
+     * @return True if it is a whitespace
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Skip the whitespaces of a String
+     *
+     * @param text The String
+     * @param pos The position to start from
+     * @return The position of the first char that is not a whitespace
+     */
+    private static int skipWhitespace(String text, int pos) {
+        while (pos < text.length() && isWhitespace(text.charAt(pos)))
+            ++pos;
+        return pos;
+    }
+
+    /**
+     * Skip a word of a String, until the next whitespace
+     *
+     * @param text The String
+     * @param pos The position to start from
+     * @return The position of the first whitespace
+     */
+    private static int skipWord(String text, int pos) {
+        while (pos < text.length() && ! isWhitespace(text.charAt(pos)))
+            ++pos;
+        return pos;
+    }
+
+    /**
+     * Generate a random separator of one to three whitespaces
+     *
+     * @return The separator
+     */
+    private String separator() {
+        StringBuilder separator = new StringBuilder();
+        for (int i = 1 + random.nextInt(3); i > 0; --i)
+            separator.append(SEPARATORS.charAt(random.nextInt(SEPARATORS.length())));
+        return separator.toString();
+    }
+
+    /**
+     * Generate a random decimal number, which may have leading zeros
+     *
+     * @param minDigits The minimum number of digits
+     * @param maxDigits The maximum number of digits
+     * @return The digits
+     */
+    private String digits(int minDigits, int maxDigits) {
+        StringBuilder digits = new StringBuilder();
+        for (int i = minDigits + random.nextInt(maxDigits - minDigits + 1); i > 0; --i)
+            digits.append((char) ('0' + random.nextInt(10)));
+        return digits.toString();
+    }
+
+    /**
+     * Generate a random file identifier
+     *
+     * @return 64 lower case hexadecimal chars
+     */
+    private String randomFileID() {
+        StringBuilder fileID = new StringBuilder();
+        for (int i = 0; i < 64; ++i)
+            fileID.append(Character.forDigit(random.nextInt(16), 16));
+        return fileID.toString();
+    }
+
+    /**
+     * Escape the header of a message to be printed, showing its whitespaces and other special chars
+     *
+     * @param message The message bytes
+     * @return The escaped header
+     */
+    private static String escape(byte[] message) {
+        StringBuilder escaped = new StringBuilder("\"");
+        String text = new String(message, StandardCharsets.ISO_8859_1);
+        int headerEnd = text.indexOf("\r\n\r\n");
+        int end = (headerEnd < 0) ? text.length() : headerEnd + 4;
+
+        for (char c : text.substring(0, Math.min(end, 200)).toCharArray()) {
+            if (c == '\r')
+                escaped.append("\\r");
+            else if (c == '\n')
+                escaped.append("\\n");
+            else if (c == '\t')
+                escaped.append("\\t");
+            else if (c < 32 || c > 126)
+                escaped.append(String.format("\\x%02x", (int) c));
+            else
+                escaped.append(c);
+        }
+        return escaped.append('"').toString();
+    }
+}
@@ -0,0 +1,199 @@
+package Benchmark;
+
+import Action.TriggerRestoreAction;
+import Channel.LoopbackNetwork;
+import Main.Peer;
+import Utils.FileManager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Simulation of many Peers running in the same process, over a LoopbackNetwork.
+ * A file is backed up by the first peer, restored by it, and then a second peer reclaims all its disk space.
+ * The duration of each phase, and the packets it took, are reported.
+ *
+ * The peers keep their files in the working directory, as they normally do, so the simulation must run from an
+ * empty scratch directory.
+ *
+ * Usage: java Benchmark/PeerSimulation [numPeers] [fileKBytes] [repDegree] [latencyMillis] [jitterMillis] [lossRate] [protocolVersion]
+ */
+public class PeerSimulation {
+
+    /**
+     * Seed used to generate the file backed up
+     */
+    private static final long SEED = 42;
+
+    /**
+     * Maximum time each phase may take, in seconds
+     */
+    private static final long PHASE_TIMEOUT_SECONDS = 300;
+
+    /**
+     * Interval between checks for the end of a phase, in milliseconds
+     */
+    private static final long POLL_MILLIS = 10;
+
+    /**
+     * The simulated network
+     */
+    private LoopbackNetwork network;
+
+    /**
+     * Packets sent when the current phase started
+     */
+    private long phaseStartPackets;
+
+    /**
+     * Packets delivered when the current phase started
+     */
+    private long phaseStartDelivered;
+
+    /**
+     * Packets sent, by message type, when the current phase started
+     */
+    private Map<String, Long> phaseStartByType;
+
+    /**
+     * Time when the current phase started, as given by System.nanoTime
+     */
+    private long phaseStartTime;
+
+    public static void main(String[] args) throws Exception {
+        int numPeers = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+        int fileKBytes = (args.length > 1) ? Integer.parseInt(args[1]) : 1024;
+        int repDegree = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+        double latencyMillis = (args.length > 3) ? Double.parseDouble(args[3]) : 1;
+        double jitterMillis = (args.length > 4) ? Double.parseDouble(args[4]) : 0;
+        double lossRate = (args.length > 5) ? Double.parseDouble(args[5]) : 0;
+        float protocolVersion = (args.length > 6) ? Float.parseFloat(args[6]) : 1.0f;
+
+        new PeerSimulation(new LoopbackNetwork(latencyMillis, jitterMillis, lossRate))
+                .simulate(numPeers, fileKBytes, repDegree, protocolVersion);
+        System.exit(0);
+    }
+
+    /**
+     * Peer Simulation constructor
+     *
+     * @param network The simulated network
+     */
+    private PeerSimulation(LoopbackNetwork network) {
+        this.network = network;
+    }
+
+    /**
+     * Run the simulation
+     *
+     * @param numPeers The number of peers
+     * @param fileKBytes The size of the file backed up, in KBytes
+     * @param repDegree The desired replication degree of the file
+     * @param protocolVersion The protocol version used by the peers
+     * @throws Exception If the simulation failed
+     */
+    private void simulate(int numPeers, int fileKBytes, int repDegree, float protocolVersion) throws Exception {
+        System.out.println("Starting " + numPeers + " peers");
+        Peer[] peers = new Peer[numPeers];
+        for (int i = 0; i < numPeers; ++i)
+            peers[i] = new Peer(protocolVersion, i + 1, "224.0.0.1:8001", "224.0.0.2:8002", "224.0.0.3:8003", network);
+
+        byte[] content = new byte[fileKBytes * 1024];
+        new Random(SEED).nextBytes(content);
+        Path file = Paths.get("simulation.bin").toAbsolutePath();
+        Files.write(file, content);
+
+        Peer initiator = peers[0];
+        String fileID = FileManager.genFileID(file.toString());
+        int numChunks = content.length / FileManager.CHUNKS_SIZE + 1;
+
+        startPhase();
+        initiator.backupAction(new ArrayList<>(Arrays.asList(file.toString(), Integer.toString(repDegree))));
+        if (! initiator.getBackedUpFiles().awaitReplicated(fileID, PHASE_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            throw new IllegalStateException("Phase did not finish in " + PHASE_TIMEOUT_SECONDS + " seconds");
+        endPhase("Backup", numChunks);
+
+        File restoredFile = new File(FileManager.getFileDirectory(initiator.getPeerID(), TriggerRestoreAction.RESTORE_DIRECTORY), file.getFileName().toString());
+        startPhase();
+        initiator.restoreAction(new ArrayList<>(Arrays.asList(file.toString())));
+        waitFor(() -> restoredFile.length() == content.length && Arrays.equals(readAll(restoredFile), content));
+        endPhase("Restore", numChunks);
+
+        if (numPeers > 1) {
+            Peer reclaimer = peers[1];
+            startPhase();
+            reclaimer.reclaimAction(new ArrayList<>(Arrays.asList("0")));
+            waitFor(() -> reclaimer.chunksRecord.getUsedDiskSpace() == 0);
+            endPhase("Reclaim", numChunks);
+        }
+    }
+
+    /**
+     * Read the content of a file
+     *
+     * @param file The file
+     * @return The content, or an empty array if the file could not be read
+     */
+    private static byte[] readAll(File file) {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (java.io.IOException e) {
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Wait until the given condition holds
+     *
+     * @param condition The condition
+     * @throws Exception If the condition did not hold before the phase timeout
+     */
+    private static void waitFor(BooleanSupplier condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(PHASE_TIMEOUT_SECONDS);
+
+        while (! condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline)
+                throw new IllegalStateException("Phase did not finish in " + PHASE_TIMEOUT_SECONDS + " seconds");
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    /**
+     * Start measuring a phase
+     */
+    private void startPhase() {
+        phaseStartPackets = network.getPacketsSent();
+        phaseStartDelivered = network.getPacketsDelivered();
+        phaseStartByType = network.getPacketsSentByType();
+        phaseStartTime = System.nanoTime();
+    }
+
+    /**
+     * Report the duration and the packets of the phase being measured
+     *
+     * @param name The phase name
+     * @param numChunks The number of chunks of the file
+     */
+    private void endPhase(String name, int numChunks) {
+        double seconds = (System.nanoTime() - phaseStartTime) / 1e9;
+        long packets = network.getPacketsSent() - phaseStartPackets;
+        long delivered = network.getPacketsDelivered() - phaseStartDelivered;
+
+        System.out.printf("%-8s %8.3f s  %8d packets sent  %10d delivered  %6.1f sent/chunk%n",
+                name, seconds, packets, delivered, (double) packets / numChunks);
+
+        for (Map.Entry<String, Long> entry : network.getPacketsSentByType().entrySet()) {
+            long sent = entry.getValue() - phaseStartByType.getOrDefault(entry.getKey(), 0L);
+            if (sent > 0)
+                System.out.printf("    %-12s %8d%n", entry.getKey(), sent);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package Channel;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class implementing a pool of direct buffers, used for receiving packets without allocating memory for each one
+ */
+public class BufferPool {
+
+    /**
+     * The capacity, in bytes, of each buffer
+     */
+    private final int bufferSize;
+
+    /**
+     * The maximum number of idle buffers kept by the pool
+     */
+    private final int maxIdleBuffers;
+
+    /**
+     * The buffers that are not being used
+     */
+    private ConcurrentLinkedQueue<PooledBuffer> idleBuffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The number of buffers in the idle queue
+     */
+    private AtomicInteger numIdleBuffers = new AtomicInteger();
+
+    /**
+     * Buffer Pool constructor
+     *
+     * @param bufferSize The capacity, in bytes, of each buffer
+     * @param maxIdleBuffers The maximum number of idle buffers kept by the pool
+     */
+    public BufferPool(int bufferSize, int maxIdleBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxIdleBuffers = maxIdleBuffers;
+    }
+
+    /**
+     * Get a cleared buffer from the pool, or a new one if the pool is empty.
+     * The buffer returned has a reference count of one.
+     *
+     * @return The buffer
+     */
+    public PooledBuffer acquire() {
+        PooledBuffer buffer = idleBuffers.poll();
+
+        if (buffer == null)
+            return new PooledBuffer(this, ByteBuffer.allocateDirect(bufferSize));
+
+        numIdleBuffers.decrementAndGet();
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer no longer referenced to the pool.
+     * If the pool is already full the buffer is discarded.
+     *
+     * @param buffer The buffer
+     */
+    void recycle(PooledBuffer buffer) {
+        if (numIdleBuffers.incrementAndGet() > maxIdleBuffers) {
+            numIdleBuffers.decrementAndGet();
+            return;
+        }
+        idleBuffers.offer(buffer);
+    }
+
+    /**
+     * Getter for the number of idle buffers in the pool
+     *
+     * @return The number of idle buffers
+     */
+    public int getNumIdleBuffers() {
+        return numIdleBuffers.get();
+    }
+}
@@ -0,0 +1,401 @@
+package Channel;
+
+import Database.ChunkStore;
+import Utils.Utils;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Class implementing the data plane of a Peer: a TCP server streaming the stored chunks to the peers restoring a file.
+ * A single thread serves every connection, through a selector, and each chunk body is sent straight from the chunk
+ * store to the socket with FileChannel.transferTo, so it is not copied through the Java heap.
+ *
+ * On a connection, the client sends requests, each one made of the file identifier (FILE_ID_LENGTH ASCII bytes),
+ * the number of chunks wanted and the chunk numbers, as 4 byte integers.
+ * For each chunk requested, in the order given, the server replies with the chunk number and the body length, as
+ * 4 byte integers, followed by the body. The length is -1, with no body, if the chunk is not stored.
+ * The reply to a request ends with the chunk number END_OF_REPLY and length 0, after which another request may be sent.
+ */
+public class DataPlaneServer {
+
+    /**
+     * The length of a file identifier
+     */
+    public static final int FILE_ID_LENGTH = 64;
+
+    /**
+     * The chunk number ending the reply to a request
+     */
+    public static final int END_OF_REPLY = -1;
+
+    /**
+     * The body length sent for a chunk that is not stored
+     */
+    public static final int NOT_STORED = -1;
+
+    /**
+     * The size of the header of each chunk sent: chunk number and body length
+     */
+    public static final int CHUNK_HEADER_SIZE = 8;
+
+    /**
+     * The maximum number of chunks in a request
+     */
+    private static final int MAX_CHUNKS_PER_REQUEST = 1000000;
+
+    /**
+     * The size of the socket send buffers, so the kernel keeps streaming while the selector serves other connections
+     */
+    private static final int SEND_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Class holding the state of a client connection
+     */
+    private static class Connection {
+
+        /**
+         * The socket connected to the client
+         */
+        private final SocketChannel socket;
+
+        /**
+         * Buffer the file identifier and the number of chunks of a request are read into
+         */
+        private final ByteBuffer requestHeader = ByteBuffer.allocate(FILE_ID_LENGTH + 4);
+
+        /**
+         * Buffer the chunk numbers of a request are read into, or null while reading the request header
+         */
+        private ByteBuffer requestChunks;
+
+        /**
+         * Buffer with the header of the chunk being sent
+         */
+        private final ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+
+        /**
+         * The identifier of the file requested
+         */
+        private String fileID;
+
+        /**
+         * The chunk being sent
+         */
+        private int chunkNum;
+
+        /**
+         * The number of bytes of the chunk body sent so far
+         */
+        private long bodyOffset;
+
+        /**
+         * The length of the chunk body being sent, or NOT_STORED
+         */
+        private int bodyLength;
+
+        /**
+         * Whether the reply to a request is being sent
+         */
+        private boolean replying = false;
+
+        /**
+         * Whether the end of the reply being sent was reached
+         */
+        private boolean ending = false;
+
+        /**
+         * Connection constructor
+         *
+         * @param socket The socket connected to the client
+         */
+        Connection(SocketChannel socket) {
+            this.socket = socket;
+        }
+    }
+
+    /**
+     * The store the chunks are sent from
+     */
+    private ChunkStore chunkStore;
+
+    /**
+     * The socket accepting the client connections
+     */
+    private ServerSocketChannel serverSocket;
+
+    /**
+     * The IPv4 address the other peers reach the server at
+     */
+    private String hostAddress;
+
+    /**
+     * The selector multiplexing the client connections
+     */
+    private Selector selector;
+
+    /**
+     * The thread serving the connections
+     */
+    private final Thread worker;
+
+    /**
+     * Whether the server was stopped
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * Data Plane Server constructor. Starts listening in an ephemeral port
+     *
+     * @param chunkStore The store the chunks are sent from
+     * @param peerID The identifier of the Peer
+     * @throws IOException If the server socket could not be opened
+     */
+    public DataPlaneServer(ChunkStore chunkStore, int peerID) throws IOException {
+        this.chunkStore = chunkStore;
+        this.hostAddress = localAddress();
+
+        selector = Selector.open();
+        serverSocket = ServerSocketChannel.open();
+        serverSocket.bind(new InetSocketAddress(0));
+        serverSocket.configureBlocking(false);
+        serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+
+        worker = new Thread(this::work, "DataPlane-" + peerID);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Find the IPv4 address of this machine, falling back to the loopback address
+     *
+     * @return The address
+     */
+    private static String localAddress() {
+        try {
+            InetAddress address = InetAddress.getLocalHost();
+            if (address instanceof Inet4Address)
+                return address.getHostAddress();
+        } catch (UnknownHostException e) {
+            Utils.showWarning("Unable to find the IP address of this machine, using the loopback address", DataPlaneServer.class);
+        }
+        return "127.0.0.1";
+    }
+
+    /**
+     * Getter for the IPv4 address the other peers reach the server at
+     *
+     * @return The address
+     */
+    public String getHostAddress() {
+        return hostAddress;
+    }
+
+    /**
+     * Getter for the port the server is listening in
+     *
+     * @return The port
+     */
+    public int getPort() {
+        return serverSocket.socket().getLocalPort();
+    }
+
+    /**
+     * Stop the server, closing every connection
+     */
+    public void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    /**
+     * The worker loop, serving the connections ready
+     */
+    private void work() {
+        while (! stopped) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Utils.showError("Data plane selector failed", this.getClass());
+                break;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                try {
+                    if (key.isAcceptable())
+                        accept();
+                    else if (key.isReadable())
+                        readRequest(key);
+                    else if (key.isWritable())
+                        sendReply(key);
+                } catch (IOException e) {
+                    // The client went away or sent an invalid request
+                    close(key);
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys())
+            close(key);
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Utils.showWarning("Failed to close the data plane selector", this.getClass());
+        }
+    }
+
+    /**
+     * Accept the client connections waiting
+     */
+    private void accept() {
+        while (true) {
+            SocketChannel socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                Utils.showWarning("Failed to accept a data plane connection", this.getClass());
+                return;
+            }
+            if (socket == null)
+                return;
+
+            try {
+                socket.configureBlocking(false);
+                socket.socket().setTcpNoDelay(true);
+                socket.socket().setSendBufferSize(SEND_BUFFER_SIZE);
+                socket.register(selector, SelectionKey.OP_READ, new Connection(socket));
+            } catch (IOException e) {
+                Utils.showWarning("Failed to set up a data plane connection", this.getClass());
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Nothing else to do with the connection
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the request sent by a client, starting the reply once it is complete
+     *
+     * @param key The selection key of the connection
+     * @throws IOException If the request could not be read or is invalid
+     */
+    private void readRequest(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+
+        ByteBuffer buffer = (connection.requestChunks == null) ? connection.requestHeader : connection.requestChunks;
+        if (connection.socket.read(buffer) < 0)
+            throw new IOException("Connection closed by the client");
+        if (buffer.hasRemaining())
+            return;
+
+        if (connection.requestChunks == null) {
+            buffer.flip();
+            byte[] fileID = new byte[FILE_ID_LENGTH];
+            buffer.get(fileID);
+            int numChunks = buffer.getInt();
+            if (numChunks < 0 || numChunks > MAX_CHUNKS_PER_REQUEST)
+                throw new IOException("Invalid number of chunks requested: " + numChunks);
+
+            connection.fileID = new String(fileID, StandardCharsets.US_ASCII);
+            connection.requestChunks = ByteBuffer.allocate(numChunks * 4);
+            if (numChunks > 0)
+                return;
+        }
+
+        connection.requestChunks.flip();
+        connection.replying = true;
+        connection.ending = false;
+        nextChunk(connection);
+        key.interestOps(SelectionKey.OP_WRITE);
+        sendReply(key);
+    }
+
+    /**
+     * Send as much of the reply to a request as the socket takes, going back to reading requests once it is sent
+     *
+     * @param key The selection key of the connection
+     * @throws IOException If the reply could not be sent
+     */
+    private void sendReply(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+
+        while (connection.replying) {
+            if (connection.chunkHeader.hasRemaining()) {
+                connection.socket.write(connection.chunkHeader);
+                if (connection.chunkHeader.hasRemaining())
+                    return;
+            }
+
+            if (connection.bodyOffset < connection.bodyLength) {
+                long sent = chunkStore.transferTo(connection.fileID, connection.chunkNum, connection.bodyOffset, connection.socket);
+                if (sent < 0)
+                    throw new IOException("Chunk deleted while being sent");
+                connection.bodyOffset += sent;
+                if (connection.bodyOffset < connection.bodyLength)
+                    return;
+            }
+
+            nextChunk(connection);
+        }
+
+        connection.requestHeader.clear();
+        connection.requestChunks = null;
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Start sending the next chunk requested, or the end of the reply once all of them were sent
+     *
+     * @param connection The connection
+     */
+    private void nextChunk(Connection connection) {
+        connection.chunkHeader.clear();
+        connection.bodyOffset = 0;
+
+        if (! connection.requestChunks.hasRemaining()) {
+            if (connection.ending) {
+                connection.replying = false;
+                return;
+            }
+            connection.ending = true;
+            connection.chunkNum = END_OF_REPLY;
+            connection.bodyLength = 0;
+            connection.chunkHeader.putInt(END_OF_REPLY).putInt(0).flip();
+            return;
+        }
+
+        connection.chunkNum = connection.requestChunks.getInt();
+        connection.bodyLength = chunkStore.getChunkLength(connection.fileID, connection.chunkNum);
+        connection.chunkHeader.putInt(connection.chunkNum).putInt(connection.bodyLength).flip();
+    }
+
+    /**
+     * Close a connection, or the server socket
+     *
+     * @param key The selection key of the connection
+     */
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            Utils.showWarning("Failed to close a data plane connection", this.getClass());
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package Channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class simulating, inside the process, a network where packets sent to a group reach every transport joined to it.
+ * Used to run many Peers in the same process, each one opening its transports in the same network.
+ * Packets can be delayed by a fixed latency plus a random jitter, and dropped with a given probability.
+ */
+public class LoopbackNetwork implements Transport.Factory {
+
+    /**
+     * Class representing a packet in flight to a transport
+     */
+    static class Packet {
+
+        /**
+         * The packet content, shared by all the transports it is delivered to
+         */
+        final byte[] data;
+
+        /**
+         * The time, as given by System.nanoTime, the packet can be received at
+         */
+        final long deliveryTime;
+
+        /**
+         * Packet constructor
+         *
+         * @param data The packet content
+         * @param deliveryTime The time, as given by System.nanoTime, the packet can be received at
+         */
+        Packet(byte[] data, long deliveryTime) {
+            this.data = data;
+            this.deliveryTime = deliveryTime;
+        }
+    }
+
+    /**
+     * The delay of every packet, in nanoseconds
+     */
+    private final long latencyNanos;
+
+    /**
+     * The maximum random delay added to each packet, in nanoseconds
+     */
+    private final long jitterNanos;
+
+    /**
+     * The probability of a packet not reaching a transport
+     */
+    private final double lossRate;
+
+    /**
+     * The transports joined to each group, by group name
+     */
+    private ConcurrentHashMap<String, CopyOnWriteArrayList<LoopbackTransport>> groups = new ConcurrentHashMap<>();
+
+    /**
+     * The number of packets sent
+     */
+    private LongAdder packetsSent = new LongAdder();
+
+    /**
+     * The number of bytes sent
+     */
+    private LongAdder bytesSent = new LongAdder();
+
+    /**
+     * The number of packets delivered to a transport
+     */
+    private LongAdder packetsDelivered = new LongAdder();
+
+    /**
+     * The number of packets dropped before reaching a transport
+     */
+    private LongAdder packetsDropped = new LongAdder();
+
+    /**
+     * The number of packets sent, by message type
+     */
+    private ConcurrentHashMap<String, LongAdder> packetsSentByType = new ConcurrentHashMap<>();
+
+    /**
+     * Loopback Network constructor, for a network without delays or losses
+     */
+    public LoopbackNetwork() {
+        this(0, 0, 0);
+    }
+
+    /**
+     * Loopback Network constructor
+     *
+     * @param latencyMillis The delay of every packet, in milliseconds
+     * @param jitterMillis The maximum random delay added to each packet, in milliseconds
+     * @param lossRate The probability, from 0 to 1, of a packet not reaching a transport
+     */
+    public LoopbackNetwork(double latencyMillis, double jitterMillis, double lossRate) {
+        this.latencyNanos = (long) (latencyMillis * TimeUnit.MILLISECONDS.toNanos(1));
+        this.jitterNanos = (long) (jitterMillis * TimeUnit.MILLISECONDS.toNanos(1));
+        this.lossRate = lossRate;
+    }
+
+    @Override
+    public Transport open(String channelName) throws IOException {
+        LoopbackTransport transport = new LoopbackTransport(this, channelName);
+        groups.computeIfAbsent(channelName, k -> new CopyOnWriteArrayList<>()).add(transport);
+        return transport;
+    }
+
+    /**
+     * Remove a transport from its group
+     *
+     * @param transport The transport
+     */
+    void leave(LoopbackTransport transport) {
+        CopyOnWriteArrayList<LoopbackTransport> members = groups.get(transport.getChannelName());
+        if (members != null)
+            members.remove(transport);
+    }
+
+    /**
+     * Send a packet to all the transports joined to a group, including the sender, as IP multicast does by default
+     *
+     * @param channelName The group name
+     * @param packet Buffer containing the packet, between its position and limit
+     */
+    void send(String channelName, ByteBuffer packet) {
+        byte[] data = new byte[packet.remaining()];
+        packet.get(data);
+
+        packetsSent.increment();
+        bytesSent.add(data.length);
+        packetsSentByType.computeIfAbsent(messageType(data), k -> new LongAdder()).increment();
+
+        CopyOnWriteArrayList<LoopbackTransport> members = groups.get(channelName);
+        if (members == null)
+            return;
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long deliveryTime = System.nanoTime() + latencyNanos + ((jitterNanos > 0) ? random.nextLong(jitterNanos + 1) : 0);
+        Packet inFlight = new Packet(data, deliveryTime);
+
+        for (LoopbackTransport member : members) {
+            if (lossRate > 0 && random.nextDouble() < lossRate) {
+                packetsDropped.increment();
+                continue;
+            }
+
+            member.deliver(inFlight);
+            packetsDelivered.increment();
+        }
+    }
+
+    /**
+     * Get the type of the message in a packet, which is its first word
+     *
+     * @param data The packet content
+     * @return The message type
+     */
+    private static String messageType(byte[] data) {
+        int start = 0;
+        while (start < data.length && data[start] == ' ')
+            ++start;
+
+        int end = start;
+        while (end < data.length && data[end] >= 'A' && data[end] <= 'Z')
+            ++end;
+
+        return new String(data, start, end - start, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Getter for the number of packets sent
+     *
+     * @return The number of packets
+     */
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    /**
+     * Getter for the number of bytes sent
+     *
+     * @return The number of bytes
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * Getter for the number of packets delivered to a transport. Each packet sent is delivered once per group member.
+     *
+     * @return The number of packets
+     */
+    public long getPacketsDelivered() {
+        return packetsDelivered.sum();
+    }
+
+    /**
+     * Getter for the number of packets dropped before reaching a transport
+     *
+     * @return The number of packets
+     */
+    public long getPacketsDropped() {
+        return packetsDropped.sum();
+    }
+
+    /**
+     * Getter for the number of packets sent, by message type
+     *
+     * @return Map from the message type into the number of packets, sorted by type
+     */
+    public Map<String, Long> getPacketsSentByType() {
+        TreeMap<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : packetsSentByType.entrySet())
+            result.put(entry.getKey(), entry.getValue().sum());
+        return result;
+    }
+}
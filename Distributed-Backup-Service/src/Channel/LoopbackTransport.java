@@ -0,0 +1,125 @@
+package Channel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class implementing a transport joined to a group of a LoopbackNetwork.
+ * Packets are queued in a lock free queue, and received in the order they were sent, each one once its delay expired.
+ * A single thread may be receiving at any time, as a channel does.
+ */
+public class LoopbackTransport implements Transport {
+
+    /**
+     * The network the transport belongs to
+     */
+    private LoopbackNetwork network;
+
+    /**
+     * The group the transport is joined to
+     */
+    private String channelName;
+
+    /**
+     * The packets delivered but not yet received
+     */
+    private ConcurrentLinkedQueue<LoopbackNetwork.Packet> inbox = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The thread waiting for packets, if any
+     */
+    private volatile Thread receiver;
+
+    /**
+     * Whether the transport was closed
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Loopback Transport constructor
+     *
+     * @param network The network the transport belongs to
+     * @param channelName The group the transport is joined to
+     */
+    LoopbackTransport(LoopbackNetwork network, String channelName) {
+        this.network = network;
+        this.channelName = channelName;
+    }
+
+    /**
+     * Getter for the group the transport is joined to
+     *
+     * @return The group name
+     */
+    String getChannelName() {
+        return channelName;
+    }
+
+    /**
+     * Queue a packet sent to the group, waking up the receiver
+     *
+     * @param packet The packet
+     */
+    void deliver(LoopbackNetwork.Packet packet) {
+        inbox.offer(packet);
+
+        Thread waiting = receiver;
+        if (waiting != null)
+            LockSupport.unpark(waiting);
+    }
+
+    @Override
+    public void send(ByteBuffer packet) throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+
+        network.send(channelName, packet);
+    }
+
+    @Override
+    public void receive(ByteBuffer packet) throws IOException {
+        receiver = Thread.currentThread();
+        try {
+            while (true) {
+                if (closed)
+                    throw new ClosedChannelException();
+                if (Thread.interrupted())
+                    throw new InterruptedIOException();
+
+                LoopbackNetwork.Packet next = inbox.peek();
+                if (next == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                long delay = next.deliveryTime - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(this, delay);
+                    continue;
+                }
+
+                inbox.poll();
+
+                // As with a datagram, the bytes that do not fit in the buffer are discarded
+                packet.put(next.data, 0, Math.min(next.data.length, packet.remaining()));
+                return;
+            }
+        } finally {
+            receiver = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        network.leave(this);
+
+        Thread waiting = receiver;
+        if (waiting != null)
+            LockSupport.unpark(waiting);
+    }
+}
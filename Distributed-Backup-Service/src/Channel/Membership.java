@@ -0,0 +1,343 @@
+package Channel;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class keeping the table of the peers known to be alive in the service, with the free space and load they advertise.
+ * Peers are learned from the messages received from them, and their heartbeats feed a phi accrual failure detector:
+ * the longer a peer is silent, compared to the intervals between its past heartbeats, the higher its suspicion level
+ * phi, and it is taken as failed once phi crosses the threshold.
+ * Peers never heard heartbeating are kept until nothing was heard from them for longer than the expiry time.
+ */
+public class Membership {
+
+    /**
+     * The default time a peer is kept after the last message received from it, in milliseconds
+     */
+    private static final long DEFAULT_EXPIRY = 60000;
+
+    /**
+     * The default suspicion level above which a peer is taken as failed.
+     * A threshold of 8 means a chance of about 1 in 10^8 of the peer being wrongly taken as failed
+     */
+    private static final double DEFAULT_PHI_THRESHOLD = 8;
+
+    /**
+     * The number of intervals between heartbeats kept for each peer
+     */
+    private static final int WINDOW_SIZE = 100;
+
+    /**
+     * The smallest standard deviation assumed for the intervals between heartbeats, in milliseconds,
+     * so a peer with very regular heartbeats is not suspected after a small delay
+     */
+    private static final double MIN_STD_DEVIATION = 100;
+
+    /**
+     * Class keeping what is known about a peer
+     */
+    private class Member {
+
+        /**
+         * The time of the last message received from the peer, as given by System.nanoTime
+         */
+        private volatile long lastSeen;
+
+        /**
+         * The time of the last heartbeat received from the peer, 0 if none was
+         */
+        private long lastHeartbeat;
+
+        /**
+         * The last intervals between heartbeats of the peer, in milliseconds, as a circular buffer
+         */
+        private double[] intervals = new double[WINDOW_SIZE];
+
+        /**
+         * The number of intervals kept
+         */
+        private int numIntervals;
+
+        /**
+         * The position of the next interval to be kept
+         */
+        private int nextInterval;
+
+        /**
+         * The sum of the intervals kept
+         */
+        private double sum;
+
+        /**
+         * The sum of the squares of the intervals kept
+         */
+        private double squaresSum;
+
+        /**
+         * The disk space the peer advertised as free for chunks, in bytes, -1 if unknown
+         */
+        private volatile long freeSpace = -1;
+
+        /**
+         * The load the peer advertised, -1 if unknown
+         */
+        private volatile int load = -1;
+
+        /**
+         * Member constructor
+         *
+         * @param now The time the peer was first heard of
+         */
+        Member(long now) {
+            lastSeen = now;
+        }
+
+        /**
+         * Take note of a heartbeat of the peer
+         *
+         * @param now The time the heartbeat was received
+         * @param freeSpace The free space advertised
+         * @param load The load advertised
+         */
+        synchronized void heartbeat(long now, long freeSpace, int load) {
+            // Before the second heartbeat, the interval the peer is expected to use is assumed
+            addInterval((lastHeartbeat == 0) ? heartbeatInterval : TimeUnit.NANOSECONDS.toMillis(now - lastHeartbeat));
+
+            lastHeartbeat = now;
+            lastSeen = now;
+            this.freeSpace = freeSpace;
+            this.load = load;
+        }
+
+        /**
+         * Keep an interval between heartbeats, dropping the oldest one if the window is full
+         *
+         * @param interval The interval, in milliseconds
+         */
+        private void addInterval(double interval) {
+            if (numIntervals == WINDOW_SIZE) {
+                sum -= intervals[nextInterval];
+                squaresSum -= intervals[nextInterval] * intervals[nextInterval];
+            } else {
+                ++numIntervals;
+            }
+
+            intervals[nextInterval] = interval;
+            sum += interval;
+            squaresSum += interval * interval;
+            nextInterval = (nextInterval + 1) % WINDOW_SIZE;
+        }
+
+        /**
+         * Compute the suspicion level of the peer having failed, assuming the intervals between its heartbeats follow
+         * a normal distribution. Any message received from the peer counts as a heartbeat arrival
+         *
+         * @param now The current time
+         * @return The suspicion level phi, or -1 if no heartbeat of the peer was ever received
+         */
+        synchronized double phi(long now) {
+            if (numIntervals == 0)
+                return -1;
+
+            double mean = sum / numIntervals;
+            double deviation = Math.max(MIN_STD_DEVIATION, Math.sqrt(Math.max(0, squaresSum / numIntervals - mean * mean)));
+            double elapsed = TimeUnit.NANOSECONDS.toMillis(now - lastSeen);
+
+            // Logistic approximation of the normal cumulative distribution, giving -log10 of the chance of
+            // a heartbeat arriving even later than now
+            double y = (elapsed - mean - acceptablePause) / deviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            return (y > 0) ? -Math.log10(e / (1.0 + e)) : -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+
+        /**
+         * Check if the peer is taken as alive
+         *
+         * @param now The current time
+         * @return True if it is alive
+         */
+        boolean isAlive(long now) {
+            double phi = phi(now);
+            return (phi < 0) ? (now - lastSeen <= expiryNanos) : (phi < phiThreshold);
+        }
+    }
+
+    /**
+     * The identifier of this Peer, always a member
+     */
+    private int peerID;
+
+    /**
+     * The time a peer is kept after the last message received from it, in nanoseconds
+     */
+    private long expiryNanos;
+
+    /**
+     * The suspicion level above which a peer is taken as failed
+     */
+    private double phiThreshold;
+
+    /**
+     * The interval between the heartbeats of the peers, in milliseconds
+     */
+    private long heartbeatInterval;
+
+    /**
+     * The time a heartbeat may be late, past the mean interval, before the peer starts being suspected, in milliseconds.
+     * It covers the heartbeats lost in the network
+     */
+    private long acceptablePause;
+
+    /**
+     * The known peers. Key - peer identifier
+     */
+    private ConcurrentHashMap<Integer, Member> members = new ConcurrentHashMap<>();
+
+    /**
+     * Membership constructor. The expiry time is set with the system property backup.membership.expiry, in
+     * milliseconds, and the failure threshold with backup.membership.phi
+     *
+     * @param peerID The identifier of this Peer
+     * @param heartbeatInterval The interval between the heartbeats of the peers, in milliseconds
+     */
+    public Membership(int peerID, long heartbeatInterval) {
+        this.peerID = peerID;
+        this.heartbeatInterval = heartbeatInterval;
+        this.acceptablePause = 2 * heartbeatInterval;
+        this.expiryNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("backup.membership.expiry", DEFAULT_EXPIRY));
+
+        String threshold = System.getProperty("backup.membership.phi");
+        this.phiThreshold = (threshold != null) ? Double.parseDouble(threshold) : DEFAULT_PHI_THRESHOLD;
+    }
+
+    /**
+     * Take note that a message was received from a peer
+     *
+     * @param senderID The identifier of the peer
+     */
+    public void seen(int senderID) {
+        if (senderID == peerID)
+            return;
+
+        long now = System.nanoTime();
+        Member member = members.get(senderID);
+        if (member == null)
+            member = members.putIfAbsent(senderID, new Member(now));
+        if (member != null)
+            member.lastSeen = now;
+    }
+
+    /**
+     * Take note of a heartbeat received from a peer
+     *
+     * @param senderID The identifier of the peer
+     * @param freeSpace The disk space the peer advertised as free for chunks, in bytes
+     * @param load The load the peer advertised
+     */
+    public void heartbeat(int senderID, long freeSpace, int load) {
+        if (senderID == peerID)
+            return;
+
+        long now = System.nanoTime();
+        members.computeIfAbsent(senderID, id -> new Member(now)).heartbeat(now, freeSpace, load);
+    }
+
+    /**
+     * Getter for the peers taken as alive, including this Peer
+     *
+     * @return List containing the peer identifiers
+     */
+    public ArrayList<Integer> getPeers() {
+        return getPeers(0);
+    }
+
+    /**
+     * Getter for the peers taken as alive that may have a given free space, including this Peer.
+     * The peers that never advertised their free space are included
+     *
+     * @param minFreeSpace The free space needed, in bytes
+     * @return List containing the peer identifiers
+     */
+    public ArrayList<Integer> getPeers(long minFreeSpace) {
+        long now = System.nanoTime();
+        ArrayList<Integer> peers = new ArrayList<>();
+        peers.add(peerID);
+
+        for (Map.Entry<Integer, Member> entry : members.entrySet()) {
+            Member member = entry.getValue();
+
+            if (now - member.lastSeen > expiryNanos)
+                members.remove(entry.getKey(), member);
+            else if (member.isAlive(now) && (member.freeSpace < 0 || member.freeSpace >= minFreeSpace))
+                peers.add(entry.getKey());
+        }
+        return peers;
+    }
+
+    /**
+     * Check if a peer is taken as alive
+     *
+     * @param otherID The identifier of the peer
+     * @return True if it is alive
+     */
+    public boolean isAlive(int otherID) {
+        if (otherID == peerID)
+            return true;
+
+        Member member = members.get(otherID);
+        return member != null && member.isAlive(System.nanoTime());
+    }
+
+    /**
+     * Getter for the suspicion level of a peer having failed
+     *
+     * @param otherID The identifier of the peer
+     * @return The suspicion level phi, or -1 if no heartbeat of the peer was ever received
+     */
+    public double getPhi(int otherID) {
+        Member member = members.get(otherID);
+        return (member != null) ? member.phi(System.nanoTime()) : -1;
+    }
+
+    /**
+     * Getter for the disk space a peer advertised as free for chunks
+     *
+     * @param otherID The identifier of the peer
+     * @return The free space, in bytes, or -1 if unknown
+     */
+    public long getFreeSpace(int otherID) {
+        Member member = members.get(otherID);
+        return (member != null) ? member.freeSpace : -1;
+    }
+
+    /**
+     * Getter for the load a peer advertised
+     *
+     * @param otherID The identifier of the peer
+     * @return The number of messages the peer had waiting to be handled, or -1 if unknown
+     */
+    public int getLoad(int otherID) {
+        Member member = members.get(otherID);
+        return (member != null) ? member.load : -1;
+    }
+
+    @Override
+    public String toString() {
+        long now = System.nanoTime();
+        StringBuilder state = new StringBuilder("Membership{");
+
+        for (Map.Entry<Integer, Member> entry : members.entrySet()) {
+            Member member = entry.getValue();
+            state.append(" peer=").append(entry.getKey())
+                    .append(member.isAlive(now) ? " alive" : " failed")
+                    .append(" phi=").append(String.format("%.2f", member.phi(now)))
+                    .append(" freeSpace=").append(member.freeSpace)
+                    .append(" load=").append(member.load)
+                    .append(';');
+        }
+        return state.append('}').append('\n').toString();
+    }
+}
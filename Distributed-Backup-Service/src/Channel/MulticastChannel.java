@@ -2,14 +2,13 @@ package Channel;
 
 import Action.ActionHasReply;
 import Main.Peer;
+import Messages.Message;
 import Messages.MessageDispatcher;
+import Utils.Logger;
 import Utils.Utils;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.nio.ByteBuffer;
 
 /**
  * Generic class representing a multicast network address, used for communication between peers
@@ -22,29 +21,29 @@ public abstract class MulticastChannel implements Runnable{
     private static final int CHUNK_MAXIMUM_SIZE = 65535;
 
     /**
-     * ArrayList containing the subscribed Actions to the channel
+     * The maximum number of idle receive buffers kept by each channel
      */
-    private CopyOnWriteArrayList<ActionHasReply> subscribedActions = new CopyOnWriteArrayList<>();
+    private static final int MAX_IDLE_BUFFERS = 64;
 
     /**
-     * The associated Peer to this multicast channel
+     * Routing table of the Actions subscribed to the channel
      */
-    private Peer peer;
+    private ResponseRouter responseRouter = new ResponseRouter();
 
     /**
-     * Inet Address used in the communication
+     * The associated Peer to this multicast channel
      */
-    private InetAddress inetAddr;
+    private Peer peer;
 
     /**
-     * Port used in the communication
+     * The transport carrying the packets of the channel
      */
-    private int port;
+    private Transport transport;
 
     /**
-     * The multicast socket used
+     * Pool of direct buffers the packets are received into
      */
-    private MulticastSocket socket;
+    private BufferPool bufferPool = new BufferPool(CHUNK_MAXIMUM_SIZE, MAX_IDLE_BUFFERS);
 
     /**
      * Multicast Network unique Constructor.
@@ -55,62 +54,36 @@ public abstract class MulticastChannel implements Runnable{
     public MulticastChannel(String channelName, Main.Peer peer) {
         this.peer= peer;
 
-        String addr = extractAddr(channelName);
-        int port = extractPort(channelName);
-
         try {
-            inetAddr = InetAddress.getByName(addr);
-            this.port = port;
-        } catch (java.net.UnknownHostException e) {
-            Utils.showError("Unable to recognize host given to initialize network", this.getClass());
+            transport = peer.getTransportFactory().open(channelName);
         }
-
-        try {
-            socket = new MulticastSocket(port);
-
-            //Joint the Multicast group
-            socket.joinGroup(inetAddr);
-        }
-        catch (java.io.IOException e) {
+        catch (java.io.IOException | RuntimeException e) {
             Utils.showError("Failed to join multicast channel", this.getClass());
         }
     }
 
-    /**
-     * Extract the address for a channel, from a given String
-     *
-     * @param channelName The String to be parsed
-     * @return The resultant adress
-     */
-    private String extractAddr(String channelName) {
-        String[] nameParts = channelName.split(":");
-        return nameParts[0];
-    }
-
-    /**
-     * Extract the port for a channel, from a given String
-     *
-     * @param channelName The String to be parsed
-     * @return The resultant port
-     */
-    private int extractPort(String channelName) {
-        String[] nameParts = channelName.split(":");
-        return Integer.parseInt(nameParts[1]);
-    }
-
     @Override
     public void run() {
-        byte[] buf = new byte[CHUNK_MAXIMUM_SIZE];
-
-        // Create a new Multicast socket (that will allow other sockets/programs to join it as well.
         try {
             while (true) {
-                DatagramPacket msgPacket = new DatagramPacket(buf, buf.length);
-                socket.receive(msgPacket);
+                PooledBuffer packet = bufferPool.acquire();
+                ByteBuffer buf = packet.getBuffer();
+
+                try {
+                    transport.receive(buf);
+                } catch (IOException ex) {
+                    packet.release();
+                    throw ex;
+                }
+                buf.flip();
+
+                // The message holds the buffer until its dispatcher is done with it
+                Message message = MessageDispatcher.messageInterpreter(packet);
+                if (message == null)
+                    continue;
 
                 peer.getThreadPool().executeThread(
-                        new MessageDispatcher(peer, peer.chunksRecord, peer.getBackedUpFiles(), subscribedActions,
-                                MessageDispatcher.messageInterpreter(buf, msgPacket.getLength()))
+                        new MessageDispatcher(peer, peer.chunksRecord, peer.getBackedUpFiles(), responseRouter, message)
                 );
             }
         } catch (IOException ex) {
@@ -125,13 +98,11 @@ public abstract class MulticastChannel implements Runnable{
      */
     public void sendMessage(byte[] msg) {
         try {
-            // Create a packet that will contain the data
-            // (in the form of bytes) and send it.
-            DatagramPacket msgPacket = new DatagramPacket(msg,
-                    msg.length, inetAddr, port);
-            socket.send(msgPacket);
+            // Send the message, in the form of bytes, to the group
+            transport.send(ByteBuffer.wrap(msg));
 
-            Utils.log("Sent packet with msg: " + new String(msg, 0, 8));
+            if (Logger.PACKET_LOGS)
+                Logger.debug("Sent packet with msg: " + new String(msg, 0, 8));
 
         } catch (IOException  ex) {
             Utils.showError("Failed to send message through multicast channel", this.getClass());
@@ -139,12 +110,20 @@ public abstract class MulticastChannel implements Runnable{
     }
 
     /**
-     * Subscribe an action to this channel, meaning when a message is received the Action will be notified
+     * Close the channel, so it stops receiving messages
+     */
+    public void close() {
+        if (transport != null)
+            transport.close();
+    }
+
+    /**
+     * Subscribe an action to this channel, meaning when a message with its response key is received the Action will be notified
      *
      * @param action action to be subscribed
      */
     public void subscribeAction(ActionHasReply action) {
-        subscribedActions.add(action);
+        responseRouter.subscribe(action);
     }
 
     /**
@@ -153,9 +132,6 @@ public abstract class MulticastChannel implements Runnable{
      * @param action action to unsubscribed
      */
     public void unsubscribeAction(ActionHasReply action) {
-        for (ActionHasReply runningAction : subscribedActions) {
-            if (action.equals(runningAction))
-                subscribedActions.remove(runningAction);
-        }
+        responseRouter.unsubscribe(action);
     }
 }
\ No newline at end of file
@@ -0,0 +1,75 @@
+package Channel;
+
+import Utils.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class representing a reference counted buffer, that goes back to its pool when no longer referenced
+ */
+public class PooledBuffer {
+
+    /**
+     * The pool this buffer belongs to
+     */
+    private BufferPool pool;
+
+    /**
+     * The underlying buffer
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * The number of holders still using the buffer
+     */
+    private AtomicInteger refCount = new AtomicInteger(1);
+
+    /**
+     * Pooled Buffer constructor
+     *
+     * @param pool The pool this buffer belongs to
+     * @param buffer The underlying buffer
+     */
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Prepare the buffer to be used again, after coming out of the pool
+     */
+    void reset() {
+        refCount.set(1);
+        buffer.clear();
+    }
+
+    /**
+     * Getter for the underlying buffer
+     *
+     * @return The buffer
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Indicate a new holder is using the buffer
+     */
+    public void retain() {
+        refCount.incrementAndGet();
+    }
+
+    /**
+     * Indicate an holder is no longer using the buffer.
+     * When no holder is left the buffer goes back to the pool.
+     */
+    public void release() {
+        int count = refCount.decrementAndGet();
+
+        if (count == 0)
+            pool.recycle(this);
+        else if (count < 0)
+            Utils.showWarning("Buffer released more times than retained", this.getClass());
+    }
+}
@@ -0,0 +1,143 @@
+package Channel;
+
+import Action.ActionHasReply;
+import Messages.Message;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class routing the received messages to the subscribed actions waiting for them.
+ * Each action waits for messages of a given type, file and chunk, so the actions are indexed by that key, and a
+ * message only reaches the actions with its key, instead of every action subscribed to the channel.
+ * Actions waiting for every chunk of a file use ANY_CHUNK as chunk number.
+ */
+public class ResponseRouter {
+
+    /**
+     * Chunk number of the actions waiting for messages of every chunk of a file
+     */
+    public static final int ANY_CHUNK = -1;
+
+    /**
+     * Class representing the message type, file and chunk an action waits for
+     */
+    public static final class Key {
+
+        /**
+         * The class of the messages waited for
+         */
+        private final Class<? extends Message> type;
+
+        /**
+         * The identifier of the file
+         */
+        private final String fileID;
+
+        /**
+         * The chunk number, or ANY_CHUNK
+         */
+        private final int chunkNum;
+
+        /**
+         * Key constructor
+         *
+         * @param type The class of the messages waited for
+         * @param fileID The identifier of the file
+         * @param chunkNum The chunk number, or ANY_CHUNK
+         */
+        public Key(Class<? extends Message> type, String fileID, int chunkNum) {
+            this.type = type;
+            this.fileID = fileID;
+            this.chunkNum = chunkNum;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (! (o instanceof Key))
+                return false;
+
+            Key key = (Key) o;
+            return chunkNum == key.chunkNum && type == key.type && fileID.equals(key.fileID);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, fileID, chunkNum);
+        }
+    }
+
+    /**
+     * The subscribed actions, by the key of the messages they wait for
+     */
+    private ConcurrentHashMap<Key, Set<ActionHasReply>> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Subscribe an action, so it is notified of the messages with its key
+     *
+     * @param action The action to be subscribed
+     */
+    public void subscribe(ActionHasReply action) {
+        routes.compute(action.getResponseKey(), (key, actions) -> {
+            if (actions == null)
+                actions = ConcurrentHashMap.newKeySet();
+            actions.add(action);
+            return actions;
+        });
+    }
+
+    /**
+     * Unsubscribe an action, so it is no longer notified. The key is dropped once no action waits for it.
+     *
+     * @param action The action to be unsubscribed
+     */
+    public void unsubscribe(ActionHasReply action) {
+        routes.computeIfPresent(action.getResponseKey(), (key, actions) -> {
+            actions.remove(action);
+            return actions.isEmpty() ? null : actions;
+        });
+    }
+
+    /**
+     * Notify the actions waiting for a message: the ones waiting for its chunk and the ones waiting for every chunk of its file
+     *
+     * @param message The received message
+     * @param chunkNum The chunk number of the message, or ANY_CHUNK if it is not about a single chunk
+     */
+    public void route(Message message, int chunkNum) {
+        if (chunkNum != ANY_CHUNK)
+            notify(new Key(message.getClass(), message.getFileID(), chunkNum), message);
+        notify(new Key(message.getClass(), message.getFileID(), ANY_CHUNK), message);
+    }
+
+    /**
+     * Notify the actions subscribed with a given key
+     *
+     * @param key The key
+     * @param message The received message
+     */
+    private void notify(Key key, Message message) {
+        Set<ActionHasReply> actions = routes.get(key);
+        if (actions == null)
+            return;
+
+        // Actions may unsubscribe while being notified, which the set iterator tolerates
+        for (ActionHasReply action : actions)
+            action.parseResponse(message);
+    }
+
+    /**
+     * Getter for the number of actions subscribed
+     *
+     * @return The number of actions
+     */
+    public int getNumSubscribed() {
+        int numSubscribed = 0;
+        for (Set<ActionHasReply> actions : routes.values())
+            numSubscribed += actions.size();
+        return numSubscribed;
+    }
+}
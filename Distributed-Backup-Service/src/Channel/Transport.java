@@ -0,0 +1,46 @@
+package Channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Interface implemented by the transports carrying the packets of a multicast channel
+ */
+public interface Transport {
+
+    /**
+     * Interface implemented by the factories of transports, one of which is used by each Peer
+     */
+    interface Factory {
+
+        /**
+         * Open a transport joined to the given group
+         *
+         * @param channelName The group address and port, in format address:port
+         * @return The transport
+         * @throws IOException If the transport could not be opened
+         */
+        Transport open(String channelName) throws IOException;
+    }
+
+    /**
+     * Send a packet to the group
+     *
+     * @param packet Buffer containing the packet, between its position and limit
+     * @throws IOException If the packet could not be sent
+     */
+    void send(ByteBuffer packet) throws IOException;
+
+    /**
+     * Receive a packet from the group, blocking until one arrives
+     *
+     * @param packet Buffer the packet is written to, from its position on
+     * @throws IOException If the transport failed or was closed
+     */
+    void receive(ByteBuffer packet) throws IOException;
+
+    /**
+     * Close the transport, leaving the group
+     */
+    void close();
+}
@@ -0,0 +1,117 @@
+package Channel;
+
+import Utils.Utils;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+
+/**
+ * Class implementing the transport of packets through an IP multicast group
+ */
+public class UdpMulticastTransport implements Transport {
+
+    /**
+     * The group address and port the messages are sent to
+     */
+    private InetSocketAddress groupAddr;
+
+    /**
+     * The datagram channel used, joined to the multicast group
+     */
+    private DatagramChannel channel;
+
+    /**
+     * UDP Multicast Transport constructor. Joins the given multicast group.
+     *
+     * @param channelName The group address and port, in format address:port
+     * @throws IOException If the group could not be joined
+     */
+    public UdpMulticastTransport(String channelName) throws IOException {
+        String[] nameParts = channelName.split(":");
+        InetAddress inetAddr = InetAddress.getByName(nameParts[0]);
+        int port = Integer.parseInt(nameParts[1]);
+
+        try {
+            groupAddr = new InetSocketAddress(inetAddr, port);
+            NetworkInterface netInterface = getMulticastInterface();
+
+            channel = DatagramChannel.open(StandardProtocolFamily.INET)
+                    .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                    .bind(new InetSocketAddress(port));
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, netInterface);
+
+            //Joint the Multicast group
+            channel.join(inetAddr, netInterface);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Invalid multicast group " + channelName, e);
+        }
+    }
+
+    /**
+     * Find the network interface used to join the multicast group.
+     * The first active, multicast capable, interface with an IPv4 address is chosen, preferring non loopback ones.
+     *
+     * @return The network interface
+     * @throws IOException If no network interface is available
+     */
+    private static NetworkInterface getMulticastInterface() throws IOException {
+        NetworkInterface fallback = null;
+
+        for (NetworkInterface netInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (! netInterface.isUp() || ! hasIPv4Address(netInterface))
+                continue;
+
+            if (netInterface.supportsMulticast() && ! netInterface.isLoopback())
+                return netInterface;
+
+            if (fallback == null || netInterface.supportsMulticast())
+                fallback = netInterface;
+        }
+
+        if (fallback == null)
+            throw new IOException("No network interface available");
+        return fallback;
+    }
+
+    /**
+     * Check if the given network interface has an IPv4 address
+     *
+     * @param netInterface The network interface
+     * @return True if it has an IPv4 address
+     */
+    private static boolean hasIPv4Address(NetworkInterface netInterface) {
+        for (InetAddress addr : Collections.list(netInterface.getInetAddresses())) {
+            if (addr instanceof Inet4Address)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void send(ByteBuffer packet) throws IOException {
+        channel.send(packet, groupAddr);
+    }
+
+    @Override
+    public void receive(ByteBuffer packet) throws IOException {
+        channel.receive(packet);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Utils.showError("Failed to leave multicast group", this.getClass());
+        }
+    }
+}
@@ -2,21 +2,63 @@ package Database;
 
 import Utils.Utils;
 
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Class representing all the files that were backed up from this Peer
  */
-public class BackedUpFiles implements Serializable {
+public class BackedUpFiles implements Serializable, Journal.Replayer {
+
+    /**
+     * Version of the serialized form, to be changed along with it
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Journal record indicating a file was backed up
+     */
+    private static final byte BACKED_FILE_RECORD = 1;
+
+    /**
+     * Journal record indicating a chunk was stored by a peer
+     */
+    private static final byte BACKED_CHUNK_RECORD = 2;
+
+    /**
+     * Journal record indicating a file was removed
+     */
+    private static final byte REMOVE_FILE_RECORD = 3;
 
     /**
      * Class used to save information regarding files that were backed up.
-     * Saves file name as well as records about the perceived replication degree of each file's chunk in the disk
+     * Saves file name as well as records about the perceived replication degree of each file's chunk in the disk.
+     *
+     * The records are dense arrays indexed by chunk number, updated with compare and set, so STORED messages of the same
+     * file are handled concurrently without locks. The peers storing each chunk are kept as a bitset in a single word,
+     * indexed by the order in which the peers were first seen storing a chunk of the file. The few peers past the size of
+     * the word are kept in a map.
      */
     public class FilesInfo implements Serializable {
 
+        /**
+         * Version of the serialized form, to be changed along with it
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The number of peers kept in the bitset of each chunk
+         */
+        private static final int PEERS_PER_WORD = Long.SIZE;
+
         /**
          * The real file name of the file
          */
@@ -33,14 +75,45 @@ public class BackedUpFiles implements Serializable {
         public int numChunks;
 
         /**
-         * HashMap containing the replication degree associated to each file's' chunk. Key - file chunk, Value - replication degree
+         * The replication degree of each chunk
+         */
+        private AtomicIntegerArray chunksRD;
+
+        /**
+         * The peers that replicated each chunk, as a bitset of their indexes
+         */
+        private AtomicLongArray chunksRDPeers;
+
+        /**
+         * The index of each peer seen storing a chunk of the file. Key - peer identifier, Value - index
+         */
+        private ConcurrentHashMap<Integer, Integer> peerIndexes = new ConcurrentHashMap<>();
+
+        /**
+         * The index given to the next peer seen storing a chunk of the file
+         */
+        private AtomicInteger nextPeerIndex = new AtomicInteger();
+
+        /**
+         * The peer identifier of each index in the bitsets
+         */
+        private AtomicIntegerArray indexedPeers = new AtomicIntegerArray(PEERS_PER_WORD);
+
+        /**
+         * The peers past the size of the bitsets that replicated each chunk. Key - file chunk, Value - set of peers
+         */
+        private ConcurrentHashMap<Integer, Set<Integer>> extraChunksRDPeers = new ConcurrentHashMap<>();
+
+        /**
+         * The chunks whose replication degree is still below the desired one, as a bitset
          */
-        public ConcurrentHashMap<Integer, Integer> chunksRD = new ConcurrentHashMap<>();
+        private AtomicLongArray underReplicated;
 
         /**
-         * HashMap containing the list of peers that have replicated each file's' chunk. Key - file chunk, Value - list of files
+         * The number of chunks whose replication degree is still below the desired one.
+         * This FilesInfo is notified once it reaches zero
          */
-        public ConcurrentHashMap<Integer, ArrayList<Integer> > chunksRDPeers = new ConcurrentHashMap<>();
+        private AtomicInteger numUnderReplicated;
 
         /**
          * The FilesInfo constructor.
@@ -48,11 +121,134 @@ public class BackedUpFiles implements Serializable {
          *
          * @param fileName The file's real name
          * @param desiredRD The desired replication degree for each of the chunks
+         * @param numChunks The number of chunks that make this file
          */
         public FilesInfo(String fileName, int desiredRD, int numChunks) {
             this.fileName = fileName;
             this.desiredRD = desiredRD;
             this.numChunks = numChunks;
+
+            chunksRD = new AtomicIntegerArray(numChunks);
+            chunksRDPeers = new AtomicLongArray(numChunks);
+
+            underReplicated = new AtomicLongArray((numChunks + Long.SIZE - 1) / Long.SIZE);
+            numUnderReplicated = new AtomicInteger(desiredRD > 0 ? numChunks : 0);
+            for (int chunkNum = 0; desiredRD > 0 && chunkNum < numChunks; chunkNum += Long.SIZE) {
+                int numBits = Math.min(Long.SIZE, numChunks - chunkNum);
+                underReplicated.set(chunkNum / Long.SIZE, (numBits == Long.SIZE) ? -1L : (1L << numBits) - 1);
+            }
+        }
+
+        /**
+         * Add a peer to the ones that replicated a chunk
+         *
+         * @param chunkNum The chunk number
+         * @param peerID The peer identifier
+         */
+        private void addPeer(int chunkNum, int peerID) {
+            if (chunkNum < 0 || chunkNum >= numChunks)
+                return;
+
+            int index = peerIndexes.computeIfAbsent(peerID, id -> {
+                int newIndex = nextPeerIndex.getAndIncrement();
+                if (newIndex < PEERS_PER_WORD)
+                    indexedPeers.set(newIndex, id);
+                return newIndex;
+            });
+
+            if (index < PEERS_PER_WORD) {
+                long bit = 1L << index;
+                long peers;
+                do {
+                    peers = chunksRDPeers.get(chunkNum);
+                    if ((peers & bit) != 0)
+                        return;
+                } while (! chunksRDPeers.compareAndSet(chunkNum, peers, peers | bit));
+            }
+            else if (! extraChunksRDPeers.computeIfAbsent(chunkNum, key -> ConcurrentHashMap.newKeySet()).add(peerID))
+                return;
+
+            if (chunksRD.incrementAndGet(chunkNum) >= desiredRD)
+                chunkReplicated(chunkNum);
+        }
+
+        /**
+         * Take note that a chunk reached the desired replication degree, waking the threads waiting for the file once
+         * every chunk did
+         *
+         * @param chunkNum The chunk number
+         */
+        private void chunkReplicated(int chunkNum) {
+            int word = chunkNum / Long.SIZE;
+            long bit = 1L << (chunkNum % Long.SIZE);
+            long chunks;
+            do {
+                chunks = underReplicated.get(word);
+                if ((chunks & bit) == 0)
+                    return;
+            } while (! underReplicated.compareAndSet(word, chunks, chunks & ~bit));
+
+            if (numUnderReplicated.decrementAndGet() == 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Check whether a chunk has a replication degree of at least the desired one
+         *
+         * @param chunkNum The chunk number
+         * @return True if the chunk meets the replication degree condition
+         */
+        private boolean isReplicated(int chunkNum) {
+            if (chunkNum < 0 || chunkNum >= numChunks)
+                return false;
+            return (underReplicated.get(chunkNum / Long.SIZE) & (1L << (chunkNum % Long.SIZE))) == 0;
+        }
+
+        /**
+         * Getter for the chunks whose replication degree is still below the desired one
+         *
+         * @return List containing the chunk numbers
+         */
+        private ArrayList<Integer> getUnderReplicated() {
+            ArrayList<Integer> chunkNums = new ArrayList<>();
+            for (int word = 0; word < underReplicated.length(); ++word) {
+                for (long chunks = underReplicated.get(word); chunks != 0; chunks &= chunks - 1)
+                    chunkNums.add(word * Long.SIZE + Long.numberOfTrailingZeros(chunks));
+            }
+            return chunkNums;
+        }
+
+        /**
+         * Getter for the peers that replicated a chunk
+         *
+         * @param chunkNum The chunk number
+         * @return List containing the peer identifiers, or null if the chunk was not replicated by any peer
+         */
+        private ArrayList<Integer> getPeers(int chunkNum) {
+            if (chunkNum < 0 || chunkNum >= numChunks || chunksRD.get(chunkNum) == 0)
+                return null;
+
+            ArrayList<Integer> peers = new ArrayList<>();
+            for (long bits = chunksRDPeers.get(chunkNum); bits != 0; bits &= bits - 1)
+                peers.add(indexedPeers.get(Long.numberOfTrailingZeros(bits)));
+
+            Set<Integer> extraPeers = extraChunksRDPeers.get(chunkNum);
+            if (extraPeers != null)
+                peers.addAll(extraPeers);
+            return peers;
+        }
+
+        @Override
+        public String toString() {
+            return "FilesInfo{" +
+                    "fileName='" + fileName + '\'' +
+                    ", desiredRD=" + desiredRD +
+                    ", numChunks=" + numChunks +
+                    ", underReplicated=" + numUnderReplicated.get() +
+                    '}';
         }
     }
 
@@ -61,6 +257,11 @@ public class BackedUpFiles implements Serializable {
      */
     private ConcurrentHashMap<String, FilesInfo> filesInfo = new ConcurrentHashMap<>();
 
+    /**
+     * The journal where every mutation is recorded, null while the database is being restored
+     */
+    private transient Journal journal;
+
     /**
      * Default BackedUpFiles constructor
      */
@@ -79,32 +280,29 @@ public class BackedUpFiles implements Serializable {
         if (file == null)
             return;
 
-        ConcurrentHashMap<Integer, Integer> chunksRD = file.chunksRD;
-        ConcurrentHashMap<Integer, ArrayList<Integer> > chunksRDPeers = file.chunksRDPeers;
-        ArrayList<Integer> peersList;
-
-        if (chunksRD.containsKey(chunkNum)) {
-
-            peersList = chunksRDPeers.get(chunkNum);
-            if (! peersList.contains(peerID)) {
-                int oldValue = chunksRD.get(chunkNum);
-                chunksRD.replace(chunkNum, oldValue + 1);
-
-                peersList.add(peerID);
-                chunksRDPeers.replace(chunkNum, peersList);
-            }
-        }
-        else {
-            chunksRD.put(chunkNum, 1);
+        applyBackedChunk(file, chunkNum, peerID);
+        log(out -> {
+            out.writeByte(BACKED_CHUNK_RECORD);
+            out.writeUTF(fileID);
+            out.writeInt(chunkNum);
+            out.writeInt(peerID);
+        });
+    }
 
-            peersList = new ArrayList<>();
-            peersList.add(peerID);
-            chunksRDPeers.put(chunkNum, peersList);
-        }
+    /**
+     * Add the information of a chunk backed up by a peer to the records of the given file
+     *
+     * @param file The file information
+     * @param chunkNum The file associated
+     * @param peerID The peer executing the replication
+     */
+    private void applyBackedChunk(FilesInfo file, Integer chunkNum, Integer peerID) {
+        file.addPeer(chunkNum, peerID);
     }
 
     /**
-     * Getter for the chunks who still have not replication degree bigger than the desired, or do not yet exist
+     * Getter for the chunks who still have not replication degree bigger than the desired, or do not yet exist.
+     * Only the chunks missing, and a word per 64 chunks, are visited
      *
      * @param fileID The file identifier
      * @return List containing the number of the chunks that still do not meet the replication degree condition
@@ -117,15 +315,66 @@ public class BackedUpFiles implements Serializable {
             return null;
         }
 
-        ConcurrentHashMap<Integer, Integer> chunksRD = info.chunksRD;
-        ArrayList<Integer> values = new ArrayList<>();
+        return info.getUnderReplicated();
+    }
+
+    /**
+     * Getter for the number of chunks who still have not replication degree bigger than the desired
+     *
+     * @param fileID The file identifier
+     * @return Number of chunks that still do not meet the replication degree condition, or -1 if the file was not backed up
+     */
+    public int getNumUnderReplicated(String fileID) {
+        FilesInfo info = filesInfo.get(fileID);
 
-        for (int i = 0; i < info.numChunks; ++i) {
-            if (chunksRD.get(i) == null || chunksRD.get(i) < info.desiredRD)
-                values.add(i);
+        if (info == null)
+            return -1;
+
+        return info.numUnderReplicated.get();
+    }
+
+    /**
+     * Wait until every chunk of a file has a replication degree of at least the desired one
+     *
+     * @param fileID The file identifier
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout
+     * @return True if every chunk meets the replication degree condition, false if the time ran out or the file is not backed up
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    public boolean awaitReplicated(String fileID, long timeout, TimeUnit unit) throws InterruptedException {
+        FilesInfo info = filesInfo.get(fileID);
+
+        if (info == null)
+            return false;
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (info) {
+            while (info.numUnderReplicated.get() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || filesInfo.get(fileID) != info)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(info, remaining);
+            }
         }
 
-        return values;
+        return filesInfo.get(fileID) == info;
+    }
+
+    /**
+     * Check whether a chunk has a replication degree of at least the desired one
+     *
+     * @param fileID The file identifier
+     * @param chunkNum The chunk number
+     * @return True if the chunk meets the replication degree condition, false otherwise or if the file was not backed up
+     */
+    public boolean hasDesiredRD(String fileID, int chunkNum) {
+        FilesInfo info = filesInfo.get(fileID);
+
+        if (info == null)
+            return false;
+
+        return info.isReplicated(chunkNum);
     }
 
     /**
@@ -143,6 +392,22 @@ public class BackedUpFiles implements Serializable {
         return info.numChunks;
     }
 
+    /**
+     * Getter for the peers that replicated a chunk, as perceived from their STORED messages
+     *
+     * @param fileID The file identifier
+     * @param chunkNum The chunk number
+     * @return List containing the peer identifiers, or null if the chunk was not backed up by any peer
+     */
+    public ArrayList<Integer> getChunkPeers(String fileID, int chunkNum) {
+        FilesInfo info = filesInfo.get(fileID);
+
+        if (info == null)
+            return null;
+
+        return info.getPeers(chunkNum);
+    }
+
     /**
      * Getter for the real file name of  a file identifier
      *
@@ -183,6 +448,13 @@ public class BackedUpFiles implements Serializable {
             return false;
         }
         filesInfo.put(fileID, new FilesInfo(realName, desiredRD, numChunks));
+        log(out -> {
+            out.writeByte(BACKED_FILE_RECORD);
+            out.writeUTF(fileID);
+            out.writeUTF(realName);
+            out.writeInt(desiredRD);
+            out.writeInt(numChunks);
+        });
         return true;
     }
 
@@ -192,7 +464,64 @@ public class BackedUpFiles implements Serializable {
      * @param fileID The file identifier
      */
     public void removeFile(String fileID) {
-        filesInfo.remove(fileID);
+        FilesInfo info = filesInfo.remove(fileID);
+
+        if (info != null) {
+            // The threads waiting for the file to be replicated give up
+            synchronized (info) {
+                info.notifyAll();
+            }
+            log(out -> {
+                out.writeByte(REMOVE_FILE_RECORD);
+                out.writeUTF(fileID);
+            });
+        }
+    }
+
+    /**
+     * Set the journal where every mutation is recorded from now on
+     *
+     * @param journal The journal
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Record a mutation in the journal, if there is one
+     *
+     * @param record The record describing the mutation
+     */
+    private void log(Journal.Record record) {
+        if (journal != null)
+            journal.append(record);
+    }
+
+    @Override
+    public void replay(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String fileID = in.readUTF();
+
+        switch (type) {
+            case BACKED_FILE_RECORD:
+                String realName = in.readUTF();
+                int desiredRD = in.readInt();
+                int numChunks = in.readInt();
+                filesInfo.putIfAbsent(fileID, new FilesInfo(realName, desiredRD, numChunks));
+                break;
+            case BACKED_CHUNK_RECORD:
+                int chunkNum = in.readInt();
+                int peerID = in.readInt();
+                FilesInfo file = filesInfo.get(fileID);
+                if (file != null)
+                    applyBackedChunk(file, chunkNum, peerID);
+                break;
+            case REMOVE_FILE_RECORD:
+                filesInfo.remove(fileID);
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
     }
 
     @Override
@@ -0,0 +1,366 @@
+package Database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class implementing a cache of the chunk bodies read from another chunk store, so chunks requested by many peers at
+ * once, as when a popular file is restored, are read from disk only once.
+ * The cache holds up to a given number of bytes, evicting the least recently used chunks. It is split in shards, each
+ * one with its own lock and its share of the bytes, so concurrent reads of different chunks seldom wait for each other.
+ * Writes and deletes go to the underlying store, dropping the chunk from the cache.
+ * The chunk bodies read are shared with the cache, so they must not be modified.
+ */
+public class CachingChunkStore implements ChunkStore {
+
+    /**
+     * The number of shards. Must be a power of 2
+     */
+    private static final int NUM_SHARDS = 16;
+
+    /**
+     * Class representing the key of a cached chunk
+     */
+    private static final class ChunkKey {
+
+        /**
+         * The file identifier
+         */
+        private final String fileID;
+
+        /**
+         * The chunk number
+         */
+        private final int chunkNum;
+
+        /**
+         * Chunk Key constructor
+         *
+         * @param fileID The file identifier
+         * @param chunkNum The chunk number
+         */
+        ChunkKey(String fileID, int chunkNum) {
+            this.fileID = fileID;
+            this.chunkNum = chunkNum;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (! (o instanceof ChunkKey))
+                return false;
+
+            ChunkKey key = (ChunkKey) o;
+            return chunkNum == key.chunkNum && fileID.equals(key.fileID);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * fileID.hashCode() + chunkNum;
+        }
+    }
+
+    /**
+     * Class representing a shard of the cache
+     */
+    private final class Shard {
+
+        /**
+         * The cached chunks, from the least to the most recently used
+         */
+        private final LinkedHashMap<ChunkKey, byte[]> chunks = new LinkedHashMap<>(16, 0.75f, true);
+
+        /**
+         * The number of bytes cached
+         */
+        private long usedBytes = 0;
+
+        /**
+         * The number of chunks dropped so far, so a chunk read from the store while it was being dropped is not cached
+         */
+        private long invalidations = 0;
+
+        /**
+         * Get a cached chunk, marking it as the most recently used
+         *
+         * @param key The chunk key
+         * @return The chunk body, or null if it is not cached
+         */
+        synchronized byte[] get(ChunkKey key) {
+            return chunks.get(key);
+        }
+
+        /**
+         * Getter for the number of chunks dropped so far
+         *
+         * @return The number of invalidations
+         */
+        synchronized long getInvalidations() {
+            return invalidations;
+        }
+
+        /**
+         * Cache a chunk read from the store, evicting the least recently used chunks until it fits
+         *
+         * @param key The chunk key
+         * @param chunk The chunk body
+         * @param invalidationsBefore The number of chunks dropped before the chunk was read
+         */
+        synchronized void put(ChunkKey key, byte[] chunk, long invalidationsBefore) {
+            if (invalidations != invalidationsBefore || chunk.length > shardCapacity)
+                return;
+
+            byte[] previous = chunks.put(key, chunk);
+            usedBytes += chunk.length - ((previous == null) ? 0 : previous.length);
+
+            Iterator<Map.Entry<ChunkKey, byte[]>> it = chunks.entrySet().iterator();
+            while (usedBytes > shardCapacity && it.hasNext()) {
+                Map.Entry<ChunkKey, byte[]> eldest = it.next();
+                usedBytes -= eldest.getValue().length;
+                it.remove();
+                evictions.increment();
+            }
+        }
+
+        /**
+         * Drop a chunk from the cache
+         *
+         * @param key The chunk key
+         */
+        synchronized void invalidate(ChunkKey key) {
+            ++invalidations;
+
+            byte[] previous = chunks.remove(key);
+            if (previous != null)
+                usedBytes -= previous.length;
+        }
+
+        /**
+         * Drop all the chunks of a file from the cache
+         *
+         * @param fileID The file identifier
+         */
+        synchronized void invalidateFile(String fileID) {
+            ++invalidations;
+
+            Iterator<Map.Entry<ChunkKey, byte[]>> it = chunks.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<ChunkKey, byte[]> entry = it.next();
+                if (entry.getKey().fileID.equals(fileID)) {
+                    usedBytes -= entry.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+
+        /**
+         * Getter for the number of bytes cached
+         *
+         * @return The number of bytes
+         */
+        synchronized long getUsedBytes() {
+            return usedBytes;
+        }
+    }
+
+    /**
+     * The store the chunks are read from
+     */
+    private ChunkStore store;
+
+    /**
+     * The number of bytes each shard may hold
+     */
+    private long shardCapacity;
+
+    /**
+     * The shards of the cache
+     */
+    private Shard[] shards = new Shard[NUM_SHARDS];
+
+    /**
+     * The number of reads of cached chunks
+     */
+    private LongAdder hits = new LongAdder();
+
+    /**
+     * The number of reads of chunks not cached
+     */
+    private LongAdder misses = new LongAdder();
+
+    /**
+     * The number of chunks evicted to make room for others
+     */
+    private LongAdder evictions = new LongAdder();
+
+    /**
+     * Caching Chunk Store constructor
+     *
+     * @param store The store the chunks are read from
+     * @param capacity The maximum number of bytes cached
+     */
+    public CachingChunkStore(ChunkStore store, long capacity) {
+        this.store = store;
+        this.shardCapacity = capacity / NUM_SHARDS;
+
+        for (int i = 0; i < NUM_SHARDS; ++i)
+            shards[i] = new Shard();
+    }
+
+    /**
+     * Get the shard of a chunk
+     *
+     * @param key The chunk key
+     * @return The shard
+     */
+    private Shard shardOf(ChunkKey key) {
+        int hash = key.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (NUM_SHARDS - 1)];
+    }
+
+    @Override
+    public void write(String fileID, int chunkNum, ByteBuffer chunk) throws IOException {
+        ChunkKey key = new ChunkKey(fileID, chunkNum);
+        store.write(fileID, chunkNum, chunk);
+        shardOf(key).invalidate(key);
+    }
+
+    @Override
+    public byte[] read(String fileID, int chunkNum) throws IOException {
+        ChunkKey key = new ChunkKey(fileID, chunkNum);
+        Shard shard = shardOf(key);
+
+        byte[] chunk = shard.get(key);
+        if (chunk != null) {
+            hits.increment();
+            return chunk;
+        }
+
+        misses.increment();
+        long invalidationsBefore = shard.getInvalidations();
+        chunk = store.read(fileID, chunkNum);
+        if (chunk != null)
+            shard.put(key, chunk, invalidationsBefore);
+        return chunk;
+    }
+
+    @Override
+    public int getChunkLength(String fileID, int chunkNum) {
+        ChunkKey key = new ChunkKey(fileID, chunkNum);
+        byte[] chunk = shardOf(key).get(key);
+        return (chunk != null) ? chunk.length : store.getChunkLength(fileID, chunkNum);
+    }
+
+    /**
+     * Write part of the body of a chunk to a channel. Cached chunks are written from memory, while the others are
+     * transferred by the underlying store without being cached, so a bulk transfer does not evict the hot chunks.
+     */
+    @Override
+    public long transferTo(String fileID, int chunkNum, long offset, WritableByteChannel target) throws IOException {
+        ChunkKey key = new ChunkKey(fileID, chunkNum);
+        byte[] chunk = shardOf(key).get(key);
+        if (chunk == null)
+            return store.transferTo(fileID, chunkNum, offset, target);
+
+        hits.increment();
+        return (offset >= chunk.length) ? 0 : target.write(ByteBuffer.wrap(chunk, (int) offset, chunk.length - (int) offset));
+    }
+
+    @Override
+    public boolean delete(String fileID, int chunkNum) throws IOException {
+        ChunkKey key = new ChunkKey(fileID, chunkNum);
+        boolean deleted = store.delete(fileID, chunkNum);
+        shardOf(key).invalidate(key);
+        return deleted;
+    }
+
+    @Override
+    public boolean deleteFile(String fileID) throws IOException {
+        boolean deleted = store.deleteFile(fileID);
+        for (Shard shard : shards)
+            shard.invalidateFile(fileID);
+        return deleted;
+    }
+
+    @Override
+    public ArrayList<String> getFileIDs() {
+        return store.getFileIDs();
+    }
+
+    @Override
+    public ArrayList<Integer> getChunkNums(String fileID) {
+        return store.getChunkNums(fileID);
+    }
+
+    @Override
+    public void sync() {
+        store.sync();
+    }
+
+    @Override
+    public void compact() {
+        store.compact();
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+
+    /**
+     * Getter for the number of reads of cached chunks
+     *
+     * @return The number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Getter for the number of reads of chunks not cached
+     *
+     * @return The number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Getter for the number of chunks evicted to make room for others
+     *
+     * @return The number of evictions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Getter for the number of bytes cached
+     *
+     * @return The number of bytes
+     */
+    public long getUsedBytes() {
+        long usedBytes = 0;
+        for (Shard shard : shards)
+            usedBytes += shard.getUsedBytes();
+        return usedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkCache{" +
+                " usedBytes=" + getUsedBytes() +
+                ", capacity=" + shardCapacity * NUM_SHARDS +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", evictions=" + getEvictions() +
+                '}' + '\n' + store;
+    }
+}
@@ -0,0 +1,558 @@
+package Database;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class implementing a compact index of the chunks stored in this Peer.
+ * Files are keyed by their binary identifier, and the info of their chunks is kept in primitive arrays indexed by
+ * the chunk number, with the peers storing each chunk kept as a bitset, so no object is allocated per chunk.
+ */
+public class ChunkIndex implements Serializable {
+
+    /**
+     * Version of the serialized form, to be changed along with it
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Value of the chunk size marking a chunk that is not stored
+     */
+    private static final int NO_CHUNK = -1;
+
+    /**
+     * Initial number of chunks a file has room for
+     */
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * Class representing a file identifier, as the 32 bytes of the hash it is made of
+     */
+    public static final class FileKey implements Serializable {
+
+        /**
+         * Version of the serialized form, to be changed along with it
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The number of hexadecimal chars in a file identifier
+         */
+        private static final int FILE_ID_LENGTH = 64;
+
+        /**
+         * The number of hexadecimal chars held in each long
+         */
+        private static final int CHARS_PER_LONG = 16;
+
+        /**
+         * The identifier bytes, 8 in each long
+         */
+        private final long word0, word1, word2, word3;
+
+        /**
+         * File Key constructor
+         *
+         * @param words The identifier bytes, 8 in each long
+         */
+        private FileKey(long[] words) {
+            word0 = words[0];
+            word1 = words[1];
+            word2 = words[2];
+            word3 = words[3];
+        }
+
+        /**
+         * Build the key of a file identifier
+         *
+         * @param fileID The file identifier, made of 64 hexadecimal chars
+         * @return The key, or null if the identifier is not valid
+         */
+        public static FileKey of(String fileID) {
+            if (fileID == null || fileID.length() != FILE_ID_LENGTH)
+                return null;
+
+            long[] words = new long[FILE_ID_LENGTH / CHARS_PER_LONG];
+            for (int i = 0; i < FILE_ID_LENGTH; ++i) {
+                int digit = Character.digit(fileID.charAt(i), 16);
+                if (digit < 0)
+                    return null;
+
+                words[i / CHARS_PER_LONG] = (words[i / CHARS_PER_LONG] << 4) | digit;
+            }
+            return new FileKey(words);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (! (o instanceof FileKey))
+                return false;
+
+            FileKey other = (FileKey) o;
+            return word0 == other.word0 && word1 == other.word1 && word2 == other.word2 && word3 == other.word3;
+        }
+
+        @Override
+        public int hashCode() {
+            // The identifier is a hash already, so any of its bytes are evenly spread
+            return (int) (word0 ^ (word0 >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder fileID = new StringBuilder(FILE_ID_LENGTH);
+            for (long word : new long[] { word0, word1, word2, word3 }) {
+                String hex = Long.toHexString(word);
+                for (int i = hex.length(); i < CHARS_PER_LONG; ++i)
+                    fileID.append('0');
+                fileID.append(hex);
+            }
+            return fileID.toString();
+        }
+    }
+
+    /**
+     * Class holding the info of all the chunks stored from a file.
+     * All its methods are synchronized, so the file's lock also guards any sequence of calls made holding it.
+     */
+    public static final class FileChunks implements Serializable {
+
+        /**
+         * Version of the serialized form, to be changed along with it
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The desired replication degree of the file
+         */
+        private int desiredRD;
+
+        /**
+         * The size of each chunk, indexed by the chunk number. NO_CHUNK if the chunk is not stored
+         */
+        private int[] chunkSizes;
+
+        /**
+         * The perceived replication degree of each chunk, indexed by the chunk number
+         */
+        private int[] repDegrees;
+
+        /**
+         * The identifiers of the peers storing chunks of the file. Each one has a bit in the chunks peers bitset
+         */
+        private int[] peerIDs = new int[0];
+
+        /**
+         * The bitset of the peers storing each chunk, made of peerWords longs per chunk
+         */
+        private long[] peers;
+
+        /**
+         * The number of longs in the bitset of each chunk
+         */
+        private int peerWords = 1;
+
+        /**
+         * The number of chunks stored
+         */
+        private int numChunks = 0;
+
+        /**
+         * Whether the file was removed from the index, after which no chunk can be added
+         */
+        private boolean removed = false;
+
+        /**
+         * File Chunks constructor
+         *
+         * @param desiredRD The desired replication degree of the file
+         */
+        FileChunks(int desiredRD) {
+            this.desiredRD = desiredRD;
+            chunkSizes = new int[INITIAL_CAPACITY];
+            Arrays.fill(chunkSizes, NO_CHUNK);
+            repDegrees = new int[INITIAL_CAPACITY];
+            peers = new long[INITIAL_CAPACITY];
+        }
+
+        /**
+         * Getter for the desired replication degree of the file
+         *
+         * @return The desired replication degree
+         */
+        public synchronized int getDesiredRD() {
+            return desiredRD;
+        }
+
+        /**
+         * Setter for the desired replication degree of the file
+         *
+         * @param desiredRD The desired replication degree
+         */
+        public synchronized void setDesiredRD(int desiredRD) {
+            this.desiredRD = desiredRD;
+        }
+
+        /**
+         * Check whether a given chunk is stored
+         *
+         * @param chunkNum The chunk numeration
+         * @return True if it is stored
+         */
+        public synchronized boolean hasChunk(int chunkNum) {
+            return chunkNum >= 0 && chunkNum < chunkSizes.length && chunkSizes[chunkNum] != NO_CHUNK;
+        }
+
+        /**
+         * Add a chunk, with replication degree 0 and no peers storing it
+         *
+         * @param chunkNum The chunk numeration
+         * @param chunkSize The chunk size
+         * @return True if the chunk was added, false if it was already stored or the file was removed
+         */
+        public synchronized boolean addChunk(int chunkNum, int chunkSize) {
+            if (removed || chunkNum < 0 || hasChunk(chunkNum))
+                return false;
+
+            ensureCapacity(chunkNum + 1);
+            chunkSizes[chunkNum] = chunkSize;
+            repDegrees[chunkNum] = 0;
+            Arrays.fill(peers, chunkNum * peerWords, (chunkNum + 1) * peerWords, 0);
+            ++numChunks;
+            return true;
+        }
+
+        /**
+         * Remove a chunk
+         *
+         * @param chunkNum The chunk numeration
+         * @return The size of the chunk removed, or -1 if it was not stored
+         */
+        public synchronized int removeChunk(int chunkNum) {
+            if (! hasChunk(chunkNum))
+                return NO_CHUNK;
+
+            int chunkSize = chunkSizes[chunkNum];
+            chunkSizes[chunkNum] = NO_CHUNK;
+            --numChunks;
+            return chunkSize;
+        }
+
+        /**
+         * Remove all the chunks, and prevent new ones from being added
+         *
+         * @return The sum of the sizes of the chunks removed, or -1 if they already were
+         */
+        synchronized long removeAll() {
+            if (removed)
+                return NO_CHUNK;
+
+            long totalSize = 0;
+            for (int chunkNum = 0; chunkNum < chunkSizes.length; ++chunkNum) {
+                if (chunkSizes[chunkNum] != NO_CHUNK)
+                    totalSize += chunkSizes[chunkNum];
+            }
+
+            Arrays.fill(chunkSizes, NO_CHUNK);
+            numChunks = 0;
+            removed = true;
+            return totalSize;
+        }
+
+        /**
+         * Getter for the size of a given chunk
+         *
+         * @param chunkNum The chunk numeration
+         * @return The chunk size, or -1 if it is not stored
+         */
+        public synchronized int getChunkSize(int chunkNum) {
+            return hasChunk(chunkNum) ? chunkSizes[chunkNum] : NO_CHUNK;
+        }
+
+        /**
+         * Getter for the perceived replication degree of a given chunk
+         *
+         * @param chunkNum The chunk numeration
+         * @return The replication degree, or 0 if it is not stored
+         */
+        public synchronized int getRepDegree(int chunkNum) {
+            return hasChunk(chunkNum) ? repDegrees[chunkNum] : 0;
+        }
+
+        /**
+         * Setter for the perceived replication degree of a stored chunk
+         *
+         * @param chunkNum The chunk numeration
+         * @param repDegree The replication degree
+         */
+        public synchronized void setRepDegree(int chunkNum, int repDegree) {
+            if (hasChunk(chunkNum))
+                repDegrees[chunkNum] = repDegree;
+        }
+
+        /**
+         * Check whether a given peer stores a given chunk
+         *
+         * @param chunkNum The chunk numeration
+         * @param peerID The peer identifier
+         * @return True if the peer stores the chunk
+         */
+        public synchronized boolean hasPeer(int chunkNum, int peerID) {
+            int bit = peerBit(peerID);
+            if (! hasChunk(chunkNum) || bit < 0)
+                return false;
+
+            return (peers[chunkNum * peerWords + bit / Long.SIZE] & (1L << bit)) != 0;
+        }
+
+        /**
+         * Set whether a given peer stores a given chunk
+         *
+         * @param chunkNum The chunk numeration
+         * @param peerID The peer identifier
+         * @param stored True if the peer stores the chunk
+         */
+        public synchronized void setPeer(int chunkNum, int peerID, boolean stored) {
+            if (! hasChunk(chunkNum))
+                return;
+
+            int bit = peerBit(peerID);
+            if (bit < 0) {
+                if (! stored)
+                    return;
+                bit = addPeerBit(peerID);
+            }
+
+            if (stored)
+                peers[chunkNum * peerWords + bit / Long.SIZE] |= (1L << bit);
+            else
+                peers[chunkNum * peerWords + bit / Long.SIZE] &= ~(1L << bit);
+        }
+
+        /**
+         * Getter for the peers storing a given chunk, not including the self
+         *
+         * @param chunkNum The chunk numeration
+         * @return The identifiers of the peers
+         */
+        public synchronized int[] getPeers(int chunkNum) {
+            if (! hasChunk(chunkNum))
+                return new int[0];
+
+            int[] result = new int[peerIDs.length];
+            int numPeers = 0;
+            for (int bit = 0; bit < peerIDs.length; ++bit) {
+                if ((peers[chunkNum * peerWords + bit / Long.SIZE] & (1L << bit)) != 0)
+                    result[numPeers++] = peerIDs[bit];
+            }
+            return Arrays.copyOf(result, numPeers);
+        }
+
+        /**
+         * Getter for the numbers of the chunks stored
+         *
+         * @return List containing the numeration of the chunks, in ascending order
+         */
+        public synchronized ArrayList<Integer> getChunkNums() {
+            ArrayList<Integer> chunkNums = new ArrayList<>(numChunks);
+            for (int chunkNum = 0; chunkNum < chunkSizes.length; ++chunkNum) {
+                if (chunkSizes[chunkNum] != NO_CHUNK)
+                    chunkNums.add(chunkNum);
+            }
+            return chunkNums;
+        }
+
+        /**
+         * Getter for the sum of the sizes of the chunks stored
+         *
+         * @return The total size
+         */
+        public synchronized long getTotalSize() {
+            long totalSize = 0;
+            for (int chunkSize : chunkSizes) {
+                if (chunkSize != NO_CHUNK)
+                    totalSize += chunkSize;
+            }
+            return totalSize;
+        }
+
+        /**
+         * Getter for the number of chunks stored
+         *
+         * @return The number of chunks
+         */
+        public synchronized int getNumChunks() {
+            return numChunks;
+        }
+
+        /**
+         * Get the bit of a peer in the chunks peers bitset
+         *
+         * @param peerID The peer identifier
+         * @return The bit, or -1 if the peer has none yet
+         */
+        private int peerBit(int peerID) {
+            for (int bit = 0; bit < peerIDs.length; ++bit) {
+                if (peerIDs[bit] == peerID)
+                    return bit;
+            }
+            return -1;
+        }
+
+        /**
+         * Give a peer a bit in the chunks peers bitset, widening the bitset of every chunk if needed
+         *
+         * @param peerID The peer identifier
+         * @return The bit
+         */
+        private int addPeerBit(int peerID) {
+            int bit = peerIDs.length;
+            peerIDs = Arrays.copyOf(peerIDs, bit + 1);
+            peerIDs[bit] = peerID;
+
+            if (bit / Long.SIZE >= peerWords) {
+                int newPeerWords = peerWords + 1;
+                long[] newPeers = new long[chunkSizes.length * newPeerWords];
+                for (int chunkNum = 0; chunkNum < chunkSizes.length; ++chunkNum)
+                    System.arraycopy(peers, chunkNum * peerWords, newPeers, chunkNum * newPeerWords, peerWords);
+
+                peers = newPeers;
+                peerWords = newPeerWords;
+            }
+            return bit;
+        }
+
+        /**
+         * Grow the arrays, so they have room for the given number of chunks
+         *
+         * @param capacity The number of chunks
+         */
+        private void ensureCapacity(int capacity) {
+            if (capacity <= chunkSizes.length)
+                return;
+
+            int newCapacity = Math.max(capacity, chunkSizes.length * 2);
+            int oldCapacity = chunkSizes.length;
+
+            chunkSizes = Arrays.copyOf(chunkSizes, newCapacity);
+            Arrays.fill(chunkSizes, oldCapacity, newCapacity, NO_CHUNK);
+            repDegrees = Arrays.copyOf(repDegrees, newCapacity);
+            peers = Arrays.copyOf(peers, newCapacity * peerWords);
+        }
+
+        /**
+         * Serialize the file chunks, without letting them change meanwhile
+         *
+         * @param out The stream the file chunks are written to
+         * @throws IOException If the file chunks could not be written
+         */
+        private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder result = new StringBuilder("{");
+            for (int chunkNum = 0; chunkNum < chunkSizes.length; ++chunkNum) {
+                if (chunkSizes[chunkNum] == NO_CHUNK)
+                    continue;
+
+                if (result.length() > 1)
+                    result.append(", ");
+                result.append(chunkNum)
+                        .append("={size=").append(chunkSizes[chunkNum])
+                        .append(", repDegree=").append(repDegrees[chunkNum])
+                        .append(", peers=").append(Arrays.toString(getPeers(chunkNum)))
+                        .append('}');
+            }
+            return result.append('}').toString();
+        }
+    }
+
+    /**
+     * The chunks stored from each file
+     */
+    private ConcurrentHashMap<FileKey, FileChunks> files = new ConcurrentHashMap<>();
+
+    /**
+     * Getter for the chunks stored from a given file
+     *
+     * @param fileID The file identifier
+     * @return The file chunks, or null if no chunk of the file is indexed
+     */
+    public FileChunks getFile(String fileID) {
+        FileKey key = FileKey.of(fileID);
+        return (key == null) ? null : files.get(key);
+    }
+
+    /**
+     * Getter for the chunks stored from a given file, adding the file to the index if it was not there yet
+     *
+     * @param fileID The file identifier
+     * @param desiredRD The desired replication degree, used if the file is added
+     * @return The file chunks, or null if the file identifier is not valid
+     */
+    public FileChunks getOrAddFile(String fileID, int desiredRD) {
+        FileKey key = FileKey.of(fileID);
+        return (key == null) ? null : files.computeIfAbsent(key, k -> new FileChunks(desiredRD));
+    }
+
+    /**
+     * Remove a file, and all its chunks, from the index.
+     * Chunks being added concurrently through a reference to the removed file are refused.
+     *
+     * @param fileID The file identifier
+     * @return The sum of the sizes of the chunks removed, or -1 if the file was not indexed
+     */
+    public long removeFile(String fileID) {
+        FileKey key = FileKey.of(fileID);
+        FileChunks removedFile = (key == null) ? null : files.remove(key);
+
+        return (removedFile == null) ? NO_CHUNK : removedFile.removeAll();
+    }
+
+    /**
+     * Remove a file from the index, if it is still indexed with the given chunks.
+     * Its chunks must have been removed already.
+     *
+     * @param fileID The file identifier
+     * @param removedFile The chunks of the file, as indexed
+     */
+    public void removeFile(String fileID, FileChunks removedFile) {
+        FileKey key = FileKey.of(fileID);
+        if (key != null)
+            files.remove(key, removedFile);
+    }
+
+    /**
+     * Getter for the sum of the sizes of all the chunks indexed
+     *
+     * @return The total size
+     */
+    public long getTotalSize() {
+        long totalSize = 0;
+        for (FileChunks file : files.values())
+            totalSize += file.getTotalSize();
+        return totalSize;
+    }
+
+    /**
+     * Getter for the number of files indexed
+     *
+     * @return The number of files
+     */
+    public int getNumFiles() {
+        return files.size();
+    }
+
+    @Override
+    public String toString() {
+        return files.toString();
+    }
+}
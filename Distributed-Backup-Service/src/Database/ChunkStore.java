@@ -0,0 +1,104 @@
+package Database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+
+/**
+ * Interface implemented by the stores of the chunk bodies kept by a Peer for other peers.
+ * Which chunks a peer is responsible for is recorded by the ChunksRecorder; the store only keeps their content.
+ */
+public interface ChunkStore {
+
+    /**
+     * Store the body of a chunk, replacing it if it was already stored
+     *
+     * @param fileID The file identifier
+     * @param chunkNum The chunk number
+     * @param chunk Buffer containing the chunk body, between its position and limit. Its position is not changed
+     * @throws IOException If the chunk could not be stored
+     */
+    void write(String fileID, int chunkNum, ByteBuffer chunk) throws IOException;
+
+    /**
+     * Read the body of a chunk
+     *
+     * @param fileID The file identifier
+     * @param chunkNum The chunk number
+     * @return The chunk body, or null if the chunk is not stored
+     * @throws IOException If the chunk could not be read
+     */
+    byte[] read(String fileID, int chunkNum) throws IOException;
+
+    /**
+     * Getter for the length of the body of a chunk
+     *
+     * @param fileID The file identifier
+     * @param chunkNum The chunk number
+     * @return The chunk body length, or -1 if the chunk is not stored
+     */
+    int getChunkLength(String fileID, int chunkNum);
+
+    /**
+     * Write part of the body of a chunk to a channel, without copying it through the Java heap where the store allows it.
+     * Less bytes than remaining may be written, if the channel is non-blocking.
+     *
+     * @param fileID The file identifier
+     * @param chunkNum The chunk number
+     * @param offset The offset in the chunk body of the first byte written
+     * @param target The channel written to
+     * @return The number of bytes written, or -1 if the chunk is not stored
+     * @throws IOException If the chunk could not be read or the channel could not be written
+     */
+    long transferTo(String fileID, int chunkNum, long offset, WritableByteChannel target) throws IOException;
+
+    /**
+     * Delete a chunk
+     *
+     * @param fileID The file identifier
+     * @param chunkNum The chunk number
+     * @return True if the chunk was stored
+     * @throws IOException If the chunk could not be deleted
+     */
+    boolean delete(String fileID, int chunkNum) throws IOException;
+
+    /**
+     * Delete all the chunks of a file
+     *
+     * @param fileID The file identifier
+     * @return True if any chunk of the file was stored
+     * @throws IOException If the chunks could not be deleted
+     */
+    boolean deleteFile(String fileID) throws IOException;
+
+    /**
+     * Getter for the identifiers of the files with chunks stored
+     *
+     * @return List containing the file identifiers
+     */
+    ArrayList<String> getFileIDs();
+
+    /**
+     * Getter for the numbers of the chunks stored from a file
+     *
+     * @param fileID The file identifier
+     * @return List containing the chunk numbers, or null if no chunk of the file is stored
+     */
+    ArrayList<Integer> getChunkNums(String fileID);
+
+    /**
+     * Make sure every chunk written so far survives a crash
+     */
+    void sync();
+
+    /**
+     * Reclaim the space of deleted chunks, if the store keeps it. Meant to run in the background
+     */
+    void compact();
+
+    /**
+     * Sync and close the store
+     */
+    void close();
+}
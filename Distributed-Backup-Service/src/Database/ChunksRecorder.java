@@ -1,45 +1,51 @@
 package Database;
 
+import Utils.Utils;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class that holds the records for all the chunks stored in this Peer
  */
-public class ChunksRecorder implements Serializable {
+public class ChunksRecorder implements Serializable, Journal.Replayer {
 
     /**
-     * Class representing all the info stored regarding a chunk
+     * Outcomes of reserving the record of a chunk about to be stored: created by the caller, which then owns it and its
+     * disk space, already recorded, refused as the file's record was removed, or not created for lack of disk space
      */
-    public class ChunkInfo implements Serializable {
+    public enum Reservation { RESERVED, ALREADY_RECORDED, REFUSED, NO_SPACE }
 
-        /**
-         * The initial replication degree
-         */
-        public int repDegree = 0;
+    /**
+     * Version of the serialized form, to be changed along with it
+     */
+    private static final long serialVersionUID = 1L;
 
-        /**
-         * The size of the chunk
-         */
-        public int chunkSize;
+    /**
+     * Journal record holding the whole state of a chunk
+     */
+    private static final byte CHUNK_STATE_RECORD = 1;
 
-        /**
-         * The peers that have this chunk also stored, not including the self
-         */
-        private ArrayList<Integer> peersStored = new ArrayList<>();
+    /**
+     * Journal record indicating a chunk was removed
+     */
+    private static final byte REMOVE_CHUNK_RECORD = 2;
 
-        /**
-         * Chunk Info constructor
-         *
-         * @param chunkSize the chunk's size, in bytes
-         */
-        public ChunkInfo(Integer chunkSize) {
-            this.chunkSize = chunkSize;
-        }
-    }
+    /**
+     * Journal record indicating a file was removed
+     */
+    private static final byte REMOVE_FILE_RECORD = 3;
+
+    /**
+     * Journal record indicating the maximum disk space was updated
+     */
+    private static final byte MAX_SPACE_RECORD = 4;
 
     /**
      * Maximum disk space a peer can have. When there is no limit.
@@ -52,15 +58,16 @@ public class ChunksRecorder implements Serializable {
     private AtomicLong maxDiskSpace = new AtomicLong();
 
     /**
-     * Disk Space being used so far to store all the peers
+     * Disk Space being used so far to store all the peers, including the space reserved for chunks being stored.
+     * It is not saved, as the reservations in flight would be kept forever, and is recomputed from the index instead
      */
-    private AtomicLong usedDiskSpace = new AtomicLong();
+    private transient AtomicLong usedDiskSpace = new AtomicLong();
 
     /**
-     * The hashMap used for keeping information about the chunks that were saved for each file (fileID).
-     * Maps a file identifier into a chunk number, that than is mapped into a perceived replication degree.
+     * The index used for keeping information about the chunks that were saved for each file (fileID),
+     * along with the desired replication degree of each file
      */
-    private ConcurrentHashMap<String, ConcurrentHashMap<Integer, ChunkInfo> > chunksRecord = new ConcurrentHashMap<>();
+    private ChunkIndex chunksRecord = new ChunkIndex();
 
     /**
      * The List used for keeping information about which files were deleted
@@ -68,9 +75,9 @@ public class ChunksRecorder implements Serializable {
     private CopyOnWriteArrayList<String> deletedFiles = new CopyOnWriteArrayList<>();
 
     /**
-     * A hashMap indicating for each file its desired replication degree
+     * The journal where every mutation is recorded, null while the database is being restored
      */
-    private ConcurrentHashMap<String, Integer> filesDesiredRD = new ConcurrentHashMap<>();
+    private transient Journal journal;
 
     /**
      * Default ChunksRecorder Constructor
@@ -80,6 +87,94 @@ public class ChunksRecorder implements Serializable {
         usedDiskSpace.set(0);
     }
 
+    /**
+     * Reserve disk space for a chunk about to be stored, if it fits in the maximum disk space.
+     * The reservation is made with a single atomic update, so concurrent reservations never over-commit the space.
+     *
+     * @param chunkSize The chunk size
+     * @return True if the space was reserved
+     */
+    public boolean reserveSpace(long chunkSize) {
+        while (true) {
+            long used = usedDiskSpace.get();
+            long max = maxDiskSpace.get();
+
+            // No disk space to back up
+            if (max != INFINITE_SPACE && used + chunkSize > max)
+                return false;
+
+            if (usedDiskSpace.compareAndSet(used, used + chunkSize))
+                return true;
+        }
+    }
+
+    /**
+     * Release disk space reserved for a chunk that ended up not being stored
+     *
+     * @param chunkSize The chunk size
+     */
+    public void releaseSpace(long chunkSize) {
+        usedDiskSpace.addAndGet(-chunkSize);
+    }
+
+    /**
+     * Commit a chunk already written to the disk, whose space was reserved, to the database with replication degree 1.
+     * If the chunk was already recorded, its reservation is released.
+     *
+     * @param fileID The file identifier
+     * @param chunkNum The chunk numeration
+     * @param chunkSize The chunk size
+     * @param desiredRD The desired replication degree
+     * @return True if the chunk was recorded, false if it already was
+     */
+    public boolean commitChunkRecord(String fileID, Integer chunkNum, Integer chunkSize, Integer desiredRD) {
+        if (recordChunk(fileID, chunkNum, chunkSize, desiredRD, 1))
+            return true;
+
+        releaseSpace(chunkSize);
+        return false;
+    }
+
+    /**
+     * Store a chunk in the disk and record it in the database with replication degree 1.
+     * The space is reserved before touching the disk, and only given back if the chunk ends up not stored, in which
+     * case its body is not left behind in the store
+     *
+     * @param chunkStore The store where the chunk body is written
+     * @param fileID The file identifier
+     * @param chunkNum The chunk numeration
+     * @param chunkSize The chunk size
+     * @param desiredRD The desired replication degree
+     * @param body The chunk body
+     * @return True if the chunk is stored, by this call or meanwhile by another thread
+     * @throws IOException If the chunk body could not be written or deleted
+     */
+    public boolean storeChunk(ChunkStore chunkStore, String fileID, int chunkNum, int chunkSize, int desiredRD,
+                              ByteBuffer body) throws IOException {
+        if (! reserveSpace(chunkSize)) {
+            Utils.log("Not enough disk space to store chunk " + chunkNum + " of file " + fileID);
+            return false;
+        }
+
+        try {
+            chunkStore.write(fileID, chunkNum, body);
+        } catch (IOException e) {
+            releaseSpace(chunkSize);
+            throw e;
+        }
+
+        if (commitChunkRecord(fileID, chunkNum, chunkSize, desiredRD))
+            return true;
+
+        // Recorded meanwhile by another thread, which wrote the same body
+        if (hasChunk(fileID, chunkNum))
+            return true;
+
+        // The file's record was refused, e.g. removed by a concurrent DELETE, so the body must not be left behind
+        chunkStore.delete(fileID, chunkNum);
+        return false;
+    }
+
     /**
      * Add a chunk record (meaning a chunk was stored) to the database, with replication degree already as 1
      *
@@ -94,36 +189,67 @@ public class ChunksRecorder implements Serializable {
     }
 
     /**
-     * Initialize a chunk record in the database, with replication degree as 0
+     * Initialize a chunk record in the database, with replication degree as 0, reserving its disk space
      *
      * @param fileID The file identifier
      * @param chunkNum The chunk numeration
      * @param chunkSize The chunk size
      * @param desiredRD The desired replication degree
-     * @return True if the file was successfully added
+     * @return True if the chunk is recorded, false if there was no disk space for it
      */
     public boolean initChunkRecord(String fileID, Integer chunkNum, Integer chunkSize, Integer desiredRD) {
-        ConcurrentHashMap<Integer, ChunkInfo> record = chunksRecord.get(fileID);
-        ChunkInfo chunk = new ChunkInfo(chunkSize);
+        Reservation reservation = reserveChunkRecord(fileID, chunkNum, chunkSize, desiredRD);
+        return reservation == Reservation.RESERVED || reservation == Reservation.ALREADY_RECORDED;
+    }
 
-        if (record == null) {
+    /**
+     * Initialize a chunk record in the database, with replication degree as 0, reserving its disk space.
+     * Only the caller that got RESERVED owns the record, and may remove it if the chunk ends up not stored
+     *
+     * @param fileID The file identifier
+     * @param chunkNum The chunk numeration
+     * @param chunkSize The chunk size
+     * @param desiredRD The desired replication degree
+     * @return Whether the record was created by this call, already existed, or could not be created
+     */
+    public Reservation reserveChunkRecord(String fileID, Integer chunkNum, Integer chunkSize, Integer desiredRD) {
+        if (hasChunk(fileID, chunkNum))
+            return Reservation.ALREADY_RECORDED;
 
-            // No disk space to back up
-            if (maxDiskSpace.longValue() != INFINITE_SPACE && (usedDiskSpace.get() + chunkSize) > maxDiskSpace.longValue())
-                return false;
+        if (! reserveSpace(chunkSize))
+            return Reservation.NO_SPACE;
 
-            usedDiskSpace.set(usedDiskSpace.longValue() + chunkSize);
+        if (recordChunk(fileID, chunkNum, chunkSize, desiredRD, 0))
+            return Reservation.RESERVED;
 
-            ConcurrentHashMap<Integer, ChunkInfo> newEntry = new ConcurrentHashMap<>();
-            newEntry.put(chunkNum, chunk);
-            chunksRecord.put(fileID, newEntry);
-            filesDesiredRD.put(fileID, desiredRD);
-        }
-        else if (! record.containsKey(chunkNum)) {
-            record.put(chunkNum, chunk);
-            usedDiskSpace.set(usedDiskSpace.longValue() + chunkSize);
-        }
+        // Recorded meanwhile by another thread, which holds its own reservation, or refused
+        releaseSpace(chunkSize);
+        return hasChunk(fileID, chunkNum) ? Reservation.ALREADY_RECORDED : Reservation.REFUSED;
+    }
 
+    /**
+     * Add a new chunk to the database, whose space was already reserved
+     *
+     * @param fileID The file identifier
+     * @param chunkNum The chunk numeration
+     * @param chunkSize The chunk size
+     * @param desiredRD The desired replication degree, used if this is the first chunk of the file
+     * @param repDegree The initial replication degree of the chunk
+     * @return True if the chunk was added, false if it was already recorded
+     */
+    private boolean recordChunk(String fileID, int chunkNum, int chunkSize, int desiredRD, int repDegree) {
+        ChunkIndex.FileChunks record = chunksRecord.getOrAddFile(fileID, desiredRD);
+        if (record == null)
+            return false;
+
+        // Hold the file's lock until the chunk is journaled, so its first record comes before any update
+        synchronized (record) {
+            if (! record.addChunk(chunkNum, chunkSize))
+                return false;
+
+            record.setRepDegree(chunkNum, repDegree);
+            logChunk(fileID, chunkNum, record);
+        }
         return true;
     }
 
@@ -135,12 +261,18 @@ public class ChunksRecorder implements Serializable {
      * @return True if the operation succeeded
      */
     private boolean setExistingChunk(String fileID, Integer chunkNum) {
-        ChunkInfo chunk = chunksRecord.get(fileID).get(chunkNum);
+        ChunkIndex.FileChunks record = chunksRecord.getFile(fileID);
 
-        if (chunk == null)
+        if (record == null)
             return false;
 
-        chunk.repDegree = 1;
+        synchronized (record) {
+            if (! record.hasChunk(chunkNum))
+                return false;
+
+            record.setRepDegree(chunkNum, 1);
+            logChunk(fileID, chunkNum, record);
+        }
         return true;
     }
 
@@ -178,24 +310,30 @@ public class ChunksRecorder implements Serializable {
      * @return True if the replication degree was updated correctly
      */
     private boolean updateChunkRecord(String fileID, Integer chunkNum, Integer senderID, Integer change) {
-        ConcurrentHashMap<Integer, ChunkInfo> record = chunksRecord.get(fileID);
+        ChunkIndex.FileChunks record = chunksRecord.getFile(fileID);
+
+        if (record == null)
+            return false;
+
+        synchronized (record) {
+            if (! record.hasChunk(chunkNum))
+                return false;
 
-        if (record != null && record.containsKey(chunkNum)) {
-            ChunkInfo chunk = record.get(chunkNum);
-            boolean hasPeer = chunk.peersStored.contains(senderID);
+            boolean hasPeer = record.hasPeer(chunkNum, senderID);
 
             if (! hasPeer && (change > 0)) {
-                chunk.repDegree += change;
-                chunk.peersStored.add(senderID);
+                record.setRepDegree(chunkNum, record.getRepDegree(chunkNum) + change);
+                record.setPeer(chunkNum, senderID, true);
+                logChunk(fileID, chunkNum, record);
             }
 
             if (hasPeer && (change < 0)) {
-                chunk.repDegree += change;
-                chunk.peersStored.remove(senderID);
+                record.setRepDegree(chunkNum, record.getRepDegree(chunkNum) + change);
+                record.setPeer(chunkNum, senderID, false);
+                logChunk(fileID, chunkNum, record);
             }
-            return true;
         }
-        return false;
+        return true;
     }
 
     /**
@@ -206,11 +344,13 @@ public class ChunksRecorder implements Serializable {
      * @return True if it is balanced
      */
     public boolean isRDBalanced(String fileID, int chunkNum) {
-        ConcurrentHashMap<Integer, ChunkInfo> record = chunksRecord.get(fileID);
+        ChunkIndex.FileChunks record = chunksRecord.getFile(fileID);
 
-        if (record != null && record.containsKey(chunkNum)) {
-            if (record.get(chunkNum).repDegree < filesDesiredRD.get(fileID))
-                return false;
+        if (record != null) {
+            synchronized (record) {
+                if (record.hasChunk(chunkNum) && record.getRepDegree(chunkNum) < record.getDesiredRD())
+                    return false;
+            }
         }
         return true;
     }
@@ -222,7 +362,9 @@ public class ChunksRecorder implements Serializable {
      * @return The desired replication degree
      */
     public Integer getFileDesiredRD(String fileID) {
-        return filesDesiredRD.get(fileID);
+        ChunkIndex.FileChunks record = chunksRecord.getFile(fileID);
+
+        return (record == null) ? null : record.getDesiredRD();
     }
 
     /**
@@ -233,12 +375,9 @@ public class ChunksRecorder implements Serializable {
      * @return Return the chunk replication degree if it exists, otherwise returns 0
      */
     public Integer getChunkRD(String fileID, int chunkNum) {
-        ConcurrentHashMap<Integer, ChunkInfo> storedChunks= chunksRecord.get(fileID);
-
-        if (storedChunks == null)
-            return 0;
+        ChunkIndex.FileChunks storedChunks = chunksRecord.getFile(fileID);
 
-        return (storedChunks.containsKey(chunkNum) ? storedChunks.get(chunkNum).repDegree : 0);
+        return (storedChunks == null) ? 0 : storedChunks.getRepDegree(chunkNum);
     }
 
     /**
@@ -248,14 +387,12 @@ public class ChunksRecorder implements Serializable {
      * @return List containing the numeration of the chunks stored in the disk
      */
     public ArrayList<Integer> getChunksList(String fileID) {
-        ConcurrentHashMap<Integer, ChunkInfo> storedChunks= chunksRecord.get(fileID);
+        ChunkIndex.FileChunks storedChunks = chunksRecord.getFile(fileID);
 
         if (storedChunks == null)
             return null;
 
-        ArrayList<Integer> results = new ArrayList<>();
-        results.addAll(storedChunks.keySet());
-        return results;
+        return storedChunks.getChunkNums();
     }
 
     /**
@@ -266,9 +403,9 @@ public class ChunksRecorder implements Serializable {
      * @return True if the file is stored, false otherwise
      */
     public boolean hasChunk(String fileID, Integer chunkNum) {
-        ConcurrentHashMap<Integer, ChunkInfo> storedChunks = chunksRecord.get(fileID);
+        ChunkIndex.FileChunks storedChunks = chunksRecord.getFile(fileID);
 
-        return (storedChunks != null && (storedChunks.containsKey(chunkNum)) );
+        return (storedChunks != null && storedChunks.hasChunk(chunkNum));
     }
 
     /**
@@ -277,9 +414,26 @@ public class ChunksRecorder implements Serializable {
      * @param fileID The file identifier
      */
     public void removeFile(String fileID) {
-        if (chunksRecord.containsKey(fileID)) {
-            chunksRecord.remove(fileID);
+        ChunkIndex.FileChunks record = chunksRecord.getFile(fileID);
+
+        if (record == null)
+            return;
+
+        // Hold the file's lock until the removal is journaled, so it comes after the records of every chunk of the file.
+        // The file only leaves the index afterwards, so the chunks added to it meanwhile are refused, and the ones
+        // added to a new record of the file are journaled after the removal
+        synchronized (record) {
+            long freedSpace = record.removeAll();
+            if (freedSpace < 0)
+                return;
+
+            releaseSpace(freedSpace);
             deletedFiles.add(fileID);
+            log(out -> {
+                out.writeByte(REMOVE_FILE_RECORD);
+                out.writeUTF(fileID);
+            });
+            chunksRecord.removeFile(fileID, record);
         }
     }
 
@@ -300,6 +454,10 @@ public class ChunksRecorder implements Serializable {
      */
     public void updateMaxSpace(long maxDiskSpace) {
         this.maxDiskSpace.set(maxDiskSpace);
+        log(out -> {
+            out.writeByte(MAX_SPACE_RECORD);
+            out.writeLong(maxDiskSpace);
+        });
     }
 
     /**
@@ -309,12 +467,23 @@ public class ChunksRecorder implements Serializable {
      * @param chunkNum The chunk numeration
      */
     public void removeChunk(String fileID, Integer chunkNum) {
-        ConcurrentHashMap<Integer, ChunkInfo> storedChunks = chunksRecord.get(fileID);
+        ChunkIndex.FileChunks storedChunks = chunksRecord.getFile(fileID);
 
         if (storedChunks == null)
             return;
 
-        storedChunks.remove(chunkNum);
+        // Hold the file's lock until the removal is journaled, so it is replayed in the same order as the chunk records
+        synchronized (storedChunks) {
+            int chunkSize = storedChunks.removeChunk(chunkNum);
+            if (chunkSize >= 0) {
+                releaseSpace(chunkSize);
+                log(out -> {
+                    out.writeByte(REMOVE_CHUNK_RECORD);
+                    out.writeUTF(fileID);
+                    out.writeInt(chunkNum);
+                });
+            }
+        }
     }
 
     /**
@@ -325,15 +494,11 @@ public class ChunksRecorder implements Serializable {
      * @return The chunk's size
      */
     public long getChunkSize(String fileID, Integer chunkNum) {
-        ConcurrentHashMap<Integer, ChunkInfo> storedChunks = chunksRecord.get(fileID);
+        ChunkIndex.FileChunks storedChunks = chunksRecord.getFile(fileID);
         if (storedChunks == null)
             return -1;
 
-        ChunkInfo info = storedChunks.get(chunkNum);
-        if (info == null)
-            return -1;
-
-        return info.chunkSize;
+        return storedChunks.getChunkSize(chunkNum);
     }
 
     /**
@@ -345,6 +510,150 @@ public class ChunksRecorder implements Serializable {
         return usedDiskSpace.longValue();
     }
 
+    /**
+     * Recompute the used disk space from the chunks in the index. Must be called once the database is restored,
+     * after the journal is replayed over the snapshot, and before any chunk is stored
+     */
+    public void recomputeUsedDiskSpace() {
+        usedDiskSpace.set(chunksRecord.getTotalSize());
+    }
+
+    /**
+     * Getter for the disk space still free for chunks, below the maximum disk space
+     *
+     * @return The free space, or Long.MAX_VALUE if there is no maximum disk space
+     */
+    public long getFreeDiskSpace() {
+        long max = maxDiskSpace.get();
+        return (max == INFINITE_SPACE) ? Long.MAX_VALUE : Math.max(0, max - usedDiskSpace.get());
+    }
+
+    /**
+     * Check if the disk space used, including the reservations, exceeds the maximum disk space, as after a reclaim
+     *
+     * @return True if it exceeds the maximum
+     */
+    public boolean isOverMaxSpace() {
+        long max = maxDiskSpace.get();
+        return max != INFINITE_SPACE && usedDiskSpace.get() > max;
+    }
+
+    /**
+     * Set the journal where every mutation is recorded from now on
+     *
+     * @param journal The journal
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Record a mutation in the journal, if there is one
+     *
+     * @param record The record describing the mutation
+     */
+    private void log(Journal.Record record) {
+        if (journal != null)
+            journal.append(record);
+    }
+
+    /**
+     * Record the whole state of a chunk in the journal. Must be called holding the file's lock,
+     * so the records of a chunk are appended in the same order as its mutations.
+     *
+     * @param fileID The file identifier
+     * @param chunkNum The chunk numeration
+     * @param record The chunks stored from the file
+     */
+    private void logChunk(String fileID, int chunkNum, ChunkIndex.FileChunks record) {
+        int chunkSize = record.getChunkSize(chunkNum);
+        int repDegree = record.getRepDegree(chunkNum);
+        int desiredRD = record.getDesiredRD();
+        int[] peers = record.getPeers(chunkNum);
+
+        log(out -> {
+            out.writeByte(CHUNK_STATE_RECORD);
+            out.writeUTF(fileID);
+            out.writeInt(chunkNum);
+            out.writeInt(chunkSize);
+            out.writeInt(repDegree);
+            out.writeInt(desiredRD);
+            out.writeInt(peers.length);
+            for (int peer : peers)
+                out.writeInt(peer);
+        });
+    }
+
+    @Override
+    public void replay(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+
+        switch (type) {
+            case CHUNK_STATE_RECORD:
+                replayChunkState(in);
+                break;
+            case REMOVE_CHUNK_RECORD:
+                String fileID = in.readUTF();
+                ChunkIndex.FileChunks storedChunks = chunksRecord.getFile(fileID);
+                if (storedChunks != null)
+                    storedChunks.removeChunk(in.readInt());
+                break;
+            case REMOVE_FILE_RECORD:
+                String removedFileID = in.readUTF();
+                if (chunksRecord.removeFile(removedFileID) >= 0)
+                    deletedFiles.addIfAbsent(removedFileID);
+                break;
+            case MAX_SPACE_RECORD:
+                maxDiskSpace.set(in.readLong());
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    /**
+     * Replay a record holding the whole state of a chunk, creating the chunk if needed
+     *
+     * @param in The stream containing the record content
+     * @throws IOException If the record could not be read
+     */
+    private void replayChunkState(DataInputStream in) throws IOException {
+        String fileID = in.readUTF();
+        int chunkNum = in.readInt();
+        int chunkSize = in.readInt();
+        int repDegree = in.readInt();
+        int desiredRD = in.readInt();
+
+        int[] peers = new int[in.readInt()];
+        for (int i = 0; i < peers.length; ++i)
+            peers[i] = in.readInt();
+
+        ChunkIndex.FileChunks record = chunksRecord.getOrAddFile(fileID, desiredRD);
+        if (record == null)
+            return;
+
+        record.setDesiredRD(desiredRD);
+        if (! record.hasChunk(chunkNum))
+            record.addChunk(chunkNum, chunkSize);
+        record.setRepDegree(chunkNum, repDegree);
+        for (int peer : record.getPeers(chunkNum))
+            record.setPeer(chunkNum, peer, false);
+        for (int peer : peers)
+            record.setPeer(chunkNum, peer, true);
+    }
+
+    /**
+     * Restore the recorder from a snapshot. The used disk space starts at 0, until it is recomputed
+     *
+     * @param in The stream the recorder is read from
+     * @throws IOException If the recorder could not be read
+     * @throws ClassNotFoundException If the stream does not contain a valid recorder
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        usedDiskSpace = new AtomicLong();
+    }
+
     @Override
     public String toString() {
         return "ChunksRecorder{" +
@@ -352,7 +661,6 @@ public class ChunksRecorder implements Serializable {
                 ", usedDiskSpace=" + usedDiskSpace +
                 ", chunksRecord=" + chunksRecord +
                 ", deletedFiles=" + deletedFiles +
-                ", filesDesiredRD=" + filesDesiredRD +
                 '}' + '\n';
     }
 }
@@ -0,0 +1,128 @@
+package Database;
+
+import Utils.FileManager;
+import Utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Class implementing a chunk store that keeps each chunk in its own file, at backup-[peerID]/[fileID]/[chunkNum].
+ * Every write goes straight to the file system, so there is nothing to sync or compact.
+ */
+public class FileChunkStore implements ChunkStore {
+
+    /**
+     * The identifier of the Peer whose chunks are stored
+     */
+    private int peerID;
+
+    /**
+     * File Chunk Store constructor
+     *
+     * @param peerID The identifier of the Peer whose chunks are stored
+     */
+    public FileChunkStore(int peerID) {
+        this.peerID = peerID;
+    }
+
+    @Override
+    public void write(String fileID, int chunkNum, ByteBuffer chunk) throws IOException {
+        FileManager.writeChunk(peerID, fileID, chunkNum, chunk);
+    }
+
+    @Override
+    public byte[] read(String fileID, int chunkNum) throws IOException {
+        try {
+            return Files.readAllBytes(FileManager.getChunkFile(peerID, fileID, chunkNum));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int getChunkLength(String fileID, int chunkNum) {
+        File chunkFile = FileManager.getChunkFile(peerID, fileID, chunkNum).toFile();
+        return chunkFile.isFile() ? (int) chunkFile.length() : -1;
+    }
+
+    @Override
+    public long transferTo(String fileID, int chunkNum, long offset, WritableByteChannel target) throws IOException {
+        try (FileChannel chunkFile = FileChannel.open(FileManager.getChunkFile(peerID, fileID, chunkNum), StandardOpenOption.READ)) {
+            long length = chunkFile.size();
+            return (offset >= length) ? 0 : chunkFile.transferTo(offset, length - offset, target);
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean delete(String fileID, int chunkNum) throws IOException {
+        return Files.deleteIfExists(FileManager.getChunkFile(peerID, fileID, chunkNum));
+    }
+
+    @Override
+    public boolean deleteFile(String fileID) throws IOException {
+        File fileDir = new File(FileManager.getFileDirectory(peerID, fileID));
+        if (! fileDir.isDirectory())
+            return false;
+
+        if (! Utils.deleteFolder(fileDir))
+            throw new IOException("Failed to delete " + fileDir);
+        return true;
+    }
+
+    @Override
+    public ArrayList<String> getFileIDs() {
+        ArrayList<String> fileIDs = new ArrayList<>();
+
+        File[] backupFiles = FileManager.getPeerBackups(peerID);
+        if (backupFiles != null) {
+            for (File backupFile : backupFiles) {
+                if (backupFile.isDirectory())
+                    fileIDs.add(backupFile.getName());
+            }
+        }
+        return fileIDs;
+    }
+
+    @Override
+    public ArrayList<Integer> getChunkNums(String fileID) {
+        File[] chunkFiles = new File(FileManager.getFileDirectory(peerID, fileID)).listFiles();
+        if (chunkFiles == null || chunkFiles.length == 0)
+            return null;
+
+        ArrayList<Integer> chunkNums = new ArrayList<>();
+        for (File chunkFile : chunkFiles) {
+            try {
+                chunkNums.add(Integer.parseInt(chunkFile.getName()));
+            } catch (NumberFormatException e) {
+                // Not a chunk file
+            }
+        }
+        return chunkNums;
+    }
+
+    @Override
+    public void sync() {}
+
+    @Override
+    public void compact() {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public String toString() {
+        return "FileChunkStore{" +
+                " directory=" + FileManager.getPeerDirectory(peerID) +
+                '}' + '\n';
+    }
+}
@@ -0,0 +1,280 @@
+package Database;
+
+import Utils.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Class implementing an append only journal of the mutations made to a database.
+ * Each record is saved as its length, its checksum and its content, so a record torn by a crash is detected and discarded.
+ * The database is periodically saved as a snapshot (checkpoint), after which the records it contains are dropped.
+ */
+public class Journal {
+
+    /**
+     * Suffix of the journal segment being replaced by a checkpoint
+     */
+    private static final String OLD_SEGMENT_SUFFIX = ".old";
+
+    /**
+     * Suffix of the snapshot file while it is being written
+     */
+    private static final String TMP_SNAPSHOT_SUFFIX = ".tmp";
+
+    /**
+     * Interface implemented by the records written to the journal
+     */
+    public interface Record {
+
+        /**
+         * Write the record content
+         *
+         * @param out The stream the record is written to
+         * @throws IOException If the record could not be written
+         */
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Interface implemented by the databases, to apply the records read from the journal
+     */
+    public interface Replayer {
+
+        /**
+         * Apply a record to the database, without journaling it again
+         *
+         * @param in The stream containing the record content
+         * @throws IOException If the record could not be read
+         */
+        void replay(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * The file containing the current journal segment
+     */
+    private File file;
+
+    /**
+     * The file containing the segment being replaced by a checkpoint, if any
+     */
+    private File oldFile;
+
+    /**
+     * The stream used to append to the current segment
+     */
+    private FileOutputStream fileOut;
+
+    /**
+     * Buffered stream over the file stream, used to write each record with a single write
+     */
+    private DataOutputStream out;
+
+    /**
+     * Buffer where each record is serialized before being appended
+     */
+    private ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+
+    /**
+     * Stream over the record buffer
+     */
+    private DataOutputStream recordOut = new DataOutputStream(recordBytes);
+
+    /**
+     * Checksum calculator for the records
+     */
+    private CRC32 checksum = new CRC32();
+
+    /**
+     * Journal constructor. Opens the given file for appending.
+     *
+     * @param file The file containing the journal
+     * @throws IOException If the file could not be opened
+     */
+    private Journal(File file) throws IOException {
+        this.file = file;
+        this.oldFile = new File(file.getPath() + OLD_SEGMENT_SUFFIX);
+        openSegment();
+    }
+
+    /**
+     * Open a journal, first replaying all the records it contains into the given database
+     *
+     * @param file The file containing the journal
+     * @param replayer The database the records are applied to
+     * @return The journal, ready to receive new records
+     * @throws IOException If the journal could not be read or opened
+     */
+    public static Journal open(File file, Replayer replayer) throws IOException {
+        File oldFile = new File(file.getPath() + OLD_SEGMENT_SUFFIX);
+
+        // A checkpoint was interrupted: its records come before the ones of the current segment
+        if (oldFile.exists())
+            replay(oldFile, replayer);
+        if (file.exists())
+            replay(file, replayer);
+
+        return new Journal(file);
+    }
+
+    /**
+     * Replay all the valid records of a journal segment. Records after the first torn or corrupted one are discarded.
+     *
+     * @param file The file containing the segment
+     * @param replayer The database the records are applied to
+     * @throws IOException If the segment could not be read
+     */
+    private static void replay(File file, Replayer replayer) throws IOException {
+        long validLength = 0;
+        int numRecords = 0;
+        CRC32 checksum = new CRC32();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    int expectedChecksum = in.readInt();
+                    if (length < 0)
+                        break;
+
+                    record = new byte[length];
+                    in.readFully(record);
+
+                    checksum.reset();
+                    checksum.update(record);
+                    if ((int) checksum.getValue() != expectedChecksum)
+                        break;
+
+                } catch (EOFException e) {
+                    break;
+                }
+
+                replayer.replay(new DataInputStream(new ByteArrayInputStream(record)));
+                validLength += 2 * Integer.BYTES + record.length;
+                ++numRecords;
+            }
+        }
+
+        if (validLength < file.length()) {
+            Utils.showWarning("Discarding torn records at the end of " + file.getName(), Journal.class);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(validLength);
+            }
+        }
+
+        Utils.log("Replayed " + numRecords + " records from " + file.getName());
+    }
+
+    /**
+     * Open the current segment for appending
+     *
+     * @throws IOException If the segment could not be opened
+     */
+    private void openSegment() throws IOException {
+        fileOut = new FileOutputStream(file, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    }
+
+    /**
+     * Append a record to the journal. The record is handed to the operating system before returning,
+     * so it survives a crash of the peer.
+     *
+     * @param record The record to be appended
+     */
+    public synchronized void append(Record record) {
+        try {
+            recordBytes.reset();
+            record.write(recordOut);
+            recordOut.flush();
+
+            checksum.reset();
+            checksum.update(recordBytes.toByteArray(), 0, recordBytes.size());
+
+            out.writeInt(recordBytes.size());
+            out.writeInt((int) checksum.getValue());
+            recordBytes.writeTo(out);
+            out.flush();
+
+        } catch (IOException e) {
+            Utils.showError("Failed to append record to the journal", this.getClass());
+        }
+    }
+
+    /**
+     * Force the records appended so far to be written to the disk
+     */
+    public synchronized void sync() {
+        try {
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            Utils.showError("Failed to sync the journal", this.getClass());
+        }
+    }
+
+    /**
+     * Getter for the size of the current journal segment
+     *
+     * @return The size, in bytes
+     */
+    public synchronized long size() {
+        return file.length();
+    }
+
+    /**
+     * Save a snapshot of the database and drop the records it already contains.
+     * The database keeps being updated while the snapshot is taken: the records appended meanwhile go to a new
+     * segment and are replayed over the snapshot, so they must be idempotent.
+     *
+     * @param database The database to be saved
+     * @param snapshotFile The file the snapshot is saved to
+     * @throws IOException If the checkpoint could not be made
+     */
+    public void checkpoint(Serializable database, File snapshotFile) throws IOException {
+        synchronized (this) {
+            // If a previous checkpoint failed, its segment is still waiting to be dropped along with this one
+            if (! oldFile.exists()) {
+                out.close();
+                Files.move(file.toPath(), oldFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                openSegment();
+            }
+        }
+
+        File tmpFile = new File(snapshotFile.getPath() + TMP_SNAPSHOT_SUFFIX);
+        try (FileOutputStream snapshotOut = new FileOutputStream(tmpFile)) {
+            ObjectOutputStream objectOut = new ObjectOutputStream(new BufferedOutputStream(snapshotOut));
+            objectOut.writeObject(database);
+            objectOut.flush();
+            snapshotOut.getFD().sync();
+        }
+
+        Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(oldFile.toPath());
+    }
+
+    /**
+     * Close the journal
+     */
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            Utils.showError("Failed to close the journal", this.getClass());
+        }
+    }
+}
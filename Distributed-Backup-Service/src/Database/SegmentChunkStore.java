@@ -0,0 +1,874 @@
+package Database;
+
+import Utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Class implementing a log structured chunk store.
+ * Chunks are appended to segment files of bounded size, and located through an in memory index from each chunk into
+ * the segment and offset of its last record. Deleting a chunk appends a tombstone record, so the deletion survives a restart.
+ *
+ * Appends are only synced to disk by sync, so many chunks share each fsync, except when a segment is full and a new one is started.
+ * Segments mostly made of deleted chunks are compacted in the background: their live records are copied to the
+ * segment being written, and the segment file is then deleted.
+ *
+ * Each record holds a sequence number, kept when the record is copied, so the index is rebuilt on start up by keeping
+ * the newest record of each chunk, whatever the segment it is in.
+ */
+public class SegmentChunkStore implements ChunkStore {
+
+    /**
+     * The name of the directory, inside the peer directory, containing the segments
+     */
+    public static final String SEGMENTS_DIRECTORY = "segments";
+
+    /**
+     * Prefix of the segment file names, followed by the segment number
+     */
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    /**
+     * Suffix of the segment file names
+     */
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * Size a segment may reach before a new one is started
+     */
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Segments with less than this fraction of live bytes are compacted
+     */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    /**
+     * Value starting every record, used to detect the end of the written records
+     */
+    private static final int RECORD_MAGIC = 0x43484b53;
+
+    /**
+     * Size of the record header, without the file identifier: magic, sequence, type, file identifier length,
+     * chunk number, body length and checksum
+     */
+    private static final int FIXED_HEADER_SIZE = 4 + 8 + 1 + 2 + 4 + 4 + 4;
+
+    /**
+     * Maximum length of a file identifier, in bytes
+     */
+    private static final int MAX_FILE_ID_LENGTH = 255;
+
+    /**
+     * Maximum length of a chunk body
+     */
+    private static final int MAX_BODY_LENGTH = 1024 * 1024;
+
+    /**
+     * Type of the records holding a chunk body
+     */
+    private static final byte LIVE_RECORD = 0;
+
+    /**
+     * Type of the records marking a chunk as deleted
+     */
+    private static final byte TOMBSTONE_RECORD = 1;
+
+    /**
+     * Location of the chunks not stored
+     */
+    private static final long NO_LOCATION = -1;
+
+    /**
+     * Class representing a segment file
+     */
+    private static class Segment {
+
+        /**
+         * The segment number
+         */
+        final int id;
+
+        /**
+         * The segment file
+         */
+        final Path path;
+
+        /**
+         * The channel used to read and append to the segment
+         */
+        final FileChannel channel;
+
+        /**
+         * The number of bytes written to the segment
+         */
+        long size;
+
+        /**
+         * The number of bytes of the records that are still needed: the last record of each stored chunk, and tombstones
+         */
+        long liveBytes;
+
+        /**
+         * Segment constructor. Opens the segment file, creating it if it does not exist
+         *
+         * @param id The segment number
+         * @param path The segment file
+         * @throws IOException If the file could not be opened
+         */
+        Segment(int id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    /**
+     * Class representing the location of the stored chunks of a file
+     */
+    private static class FileLocations {
+
+        /**
+         * The length of the file identifier, in UTF-8, which is part of the size of each record
+         */
+        final int fileIDLength;
+
+        /**
+         * The segment number and record offset of each chunk, by chunk number, packed as (segment << 32) | offset
+         */
+        long[] locations = new long[0];
+
+        /**
+         * The body length of each chunk, by chunk number
+         */
+        int[] lengths = new int[0];
+
+        /**
+         * The sequence number of the last record of each chunk, by chunk number. Only kept while the index is rebuilt
+         */
+        long[] sequences = null;
+
+        /**
+         * The number of chunks stored
+         */
+        int numChunks = 0;
+
+        /**
+         * File Locations constructor
+         *
+         * @param fileIDLength The length of the file identifier, in UTF-8
+         */
+        FileLocations(int fileIDLength) {
+            this.fileIDLength = fileIDLength;
+        }
+
+        /**
+         * Getter for the size of the record of a stored chunk
+         *
+         * @param chunkNum The chunk number
+         * @return The record size
+         */
+        long recordSize(int chunkNum) {
+            return FIXED_HEADER_SIZE + fileIDLength + (long) lengths[chunkNum];
+        }
+
+        /**
+         * Make sure the arrays can hold the given chunk
+         *
+         * @param chunkNum The chunk number
+         */
+        void ensureCapacity(int chunkNum) {
+            if (chunkNum < locations.length)
+                return;
+
+            int capacity = Math.max(chunkNum + 1, locations.length * 2);
+            int oldCapacity = locations.length;
+
+            locations = Arrays.copyOf(locations, capacity);
+            Arrays.fill(locations, oldCapacity, capacity, NO_LOCATION);
+            lengths = Arrays.copyOf(lengths, capacity);
+            if (sequences != null)
+                sequences = Arrays.copyOf(sequences, capacity);
+        }
+
+        /**
+         * Getter for the location of a chunk
+         *
+         * @param chunkNum The chunk number
+         * @return The location, or NO_LOCATION if the chunk is not stored
+         */
+        long getLocation(int chunkNum) {
+            return (chunkNum >= 0 && chunkNum < locations.length) ? locations[chunkNum] : NO_LOCATION;
+        }
+    }
+
+    /**
+     * The directory containing the segments
+     */
+    private File directory;
+
+    /**
+     * The segments, by segment number
+     */
+    private TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+    /**
+     * The segment being appended to
+     */
+    private Segment activeSegment;
+
+    /**
+     * The location of the stored chunks, by file identifier
+     */
+    private HashMap<String, FileLocations> index = new HashMap<>();
+
+    /**
+     * The sequence number of the last record written
+     */
+    private long lastSequence = 0;
+
+    /**
+     * Whether records were appended since the last sync
+     */
+    private boolean dirty = false;
+
+    /**
+     * Lock held while compacting, so a single compaction runs at a time
+     */
+    private final Object compactionLock = new Object();
+
+    /**
+     * Segment Chunk Store constructor. Opens the segments in the given directory, creating it if needed, and rebuilds the index.
+     *
+     * @param directory The directory containing the segments
+     * @throws IOException If the segments could not be read
+     */
+    public SegmentChunkStore(File directory) throws IOException {
+        this.directory = directory;
+        directory.mkdirs();
+
+        File[] segmentFiles = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (segmentFiles != null) {
+            for (File segmentFile : segmentFiles) {
+                String name = segmentFile.getName();
+                try {
+                    int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(id, new Segment(id, segmentFile.toPath()));
+                } catch (NumberFormatException e) {
+                    Utils.showWarning("Ignoring unknown segment file " + name, this.getClass());
+                }
+            }
+        }
+
+        for (Segment segment : segments.values())
+            recover(segment, segment == segments.lastEntry().getValue());
+
+        // The sequence numbers are only needed to rebuild the index
+        for (Map.Entry<String, FileLocations> entry : new ArrayList<>(index.entrySet())) {
+            entry.getValue().sequences = null;
+            if (entry.getValue().numChunks == 0)
+                index.remove(entry.getKey());
+        }
+
+        activeSegment = segments.isEmpty() ? newSegment(0) : segments.lastEntry().getValue();
+    }
+
+    /**
+     * Read the records of a segment into the index.
+     * The checksum of the records is only verified in the last segment, as it is the only one that may end in a record
+     * torn by a crash, which is then discarded.
+     *
+     * @param segment The segment
+     * @param isLast Whether the segment is the last one
+     * @throws IOException If the segment could not be read
+     */
+    private void recover(Segment segment, boolean isLast) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE + MAX_FILE_ID_LENGTH);
+        ByteBuffer body = isLast ? ByteBuffer.allocate(MAX_BODY_LENGTH) : null;
+        long offset = 0;
+
+        while (offset < segment.size) {
+            header.clear();
+            header.limit((int) Math.min(header.capacity(), segment.size - offset));
+            readFully(segment.channel, header, offset);
+            header.flip();
+
+            if (header.remaining() < FIXED_HEADER_SIZE || header.getInt() != RECORD_MAGIC)
+                break;
+
+            long sequence = header.getLong();
+            byte type = header.get();
+            int fileIDLength = header.getShort() & 0xffff;
+            if (fileIDLength > MAX_FILE_ID_LENGTH || header.remaining() < fileIDLength + 12)
+                break;
+
+            byte[] fileIDBytes = new byte[fileIDLength];
+            header.get(fileIDBytes);
+            int chunkNum = header.getInt();
+            int bodyLength = header.getInt();
+            int checksum = header.getInt();
+
+            long recordSize = FIXED_HEADER_SIZE + fileIDLength + (long) bodyLength;
+            if (bodyLength < 0 || bodyLength > MAX_BODY_LENGTH || offset + recordSize > segment.size)
+                break;
+
+            if (isLast) {
+                body.clear();
+                body.limit(bodyLength);
+                readFully(segment.channel, body, offset + FIXED_HEADER_SIZE + fileIDLength);
+                body.flip();
+                if (checksum(type, fileIDBytes, chunkNum, bodyLength, body, sequence) != checksum)
+                    break;
+            }
+
+            applyRecovered(segment, offset, recordSize, sequence, type, fileIDBytes, chunkNum, bodyLength);
+            lastSequence = Math.max(lastSequence, sequence);
+            offset += recordSize;
+        }
+
+        if (offset < segment.size) {
+            if (isLast) {
+                Utils.showWarning("Discarding torn records at the end of " + segment.path.getFileName(), this.getClass());
+                segment.channel.truncate(offset);
+            } else {
+                Utils.showWarning("Ignoring unreadable records at the end of " + segment.path.getFileName(), this.getClass());
+            }
+            segment.size = offset;
+        }
+    }
+
+    /**
+     * Apply a record read on start up to the index, if it is newer than the last record applied for its chunk
+     *
+     * @param segment The segment containing the record
+     * @param offset The record offset
+     * @param recordSize The record size
+     * @param sequence The record sequence number
+     * @param type The record type
+     * @param fileIDBytes The file identifier, in UTF-8
+     * @param chunkNum The chunk number
+     * @param bodyLength The chunk body length
+     */
+    private void applyRecovered(Segment segment, long offset, long recordSize, long sequence, byte type, byte[] fileIDBytes, int chunkNum, int bodyLength) {
+        String fileID = new String(fileIDBytes, StandardCharsets.UTF_8);
+        FileLocations file = index.computeIfAbsent(fileID, k -> new FileLocations(fileIDBytes.length));
+        if (file.sequences == null)
+            file.sequences = new long[file.locations.length];
+        file.ensureCapacity(chunkNum);
+
+        if (file.sequences[chunkNum] >= sequence)
+            return;
+        file.sequences[chunkNum] = sequence;
+
+        unlink(file, chunkNum);
+        if (type == LIVE_RECORD) {
+            file.locations[chunkNum] = location(segment.id, offset);
+            file.lengths[chunkNum] = bodyLength;
+            ++file.numChunks;
+        }
+        segment.liveBytes += recordSize;
+    }
+
+    /**
+     * Remove a chunk from the index, updating the live bytes of the segment holding it
+     *
+     * @param file The locations of the file chunks
+     * @param chunkNum The chunk number
+     */
+    private void unlink(FileLocations file, int chunkNum) {
+        long location = file.getLocation(chunkNum);
+        if (location == NO_LOCATION)
+            return;
+
+        Segment segment = segments.get(segmentOf(location));
+        if (segment != null)
+            segment.liveBytes -= file.recordSize(chunkNum);
+
+        file.locations[chunkNum] = NO_LOCATION;
+        --file.numChunks;
+    }
+
+    @Override
+    public void write(String fileID, int chunkNum, ByteBuffer chunk) throws IOException {
+        byte[] fileIDBytes = fileIDBytes(fileID);
+        ByteBuffer body = chunk.duplicate();
+        int bodyLength = body.remaining();
+
+        synchronized (this) {
+            long sequence = ++lastSequence;
+            ByteBuffer header = header(sequence, LIVE_RECORD, fileIDBytes, chunkNum, body);
+            long offset = append(header, body);
+
+            FileLocations file = index.computeIfAbsent(fileID, k -> new FileLocations(fileIDBytes.length));
+            file.ensureCapacity(chunkNum);
+            unlink(file, chunkNum);
+            file.locations[chunkNum] = location(activeSegment.id, offset);
+            file.lengths[chunkNum] = bodyLength;
+            ++file.numChunks;
+            activeSegment.liveBytes += FIXED_HEADER_SIZE + fileIDBytes.length + bodyLength;
+        }
+    }
+
+    @Override
+    public byte[] read(String fileID, int chunkNum) throws IOException {
+        while (true) {
+            Segment segment;
+            long position;
+            int length;
+
+            synchronized (this) {
+                FileLocations file = index.get(fileID);
+                long location = (file == null) ? NO_LOCATION : file.getLocation(chunkNum);
+                if (location == NO_LOCATION)
+                    return null;
+
+                segment = segments.get(segmentOf(location));
+                position = offsetOf(location) + FIXED_HEADER_SIZE + file.fileIDLength;
+                length = file.lengths[chunkNum];
+            }
+
+            byte[] chunk = new byte[length];
+            try {
+                readFully(segment.channel, ByteBuffer.wrap(chunk), position);
+                return chunk;
+            } catch (ClosedChannelException e) {
+                // The segment was compacted while being read, so the chunk is now somewhere else
+            }
+        }
+    }
+
+    @Override
+    public synchronized int getChunkLength(String fileID, int chunkNum) {
+        FileLocations file = index.get(fileID);
+        if (file == null || file.getLocation(chunkNum) == NO_LOCATION)
+            return -1;
+        return file.lengths[chunkNum];
+    }
+
+    @Override
+    public long transferTo(String fileID, int chunkNum, long offset, WritableByteChannel target) throws IOException {
+        while (true) {
+            Segment segment;
+            long position;
+            int length;
+
+            synchronized (this) {
+                FileLocations file = index.get(fileID);
+                long location = (file == null) ? NO_LOCATION : file.getLocation(chunkNum);
+                if (location == NO_LOCATION)
+                    return -1;
+
+                segment = segments.get(segmentOf(location));
+                position = offsetOf(location) + FIXED_HEADER_SIZE + file.fileIDLength;
+                length = file.lengths[chunkNum];
+            }
+
+            if (offset >= length)
+                return 0;
+
+            try {
+                return segment.channel.transferTo(position + offset, length - offset, target);
+            } catch (ClosedChannelException e) {
+                // The segment was compacted while being sent, so the chunk is now somewhere else
+                if (segment.channel.isOpen() || ! target.isOpen())
+                    throw e;
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean delete(String fileID, int chunkNum) throws IOException {
+        FileLocations file = index.get(fileID);
+        if (file == null || file.getLocation(chunkNum) == NO_LOCATION)
+            return false;
+
+        appendTombstone(fileID, chunkNum);
+        unlink(file, chunkNum);
+        if (file.numChunks == 0)
+            index.remove(fileID);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean deleteFile(String fileID) throws IOException {
+        FileLocations file = index.get(fileID);
+        if (file == null)
+            return false;
+
+        for (int chunkNum = 0; chunkNum < file.locations.length; ++chunkNum) {
+            if (file.locations[chunkNum] != NO_LOCATION) {
+                appendTombstone(fileID, chunkNum);
+                unlink(file, chunkNum);
+            }
+        }
+        index.remove(fileID);
+        return true;
+    }
+
+    /**
+     * Append the tombstone of a chunk
+     *
+     * @param fileID The file identifier
+     * @param chunkNum The chunk number
+     * @throws IOException If the tombstone could not be written
+     */
+    private void appendTombstone(String fileID, int chunkNum) throws IOException {
+        byte[] fileIDBytes = fileIDBytes(fileID);
+        ByteBuffer body = ByteBuffer.allocate(0);
+
+        append(header(++lastSequence, TOMBSTONE_RECORD, fileIDBytes, chunkNum, body), body);
+        activeSegment.liveBytes += FIXED_HEADER_SIZE + fileIDBytes.length;
+    }
+
+    @Override
+    public synchronized ArrayList<String> getFileIDs() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    @Override
+    public synchronized ArrayList<Integer> getChunkNums(String fileID) {
+        FileLocations file = index.get(fileID);
+        if (file == null)
+            return null;
+
+        ArrayList<Integer> chunkNums = new ArrayList<>(file.numChunks);
+        for (int chunkNum = 0; chunkNum < file.locations.length; ++chunkNum) {
+            if (file.locations[chunkNum] != NO_LOCATION)
+                chunkNums.add(chunkNum);
+        }
+        return chunkNums;
+    }
+
+    @Override
+    public void sync() {
+        FileChannel channel;
+        synchronized (this) {
+            if (! dirty)
+                return;
+            dirty = false;
+            channel = activeSegment.channel;
+        }
+
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            Utils.showError("Failed to sync the chunk store", this.getClass());
+        }
+    }
+
+    @Override
+    public void compact() {
+        synchronized (compactionLock) {
+            ArrayList<Segment> candidates = new ArrayList<>();
+            synchronized (this) {
+                for (Segment segment : segments.values()) {
+                    if (segment != activeSegment && segment.liveBytes < segment.size * COMPACTION_THRESHOLD)
+                        candidates.add(segment);
+                }
+            }
+
+            for (Segment segment : candidates) {
+                try {
+                    compact(segment);
+                } catch (IOException e) {
+                    Utils.showError("Failed to compact " + segment.path.getFileName(), this.getClass());
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compact a segment: its live records are copied to the active segment, and the segment is deleted.
+     * Tombstones are copied too, unless the segment is the oldest one, in which case no older record remains for them to hide.
+     *
+     * @param segment The segment
+     * @throws IOException If the segment could not be compacted
+     */
+    private void compact(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE + MAX_FILE_ID_LENGTH);
+        long offset = 0;
+
+        while (offset < segment.size) {
+            header.clear();
+            header.limit((int) Math.min(header.capacity(), segment.size - offset));
+            readFully(segment.channel, header, offset);
+            header.flip();
+
+            header.position(4 + 8);
+            byte type = header.get();
+            int fileIDLength = header.getShort() & 0xffff;
+            byte[] fileIDBytes = new byte[fileIDLength];
+            header.get(fileIDBytes);
+            int chunkNum = header.getInt();
+            int bodyLength = header.getInt();
+            int recordSize = FIXED_HEADER_SIZE + fileIDLength + bodyLength;
+            String fileID = new String(fileIDBytes, StandardCharsets.UTF_8);
+
+            if (isNeeded(segment, offset, type, fileID, chunkNum)) {
+                // The record is copied as it is, keeping its sequence number and checksum
+                ByteBuffer record = ByteBuffer.allocate(recordSize);
+                readFully(segment.channel, record, offset);
+                record.flip();
+                copyRecord(segment, offset, type, fileID, chunkNum, record);
+            }
+            offset += recordSize;
+        }
+
+        FileChannel activeChannel;
+        synchronized (this) {
+            activeChannel = activeSegment.channel;
+        }
+        // The copies must be durable before the originals are gone
+        activeChannel.force(false);
+
+        synchronized (this) {
+            segments.remove(segment.id);
+            segment.channel.close();
+        }
+        Files.deleteIfExists(segment.path);
+    }
+
+    /**
+     * Check if a record of a segment being compacted must be kept
+     *
+     * @param segment The segment
+     * @param offset The record offset
+     * @param type The record type
+     * @param fileID The file identifier
+     * @param chunkNum The chunk number
+     * @return True if the record must be copied
+     */
+    private synchronized boolean isNeeded(Segment segment, long offset, byte type, String fileID, int chunkNum) {
+        if (type == TOMBSTONE_RECORD)
+            return segments.firstKey() != segment.id;
+
+        FileLocations file = index.get(fileID);
+        return file != null && file.getLocation(chunkNum) == location(segment.id, offset);
+    }
+
+    /**
+     * Copy a record of a segment being compacted to the active segment, if it is still needed
+     *
+     * @param segment The segment
+     * @param offset The record offset
+     * @param type The record type
+     * @param fileID The file identifier
+     * @param chunkNum The chunk number
+     * @param record Buffer containing the whole record
+     * @throws IOException If the record could not be written
+     */
+    private synchronized void copyRecord(Segment segment, long offset, byte type, String fileID, int chunkNum, ByteBuffer record) throws IOException {
+        // The chunk may have been written or deleted since the record was read
+        if (! isNeeded(segment, offset, type, fileID, chunkNum))
+            return;
+
+        int recordSize = record.remaining();
+        long newOffset = append(record);
+        segment.liveBytes -= recordSize;
+        activeSegment.liveBytes += recordSize;
+
+        if (type == LIVE_RECORD)
+            index.get(fileID).locations[chunkNum] = location(activeSegment.id, newOffset);
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            try {
+                if (segment == activeSegment)
+                    segment.channel.force(false);
+                segment.channel.close();
+            } catch (IOException e) {
+                Utils.showError("Failed to close " + segment.path.getFileName(), this.getClass());
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        long size = 0;
+        long liveBytes = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.size;
+            liveBytes += segment.liveBytes;
+        }
+
+        return "SegmentChunkStore{" +
+                " segments=" + segments.size() +
+                ", size=" + size +
+                ", liveBytes=" + liveBytes +
+                ", files=" + index.size() +
+                '}' + '\n';
+    }
+
+    /**
+     * Append a record to the active segment, starting a new segment if it is full. Must hold the store lock.
+     *
+     * @param buffers The buffers containing the record, between their positions and limits
+     * @return The record offset in the active segment
+     * @throws IOException If the record could not be written, in which case the segment is left as it was
+     */
+    private long append(ByteBuffer... buffers) throws IOException {
+        long recordSize = 0;
+        for (ByteBuffer buffer : buffers)
+            recordSize += buffer.remaining();
+
+        if (activeSegment.size > 0 && activeSegment.size + recordSize > SEGMENT_SIZE) {
+            activeSegment.channel.force(false);
+            activeSegment = newSegment(activeSegment.id + 1);
+        }
+
+        long offset = activeSegment.size;
+        FileChannel channel = activeSegment.channel;
+        try {
+            channel.position(offset);
+            long written = 0;
+            while (written < recordSize)
+                written += channel.write(buffers);
+        } catch (IOException e) {
+            channel.truncate(offset);
+            throw e;
+        }
+
+        activeSegment.size += recordSize;
+        dirty = true;
+        return offset;
+    }
+
+    /**
+     * Create a new segment
+     *
+     * @param id The segment number
+     * @return The segment
+     * @throws IOException If the segment file could not be created
+     */
+    private Segment newSegment(int id) throws IOException {
+        Segment segment = new Segment(id, new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX).toPath());
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Build the header of a record
+     *
+     * @param sequence The record sequence number
+     * @param type The record type
+     * @param fileIDBytes The file identifier, in UTF-8
+     * @param chunkNum The chunk number
+     * @param body Buffer containing the chunk body, between its position and limit
+     * @return Buffer containing the header, ready to be written
+     */
+    private static ByteBuffer header(long sequence, byte type, byte[] fileIDBytes, int chunkNum, ByteBuffer body) {
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE + fileIDBytes.length);
+        header.putInt(RECORD_MAGIC);
+        header.putLong(sequence);
+        header.put(type);
+        header.putShort((short) fileIDBytes.length);
+        header.put(fileIDBytes);
+        header.putInt(chunkNum);
+        header.putInt(body.remaining());
+        header.putInt(checksum(type, fileIDBytes, chunkNum, body.remaining(), body.duplicate(), sequence));
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Compute the checksum of a record
+     *
+     * @param type The record type
+     * @param fileIDBytes The file identifier, in UTF-8
+     * @param chunkNum The chunk number
+     * @param bodyLength The chunk body length
+     * @param body Buffer containing the chunk body, between its position and limit, which is consumed
+     * @param sequence The record sequence number
+     * @return The checksum
+     */
+    private static int checksum(byte type, byte[] fileIDBytes, int chunkNum, int bodyLength, ByteBuffer body, long sequence) {
+        ByteBuffer fields = ByteBuffer.allocate(1 + 4 + 4 + 8);
+        fields.put(type).putInt(chunkNum).putInt(bodyLength).putLong(sequence);
+
+        CRC32 crc = new CRC32();
+        crc.update(fileIDBytes);
+        crc.update(fields.array());
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Read from a channel, at a given position, until the buffer is full
+     *
+     * @param channel The channel
+     * @param buffer The buffer
+     * @param position The position to read from
+     * @throws IOException If the bytes could not be read, or the channel ended first
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of segment");
+            position += read;
+        }
+    }
+
+    /**
+     * Encode a file identifier
+     *
+     * @param fileID The file identifier
+     * @return The file identifier, in UTF-8
+     */
+    private static byte[] fileIDBytes(String fileID) {
+        byte[] fileIDBytes = fileID.getBytes(StandardCharsets.UTF_8);
+        if (fileIDBytes.length > MAX_FILE_ID_LENGTH)
+            throw new IllegalArgumentException("File identifier too long: " + fileID);
+        return fileIDBytes;
+    }
+
+    /**
+     * Pack a segment number and a record offset into a location
+     *
+     * @param segmentID The segment number
+     * @param offset The record offset
+     * @return The location
+     */
+    private static long location(int segmentID, long offset) {
+        return ((long) segmentID << 32) | offset;
+    }
+
+    /**
+     * Get the segment number of a location
+     *
+     * @param location The location
+     * @return The segment number
+     */
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    /**
+     * Get the record offset of a location
+     *
+     * @param location The location
+     * @return The record offset
+     */
+    private static long offsetOf(long location) {
+        return location & 0xffffffffL;
+    }
+}
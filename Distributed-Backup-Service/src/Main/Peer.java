@@ -3,14 +3,26 @@ package Main;
 import Action.*;
 import Channel.BackupChannel;
 import Channel.ControlChannel;
+import Channel.DataPlaneServer;
+import Channel.Membership;
 import Channel.RestoreChannel;
+import Channel.Transport;
+import Channel.UdpMulticastTransport;
 import Database.BackedUpFiles;
+import Database.CachingChunkStore;
+import Database.ChunkIndex;
+import Database.ChunkStore;
 import Database.ChunksRecorder;
+import Database.FileChunkStore;
+import Database.Journal;
+import Database.SegmentChunkStore;
 import Utils.Utils;
 import Utils.ProtocolVersions;
 import ThreadPool.ThreadPool;
+import ThreadPool.WheelTimer;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.rmi.registry.Registry;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
@@ -33,6 +45,21 @@ public class Peer implements RMI.RMIInterface {
      */
     private static final Integer SAVE_LOOP_SECONDS = 3;
 
+    /**
+     * Size, in bytes, a journal must reach for the save loop to checkpoint its database
+     */
+    private static final long CHECKPOINT_JOURNAL_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Default size, in bytes, of the cache of the chunks read, unless set by the system property backup.cache.bytes
+     */
+    private static final long DEFAULT_CHUNK_CACHE_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * The factory of the transports used by the channels
+     */
+    private Transport.Factory transportFactory;
+
     /**
      * The channel used for communication regarding control
      */
@@ -73,6 +100,11 @@ public class Peer implements RMI.RMIInterface {
      */
     private ThreadPool threadPool;
 
+    /**
+     * The timer shared by all the actions of this peer, for running delayed tasks
+     */
+    private WheelTimer timer;
+
     /**
      * The hashMap used for keeping information about the files that were backed up
      */
@@ -83,6 +115,32 @@ public class Peer implements RMI.RMIInterface {
      */
     public ChunksRecorder chunksRecord;
 
+    /**
+     * The store of the chunk bodies kept in this Peer disk
+     */
+    private ChunkStore chunkStore;
+
+    /**
+     * The data plane streaming the stored chunks to the peers restoring a file, in protocol 2.0, or null
+     */
+    private DataPlaneServer dataPlaneServer;
+
+    /**
+     * The table of the peers known to be alive in the service, kept up to date by their heartbeats
+     */
+    private Membership membership;
+
+    /**
+     * The interval between the heartbeats of the peers, in milliseconds, set with the system property
+     * backup.heartbeat.interval
+     */
+    private long heartbeatInterval;
+
+    /**
+     * Whether the chunks are placed by rendezvous hashing, set with the system property backup.placement=hrw
+     */
+    private boolean rendezvousPlacement;
+
     /**
      * Regex used to validate the program args for initiating a peer
      */
@@ -99,70 +157,254 @@ public class Peer implements RMI.RMIInterface {
      * @param channelMDR The restore channel information in format address:port
      */
     private Peer(String protocolVersion, String serverID, String accessPoint, String channelMC, String channelMDB, String channelMDR) {
+        this(Float.parseFloat(protocolVersion), Integer.parseInt(serverID), accessPoint, channelMC, channelMDB, channelMDR, UdpMulticastTransport::new);
+    }
 
-        this.protocolVersion = Float.parseFloat(protocolVersion);
-        peerID = Integer.parseInt(serverID);
+    /**
+     * Main.Peer constructor, for a peer without RMI access point, whose channels use the given transports.
+     * Used to run many peers in the same process, over a simulated network.
+     *
+     * @param protocolVersion The protocol version to be used
+     * @param peerID The id of the peer
+     * @param channelMC The control channel information in format address:port
+     * @param channelMDB The backup channel information in format address:port
+     * @param channelMDR The restore channel information in format address:port
+     * @param transportFactory The factory of the transports used by the channels
+     */
+    public Peer(float protocolVersion, int peerID, String channelMC, String channelMDB, String channelMDR, Transport.Factory transportFactory) {
+        this(protocolVersion, peerID, null, channelMC, channelMDB, channelMDR, transportFactory);
+    }
+
+    /**
+     * Main.Peer constructor
+     *
+     * @param protocolVersion The protocol version to be used
+     * @param peerID The id of the peer
+     * @param accessPoint The access point identifier / name, or null if the peer is not accessed by RMI
+     * @param channelMC The control channel information in format address:port
+     * @param channelMDB The backup channel information in format address:port
+     * @param channelMDR The restore channel information in format address:port
+     * @param transportFactory The factory of the transports used by the channels
+     */
+    private Peer(float protocolVersion, int peerID, String accessPoint, String channelMC, String channelMDB, String channelMDR, Transport.Factory transportFactory) {
+
+        this.protocolVersion = protocolVersion;
+        this.peerID = peerID;
         this.accessPoint = accessPoint;
+        this.transportFactory = transportFactory;
 
         dirName = FileManager.getPeerDirectory(peerID);
         new File(dirName).mkdir();
 
+        heartbeatInterval = Long.getLong("backup.heartbeat.interval", HeartbeatAction.DEFAULT_INTERVAL);
+        membership = new Membership(peerID, heartbeatInterval);
+        rendezvousPlacement = "hrw".equals(System.getProperty("backup.placement"));
+
         controlChannel = new ControlChannel(channelMC, this);
         backupChannel = new BackupChannel(channelMDB, this);
         restoreChannel = new RestoreChannel(channelMDR, this);
 
+        // The database must be restored before any message is received
+        initDatabase();
+
         threadPool = new ThreadPool();
+        timer = new WheelTimer(threadPool::tryExecute);
         threadPool.executeThread(controlChannel);
         threadPool.executeThread(backupChannel);
         threadPool.executeThread(restoreChannel);
 
-        initializeRMI();
-        initDatabase();
+        if (accessPoint != null)
+            initializeRMI();
+
+        // Heartbeats are only understood by the peers running the enhancements or the rendezvous placement
+        if (this.protocolVersion == ProtocolVersions.ENHANCEMENTS_VERSION || rendezvousPlacement)
+            threadPool.executeThread(new HeartbeatAction(controlChannel, timer, chunksRecord, threadPool, this.protocolVersion,
+                    peerID, heartbeatInterval));
 
-        if (this.protocolVersion == ProtocolVersions.ENHANCEMENTS_VERSION)
-            threadPool.executeThread(new CheckDeleteAction(controlChannel, this.protocolVersion, peerID));
+        if (this.protocolVersion == ProtocolVersions.ENHANCEMENTS_VERSION) {
+            threadPool.executeThread(new CheckDeleteAction(controlChannel, chunkStore, this.protocolVersion, peerID));
+
+            try {
+                dataPlaneServer = new DataPlaneServer(chunkStore, peerID);
+            } catch (IOException e) {
+                Utils.showError("Failed to start the data plane, restores from this peer will not be possible", this.getClass());
+            }
+        }
     }
 
     /**
-     * Initialize the database using either serializable files or the default constructors.
-     * A thread is also started, to save to the files every X to X seconds
+     * Initialize the database using either the last snapshots or the default constructors, replaying on top of them
+     * the journals of the mutations made afterwards.
+     * A thread is also started, to sync the chunk store and the journals every X to X seconds, to checkpoint the journals
+     * when they grow too big, and to compact the chunk store.
      */
     private void initDatabase() {
         File backedUpFiles_File = new File(dirName + "/" + FileManager.BACKED_UP_FILES_SERIALIZABLE);
         File chunksRecord_File = new File(dirName + "/" + FileManager.CHUNKS_RECORDER_SERIALIZABLE);
 
+        // A missing or unreadable snapshot leaves an empty database, so the peer never runs without one
+        backedUpFiles = readSnapshot(backedUpFiles_File, BackedUpFiles.class);
+        if (backedUpFiles == null)
+            backedUpFiles = new BackedUpFiles();
+
+        chunksRecord = readSnapshot(chunksRecord_File, ChunksRecorder.class);
+        if (chunksRecord == null)
+            chunksRecord = new ChunksRecorder();
+
         try {
-            if (backedUpFiles_File.exists())
-                backedUpFiles = (BackedUpFiles) (new ObjectInputStream(new FileInputStream(backedUpFiles_File))).readObject();
-            else {
-                backedUpFiles_File.createNewFile();
-                backedUpFiles = new BackedUpFiles();
-            }
+            chunkStore = openChunkStore();
 
-            if (chunksRecord_File.exists()) {
-                chunksRecord = (ChunksRecorder) (new ObjectInputStream(new FileInputStream(chunksRecord_File))).readObject();
-            } else {
-                chunksRecord_File.createNewFile();
-                chunksRecord = new ChunksRecorder();
-            }
+            Journal backedUpFilesJournal = Journal.open(new File(dirName + "/" + FileManager.BACKED_UP_FILES_JOURNAL), backedUpFiles);
+            backedUpFiles.setJournal(backedUpFilesJournal);
+
+            Journal chunksRecordJournal = Journal.open(new File(dirName + "/" + FileManager.CHUNKS_RECORDER_JOURNAL), chunksRecord);
+            chunksRecord.setJournal(chunksRecordJournal);
+            chunksRecord.recomputeUsedDiskSpace();
+            indexStoredChunks();
 
             // Scheduling a save loop of to seconds
             ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
             scheduler.scheduleAtFixedRate(() -> {
-                try {
-                    (new ObjectOutputStream(new FileOutputStream(chunksRecord_File))).writeObject(chunksRecord);
-                    (new ObjectOutputStream(new FileOutputStream(backedUpFiles_File))).writeObject(backedUpFiles);
-
-                } catch (IOException e1) {
-                    Utils.showError("Failed to save the database to files", this.getClass());
-                }
+                // The chunks must be on disk before the records saying they are stored
+                chunkStore.sync();
+                saveDatabase(chunksRecordJournal, chunksRecord, chunksRecord_File);
+                saveDatabase(backedUpFilesJournal, backedUpFiles, backedUpFiles_File);
+                chunkStore.compact();
             }, SAVE_LOOP_SECONDS, SAVE_LOOP_SECONDS, TimeUnit.SECONDS);
 
-        } catch (java.io.IOException | java.lang.ClassNotFoundException e) {
+        } catch (java.io.IOException e) {
             Utils.showError("Failed to initialize database from files", this.getClass());
         }
     }
 
+    /**
+     * Move the chunks kept in their own files, at backup-[peerID]/[fileID]/[chunkNum], to the given store.
+     * The files are only deleted once the store has synced the chunks to disk.
+     *
+     * @param store The store the chunks are moved to
+     * @throws IOException If a chunk could not be moved
+     */
+    private void importChunkFiles(ChunkStore store) throws IOException {
+        FileChunkStore chunkFiles = new FileChunkStore(peerID);
+        ArrayList<String> importedFileIDs = new ArrayList<>();
+        int numImported = 0;
+
+        for (String fileID : chunkFiles.getFileIDs()) {
+            ArrayList<Integer> chunkNums = chunkFiles.getChunkNums(fileID);
+            if (chunkNums == null || ChunkIndex.FileKey.of(fileID) == null)
+                continue;
+
+            for (int chunkNum : chunkNums) {
+                byte[] chunk = chunkFiles.read(fileID, chunkNum);
+                if (chunk != null && store.getChunkLength(fileID, chunkNum) < 0) {
+                    store.write(fileID, chunkNum, ByteBuffer.wrap(chunk));
+                    ++numImported;
+                }
+            }
+            importedFileIDs.add(fileID);
+        }
+
+        if (importedFileIDs.isEmpty())
+            return;
+
+        store.sync();
+        for (String fileID : importedFileIDs)
+            chunkFiles.deleteFile(fileID);
+
+        Utils.log("Imported " + numImported + " chunks kept in their own files into the chunk store");
+    }
+
+    /**
+     * Record the chunks kept in the chunk store that are missing from the database, with replication degree 1.
+     * They are left by a crash between writing a chunk and recording it, or by a snapshot that could not be read.
+     * The chunks of the files deleted meanwhile are dropped instead.
+     */
+    private void indexStoredChunks() {
+        int numIndexed = 0;
+
+        for (String fileID : chunkStore.getFileIDs()) {
+            ArrayList<Integer> chunkNums = chunkStore.getChunkNums(fileID);
+            if (chunkNums == null || ChunkIndex.FileKey.of(fileID) == null)
+                continue;
+
+            for (int chunkNum : chunkNums) {
+                if (chunksRecord.hasChunk(fileID, chunkNum))
+                    continue;
+
+                try {
+                    if (chunksRecord.wasDeleted(fileID))
+                        chunkStore.delete(fileID, chunkNum);
+                    else if (chunksRecord.addChunkRecord(fileID, chunkNum, chunkStore.getChunkLength(fileID, chunkNum), 1))
+                        ++numIndexed;
+                } catch (IOException e) {
+                    Utils.showWarning("Failed to delete chunk " + chunkNum + " of deleted file " + fileID, this.getClass());
+                }
+            }
+        }
+
+        if (numIndexed > 0)
+            Utils.log("Recorded " + numIndexed + " chunks found in the chunk store but missing from the database");
+    }
+
+    /**
+     * Open the store of the chunk bodies. Chunks are kept in the segments of a log structured store, unless the system
+     * property backup.store is "files", in which case each chunk is kept in its own file.
+     * The chunks read are cached, up to the number of bytes set by the system property backup.cache.bytes.
+     *
+     * @return The chunk store
+     * @throws IOException If the store could not be opened
+     */
+    private ChunkStore openChunkStore() throws IOException {
+        ChunkStore store;
+        if ("files".equals(System.getProperty("backup.store")))
+            store = new FileChunkStore(peerID);
+        else {
+            store = new SegmentChunkStore(new File(dirName, SegmentChunkStore.SEGMENTS_DIRECTORY));
+            importChunkFiles(store);
+        }
+
+        return new CachingChunkStore(store, Long.getLong("backup.cache.bytes", DEFAULT_CHUNK_CACHE_BYTES));
+    }
+
+    /**
+     * Read the snapshot of a database from the given file
+     *
+     * @param file The file containing the snapshot
+     * @param type The class of the database
+     * @return The database read, or null if there is no snapshot yet or it could not be read
+     */
+    private static <T> T readSnapshot(File file, Class<T> type) {
+        if (! file.exists() || file.length() == 0)
+            return null;
+
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return type.cast(in.readObject());
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            Utils.showWarning("Unable to read the snapshot " + file.getName() + ", starting from an empty database", Peer.class);
+            return null;
+        }
+    }
+
+    /**
+     * Save the mutations made to a database: the journal is synced to disk, and checkpointed if it grew too big
+     *
+     * @param journal The journal of the database
+     * @param database The database
+     * @param snapshotFile The file where the database snapshot is saved
+     */
+    private void saveDatabase(Journal journal, Serializable database, File snapshotFile) {
+        journal.sync();
+
+        if (journal.size() < CHECKPOINT_JOURNAL_SIZE)
+            return;
+
+        try {
+            journal.checkpoint(database, snapshotFile);
+        } catch (IOException e) {
+            Utils.showError("Failed to save the database to files", this.getClass());
+        }
+    }
+
     /**
      * Main.Peer main function. Initiates a new Main.Peer.
      *
@@ -197,6 +439,33 @@ public class Peer implements RMI.RMIInterface {
         }
     }
 
+    /**
+     * Getter for the store of the chunk bodies kept in this Peer disk
+     *
+     * @return the chunk store
+     */
+    public ChunkStore getChunkStore() {
+        return chunkStore;
+    }
+
+    /**
+     * Getter for the data plane streaming the stored chunks to the peers restoring a file
+     *
+     * @return the data plane server, or null if there is none
+     */
+    public DataPlaneServer getDataPlaneServer() {
+        return dataPlaneServer;
+    }
+
+    /**
+     * Getter for the factory of the transports used by the channels
+     *
+     * @return the transport factory
+     */
+    public Transport.Factory getTransportFactory() {
+        return transportFactory;
+    }
+
     /**
      * Getter for the used back up channel
      *
@@ -251,6 +520,15 @@ public class Peer implements RMI.RMIInterface {
         return threadPool;
     }
 
+    /**
+     * Getter for the timer used by this Peer's actions to run delayed tasks
+     *
+     * @return the timer used
+     */
+    public WheelTimer getTimer() {
+        return timer;
+    }
+
     /**
      * Getter for information regarding the files backed up having this peer as initiator peer
      *
@@ -260,6 +538,24 @@ public class Peer implements RMI.RMIInterface {
         return backedUpFiles;
     }
 
+    /**
+     * Getter for the peers known to be in the service
+     *
+     * @return the membership of this peer
+     */
+    public Membership getMembership() {
+        return membership;
+    }
+
+    /**
+     * Check if the chunks are placed by rendezvous hashing, instead of being stored by the peers after a random delay
+     *
+     * @return True if rendezvous placement is used
+     */
+    public boolean isRendezvousPlacement() {
+        return rendezvousPlacement;
+    }
+
 
     /* INTERFACE FUNCTIONS */
 
@@ -281,9 +577,7 @@ public class Peer implements RMI.RMIInterface {
             Utils.showWarning("Too many arguments given for restore action", this.getClass());
 
         try {
-            TriggerRestoreAction action = new TriggerRestoreAction(this, protocolVersion, peerID, args.get(0));
-            restoreChannel.subscribeAction(action);
-            threadPool.executeThread(action);
+            threadPool.executeThread(new TriggerRestoreAction(this, protocolVersion, peerID, args.get(0)));
 
         } catch (ExceptionInInitializerError e) {
             Utils.showWarning("Unable to restore the given file. " +
@@ -308,7 +602,7 @@ public class Peer implements RMI.RMIInterface {
         if (args.size() > 1)
             Utils.showWarning("Too many arguments given for reclaim disk space action", this.getClass());
 
-        threadPool.executeThread(new TriggerReclaimAction(controlChannel, chunksRecord, protocolVersion, peerID, args.get(0)));
+        threadPool.executeThread(new TriggerReclaimAction(controlChannel, chunksRecord, chunkStore, protocolVersion, peerID, args.get(0)));
     }
 
     @Override
@@ -316,7 +610,7 @@ public class Peer implements RMI.RMIInterface {
         if (args.size() > 0)
             Utils.showWarning("Too many arguments given for state action", this.getClass());
 
-        TriggerStateAction info =  new TriggerStateAction(chunksRecord, backedUpFiles);
+        TriggerStateAction info =  new TriggerStateAction(chunksRecord, backedUpFiles, threadPool, chunkStore, membership);
         threadPool.executeThread(info);
 
         return info.getResult();
@@ -2,6 +2,7 @@ package Messages;
 
 import Utils.Utils;
 
+import java.nio.ByteBuffer;
 import java.util.regex.Matcher;
 
 import static Utils.Utils.byteArrayConcat;
@@ -25,7 +26,7 @@ public class ChunkMsg extends Message implements msgGenerator {
     /**
      * The message associated chunk
      */
-    private byte[] chunk;
+    private ByteBuffer chunk;
 
     /**
      * The chunk message constructor
@@ -46,7 +47,7 @@ public class ChunkMsg extends Message implements msgGenerator {
         senderID = Integer.parseInt(protocolMatch.group(SENDER_ID_GROUP));
         fileID = protocolMatch.group(FIELD_ID_GROUP);
         chunkNum = Integer.parseInt(protocolMatch.group(CHUNK_NUM_GROUP));
-        this.chunk = chunk;
+        this.chunk = ByteBuffer.wrap(chunk);
     }
 
     /**
@@ -59,6 +60,21 @@ public class ChunkMsg extends Message implements msgGenerator {
      * @param chunk The chunk to associate to the chunk message
      */
     public ChunkMsg(float protocolVersion, int senderID, String fileID, int chunkNum, byte[] chunk) {
+        super(protocolVersion, senderID, fileID);
+        this.chunkNum = chunkNum;
+        this.chunk = ByteBuffer.wrap(chunk);
+    }
+
+    /**
+     * Chunk message constructor, with the chunk bytes held in a buffer
+     *
+     * @param protocolVersion The communication protocol version
+     * @param senderID The peer identifier that will send this message
+     * @param fileID The file identifier
+     * @param chunkNum The number of the chunk to be sent
+     * @param chunk The buffer containing the chunk bytes, between its position and limit
+     */
+    public ChunkMsg(float protocolVersion, int senderID, String fileID, int chunkNum, ByteBuffer chunk) {
         super(protocolVersion, senderID, fileID);
         this.chunkNum = chunkNum;
         this.chunk = chunk;
@@ -86,11 +102,34 @@ public class ChunkMsg extends Message implements msgGenerator {
     }
 
     /**
-     * Getter for the chunk associated to the message
+     * Getter for the chunk bytes. If the chunk is held in a buffer, its bytes are copied to a new array
      *
-     * @return the chunk
+     * @return Array containing the chunk bytes
      */
     public byte[] getChunk() {
-        return chunk;
+        if (chunk.hasArray() && chunk.arrayOffset() == 0 && chunk.position() == 0 && chunk.remaining() == chunk.array().length)
+            return chunk.array();
+
+        byte[] bytes = new byte[chunk.remaining()];
+        chunk.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Getter for the chunk bytes, without copying them
+     *
+     * @return A read only view over the chunk bytes
+     */
+    public ByteBuffer getChunkBody() {
+        return chunk.asReadOnlyBuffer();
+    }
+
+    /**
+     * Getter for the chunk size
+     *
+     * @return The chunk size, in bytes
+     */
+    public int getChunkSize() {
+        return chunk.remaining();
     }
 }
@@ -0,0 +1,561 @@
+package Messages;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class responsible for parsing a message header directly from the received bytes, without the use of regexes.
+ * It accepts the same headers as the REGEX_STRING of each message class.
+ */
+public final class HeaderParser {
+
+    /**
+     * Message type of a putchunk message
+     */
+    public static final String PUTCHUNK = "PUTCHUNK";
+
+    /**
+     * Message type of a stored message
+     */
+    public static final String STORED = "STORED";
+
+    /**
+     * Message type of a getchunk message
+     */
+    public static final String GETCHUNK = "GETCHUNK";
+
+    /**
+     * Message type of a chunk message
+     */
+    public static final String CHUNK = "CHUNK";
+
+    /**
+     * Message type of a delete message
+     */
+    public static final String DELETE = "DELETE";
+
+    /**
+     * Message type of a removed message
+     */
+    public static final String REMOVED = "REMOVED";
+
+    /**
+     * Message type of a get tcp ip message
+     */
+    public static final String GETTCPIP = "GETTCPIP";
+
+    /**
+     * Message type of a set tcp ip message
+     */
+    public static final String SETTCPIP = "SETTCPIP";
+
+    /**
+     * Message type of a check delete message
+     */
+    public static final String CHECKDELETE = "CHECKDELETE";
+
+    /**
+     * Message type of a heartbeat message
+     */
+    public static final String HEARTBEAT = "HEARTBEAT";
+
+    /**
+     * All the known message types
+     */
+    private static final String[] TYPES =
+            {PUTCHUNK, STORED, GETCHUNK, CHUNK, DELETE, REMOVED, GETTCPIP, SETTCPIP, CHECKDELETE, HEARTBEAT};
+
+    /**
+     * Length, in chars, of a file identifier
+     */
+    private static final int FILE_ID_LENGTH = 64;
+
+    /**
+     * Maximum number of digits of a chunk number
+     */
+    private static final int CHUNK_NUM_MAX_DIGITS = 6;
+
+    /**
+     * Maximum value of a port number
+     */
+    private static final int MAX_PORT = 65535;
+
+    /**
+     * Maximum number of digits of a free space
+     */
+    private static final int FREE_SPACE_MAX_DIGITS = 18;
+
+    /**
+     * The protocol versions 'X.Y', indexed by X * 10 + Y, so they are equal to the ones given by Float.parseFloat
+     */
+    private static final float[] VERSIONS = new float[100];
+
+    static {
+        for (int i = 0; i < VERSIONS.length; ++i)
+            VERSIONS[i] = Float.parseFloat((i / 10) + "." + (i % 10));
+    }
+
+    /**
+     * The type of the message parsed
+     */
+    private String type;
+
+    /**
+     * The protocol version of the message parsed
+     */
+    private float protocolVersion;
+
+    /**
+     * The sender identifier of the message parsed
+     */
+    private int senderID;
+
+    /**
+     * The file identifier of the message parsed
+     */
+    private String fileID;
+
+    /**
+     * The chunk number of the message parsed, -1 if the message has none
+     */
+    private int chunkNum = -1;
+
+    /**
+     * The replication degree of the message parsed, -1 if the message has none
+     */
+    private int repDegree = -1;
+
+    /**
+     * The IP address of the message parsed, null if the message has none
+     */
+    private String ipAddress;
+
+    /**
+     * The port of the message parsed, -1 if the message has none
+     */
+    private int port = -1;
+
+    /**
+     * The free space of the message parsed, -1 if the message has none
+     */
+    private long freeSpace = -1;
+
+    /**
+     * The load of the message parsed, -1 if the message has none
+     */
+    private int load = -1;
+
+    /**
+     * The length of the header, including the final CRLF CRLF
+     */
+    private int headerLength;
+
+    /**
+     * The buffer being parsed
+     */
+    private ByteBuffer buf;
+
+    /**
+     * The current position in the buffer
+     */
+    private int pos;
+
+    /**
+     * The position of the final CRLF CRLF of the header
+     */
+    private int limit;
+
+    /**
+     * Parse the header at the beginning of the given buffer
+     *
+     * @param buf The buffer containing the message
+     * @param offset The position where the message begins
+     * @param length The message length
+     * @return True if the header was successfully parsed, false otherwise
+     */
+    public boolean parse(byte[] buf, int offset, int length) {
+        return parse(ByteBuffer.wrap(buf, offset, length));
+    }
+
+    /**
+     * Parse the header at the beginning of the given buffer, between its position and limit.
+     * The buffer position and limit are not changed.
+     *
+     * @param buf The buffer containing the message
+     * @return True if the header was successfully parsed, false otherwise
+     */
+    public boolean parse(ByteBuffer buf) {
+        this.buf = buf;
+        pos = buf.position();
+        limit = findHeaderEnd(buf);
+        if (limit < 0)
+            return false;
+
+        headerLength = limit + 4 - buf.position();
+
+        skipWhitespace();
+        type = parseType();
+        if (type == null || !separator())
+            return false;
+
+        if (!parseVersion() || !separator())
+            return false;
+
+        senderID = parseNumber(1, 9);
+        if (senderID < 0 || !separator())
+            return false;
+
+        // Heartbeats are not associated to any file
+        if (type.equals(HEARTBEAT))
+            return parseLoadInfo();
+
+        if (!parseFileID())
+            return false;
+
+        switch (type) {
+            case DELETE:
+            case GETTCPIP:
+            case CHECKDELETE:
+                return finalSeparator();
+            case SETTCPIP:
+                return separator() && parseAddress();
+            default:
+                break;
+        }
+
+        if (!separator())
+            return false;
+
+        chunkNum = parseNumber(1, CHUNK_NUM_MAX_DIGITS);
+        if (chunkNum < 0)
+            return false;
+
+        if (type.equals(PUTCHUNK)) {
+            if (!separator())
+                return false;
+
+            repDegree = parseNumber(1, 1);
+            if (repDegree < 0)
+                return false;
+        }
+
+        return finalSeparator();
+    }
+
+    /**
+     * Find the beginning of the first CRLF CRLF sequence of the message
+     *
+     * @param buf The buffer containing the message
+     * @return The position of the sequence, or -1 if it does not exist
+     */
+    private static int findHeaderEnd(ByteBuffer buf) {
+        int end = buf.limit() - 3;
+        for (int i = buf.position(); i < end; ++i) {
+            if ((buf.get(i) == (byte) Message.ASCII_CR) &&
+                (buf.get(i+1) == (byte) Message.ASCII_LF) &&
+                (buf.get(i+2) == (byte) Message.ASCII_CR) &&
+                (buf.get(i+3) == (byte) Message.ASCII_LF))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Build a String from the latin chars of the buffer being parsed
+     *
+     * @param start The position of the first char
+     * @param length The number of chars
+     * @return The String built
+     */
+    private String getString(int start, int length) {
+        byte[] chars = new byte[length];
+        for (int i = 0; i < length; ++i)
+            chars[i] = buf.get(start + i);
+        return new String(chars, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Check if the given byte is a whitespace, as the regex '\s' class
+     *
+     * @param b The byte
+     * @return True if it is a whitespace
+     */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    /**
+     * Check if the given byte is a decimal digit
+     *
+     * @param b The byte
+     * @return True if it is a digit
+     */
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Skip all the whitespaces until the next field or the end of the header
+     *
+     * @return The number of whitespaces skipped
+     */
+    private int skipWhitespace() {
+        int start = pos;
+        while (pos < limit && isWhitespace(buf.get(pos)))
+            ++pos;
+        return pos - start;
+    }
+
+    /**
+     * Consume the whitespaces separating two fields
+     *
+     * @return True if there was at least one whitespace followed by another field
+     */
+    private boolean separator() {
+        return skipWhitespace() > 0 && pos < limit;
+    }
+
+    /**
+     * Consume the whitespaces separating the last field from the final CRLF CRLF
+     *
+     * @return True if there was at least one whitespace and nothing else until the end of the header
+     */
+    private boolean finalSeparator() {
+        return skipWhitespace() > 0 && pos == limit;
+    }
+
+    /**
+     * Parse the message type
+     *
+     * @return The type found, null if it is unknown
+     */
+    private String parseType() {
+        int start = pos;
+        while (pos < limit && !isWhitespace(buf.get(pos)))
+            ++pos;
+
+        int length = pos - start;
+        for (String type : TYPES) {
+            if (type.length() != length)
+                continue;
+
+            int i = 0;
+            while (i < length && buf.get(start + i) == type.charAt(i))
+                ++i;
+
+            if (i == length)
+                return type;
+        }
+        return null;
+    }
+
+    /**
+     * Parse the protocol version, in format 'X.Y'
+     *
+     * @return True if the version was successfully parsed
+     */
+    private boolean parseVersion() {
+        if (limit - pos < 3 || !isDigit(buf.get(pos)) || buf.get(pos + 1) != '.' || !isDigit(buf.get(pos + 2)))
+            return false;
+
+        protocolVersion = VERSIONS[(buf.get(pos) - '0') * 10 + (buf.get(pos + 2) - '0')];
+        pos += 3;
+        return true;
+    }
+
+    /**
+     * Parse a non negative decimal number
+     *
+     * @param minDigits The minimum number of digits
+     * @param maxDigits The maximum number of digits
+     * @return The number parsed, or -1 if it was not valid
+     */
+    private int parseNumber(int minDigits, int maxDigits) {
+        return (int) parseLongNumber(minDigits, maxDigits);
+    }
+
+    /**
+     * Parse a non negative decimal number, which may not fit in an int
+     *
+     * @param minDigits The minimum number of digits
+     * @param maxDigits The maximum number of digits
+     * @return The number parsed, or -1 if it was not valid
+     */
+    private long parseLongNumber(int minDigits, int maxDigits) {
+        int start = pos;
+        long value = 0;
+        while (pos < limit && isDigit(buf.get(pos))) {
+            if (pos - start == maxDigits)
+                return -1;
+
+            value = value * 10 + (buf.get(pos) - '0');
+            ++pos;
+        }
+        return (pos - start < minDigits) ? -1 : value;
+    }
+
+    /**
+     * Parse the file identifier, made of 64 lower case hexadecimal chars
+     *
+     * @return True if the file identifier was successfully parsed
+     */
+    private boolean parseFileID() {
+        if (limit - pos < FILE_ID_LENGTH)
+            return false;
+
+        for (int i = pos; i < pos + FILE_ID_LENGTH; ++i) {
+            byte b = buf.get(i);
+            if (!isDigit(b) && (b < 'a' || b > 'f'))
+                return false;
+        }
+
+        fileID = getString(pos, FILE_ID_LENGTH);
+        pos += FILE_ID_LENGTH;
+        return true;
+    }
+
+    /**
+     * Parse the IPv4 address and port of a set tcp ip message.
+     * Anything after the port, until the end of the header, is ignored.
+     *
+     * @return True if the address was successfully parsed
+     */
+    private boolean parseAddress() {
+        int start = pos;
+        for (int i = 0; i < 4; ++i) {
+            if (i > 0 && (pos >= limit || buf.get(pos++) != '.'))
+                return false;
+
+            int octet = parseNumber(1, 3);
+            if (octet < 0 || octet > 255)
+                return false;
+        }
+        ipAddress = getString(start, pos - start);
+
+        if (!separator())
+            return false;
+
+        port = parseNumber(1, 5);
+        if (port < 0 || port > MAX_PORT)
+            return false;
+
+        pos = limit;
+        return true;
+    }
+
+    /**
+     * Parse the free space and load of a heartbeat message
+     *
+     * @return True if both were successfully parsed, and nothing else follows them
+     */
+    private boolean parseLoadInfo() {
+        freeSpace = parseLongNumber(1, FREE_SPACE_MAX_DIGITS);
+        if (freeSpace < 0 || !separator())
+            return false;
+
+        load = parseNumber(1, 9);
+        if (load < 0)
+            return false;
+
+        return finalSeparator();
+    }
+
+    /**
+     * Getter for the type of the message parsed
+     *
+     * @return The message type, being one of the constants of this class
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Getter for the protocol version of the message parsed
+     *
+     * @return The protocol version
+     */
+    public float getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * Getter for the sender identifier of the message parsed
+     *
+     * @return The sender identifier
+     */
+    public int getSenderID() {
+        return senderID;
+    }
+
+    /**
+     * Getter for the file identifier of the message parsed
+     *
+     * @return The file identifier
+     */
+    public String getFileID() {
+        return fileID;
+    }
+
+    /**
+     * Getter for the chunk number of the message parsed
+     *
+     * @return The chunk number
+     */
+    public int getChunkNum() {
+        return chunkNum;
+    }
+
+    /**
+     * Getter for the replication degree of the message parsed
+     *
+     * @return The replication degree
+     */
+    public int getRepDegree() {
+        return repDegree;
+    }
+
+    /**
+     * Getter for the IP address of the message parsed
+     *
+     * @return The IP address
+     */
+    public String getIpAddress() {
+        return ipAddress;
+    }
+
+    /**
+     * Getter for the port of the message parsed
+     *
+     * @return The port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Getter for the free space of the message parsed
+     *
+     * @return The free space, in bytes
+     */
+    public long getFreeSpace() {
+        return freeSpace;
+    }
+
+    /**
+     * Getter for the load of the message parsed
+     *
+     * @return The load
+     */
+    public int getLoad() {
+        return load;
+    }
+
+    /**
+     * Getter for the length of the header parsed
+     *
+     * @return The header length, in bytes
+     */
+    public int getHeaderLength() {
+        return headerLength;
+    }
+}
@@ -0,0 +1,100 @@
+package Messages;
+
+import Utils.Utils;
+
+import java.util.regex.Matcher;
+
+/**
+ * Class representing a heartbeat message, sent periodically by each peer to tell the others it is alive
+ */
+public class HeartbeatMsg extends Message implements msgGenerator {
+
+    /**
+     * Regex used to parse a String containing a 'heartbeat' message
+     */
+    private final static String REGEX_STRING =
+            "\\s*?HEARTBEAT\\s+?(\\d\\.\\d)\\s+?(\\d+?)\\s+?(\\d+?)\\s+?(\\d+?)\\s+?\\r\\n\\r\\n";
+
+    /**
+     * Regex catch group corresponding to the message free space
+     */
+    private static final int FREE_SPACE_GROUP = 3;
+
+    /**
+     * Regex catch group corresponding to the message load
+     */
+    private static final int LOAD_GROUP = 4;
+
+    /**
+     * The disk space the sender peer still has free for chunks, in bytes
+     */
+    private long freeSpace;
+
+    /**
+     * The load of the sender peer, as the number of messages waiting to be handled
+     */
+    private int load;
+
+    /**
+     * Heartbeat message constructor
+     *
+     * @param receivedMsg The received message
+     */
+    public HeartbeatMsg(String receivedMsg) {
+        super(REGEX_STRING);
+        Matcher protocolMatch = msgRegex.matcher(receivedMsg);
+
+        if (! protocolMatch.matches()) {
+            Utils.showError("Failed to get a Regex match in received message", this.getClass());
+            throw new ExceptionInInitializerError();
+        }
+
+        protocolVersion = Float.parseFloat(protocolMatch.group(VERSION_GROUP));
+        senderID = Integer.parseInt(protocolMatch.group(SENDER_ID_GROUP));
+        freeSpace = Long.parseLong(protocolMatch.group(FREE_SPACE_GROUP));
+        load = Integer.parseInt(protocolMatch.group(LOAD_GROUP));
+    }
+
+    /**
+     * Heartbeat message constructor
+     *
+     * @param protocolVersion The communication protocol version
+     * @param senderID The peer identifier that will send this message
+     * @param freeSpace The disk space the peer still has free for chunks, in bytes
+     * @param load The number of messages the peer has waiting to be handled
+     */
+    public HeartbeatMsg(float protocolVersion, int senderID, long freeSpace, int load) {
+        super(protocolVersion, senderID);
+        this.freeSpace = freeSpace;
+        this.load = load;
+    }
+
+    @Override
+    public byte[] genMsg() {
+        return ("HEARTBEAT" + " " +
+                protocolVersion + " " +
+                senderID + " " +
+                freeSpace + " " +
+                load + " " +
+                (char) ASCII_CR + (char) ASCII_LF +
+                (char) ASCII_CR + (char) ASCII_LF).getBytes();
+    }
+
+    /**
+     * Getter for the disk space the sender peer still has free for chunks
+     *
+     * @return The free space, in bytes
+     */
+    public long getFreeSpace() {
+        return freeSpace;
+    }
+
+    /**
+     * Getter for the load of the sender peer
+     *
+     * @return The number of messages waiting to be handled
+     */
+    public int getLoad() {
+        return load;
+    }
+}
@@ -1,5 +1,6 @@
 package Messages;
 
+import Channel.PooledBuffer;
 import Utils.Utils;
 
 import java.util.regex.Pattern;
@@ -64,6 +65,11 @@ public class Message {
      */
     protected String fileID;
 
+    /**
+     * The pooled buffer holding the received message, if the message body still points to it
+     */
+    private PooledBuffer packet;
+
     /**
      * Message constrcutor
      *
@@ -73,6 +79,17 @@ public class Message {
         msgRegex = Pattern.compile(Regex, Pattern.UNIX_LINES);
     }
 
+    /**
+     * Message constructor, for messages not associated to any file
+     *
+     * @param protocolVersion The protocol version the message will use
+     * @param senderID The peer that is going to send this message
+     */
+    protected Message (float protocolVersion, int senderID) {
+        this.protocolVersion = protocolVersion;
+        this.senderID = senderID;
+    }
+
     /**
      * Message constructor
      *
@@ -117,4 +134,29 @@ public class Message {
     public String getFileID() {
         return fileID;
     }
+
+    /**
+     * Associate the pooled buffer the message body was read from. The message becomes one of its holders.
+     *
+     * @param packet The pooled buffer
+     */
+    public void setPacket(PooledBuffer packet) {
+        this.packet = packet;
+    }
+
+    /**
+     * Indicate a new holder is using the message body
+     */
+    public void retain() {
+        if (packet != null)
+            packet.retain();
+    }
+
+    /**
+     * Indicate an holder is no longer using the message body, so its buffer may go back to the pool
+     */
+    public void release() {
+        if (packet != null)
+            packet.release();
+    }
 }
@@ -3,16 +3,22 @@ package Messages;
 import Action.*;
 
 import Channel.ControlChannel;
+import Channel.DataPlaneServer;
 import Channel.RestoreChannel;
 import Channel.BackupChannel;
+import Channel.Membership;
+import Channel.PooledBuffer;
+import Channel.ResponseRouter;
 import Database.BackedUpFiles;
+import Database.ChunkStore;
 import Database.ChunksRecorder;
 import Main.Peer;
+import Utils.Logger;
 import Utils.Utils;
 import Utils.ProtocolVersions;
+import ThreadPool.WheelTimer;
 
-import java.util.Arrays;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.nio.ByteBuffer;
 
 /**
  * Class implementing the message dispatcher. This class is responsible for handling the messages and dispatch them to new actions
@@ -34,6 +40,11 @@ public class MessageDispatcher implements Runnable {
      */
     private BackupChannel backupChannel;
 
+    /**
+     * The timer used by the triggered actions to run delayed tasks
+     */
+    private WheelTimer timer;
+
     /**
      * The peer identifier associated to this dispatcher
      */
@@ -45,9 +56,9 @@ public class MessageDispatcher implements Runnable {
     private float protocolVersion;
 
     /**
-     * A list of actions that may be subscribed (meaning that want to be noticed) whenever a certain message arrives
+     * The routing table of the actions subscribed (meaning that want to be noticed) whenever a certain message arrives
      */
-    private CopyOnWriteArrayList<ActionHasReply> subscribedActions;
+    private ResponseRouter responseRouter;
 
     /**
      * The message received
@@ -59,30 +70,82 @@ public class MessageDispatcher implements Runnable {
      */
     private ChunksRecorder record;
 
+    /**
+     * The store of the chunk bodies kept by the peer
+     */
+    private ChunkStore chunkStore;
+
     /**
      * The BackedUpFiles Database that will be updated by the messages
      */
     private BackedUpFiles peerStoredFiles;
 
+    /**
+     * The data plane serving the chunks kept by the peer, or null if the peer has none
+     */
+    private DataPlaneServer dataPlaneServer;
+
+    /**
+     * The peers known to be in the service, updated with the sender of every message
+     */
+    private Membership membership;
+
+    /**
+     * Whether the chunks are placed by rendezvous hashing
+     */
+    private boolean rendezvousPlacement;
+
     /**
      * Message Dispatcher constructor
      *
      * @param peer The peer that created the dispatcher
      * @param record The ChunksRecord Database that will be updated by the messages
      * @param peerStoredFiles The BackedUpFiles Database that will be updated by the messages
-     * @param subscribedActions The list of actions that may be subscribed
+     * @param responseRouter The routing table of the subscribed actions
      * @param message The received message
      */
-    public MessageDispatcher(Peer peer, ChunksRecorder record, BackedUpFiles peerStoredFiles, CopyOnWriteArrayList<ActionHasReply> subscribedActions, Message message) {
+    public MessageDispatcher(Peer peer, ChunksRecorder record, BackedUpFiles peerStoredFiles, ResponseRouter responseRouter, Message message) {
         this.controlChannel = peer.getControlChannel();
         this.restoreChannel = peer.getRestoreChannel();
         this.backupChannel= peer.getBackupChannel();
+        this.timer = peer.getTimer();
         this.peerID = peer.getPeerID();
         this.protocolVersion = peer.getProtocolVersion();
-        this.subscribedActions = subscribedActions;
+        this.responseRouter = responseRouter;
         this.message = message;
         this.record = record;
+        this.chunkStore = peer.getChunkStore();
         this.peerStoredFiles = peerStoredFiles;
+        this.dataPlaneServer = peer.getDataPlaneServer();
+        this.membership = peer.getMembership();
+        this.rendezvousPlacement = peer.isRendezvousPlacement();
+    }
+
+    /**
+     * Check if the received message carries chunk data, being a PUTCHUNK or a CHUNK message
+     *
+     * @return True if it is a data message
+     */
+    public boolean isDataMessage() {
+        return message instanceof PutchunkMsg || message instanceof ChunkMsg;
+    }
+
+    /**
+     * Check if the received message may be dropped when the peer is overloaded.
+     * PUTCHUNK messages may, as the initiator peer sends them again while the chunk does not reach its replication degree.
+     *
+     * @return True if the message may be dropped
+     */
+    public boolean isSheddable() {
+        return message instanceof PutchunkMsg;
+    }
+
+    /**
+     * Drop the received message without handling it, releasing its buffer
+     */
+    public void discard() {
+        if (message != null)
+            message.release();
     }
 
     /**
@@ -90,40 +153,63 @@ public class MessageDispatcher implements Runnable {
      */
     @Override
     public void run() {
-        if (message == null || peerID == message.getSenderID())
+        if (message == null)
+            return;
+
+        try {
+            dispatch();
+        } finally {
+            message.release();
+        }
+    }
+
+    /**
+     * Trigger the actions correspondent to the received message
+     */
+    private void dispatch() {
+        if (peerID == message.getSenderID())
             return;
 
-        if (message instanceof PutchunkMsg) {
-            if (protocolVersion == ProtocolVersions.ENHANCEMENTS_VERSION)
-                (new StoreEnhAction(controlChannel, record, peerStoredFiles, peerID, (PutchunkMsg) message)).run();
+        membership.seen(message.getSenderID());
+
+        if (message instanceof HeartbeatMsg) {
+            membership.heartbeat(message.getSenderID(), ((HeartbeatMsg) message).getFreeSpace(), ((HeartbeatMsg) message).getLoad());
+        }
+        else if (message instanceof PutchunkMsg) {
+            if (rendezvousPlacement)
+                (new PlacedStoreAction(controlChannel, timer, record, chunkStore, peerStoredFiles, membership, peerID, (PutchunkMsg) message)).run();
+            else if (protocolVersion == ProtocolVersions.ENHANCEMENTS_VERSION)
+                (new StoreEnhAction(controlChannel, timer, record, chunkStore, peerStoredFiles, peerID, (PutchunkMsg) message)).run();
             else
-                (new StoreAction(controlChannel, record, peerStoredFiles, peerID, (PutchunkMsg) message)).run();
+                (new StoreAction(controlChannel, timer, record, chunkStore, peerStoredFiles, peerID, (PutchunkMsg) message)).run();
 
             // For reclaim actions
-            for (ActionHasReply action : subscribedActions)
-                action.parseResponse(message);
+            responseRouter.route(message, ((PutchunkMsg) message).getChunkNum());
         }
         else if (message instanceof StoredMsg) {
             (new AckStoreAction(peerStoredFiles, record, (StoredMsg) message)).run();
+
+            // For the backup senders
+            responseRouter.route(message, ((StoredMsg) message).getChunkNum());
         }
         else if (message instanceof GetchunkMsg) {
-            (new RetrieveChunkAction(restoreChannel, record, peerID, (GetchunkMsg) message)).run();
+            (new RetrieveChunkAction(restoreChannel, timer, record, chunkStore, peerID, (GetchunkMsg) message)).run();
         }
         else if (message instanceof ChunkMsg) {
-            for (ActionHasReply action : subscribedActions)
-                action.parseResponse(message);
+            responseRouter.route(message, ((ChunkMsg) message).getChunkNum());
         }
         else if (message instanceof DeleteMsg) {
-            (new DeleteAction((DeleteMsg) message, record, peerID)).run();
+            (new DeleteAction((DeleteMsg) message, record, chunkStore, peerID)).run();
         }
         else if (message instanceof RemovedMsg) {
-            (new RemovedAction(record, backupChannel, peerID, (RemovedMsg) message)).run();
+            (new RemovedAction(record, chunkStore, backupChannel, timer, peerID, (RemovedMsg) message)).run();
         }
         else if (protocolVersion == ProtocolVersions.ENHANCEMENTS_VERSION) {
             if (message instanceof GetTCPIP) {
-                (new SetTCPServer(record, controlChannel, peerID, (GetTCPIP) message)).run();
+                (new SetTCPServer(record, dataPlaneServer, controlChannel, peerID, (GetTCPIP) message)).run();
             } else if (message instanceof SetTCPIP) {
-                (new SetTCPClient(peerStoredFiles, peerID, (SetTCPIP) message)).run();
+                // For restore actions
+                responseRouter.route(message, ResponseRouter.ANY_CHUNK);
             }
         }
         else if (message instanceof CheckDeleteMsg && message.getProtocolVersion() == 2) {
@@ -132,44 +218,78 @@ public class MessageDispatcher implements Runnable {
     }
 
     /**
-     * The message interpreter, that will find what is the kind of message of the message received
+     * The message interpreter, that will find what is the kind of message of the message received.
+     * The header is parsed directly from the received bytes.
      *
      * @param readMsg The generic message received
      * @param msgLength The message length
      * @return The typo of message received, already changed to the correct type
      */
     public static Message messageInterpreter(byte[] readMsg, int msgLength) {
-        byte[] byteHeader = getMessageHeader(readMsg);
-        if (byteHeader == null) {
+        return messageInterpreter(ByteBuffer.wrap(readMsg, 0, msgLength));
+    }
+
+    /**
+     * The message interpreter for a message received in a pooled buffer.
+     * The interpreter takes over the given reference to the buffer: if the message has a body, the body is a slice
+     * of the buffer and the message becomes its holder, otherwise the buffer is released right away.
+     *
+     * @param packet The pooled buffer containing the message received, between its position and limit
+     * @return The typo of message received, already changed to the correct type
+     */
+    public static Message messageInterpreter(PooledBuffer packet) {
+        Message message = messageInterpreter(packet.getBuffer());
+
+        if (message instanceof PutchunkMsg || message instanceof ChunkMsg)
+            message.setPacket(packet);
+        else
+            packet.release();
+
+        return message;
+    }
+
+    /**
+     * The message interpreter, that will find what is the kind of message of the message received.
+     * The message body, if any, is a slice of the given buffer.
+     *
+     * @param packet The buffer containing the message received, between its position and limit
+     * @return The typo of message received, already changed to the correct type
+     */
+    public static Message messageInterpreter(ByteBuffer packet) {
+        HeaderParser header = new HeaderParser();
+        if (! header.parse(packet)) {
             Utils.showWarning("Unable to parse message header. Discarding it.", MessageDispatcher.class);
             return null;
         }
 
-        String header = new String(byteHeader, 0, byteHeader.length);
-        byte[] chunk = Arrays.copyOfRange(readMsg, byteHeader.length, msgLength);
-
-        Utils.log(findType(header)); // TODO - Delete
+        if (Logger.PACKET_LOGS)
+            Logger.debug("Received " + header.getType());
 
         try {
-            switch (findType(header)) {
-                case "PUTCHUNK":
-                    return new PutchunkMsg(header, chunk);
-                case "STORED":
-                    return new StoredMsg(header);
-                case "GETCHUNK":
-                    return new GetchunkMsg(header);
-                case "CHUNK":
-                    return new ChunkMsg(header, chunk);
-                case "DELETE":
-                    return new DeleteMsg(header);
-                case "REMOVED":
-                    return new RemovedMsg(header);
-                case "GETTCPIP":
-                    return new GetTCPIP(header);
-                case "SETTCPIP":
-                    return new SetTCPIP(header); 
-                case "CHECKDELETE":
-                    return new CheckDeleteMsg(header); 
+            switch (header.getType()) {
+                case HeaderParser.PUTCHUNK:
+                    return new PutchunkMsg(header.getProtocolVersion(), header.getSenderID(), header.getFileID(),
+                            header.getChunkNum(), header.getRepDegree(), getMessageBody(packet, header));
+                case HeaderParser.STORED:
+                    return new StoredMsg(header.getProtocolVersion(), header.getSenderID(), header.getFileID(), header.getChunkNum());
+                case HeaderParser.GETCHUNK:
+                    return new GetchunkMsg(header.getProtocolVersion(), header.getSenderID(), header.getFileID(), header.getChunkNum());
+                case HeaderParser.CHUNK:
+                    return new ChunkMsg(header.getProtocolVersion(), header.getSenderID(), header.getFileID(),
+                            header.getChunkNum(), getMessageBody(packet, header));
+                case HeaderParser.DELETE:
+                    return new DeleteMsg(header.getProtocolVersion(), header.getSenderID(), header.getFileID());
+                case HeaderParser.REMOVED:
+                    return new RemovedMsg(header.getProtocolVersion(), header.getSenderID(), header.getFileID(), header.getChunkNum());
+                case HeaderParser.GETTCPIP:
+                    return new GetTCPIP(header.getProtocolVersion(), header.getSenderID(), header.getFileID());
+                case HeaderParser.SETTCPIP:
+                    return new SetTCPIP(header.getProtocolVersion(), header.getSenderID(), header.getFileID(),
+                            header.getIpAddress(), header.getPort());
+                case HeaderParser.CHECKDELETE:
+                    return new CheckDeleteMsg(header.getProtocolVersion(), header.getSenderID(), header.getFileID());
+                case HeaderParser.HEARTBEAT:
+                    return new HeartbeatMsg(header.getProtocolVersion(), header.getSenderID(), header.getFreeSpace(), header.getLoad());
 
                 default:
                     Utils.showWarning("Unrecognizable message type. Discarding it.", MessageDispatcher.class);
@@ -182,29 +302,15 @@ public class MessageDispatcher implements Runnable {
     }
 
     /**
-     * Getter of the message header, from a given complete message
-     *
-     * @param readMsg The complete message
-     * @return The byte[] correspondent to the message header
-     */
-    private static byte[] getMessageHeader(byte[] readMsg) {
-        for (int i = 0; i < readMsg.length; ++i) {
-            if ((readMsg[i] == (byte) Message.ASCII_CR) &&
-                (readMsg[i+1] == (byte) Message.ASCII_LF) &&
-                (readMsg[i+2] == (byte) Message.ASCII_CR) &&
-                (readMsg[i+3] == (byte) Message.ASCII_LF))
-                return Arrays.copyOfRange(readMsg, 0, (i+4));
-        }
-        return null;
-    }
-
-    /**
-     * Gets the String correspondent to the type of the message
+     * Getter of the message body, from a given complete message, without copying it
      *
-     * @param header The message header to be analysed
-     * @return The type discovered
+     * @param packet The buffer containing the complete message
+     * @param header The message header, already parsed
+     * @return The buffer slice correspondent to the message body
      */
-    private static String findType(String header) {
-        return header.substring(0, header.indexOf(" "));
+    private static ByteBuffer getMessageBody(ByteBuffer packet, HeaderParser header) {
+        ByteBuffer body = packet.duplicate();
+        body.position(packet.position() + header.getHeaderLength());
+        return body.slice();
     }
 }
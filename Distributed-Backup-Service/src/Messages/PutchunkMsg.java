@@ -2,6 +2,7 @@ package Messages;
 
 import Utils.Utils;
 
+import java.nio.ByteBuffer;
 import java.util.regex.Matcher;
 
 import static Utils.Utils.byteArrayConcat;
@@ -25,7 +26,7 @@ public class PutchunkMsg extends Message implements msgGenerator {
     /**
      * The message associated chunk
      */
-    private byte[] chunk;
+    private ByteBuffer chunk;
 
     /**
      * The desired replication degree for the given chunk
@@ -52,7 +53,7 @@ public class PutchunkMsg extends Message implements msgGenerator {
         fileID = protocolMatch.group(FIELD_ID_GROUP);
         chunkNum = Integer.parseInt(protocolMatch.group(CHUNK_NUM_GROUP));
         repDegree = Integer.parseInt(protocolMatch.group(REP_DEGREE_GROUP));
-        this.chunk = chunk;
+        this.chunk = ByteBuffer.wrap(chunk);
     }
 
     /**
@@ -66,6 +67,23 @@ public class PutchunkMsg extends Message implements msgGenerator {
      * @param chunk The chunk bytes
      */
     public PutchunkMsg(float protocolVersion, int senderID, String fileID, int chunkNum, int repDegree, byte[] chunk) {
+        super(protocolVersion, senderID, fileID);
+        this.chunkNum = chunkNum;
+        this.repDegree = repDegree;
+        this.chunk = ByteBuffer.wrap(chunk);
+    }
+
+    /**
+     * Putchunk Message constructor, with the chunk bytes held in a buffer
+     *
+     * @param protocolVersion The communication protocol version
+     * @param senderID The peer identifier that will send this message
+     * @param fileID The file identifier
+     * @param chunkNum The number of the chunk to be sent
+     * @param repDegree The replication degree
+     * @param chunk The buffer containing the chunk bytes, between its position and limit
+     */
+    public PutchunkMsg(float protocolVersion, int senderID, String fileID, int chunkNum, int repDegree, ByteBuffer chunk) {
         super(protocolVersion, senderID, fileID);
         this.chunkNum = chunkNum;
         this.repDegree = repDegree;
@@ -104,11 +122,34 @@ public class PutchunkMsg extends Message implements msgGenerator {
     }
 
     /**
-     * Getter for the chunk bytes
+     * Getter for the chunk bytes. If the chunk is held in a buffer, its bytes are copied to a new array
      *
      * @return Array containing the chunk bytes
      */
     public byte[] getChunk() {
-        return chunk;
+        if (chunk.hasArray() && chunk.arrayOffset() == 0 && chunk.position() == 0 && chunk.remaining() == chunk.array().length)
+            return chunk.array();
+
+        byte[] bytes = new byte[chunk.remaining()];
+        chunk.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Getter for the chunk bytes, without copying them
+     *
+     * @return A read only view over the chunk bytes
+     */
+    public ByteBuffer getChunkBody() {
+        return chunk.asReadOnlyBuffer();
+    }
+
+    /**
+     * Getter for the chunk size
+     *
+     * @return The chunk size, in bytes
+     */
+    public int getChunkSize() {
+        return chunk.remaining();
     }
 }
@@ -1,5 +1,6 @@
 package Messages;
 
+import Utils.Logger;
 import Utils.Utils;
 
 import java.util.regex.Matcher;
@@ -26,7 +27,8 @@ public class SetTCPIP extends Message implements msgGenerator {
 
     public SetTCPIP(String header) {
         super(REGEX_STRING);
-        Utils.log(header);
+        if (Logger.PACKET_LOGS)
+            Logger.debug(header);
         Matcher protocolMatch = msgRegex.matcher(header);
 
         if (!protocolMatch.matches()) {
@@ -39,7 +41,8 @@ public class SetTCPIP extends Message implements msgGenerator {
         fileID = protocolMatch.group(FIELD_ID_GROUP);
         ipAddress = protocolMatch.group(5) + "." + protocolMatch.group(6) + "." +protocolMatch.group(7) + "." +protocolMatch.group(8);
         port = Integer.parseInt(protocolMatch.group(9));
-        Utils.log(ipAddress + "\n" + port);
+        if (Logger.PACKET_LOGS)
+            Logger.debug(ipAddress + "\n" + port);
     }
 
     public SetTCPIP(float protocolVersion, int senderID, String fileID, String ipAddress, int port) {
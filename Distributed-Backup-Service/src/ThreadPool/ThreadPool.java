@@ -3,39 +3,287 @@ package ThreadPool;
 import Action.Action;
 import Channel.MulticastChannel;
 import Messages.MessageDispatcher;
+import Utils.Utils;
 
+import java.util.EnumMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Class implementing a Thread Pool
+ * Class implementing a Thread Pool.
+ * Work is split in traffic classes, each one run by its own executor, so a flood of one kind of work cannot delay another:
+ * the channel receive loops, the control messages, the data messages (PUTCHUNK and CHUNK) and the user operations.
+ *
+ * Except for the receive loops, which are few and run forever, the executors have bounded queues. When the queue of an
+ * executor is full, PUTCHUNK messages are shed, as the initiator peer sends them again if not enough peers stored the chunk,
+ * and any other work is run by the submitting thread, slowing down the receive loop until the executor catches up.
+ * Expired timer tasks are never run by the timer thread, which would stall every other timeout: they are refused,
+ * and the timer offers them again on its next tick.
+ *
+ * The number of threads and the queue size of each class are set with the system properties
+ * backup.pool.[class].threads and backup.pool.[class].queue, e.g. backup.pool.data.threads.
+ *
+ * In per task mode, selected with the system property backup.pool.virtual, every message dispatcher, action and timer task
+ * runs on its own virtual thread instead, so a blocked disk write or transfer does not hold a pool thread. Where the Java
+ * version has no virtual threads, each task runs on its own platform thread.
  */
 public class ThreadPool {
 
     /**
-     * The number of threads in the pool
+     * The traffic classes, each one run by its own executor
      */
-    private static final int THREAD_POOL_SIZE = 30;
+    public enum TrafficClass { RECEIVE, CONTROL, DATA, USER }
 
     /**
-     * Executor for executing the threads
+     * The default number of threads of the control messages executor
      */
-    private ExecutorService executor;
+    private static final int DEFAULT_CONTROL_THREADS = 8;
 
     /**
-     * ThreadPool constructor
+     * The default queue size of the control messages executor
+     */
+    private static final int DEFAULT_CONTROL_QUEUE = 4096;
+
+    /**
+     * The default number of threads of the data messages executor
+     */
+    private static final int DEFAULT_DATA_THREADS = 16;
+
+    /**
+     * The default queue size of the data messages executor
+     */
+    private static final int DEFAULT_DATA_QUEUE = 512;
+
+    /**
+     * The default number of threads of the user operations executor
+     */
+    private static final int DEFAULT_USER_THREADS = 6;
+
+    /**
+     * The default queue size of the user operations executor
+     */
+    private static final int DEFAULT_USER_QUEUE = 256;
+
+    /**
+     * Time an idle thread of the receive loops executor is kept, in seconds
+     */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * The executor of each traffic class
+     */
+    private EnumMap<TrafficClass, ThreadPoolExecutor> executors = new EnumMap<>(TrafficClass.class);
+
+    /**
+     * The executor running each task on its own thread, in per task mode, or null
+     */
+    private ExecutorService perTaskExecutor;
+
+    /**
+     * The number of tasks submitted and not yet finished in per task mode, by traffic class ordinal
+     */
+    private AtomicInteger[] perTaskInFlight = new AtomicInteger[TrafficClass.values().length];
+
+    /**
+     * The number of tasks shed, by traffic class ordinal
+     */
+    private LongAdder[] shedTasks = new LongAdder[TrafficClass.values().length];
+
+    /**
+     * The number of tasks run by the submitting thread because the executor was full, by traffic class ordinal
+     */
+    private LongAdder[] throttledTasks = new LongAdder[TrafficClass.values().length];
+
+    /**
+     * Class wrapping a task that must not be run by the submitting thread, so it is refused when the executor is full
+     */
+    private static class RefusableTask implements Runnable {
+
+        /**
+         * The wrapped task
+         */
+        private Runnable task;
+
+        /**
+         * Refusable Task constructor
+         *
+         * @param task The wrapped task
+         */
+        RefusableTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    /**
+     * Class implementing the policy applied when the queue of an executor is full
+     */
+    private class Backpressure implements RejectedExecutionHandler {
+
+        /**
+         * The traffic class of the executor
+         */
+        private TrafficClass trafficClass;
+
+        /**
+         * Backpressure constructor
+         *
+         * @param trafficClass The traffic class of the executor
+         */
+        Backpressure(TrafficClass trafficClass) {
+            this.trafficClass = trafficClass;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown() || (task instanceof MessageDispatcher && ((MessageDispatcher) task).isSheddable())) {
+                if (task instanceof MessageDispatcher)
+                    ((MessageDispatcher) task).discard();
+                shedTasks[trafficClass.ordinal()].increment();
+                return;
+            }
+
+            if (task instanceof RefusableTask)
+                throw new RejectedExecutionException("The " + trafficClass.name().toLowerCase() + " executor is full");
+
+            throttledTasks[trafficClass.ordinal()].increment();
+            task.run();
+        }
+    }
+
+    /**
+     * ThreadPool constructor. Runs in per task mode if the system property backup.pool.virtual is true
      */
     public ThreadPool() {
-        executor = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+        this(Boolean.getBoolean("backup.pool.virtual"));
+    }
+
+    /**
+     * ThreadPool constructor
+     *
+     * @param perTask Whether each task, except the receive loops, runs on its own virtual thread
+     */
+    public ThreadPool(boolean perTask) {
+        for (TrafficClass trafficClass : TrafficClass.values()) {
+            shedTasks[trafficClass.ordinal()] = new LongAdder();
+            throttledTasks[trafficClass.ordinal()] = new LongAdder();
+            perTaskInFlight[trafficClass.ordinal()] = new AtomicInteger();
+        }
+
+        executors.put(TrafficClass.RECEIVE, new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), threadFactory("receive-")));
+        executors.put(TrafficClass.CONTROL, newBoundedExecutor(TrafficClass.CONTROL, DEFAULT_CONTROL_THREADS, DEFAULT_CONTROL_QUEUE));
+        executors.put(TrafficClass.DATA, newBoundedExecutor(TrafficClass.DATA, DEFAULT_DATA_THREADS, DEFAULT_DATA_QUEUE));
+        executors.put(TrafficClass.USER, newBoundedExecutor(TrafficClass.USER, DEFAULT_USER_THREADS, DEFAULT_USER_QUEUE));
+
+        if (perTask)
+            perTaskExecutor = newPerTaskExecutor();
     }
 
     /**
-     * Run a new thread with a given action
+     * Create the executor running each task on its own virtual thread.
+     * Virtual threads are looked up by reflection, as they are missing from older Java versions, in which case each
+     * task runs on its own platform thread.
+     *
+     * @return The executor
+     */
+    private static ExecutorService newPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Utils.showWarning("Virtual threads are not available, running each task on its own platform thread", ThreadPool.class);
+            return new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), threadFactory("task-"));
+        }
+    }
+
+    /**
+     * Check if the tasks of a traffic class run on their own thread each, instead of in the executor of the class
+     *
+     * @param trafficClass The traffic class
+     * @return True if they run on their own thread
+     */
+    private boolean runsPerTask(TrafficClass trafficClass) {
+        return perTaskExecutor != null && trafficClass != TrafficClass.RECEIVE;
+    }
+
+    /**
+     * Run a task in the executor of a traffic class, or on its own thread in per task mode, counting it while in flight
+     *
+     * @param trafficClass The traffic class
+     * @param task The task
+     * @throws RejectedExecutionException If the task was refused
+     */
+    private void execute(TrafficClass trafficClass, Runnable task) {
+        if (! runsPerTask(trafficClass)) {
+            executors.get(trafficClass).execute(task);
+            return;
+        }
+
+        AtomicInteger inFlight = perTaskInFlight[trafficClass.ordinal()];
+        inFlight.incrementAndGet();
+        try {
+            perTaskExecutor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Create the executor of a traffic class, with a fixed number of threads and a bounded queue
+     *
+     * @param trafficClass The traffic class
+     * @param defaultThreads The number of threads, if not set by its system property
+     * @param defaultQueue The queue size, if not set by its system property
+     * @return The executor
+     */
+    private ThreadPoolExecutor newBoundedExecutor(TrafficClass trafficClass, int defaultThreads, int defaultQueue) {
+        String property = "backup.pool." + trafficClass.name().toLowerCase();
+        int threads = Integer.getInteger(property + ".threads", defaultThreads);
+        int queue = Integer.getInteger(property + ".queue", defaultQueue);
+
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue),
+                threadFactory(trafficClass.name().toLowerCase() + "-"), new Backpressure(trafficClass));
+    }
+
+    /**
+     * Create a factory of threads named with the given prefix followed by a number
+     *
+     * @param name The prefix of the thread names
+     * @return The thread factory
+     */
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger numThreads = new AtomicInteger();
+        return task -> new Thread(task, name + numThreads.incrementAndGet());
+    }
+
+    /**
+     * Run a new thread with a given action, as a user operation
      *
      * @param action action to be executed
      */
     public void executeThread(Action action) {
-        executor.execute(action);
+        execute(TrafficClass.USER, action);
     }
 
     /**
@@ -44,16 +292,75 @@ public class ThreadPool {
      * @param channel permanent listener channel
      */
     public void executeThread(MulticastChannel channel) {
-        executor.execute(channel);
+        execute(TrafficClass.RECEIVE, channel);
     }
 
     /**
-     * Run a new thread with a given message handler
+     * Run a new thread with a given message handler, in the executor of its message traffic class
      *
      * @param handler handler to be executed
      */
     public void executeThread(MessageDispatcher handler) {
-        executor.execute(handler);
+        execute(handler.isDataMessage() ? TrafficClass.DATA : TrafficClass.CONTROL, handler);
+    }
+
+    /**
+     * Run a new thread with a given task, as control work
+     *
+     * @param task task to be executed
+     */
+    public void executeThread(Runnable task) {
+        execute(TrafficClass.CONTROL, task);
+    }
+
+    /**
+     * Run a new thread with a given task, such as an expired timer task, in the executor of a traffic class,
+     * unless the executor is full. The task is never run by the calling thread
+     *
+     * @param task task to be executed
+     * @param trafficClass The traffic class of the task
+     * @return False if the executor is full and the task was not accepted
+     */
+    public boolean tryExecute(Runnable task, TrafficClass trafficClass) {
+        try {
+            execute(trafficClass, new RefusableTask(task));
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Getter for the number of tasks waiting in the queue of a traffic class.
+     * In per task mode no task waits, so the number of tasks of the class in flight is given instead
+     *
+     * @param trafficClass The traffic class
+     * @return The number of tasks queued, or in flight
+     */
+    public int getQueueDepth(TrafficClass trafficClass) {
+        if (runsPerTask(trafficClass))
+            return perTaskInFlight[trafficClass.ordinal()].get();
+        return executors.get(trafficClass).getQueue().size();
+    }
+
+    /**
+     * Getter for the number of tasks of a traffic class shed because its executor was full
+     *
+     * @param trafficClass The traffic class
+     * @return The number of tasks shed
+     */
+    public long getShedTasks(TrafficClass trafficClass) {
+        return shedTasks[trafficClass.ordinal()].sum();
+    }
+
+    /**
+     * Getter for the number of tasks of a traffic class run by the submitting thread because its executor was full
+     *
+     * @param trafficClass The traffic class
+     * @return The number of tasks throttled
+     */
+    public long getThrottledTasks(TrafficClass trafficClass) {
+        return throttledTasks[trafficClass.ordinal()].sum();
     }
 
     /**
@@ -61,8 +368,39 @@ public class ThreadPool {
      * Waits for the threads to terminate.
      */
     public void shutDown() {
-        executor.shutdown();
-        while (!executor.isTerminated()) {
+        if (perTaskExecutor != null)
+            perTaskExecutor.shutdown();
+        for (ThreadPoolExecutor executor : executors.values())
+            executor.shutdown();
+
+        for (ThreadPoolExecutor executor : executors.values()) {
+            while (!executor.isTerminated()) {
+            }
+        }
+        while (perTaskExecutor != null && !perTaskExecutor.isTerminated()) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("ThreadPool{ perTask=" + (perTaskExecutor != null) + ",");
+        for (TrafficClass trafficClass : TrafficClass.values()) {
+            result.append(' ').append(trafficClass.name().toLowerCase()).append("={");
+
+            // The bounded executors are idle in per task mode, so only the tasks in flight are told
+            if (runsPerTask(trafficClass)) {
+                result.append("inFlight=").append(perTaskInFlight[trafficClass.ordinal()].get()).append('}');
+                continue;
+            }
+
+            ThreadPoolExecutor executor = executors.get(trafficClass);
+            result.append("active=").append(executor.getActiveCount())
+                    .append(", queued=").append(executor.getQueue().size())
+                    .append(", completed=").append(executor.getCompletedTaskCount())
+                    .append(", shed=").append(getShedTasks(trafficClass))
+                    .append(", throttled=").append(getThrottledTasks(trafficClass))
+                    .append('}');
         }
+        return result.append(" }\n").toString();
     }
 }
@@ -0,0 +1,374 @@
+package ThreadPool;
+
+import Utils.Utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Class implementing a hashed timing wheel, used to run delayed tasks.
+ * A single thread advances the wheel, and expired tasks are handed to the executor of their traffic class, so the number
+ * of threads does not grow with the number of tasks scheduled.
+ * The wheel thread never runs a task itself: a task refused by its full executor is kept, in order, and offered again
+ * on the next ticks, so a flood of one kind of work delays neither the other timeouts nor the other traffic classes.
+ */
+public class WheelTimer {
+
+    /**
+     * The default duration of a wheel tick, in milliseconds
+     */
+    private static final long DEFAULT_TICK_MILLIS = 10;
+
+    /**
+     * The default number of buckets in the wheel
+     */
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * Interface of the executors where expired tasks are run
+     */
+    public interface TaskExecutor {
+
+        /**
+         * Run a task in the executor of its traffic class, unless the executor is full, without ever running it
+         * in the calling thread
+         *
+         * @param task The task
+         * @param trafficClass The traffic class of the task
+         * @return False if the executor is full and the task was not accepted
+         */
+        boolean tryExecute(Runnable task, ThreadPool.TrafficClass trafficClass);
+    }
+
+    /**
+     * Class representing a task scheduled in the timer, that can be cancelled while it has not expired
+     */
+    public static class Timeout {
+
+        /**
+         * The timeout is waiting to expire
+         */
+        private static final int PENDING = 0;
+
+        /**
+         * The timeout was cancelled before expiring
+         */
+        private static final int CANCELLED = 1;
+
+        /**
+         * The timeout expired and its task was handed to the executor
+         */
+        private static final int EXPIRED = 2;
+
+        /**
+         * The task to be run when the timeout expires
+         */
+        private final Runnable task;
+
+        /**
+         * The traffic class of the task
+         */
+        private final ThreadPool.TrafficClass trafficClass;
+
+        /**
+         * The tick in which the timeout expires
+         */
+        private final long deadlineTick;
+
+        /**
+         * The number of full wheel rotations left before the timeout expires
+         */
+        private long remainingRounds;
+
+        /**
+         * The state of the timeout
+         */
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        /**
+         * Timeout constructor
+         *
+         * @param task The task to be run when the timeout expires
+         * @param trafficClass The traffic class of the task
+         * @param deadlineTick The tick in which the timeout expires
+         */
+        private Timeout(Runnable task, ThreadPool.TrafficClass trafficClass, long deadlineTick) {
+            this.task = task;
+            this.trafficClass = trafficClass;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * Cancel the timeout, so its task is never run
+         *
+         * @return True if the timeout was cancelled, false if it had already expired or been cancelled
+         */
+        public boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        /**
+         * Check whether the timeout was cancelled
+         *
+         * @return True if it was cancelled
+         */
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * Mark the timeout as expired
+         *
+         * @return True if the timeout was pending, and therefore its task must be run
+         */
+        private boolean expire() {
+            return state.compareAndSet(PENDING, EXPIRED);
+        }
+    }
+
+    /**
+     * The executor where expired tasks are run
+     */
+    private final TaskExecutor executor;
+
+    /**
+     * The duration of a wheel tick, in nanoseconds
+     */
+    private final long tickNanos;
+
+    /**
+     * The buckets of the wheel. Only accessed by the worker thread
+     */
+    private final ArrayList<ArrayList<Timeout>> wheel;
+
+    /**
+     * Timeouts scheduled but not yet placed in the wheel by the worker thread
+     */
+    private final ConcurrentLinkedQueue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Expired timeouts whose task was refused by its full executor, in expiry order. Only accessed by the worker thread
+     */
+    private final ArrayDeque<Timeout> refusedTimeouts = new ArrayDeque<>();
+
+    /**
+     * The traffic classes whose executor refused a task in the current tick. Only accessed by the worker thread
+     */
+    private final EnumSet<ThreadPool.TrafficClass> fullClasses = EnumSet.noneOf(ThreadPool.TrafficClass.class);
+
+    /**
+     * The number of expired tasks waiting for their executor to accept them
+     */
+    private volatile int numRefusedTasks = 0;
+
+    /**
+     * The number of timeouts waiting to expire, including cancelled ones not yet purged
+     */
+    private final AtomicInteger numPendingTimeouts = new AtomicInteger();
+
+    /**
+     * The time, in nanoseconds, when the timer was started
+     */
+    private final long startTime;
+
+    /**
+     * The thread advancing the wheel
+     */
+    private final Thread worker;
+
+    /**
+     * Whether the timer was stopped
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * The current tick of the wheel. Only accessed by the worker thread
+     */
+    private long tick = 0;
+
+    /**
+     * Wheel Timer constructor, using the default tick duration and wheel size
+     *
+     * @param executor The executor where expired tasks are run
+     */
+    public WheelTimer(TaskExecutor executor) {
+        this(executor, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Wheel Timer constructor
+     *
+     * @param executor The executor where expired tasks are run
+     * @param tickMillis The duration of a wheel tick, in milliseconds
+     * @param wheelSize The number of buckets in the wheel
+     */
+    public WheelTimer(TaskExecutor executor, long tickMillis, int wheelSize) {
+        this.executor = executor;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+
+        wheel = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; ++i)
+            wheel.add(new ArrayList<>());
+
+        startTime = System.nanoTime();
+        worker = new Thread(this::work, "WheelTimer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedule a control task to be run after the given delay.
+     * The task runs at most one tick later than requested, unless the control executor is full.
+     *
+     * @param task The task to be run
+     * @param delay The delay
+     * @param unit The delay time unit
+     * @return The timeout associated to the task, that can be used to cancel it
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return schedule(task, delay, unit, ThreadPool.TrafficClass.CONTROL);
+    }
+
+    /**
+     * Schedule a task to be run after the given delay, in the executor of its traffic class.
+     * The task runs at most one tick later than requested, unless the executor is full.
+     *
+     * @param task The task to be run
+     * @param delay The delay
+     * @param unit The delay time unit
+     * @param trafficClass The traffic class of the task
+     * @return The timeout associated to the task, that can be used to cancel it
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit, ThreadPool.TrafficClass trafficClass) {
+        long elapsed = System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0));
+        Timeout timeout = new Timeout(task, trafficClass, (elapsed + tickNanos - 1) / tickNanos);
+
+        numPendingTimeouts.incrementAndGet();
+        newTimeouts.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * Getter for the number of timeouts waiting to expire
+     *
+     * @return The number of pending timeouts
+     */
+    public int getNumPendingTimeouts() {
+        return numPendingTimeouts.get();
+    }
+
+    /**
+     * Getter for the number of expired tasks waiting for their full executor to accept them
+     *
+     * @return The number of refused tasks
+     */
+    public int getNumRefusedTasks() {
+        return numRefusedTasks;
+    }
+
+    /**
+     * Stop the timer. Pending timeouts never expire.
+     */
+    public void stop() {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    /**
+     * The worker loop, advancing the wheel one tick at a time
+     */
+    private void work() {
+        while (!stopped) {
+            long sleepNanos = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+
+            ++tick;
+            placeNewTimeouts();
+            retryRefusedTimeouts();
+            expireBucket(wheel.get((int) (tick % wheel.size())));
+        }
+    }
+
+    /**
+     * Place the newly scheduled timeouts in their buckets
+     */
+    private void placeNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                numPendingTimeouts.decrementAndGet();
+                continue;
+            }
+
+            // Timeouts whose deadline already passed expire in the current tick
+            long deadline = Math.max(timeout.deadlineTick, tick);
+            timeout.remainingRounds = (deadline - tick) / wheel.size();
+            wheel.get((int) (deadline % wheel.size())).add(timeout);
+        }
+    }
+
+    /**
+     * Expire the timeouts of a bucket whose deadline was reached, and purge the cancelled ones
+     *
+     * @param bucket The bucket
+     */
+    private void expireBucket(ArrayList<Timeout> bucket) {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = it.next();
+
+            if (timeout.remainingRounds > 0 && !timeout.isCancelled()) {
+                --timeout.remainingRounds;
+                continue;
+            }
+
+            it.remove();
+            numPendingTimeouts.decrementAndGet();
+
+            if (timeout.expire())
+                handOver(timeout);
+        }
+        numRefusedTasks = refusedTimeouts.size();
+    }
+
+    /**
+     * Offer again the tasks refused by their executors, oldest first
+     */
+    private void retryRefusedTimeouts() {
+        fullClasses.clear();
+        for (int i = refusedTimeouts.size(); i > 0; --i)
+            handOver(refusedTimeouts.poll());
+    }
+
+    /**
+     * Hand the task of an expired timeout to its executor, or keep it for the next tick if the executor is full.
+     * Once an executor refuses a task, the later tasks of its class are kept without being offered, so they still
+     * run in expiry order
+     *
+     * @param timeout The expired timeout
+     */
+    private void handOver(Timeout timeout) {
+        if (!fullClasses.contains(timeout.trafficClass)) {
+            try {
+                if (executor.tryExecute(timeout.task, timeout.trafficClass))
+                    return;
+            } catch (RuntimeException e) {
+                Utils.showError("Failed to run expired task", this.getClass());
+                return;
+            }
+            fullClasses.add(timeout.trafficClass);
+        }
+        refusedTimeouts.add(timeout);
+    }
+}
@@ -0,0 +1,180 @@
+package Utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * Class that rebuilds a file from its chunks as they arrive, in any order.
+ * Each chunk is written straight to its final position in the file, and a bitmap keeps track of the chunks
+ * already written, so the memory used does not depend on the file size.
+ */
+public class FileAssembler {
+
+    /**
+     * The file being rebuilt
+     */
+    private RandomAccessFile file;
+
+    /**
+     * The channel used to write to the file
+     */
+    private FileChannel channel;
+
+    /**
+     * The number of chunks that make the file
+     */
+    private int numChunks;
+
+    /**
+     * Bitmap with the chunks already written
+     */
+    private BitSet receivedChunks;
+
+    /**
+     * The number of chunks already written
+     */
+    private int numReceivedChunks = 0;
+
+    /**
+     * The final file size, known once the last chunk is written. -1 until then
+     */
+    private long fileSize = -1;
+
+    /**
+     * Whether the file is complete
+     */
+    private boolean complete = false;
+
+    /**
+     * File Assembler constructor
+     *
+     * @param filePath The path of the file to be rebuilt
+     * @param numChunks The number of chunks that make the file
+     * @throws IOException If the file could not be created
+     */
+    private FileAssembler(String filePath, int numChunks) throws IOException {
+        this.numChunks = numChunks;
+        receivedChunks = new BitSet(numChunks);
+
+        file = new RandomAccessFile(filePath, "rw");
+        channel = file.getChannel();
+
+        // Preallocate the maximum size the file may have, which is trimmed once the last chunk arrives
+        file.setLength(0);
+        file.setLength((long) numChunks * FileManager.CHUNKS_SIZE);
+
+        if (numChunks == 0)
+            finish();
+    }
+
+    /**
+     * Creates a file, naming it with given fileName and creating it a the given file path, to be rebuilt from its chunks
+     *
+     * @param filePath The file's path
+     * @param fileName The file's name
+     * @param numChunks The number of chunks that make the file
+     * @return The assembler of the file, or null if the file could not be created
+     */
+    public static FileAssembler create(String filePath, String fileName, int numChunks) {
+        try {
+            return new FileAssembler(filePath + "/" + fileName, numChunks);
+        } catch (IOException e) {
+            Utils.showError("Unable to create output file.", FileAssembler.class);
+            return null;
+        }
+    }
+
+    /**
+     * Write a chunk to its position in the file. Chunks already written are ignored.
+     *
+     * @param chunkNum The chunk numeration
+     * @param chunk Buffer containing the chunk bytes, between its position and limit
+     * @return True if this chunk completed the file
+     * @throws IOException If the chunk could not be written
+     */
+    public synchronized boolean writeChunk(int chunkNum, ByteBuffer chunk) throws IOException {
+        if (complete || chunkNum < 0 || chunkNum >= numChunks || receivedChunks.get(chunkNum))
+            return false;
+
+        long position = (long) chunkNum * FileManager.CHUNKS_SIZE;
+        ByteBuffer toWrite = chunk.duplicate();
+        while (toWrite.hasRemaining())
+            channel.write(toWrite, position + toWrite.position() - chunk.position());
+
+        receivedChunks.set(chunkNum);
+        ++numReceivedChunks;
+        if (chunkNum == numChunks - 1)
+            fileSize = position + chunk.remaining();
+
+        if (numReceivedChunks < numChunks)
+            return false;
+
+        finish();
+        return true;
+    }
+
+    /**
+     * Getter for the number of chunks already written
+     *
+     * @return The number of chunks written
+     */
+    public synchronized int getNumReceivedChunks() {
+        return numReceivedChunks;
+    }
+
+    /**
+     * Check whether the given chunk was already written
+     *
+     * @param chunkNum The chunk numeration
+     * @return True if the chunk was written
+     */
+    public synchronized boolean hasChunk(int chunkNum) {
+        return receivedChunks.get(chunkNum);
+    }
+
+    /**
+     * Find the first chunk not yet written, from the given one on
+     *
+     * @param fromChunk The chunk numeration to start from
+     * @return The chunk numeration, or -1 if all the chunks from the given one on were written
+     */
+    public synchronized int nextMissingChunk(int fromChunk) {
+        int chunkNum = receivedChunks.nextClearBit(fromChunk);
+        return (chunkNum < numChunks) ? chunkNum : -1;
+    }
+
+    /**
+     * Check whether all the chunks were written
+     *
+     * @return True if the file is complete
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Trim the file to its final size and close it
+     *
+     * @throws IOException If the file could not be trimmed
+     */
+    private void finish() throws IOException {
+        complete = true;
+        channel.truncate(Math.max(fileSize, 0));
+        channel.force(true);
+        file.close();
+    }
+
+    /**
+     * Stop rebuilding the file, closing it even if it is not complete
+     */
+    public synchronized void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            Utils.showError("Unable to close output file.", this.getClass());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package Utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Class that provides the chunks of a file on demand, reading each one from the file only when it is requested.
+ * The memory used does not depend on the file size, as no chunk is kept after being returned.
+ */
+public class FileChunker implements Closeable {
+
+    /**
+     * The channel used to read the file
+     */
+    private FileChannel channel;
+
+    /**
+     * The file size, in bytes, when it was opened
+     */
+    private long fileSize;
+
+    /**
+     * The number of chunks that make the file
+     */
+    private int numChunks;
+
+    /**
+     * File Chunker constructor
+     *
+     * @param path The path of the file
+     * @throws IOException If the file could not be opened
+     */
+    private FileChunker(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        fileSize = channel.size();
+        numChunks = (int) ((fileSize + FileManager.CHUNKS_SIZE - 1) / FileManager.CHUNKS_SIZE);
+    }
+
+    /**
+     * Open the file (if present in the given filepath) to be read in chunks of maximum size of FileManager.CHUNKS_SIZE
+     *
+     * @param filePath The file path of the file
+     * @return The chunker for the file, or null if the file could not be opened
+     */
+    public static FileChunker open(String filePath) {
+        Path path = Paths.get(filePath);
+        if (! Files.exists(path)) {
+            Utils.showError("Given File does not exist", FileChunker.class);
+            return null;
+        }
+
+        try {
+            return new FileChunker(path);
+        } catch (IOException e) {
+            Utils.showError("Unable to open file", FileChunker.class);
+            return null;
+        }
+    }
+
+    /**
+     * Getter for the number of chunks that make the file
+     *
+     * @return The number of chunks
+     */
+    public int getNumChunks() {
+        return numChunks;
+    }
+
+    /**
+     * Read the given chunk from the file, using a positional read, so concurrent reads do not interfere
+     *
+     * @param chunkNum The chunk numeration
+     * @return Buffer containing the chunk bytes, between its position and limit
+     * @throws IOException If the chunk could not be read
+     */
+    public ByteBuffer getChunk(int chunkNum) throws IOException {
+        if (chunkNum < 0 || chunkNum >= numChunks)
+            throw new IndexOutOfBoundsException("Chunk " + chunkNum + " does not exist");
+
+        long position = (long) chunkNum * FileManager.CHUNKS_SIZE;
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(FileManager.CHUNKS_SIZE, fileSize - position));
+
+        while (chunk.hasRemaining()) {
+            if (channel.read(chunk, position + chunk.position()) < 0)
+                throw new IOException("File was truncated while being read");
+        }
+
+        chunk.flip();
+        return chunk;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Utils.showError("Unable to close file", this.getClass());
+        }
+    }
+}
@@ -2,9 +2,13 @@ package Utils;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -27,19 +31,31 @@ public final class FileManager {
     public final static String BASE_DIRECTORY_NAME = "backup-";
 
     /**
-     * The configuration file name for the configurations regarding backed up files
+     * The configuration file name for the configurations regarding backed up files.
+     * It is named after the version of the serialized form, as the snapshots of older versions cannot be read
      */
-    public final static String BACKED_UP_FILES_SERIALIZABLE = "BackedUpFiles.ser";
+    public final static String BACKED_UP_FILES_SERIALIZABLE = "BackedUpFiles.v2.ser";
 
     /**
-     * The configuration file name for the configurations regarding chunks stored from other peers
+     * The configuration file name for the configurations regarding chunks stored from other peers.
+     * It is named after the version of the serialized form, as the snapshots of older versions cannot be read
      */
-    public final static String CHUNKS_RECORDER_SERIALIZABLE = "ChunksRecorder.ser";
+    public final static String CHUNKS_RECORDER_SERIALIZABLE = "ChunksRecorder.v2.ser";
+
+    /**
+     * The journal file name for the mutations regarding backed up files, made after its last snapshot
+     */
+    public final static String BACKED_UP_FILES_JOURNAL = "BackedUpFiles.journal";
+
+    /**
+     * The journal file name for the mutations regarding chunks stored from other peers, made after its last snapshot
+     */
+    public final static String CHUNKS_RECORDER_JOURNAL = "ChunksRecorder.journal";
 
     /**
      * Chunks' size in bytes : 64KBytes (chunk's Body)
      */
-    private static final int CHUNKS_SIZE = 64000;
+    public static final int CHUNKS_SIZE = 64000;
 
     /**
      * Split the the file (if present in the given filepath) into chunks of maximum size of FileManager.CHUNKS_SIZE Kb
@@ -110,6 +126,27 @@ public final class FileManager {
         return true;
     }
 
+    /**
+     * Writes the given chunk bytes to the chunk file, in the given Peer, replacing it if it already exists.
+     * The bytes are written straight from the buffer, so no copy to an array is made.
+     *
+     * @param peerID The peer identifier
+     * @param fileID The file identifier
+     * @param chunkNum The chunk numeration
+     * @param chunk The buffer containing the chunk bytes, between its position and limit
+     * @throws IOException If the chunk could not be written
+     */
+    public static void writeChunk(int peerID, String fileID, int chunkNum, ByteBuffer chunk) throws IOException {
+        new File(getFileDirectory(peerID, fileID)).mkdirs();
+
+        ByteBuffer toWrite = chunk.duplicate();
+        try (FileChannel out = FileChannel.open(getChunkFile(peerID, fileID, chunkNum),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (toWrite.hasRemaining())
+                out.write(toWrite);
+        }
+    }
+
     /**
      * Generates the fileId of a given file, using sha256 over some file peculiarity
      *
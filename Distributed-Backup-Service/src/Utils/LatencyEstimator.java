@@ -0,0 +1,77 @@
+package Utils;
+
+import java.util.Arrays;
+
+/**
+ * Class keeping the latest latency samples of a kind of response, to estimate its percentiles.
+ * The samples are kept in a ring buffer of fixed size, so old samples are forgotten as the conditions change.
+ */
+public class LatencyEstimator {
+
+    /**
+     * The default number of samples kept
+     */
+    private static final int DEFAULT_WINDOW_SIZE = 64;
+
+    /**
+     * The latest samples, in nanoseconds
+     */
+    private long[] samples;
+
+    /**
+     * The number of samples recorded so far
+     */
+    private long numSamples = 0;
+
+    /**
+     * Latency Estimator constructor, keeping the default number of samples
+     */
+    public LatencyEstimator() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Latency Estimator constructor
+     *
+     * @param windowSize The number of samples kept
+     */
+    public LatencyEstimator(int windowSize) {
+        samples = new long[windowSize];
+    }
+
+    /**
+     * Record a latency sample
+     *
+     * @param latencyNanos The latency, in nanoseconds
+     */
+    public synchronized void record(long latencyNanos) {
+        samples[(int) (numSamples % samples.length)] = latencyNanos;
+        ++numSamples;
+    }
+
+    /**
+     * Getter for the number of samples kept
+     *
+     * @return The number of samples, at most the window size
+     */
+    public synchronized int getNumSamples() {
+        return (int) Math.min(numSamples, samples.length);
+    }
+
+    /**
+     * Estimate a percentile of the latency from the samples kept
+     *
+     * @param percentile The percentile, between 0 and 1
+     * @return The latency, in nanoseconds, or -1 if there are no samples
+     */
+    public synchronized long percentile(double percentile) {
+        int size = getNumSamples();
+        if (size == 0)
+            return -1;
+
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, rank))];
+    }
+}
@@ -0,0 +1,331 @@
+package Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class implementing an asynchronous logger.
+ * Callers only claim a slot of a bounded ring buffer and fill the record in it, never blocking: when the buffer is
+ * full the record is dropped and counted. A single background thread formats the records and writes them in batches
+ * to the log file, which is kept open, and to the console.
+ *
+ * The minimum level logged is set with the system property backup.log.level (DEBUG, INFO, WARNING or ERROR).
+ * Logs of every packet sent and received are made at DEBUG level, and only if the system property backup.log.packets is true.
+ * PACKET_LOGS is a static final, so the JIT compiles the guarded calls out of the hot path when it is false.
+ */
+public final class Logger {
+
+    /**
+     * The log levels, from the least to the most severe
+     */
+    public enum Level { DEBUG, INFO, WARNING, ERROR }
+
+    /**
+     * Whether the logs of every packet sent and received are made
+     */
+    public static final boolean PACKET_LOGS = Boolean.getBoolean("backup.log.packets");
+
+    /**
+     * The file the records are written to
+     */
+    private static final String LOG_FILE = "logFile.txt";
+
+    /**
+     * The number of slots of the ring buffer. Must be a power of 2
+     */
+    private static final int CAPACITY = 8192;
+
+    /**
+     * The size of the buffer where records are formatted before being written
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The time the writer thread sleeps when there are no records, in nanoseconds
+     */
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * The format of the time stamp of each record
+     */
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd-HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    /**
+     * The minimum level logged
+     */
+    private static final Level MIN_LEVEL = Level.valueOf(System.getProperty("backup.log.level", "INFO").toUpperCase());
+
+    /**
+     * Class representing a slot of the ring buffer, reused by all the records written to it
+     */
+    private static final class Record {
+        long time;
+        Level level;
+        String message;
+    }
+
+    /**
+     * The ring buffer slots
+     */
+    private static final Record[] records = new Record[CAPACITY];
+
+    /**
+     * The sequence of each slot. A slot is free for the record of position p when its sequence is p,
+     * and holds that record when it is p + 1.
+     */
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+
+    /**
+     * The position of the next record to be added
+     */
+    private static final AtomicLong enqueuePos = new AtomicLong();
+
+    /**
+     * The position of the next record to be written. Only accessed by the writer thread
+     */
+    private static long dequeuePos = 0;
+
+    /**
+     * The number of records dropped because the ring buffer was full
+     */
+    private static final LongAdder droppedRecords = new LongAdder();
+
+    /**
+     * The number of dropped records already reported in the log
+     */
+    private static long reportedDrops = 0;
+
+    /**
+     * The channel used to write the log file, kept open. Null if the file could not be opened
+     */
+    private static FileChannel logChannel;
+
+    /**
+     * Buffer where records are formatted before being written
+     */
+    private static final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+    /**
+     * Buffer where the records are gathered before being printed to the console
+     */
+    private static final StringBuilder consoleBuffer = new StringBuilder();
+
+    /**
+     * The second of the last time stamp formatted, so the time stamp is formatted once per second
+     */
+    private static long lastSecond = -1;
+
+    /**
+     * The last time stamp formatted
+     */
+    private static String lastTimeStamp;
+
+    static {
+        for (int i = 0; i < CAPACITY; ++i) {
+            records[i] = new Record();
+            sequences.set(i, i);
+        }
+
+        try {
+            logChannel = FileChannel.open(Paths.get(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println(Utils.ANSI_RED + "LOGGER: Could not log." + Utils.ANSI_RESET);
+        }
+
+        Thread writer = new Thread(Logger::writeLoop, "Logger");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Logger::drain, "Logger shutdown"));
+    }
+
+    /**
+     * Logger constructor. Not used, as all the methods are static
+     */
+    private Logger() {}
+
+    /**
+     * Check whether records of a given level are logged
+     *
+     * @param level The level
+     * @return True if they are logged
+     */
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(MIN_LEVEL) >= 0;
+    }
+
+    /**
+     * Log a message. Never blocks: if the ring buffer is full the message is dropped.
+     *
+     * @param level The message level
+     * @param message The message
+     */
+    public static void log(Level level, String message) {
+        if (! isEnabled(level))
+            return;
+
+        long pos = enqueuePos.get();
+        int slot;
+        while (true) {
+            slot = (int) (pos & (CAPACITY - 1));
+            long diff = sequences.get(slot) - pos;
+
+            if (diff == 0) {
+                if (enqueuePos.compareAndSet(pos, pos + 1))
+                    break;
+                pos = enqueuePos.get();
+            } else if (diff < 0) {
+                droppedRecords.increment();
+                return;
+            } else {
+                pos = enqueuePos.get();
+            }
+        }
+
+        Record record = records[slot];
+        record.time = System.currentTimeMillis();
+        record.level = level;
+        record.message = message;
+        sequences.set(slot, pos + 1);
+    }
+
+    /**
+     * Log a debug message
+     *
+     * @param message The message
+     */
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    /**
+     * Log an info message
+     *
+     * @param message The message
+     */
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    /**
+     * Getter for the number of records dropped because the ring buffer was full
+     *
+     * @return The number of records dropped
+     */
+    public static long getDroppedRecords() {
+        return droppedRecords.sum();
+    }
+
+    /**
+     * The writer thread loop
+     */
+    private static void writeLoop() {
+        while (true) {
+            if (drain() == 0)
+                LockSupport.parkNanos(IDLE_NANOS);
+        }
+    }
+
+    /**
+     * Write all the records in the ring buffer
+     *
+     * @return The number of records written
+     */
+    private static synchronized int drain() {
+        int numRecords = 0;
+
+        long dropped = droppedRecords.sum();
+        if (dropped > reportedDrops) {
+            append(System.currentTimeMillis(), Level.WARNING, "Dropped " + (dropped - reportedDrops) + " log records, as the log buffer was full");
+            reportedDrops = dropped;
+        }
+
+        while (true) {
+            int slot = (int) (dequeuePos & (CAPACITY - 1));
+            if (sequences.get(slot) != dequeuePos + 1)
+                break;
+
+            Record record = records[slot];
+            long time = record.time;
+            Level level = record.level;
+            String message = record.message;
+            record.message = null;
+            sequences.set(slot, dequeuePos + CAPACITY);
+            ++dequeuePos;
+
+            append(time, level, message);
+            ++numRecords;
+        }
+
+        flush();
+        return numRecords;
+    }
+
+    /**
+     * Format a record into the write buffer, writing the buffer first if it is full, and into the console buffer
+     *
+     * @param time The record time, in milliseconds
+     * @param level The record level
+     * @param message The record message
+     */
+    private static void append(long time, Level level, String message) {
+        consoleBuffer.append(message).append(System.lineSeparator());
+
+        long second = time / 1000;
+        if (second != lastSecond) {
+            lastTimeStamp = TIME_FORMAT.format(Instant.ofEpochMilli(time));
+            lastSecond = second;
+        }
+
+        byte[] line = (lastTimeStamp + " - " + (level == Level.INFO ? "" : level + " ") + message + "\n").getBytes(StandardCharsets.UTF_8);
+        if (line.length > writeBuffer.remaining())
+            flush();
+
+        if (line.length > writeBuffer.remaining())
+            write(ByteBuffer.wrap(line));
+        else
+            writeBuffer.put(line);
+    }
+
+    /**
+     * Write the records formatted in the write buffer to the log file, and print the console buffer
+     */
+    private static void flush() {
+        if (consoleBuffer.length() > 0) {
+            System.out.print(consoleBuffer);
+            consoleBuffer.setLength(0);
+        }
+
+        writeBuffer.flip();
+        write(writeBuffer);
+        writeBuffer.clear();
+    }
+
+    /**
+     * Write a buffer to the log file
+     *
+     * @param buffer The buffer
+     */
+    private static void write(ByteBuffer buffer) {
+        if (logChannel == null || ! buffer.hasRemaining())
+            return;
+
+        try {
+            while (buffer.hasRemaining())
+                logChannel.write(buffer);
+        } catch (IOException e) {
+            System.err.println(Utils.ANSI_RED + "LOGGER: Could not write to log." + Utils.ANSI_RESET);
+        }
+    }
+}
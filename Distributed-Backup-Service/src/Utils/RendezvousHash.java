@@ -0,0 +1,77 @@
+package Utils;
+
+import java.util.Collection;
+
+/**
+ * Class placing the replicas of each chunk with rendezvous (highest random weight) hashing.
+ * Every peer scores each chunk with a hash of the chunk and its own identifier, and the peers with the highest scores
+ * hold the chunk. Peers knowing the same members agree on the placement with no messages, and a peer joining or
+ * leaving only moves the chunks it scores highest on.
+ */
+public class RendezvousHash {
+
+    /**
+     * The offset basis of the 64 bit FNV-1a hash
+     */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    /**
+     * The prime of the 64 bit FNV-1a hash
+     */
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Compute the score of a peer for a chunk
+     *
+     * @param fileID The file identifier
+     * @param chunkNum The chunk number
+     * @param peerID The peer identifier
+     * @return The score, compared as an unsigned number
+     */
+    public static long score(String fileID, int chunkNum, int peerID) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < fileID.length(); ++i) {
+            hash ^= fileID.charAt(i);
+            hash *= FNV_PRIME;
+        }
+
+        return mix(mix(hash ^ chunkNum) ^ peerID);
+    }
+
+    /**
+     * Compute the rank of a peer for a chunk among the given peers: the number of them scoring higher
+     *
+     * @param fileID The file identifier
+     * @param chunkNum The chunk number
+     * @param peerID The peer identifier
+     * @param peers The peers competing for the chunk, which may include the given peer
+     * @return The rank, 0 for the peer with the highest score
+     */
+    public static int rank(String fileID, int chunkNum, int peerID, Collection<Integer> peers) {
+        long ownScore = score(fileID, chunkNum, peerID);
+
+        int rank = 0;
+        for (int otherID : peers) {
+            if (otherID == peerID)
+                continue;
+
+            // Ties, if any, are broken by the peer identifier, so every peer sees the same order
+            int order = Long.compareUnsigned(score(fileID, chunkNum, otherID), ownScore);
+            if (order > 0 || (order == 0 && otherID < peerID))
+                ++rank;
+        }
+        return rank;
+    }
+
+    /**
+     * Mix the bits of a value, as the finalizer of SplitMix64
+     *
+     * @param value The value
+     * @return The mixed value
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -1,23 +1,14 @@
 package Utils;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Date;
 
 /**
  * A class filled with Utility methods
  */
 public final class Utils {
 
-    /**
-     * The log file to be used by log messages
-     */
-    private static File logFile = new File("logFile.txt");
-
     /**
      * For displaying text with the normal color on the screen
      */
@@ -66,28 +57,14 @@ public final class Utils {
     }
 
     /**
-     * Method responsible for logging Error and Warning messages
+     * Method responsible for logging Error and Warning messages.
+     * The message is handed to the asynchronous Logger, so the caller never waits for the log file.
      *
      * @param toLog Message to be saved
      */
-    public synchronized static void log(String toLog) {
-        System.out.println(toLog);
-		FileOutputStream logStream;
-		try {
-			logStream = new FileOutputStream(logFile, true);
-		} catch (FileNotFoundException e1) {
-			System.err.println(ANSI_RED + "LOGGER: Could not log." + ANSI_RESET);
-			return;
-		}
-
-		String timeStamp = new SimpleDateFormat("yyyy/MM/dd-HH:mm:ss").format(new Date(System.currentTimeMillis()));
-		try {
-			logStream.write((timeStamp + " - " + toLog + "\n").getBytes());
-			logStream.close();
-		} catch (IOException e) {
-			System.err.println(ANSI_RED + "LOGGER: Could not write to log." + ANSI_RESET);
-		}
-	}
+    public static void log(String toLog) {
+        Logger.info(toLog);
+    }
 
 	/**
 	 * Concatenates two byte arrays into one
@@ -103,6 +80,21 @@ public final class Utils {
 		return array1and2;
     }
     
+	/**
+	 * Concatenates a byte array with the remaining bytes of a buffer into one array.
+	 * The buffer position is not changed.
+	 *
+	 * @param array1 The array
+	 * @param buffer The buffer
+	 * @return Array containing the concatenation of the given array and buffer
+	 */
+	public static byte[] byteArrayConcat(byte[] array1, ByteBuffer buffer) {
+		byte[] array1and2 = new byte[array1.length + buffer.remaining()];
+		System.arraycopy(array1, 0, array1and2, 0, array1.length);
+		buffer.duplicate().get(array1and2, array1.length, buffer.remaining());
+		return array1and2;
+	}
+
     /**
 	 * Deletes a Folder with files in it
 	 *